@@ -25,11 +25,20 @@ import com.android.tools.build.apkzlib.utils.IOExceptionRunnable;
 import com.android.tools.build.apkzlib.zip.StoredEntry;
 import com.android.tools.build.apkzlib.zip.ZFile;
 import com.android.tools.build.apkzlib.zip.ZFileExtension;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -72,6 +81,29 @@ public class SigningExtension {
     //   in its "register" method whether the APK is correctly signed and, only if that's the case,
     //   doesn't modify the APK unless a JAR entry is added to it or removed from it after
     //   "register".
+    // * Checking whether the APK is correctly signed requires a full verification of the APK,
+    //   which hashes every entry. To avoid doing that on every incremental build, we remember a
+    //   fingerprint of the tail of every APK we have signed or verified (APK Signing Block,
+    //   Central Directory and EOCD, plus the file's size and timestamp and the signing
+    //   configuration). If the fingerprint of the APK in "register" matches the remembered one,
+    //   the APK is known to be correctly signed and verification is skipped.
+
+    /**
+     * Maximum number of entries in {@link #knownSignatureFingerprints}.
+     */
+    private static final int MAX_KNOWN_SIGNATURE_FINGERPRINTS = 256;
+
+    /**
+     * Fingerprints of APKs known to be signed as requested, indexed by the APK's absolute path.
+     * See {@link #computeSignatureFingerprint()}. This is shared between instances because the
+     * build pipeline creates a new extension for every build, so it lives as long as this class
+     * is loaded. An APK's fingerprint is removed when the APK is changed through an extension and
+     * the least recently used fingerprints are evicted once there are more than
+     * {@link #MAX_KNOWN_SIGNATURE_FINGERPRINTS}; an evicted APK is simply verified in full the next
+     * time it is opened.
+     */
+    private static final Cache<String, HashCode> knownSignatureFingerprints =
+            CacheBuilder.newBuilder().maximumSize(MAX_KNOWN_SIGNATURE_FINGERPRINTS).build();
 
     /**
      * Minimum API Level on which this APK is supposed to run.
@@ -156,7 +188,7 @@ public class SigningExtension {
     public void register(@Nonnull ZFile zFile) throws NoSuchAlgorithmException, IOException {
         Preconditions.checkState(extension == null, "register() already invoked");
         this.zFile = zFile;
-        dirty = !isCurrentSignatureAsRequested();
+        dirty = !isCurrentSignatureAsRequestedWithFastPath();
         extension = new ZFileExtension() {
             @Override
             public IOExceptionRunnable added(
@@ -180,6 +212,11 @@ public class SigningExtension {
                 onOutputZipEntriesWritten();
             }
 
+            @Override
+            public void updated() throws IOException {
+                onOutputUpdated();
+            }
+
             @Override
             public void closed() {
                 onOutputClosed();
@@ -190,7 +227,73 @@ public class SigningExtension {
 
     /**
      * Returns {@code true} if the APK's signatures are as requested by parameters to this signing
-     * extension.
+     * extension. If the APK's signature fingerprint matches the one recorded the last time the APK
+     * was signed or verified, the APK is not verified again.
+     */
+    private boolean isCurrentSignatureAsRequestedWithFastPath()
+            throws IOException, NoSuchAlgorithmException {
+        HashCode fingerprint = computeSignatureFingerprint();
+        String key = signatureFingerprintKey(zFile.getPath());
+        if (fingerprint != null
+                && fingerprint.equals(knownSignatureFingerprints.getIfPresent(key))) {
+            return true;
+        }
+
+        knownSignatureFingerprints.invalidate(key);
+        if (!isCurrentSignatureAsRequested()) {
+            return false;
+        }
+
+        if (fingerprint != null) {
+            knownSignatureFingerprints.put(key, fingerprint);
+        }
+
+        return true;
+    }
+
+    /**
+     * Computes a fingerprint of the APK's signature. The fingerprint covers the signing
+     * configuration, the size and timestamp of the file and the APK Signing Block, Central
+     * Directory and EOCD as written on disk. Since the Central Directory contains the CRC32,
+     * sizes and offsets of all entries, any change to the APK's contents made by {@link ZFile}
+     * will change the fingerprint.
+     *
+     * @return the fingerprint or {@code null} if the APK has not been written yet or the
+     * fingerprint could not be computed
+     * @throws IOException failed to read the APK
+     */
+    @Nullable
+    private HashCode computeSignatureFingerprint() throws IOException {
+        long eocdOffset = zFile.getEocdOffset();
+        if (eocdOffset == -1) {
+            return null;
+        }
+
+        byte[] encodedCert;
+        try {
+            encodedCert = certificate.getEncoded();
+        } catch (CertificateEncodingException e) {
+            return null;
+        }
+
+        long tailStart = zFile.getCentralDirectoryOffset() - zFile.getExtraDirectoryOffset();
+        byte[] tail = new byte[Ints.checkedCast(eocdOffset + zFile.getEocdSize() - tailStart)];
+        zFile.directFullyRead(tailStart, tail);
+
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putInt(minSdkVersion);
+        hasher.putBoolean(v1SigningEnabled);
+        hasher.putBoolean(v2SigningEnabled);
+        hasher.putBytes(encodedCert);
+        hasher.putLong(Files.size(zFile.getPath()));
+        hasher.putLong(Files.getLastModifiedTime(zFile.getPath()).toMillis());
+        hasher.putBytes(tail);
+        return hasher.hash();
+    }
+
+    /**
+     * Returns {@code true} if the APK's signatures are as requested by parameters to this signing
+     * extension. This performs a full verification of the APK.
      */
     private boolean isCurrentSignatureAsRequested() throws IOException, NoSuchAlgorithmException {
         ApkVerifier.Result result;
@@ -274,7 +377,7 @@ public class SigningExtension {
         // engine knowing. Also identify ZIP entries which disappeared from the output without the
         // engine knowing.
         Set<String> unprocessedRemovedEntryNames = new HashSet<>(signerProcessedOutputEntryNames);
-        for (StoredEntry entry : zFile.entries()) {
+        for (StoredEntry entry : zFile.entriesView()) {
             String entryName = entry.getCentralDirectoryHeader().getName();
             unprocessedRemovedEntryNames.remove(entryName);
             if (!signerProcessedOutputEntryNames.contains(entryName)) {
@@ -377,6 +480,19 @@ public class SigningExtension {
         }
     }
 
+    private void onOutputUpdated() throws IOException {
+        if (!dirty) {
+            return;
+        }
+
+        // The APK has just been signed. Remember its fingerprint so we don't need to verify it
+        // again when it is next opened.
+        HashCode fingerprint = computeSignatureFingerprint();
+        if (fingerprint != null) {
+            knownSignatureFingerprints.put(signatureFingerprintKey(zFile.getPath()), fingerprint);
+        }
+    }
+
     private void onOutputClosed() {
         if (!dirty) {
             return;
@@ -388,5 +504,29 @@ public class SigningExtension {
     private void setDirty() {
         dirty = true;
         cachedApkSigningBlock = null;
+        knownSignatureFingerprints.invalidate(signatureFingerprintKey(zFile.getPath()));
+    }
+
+    /**
+     * Obtains the key of an APK in {@link #knownSignatureFingerprints}.
+     *
+     * @param apk the path to the APK
+     * @return the key
+     */
+    @Nonnull
+    private static String signatureFingerprintKey(@Nonnull Path apk) {
+        return apk.toAbsolutePath().toString();
+    }
+
+    /**
+     * Checks whether the signature of an APK is known to be as requested, so that it will not be
+     * verified again when the APK is next opened with the same signing configuration.
+     *
+     * @param apk the path to the APK
+     * @return is a fingerprint of the APK's signature known?
+     */
+    @VisibleForTesting
+    static boolean isSignatureFingerprintKnown(@Nonnull Path apk) {
+        return knownSignatureFingerprints.getIfPresent(signatureFingerprintKey(apk)) != null;
     }
 }
\ No newline at end of file
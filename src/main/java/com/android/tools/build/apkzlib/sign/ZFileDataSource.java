@@ -32,6 +32,16 @@ class ZFileDataSource implements DataSource {
 
     private static final int MAX_READ_CHUNK_SIZE = 65536;
 
+    /**
+     * Per-thread buffer used by {@link #feed(long, long, DataSink)}. apksig feeds the whole APK
+     * through data sources when computing digests so allocating a new buffer on every call would
+     * be wasteful. The buffer is direct so reads from the file's channel don't need to go through
+     * an intermediate heap buffer. See {@link #feed(long, long, DataSink)} for what this means for
+     * sinks.
+     */
+    private static final ThreadLocal<ByteBuffer> feedBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_READ_CHUNK_SIZE));
+
     @Nonnull
     private final ZFile file;
 
@@ -97,6 +107,17 @@ class ZFileDataSource implements DataSource {
         return new ZFileDataSource(file, this.offset + offset, size);
     }
 
+    /**
+     * Feeds a region of this data source to a sink. The buffer passed to
+     * {@link DataSink#consume(ByteBuffer)} is shared by all calls made in the same thread, so the
+     * sink must not keep a reference to it after {@code consume} returns and must not call this
+     * method, on this or any other {@code ZFileDataSource}, from within {@code consume}.
+     *
+     * @param offset offset of the region in this data source
+     * @param size size of the region
+     * @param sink the sink that receives the data
+     * @throws IOException failed to read the data
+     */
     @Override
     public void feed(long offset, long size, @Nonnull DataSink sink) throws IOException {
         long sourceSize = size();
@@ -107,15 +128,17 @@ class ZFileDataSource implements DataSource {
 
         long chunkOffsetInFile = this.offset + offset;
         long remaining = size;
-        byte[] buf = new byte[(int) Math.min(remaining, MAX_READ_CHUNK_SIZE)];
+        ByteBuffer buf = feedBuffer.get();
         while (remaining > 0) {
-            int chunkSize = (int) Math.min(remaining, buf.length);
-            int readSize = file.directRead(chunkOffsetInFile, buf, 0, chunkSize);
+            buf.clear();
+            buf.limit((int) Math.min(remaining, buf.capacity()));
+            int readSize = file.directRead(chunkOffsetInFile, buf);
             if (readSize == -1) {
                 throw new EOFException("Premature EOF");
             }
             if (readSize > 0) {
-                sink.consume(buf, 0, readSize);
+                buf.flip();
+                sink.consume(buf);
                 chunkOffsetInFile += readSize;
                 remaining -= readSize;
             }
@@ -132,6 +155,7 @@ class ZFileDataSource implements DataSource {
 
         int prevLimit = dest.limit();
         try {
+            dest.limit(dest.position() + size);
             file.directFullyRead(this.offset + offset, dest);
         } finally {
             dest.limit(prevLimit);
@@ -19,9 +19,12 @@ package com.android.tools.build.apkzlib.utils;
 import com.google.common.base.Objects;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
-import com.google.common.io.Files;
+import com.google.common.io.ByteSource;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -55,7 +58,7 @@ public class CachedFileContents<T> {
      * The file.
      */
     @Nonnull
-    private File file;
+    private Path file;
 
     /**
      * Time when last closed (time when {@link #closed(Object)} was invoked).
@@ -86,6 +89,16 @@ public class CachedFileContents<T> {
      * @param file the file
      */
     public CachedFileContents(@Nonnull File file) {
+        this(file.toPath());
+    }
+
+    /**
+     * Creates a new contents for a file in any file system. When the file is written,
+     * {@link #closed(Object)} should be invoked to set the cache.
+     *
+     * @param file the file
+     */
+    public CachedFileContents(@Nonnull Path file) {
         this.file = file;
     }
 
@@ -99,8 +112,8 @@ public class CachedFileContents<T> {
      */
     public void closed(@Nullable T cache) {
         this.cache = cache;
-        lastClosed = file.lastModified();
-        size = file.length();
+        lastClosed = lastModified();
+        size = length();
         hash = hashFile();
     }
 
@@ -114,15 +127,15 @@ public class CachedFileContents<T> {
     public boolean isValid() {
         boolean valid = true;
 
-        if (!file.exists()) {
+        if (!Files.exists(file)) {
             valid = false;
         }
 
-        if (valid && file.lastModified() != lastClosed) {
+        if (valid && lastModified() != lastClosed) {
             valid = false;
         }
 
-        if (valid && file.length() != size) {
+        if (valid && length() != size) {
             valid = false;
         }
 
@@ -149,6 +162,33 @@ public class CachedFileContents<T> {
         return cache;
     }
 
+    /**
+     * Obtains the last modification time of the file.
+     *
+     * @return the time in milliseconds or {@code 0} if the file does not exist or the time could
+     * not be read
+     */
+    private long lastModified() {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Obtains the size of the file.
+     *
+     * @return the size or {@code 0} if the file does not exist or the size could not be read
+     */
+    private long length() {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
     /**
      * Computes the hashcode of the cached file.
      *
@@ -157,7 +197,12 @@ public class CachedFileContents<T> {
     @Nullable
     private HashCode hashFile() {
         try {
-            return Files.hash(file, Hashing.crc32());
+            return new ByteSource() {
+                @Override
+                public InputStream openStream() throws IOException {
+                    return Files.newInputStream(file);
+                }
+            }.hash(Hashing.crc32());
         } catch (IOException e) {
             return null;
         }
@@ -168,9 +213,21 @@ public class CachedFileContents<T> {
      *
      * @return the file; this file always exists and contains the old (cached) contents of the
      * file
+     * @throws UnsupportedOperationException if the file is not in the default file system
      */
     @Nonnull
     public File getFile() {
+        return file.toFile();
+    }
+
+    /**
+     * Obtains the path of the file used for caching.
+     *
+     * @return the path; this file always exists and contains the old (cached) contents of the
+     * file
+     */
+    @Nonnull
+    public Path getPath() {
         return file;
     }
 }
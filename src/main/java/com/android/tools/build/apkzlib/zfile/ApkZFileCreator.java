@@ -129,7 +129,7 @@ class ApkZFileCreator implements ApkCreator {
 
             this.zip.mergeFrom(toMerge, noMergePredicate);
 
-            for (StoredEntry toMergeEntry : toMerge.entries()) {
+            for (StoredEntry toMergeEntry : toMerge.entriesView()) {
                 String path = toMergeEntry.getCentralDirectoryHeader().getName();
                 if (noCompressPredicate.test(path) && !ignorePredicate.test(path)) {
                     // This entry *must* be uncompressed so it was ignored in the merge and should
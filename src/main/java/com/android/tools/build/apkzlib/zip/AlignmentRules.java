@@ -17,10 +17,20 @@
 package com.android.tools.build.apkzlib.zip;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.util.List;
+import java.util.Map;
 import javax.annotation.Nonnull;
 
 /**
  * Factory for instances of {@link AlignmentRule}.
+ *
+ * <p>Rules created by {@link #constant(int)} and {@link #constantForSuffix(String, int)} are
+ * compiled when composed with {@link #compose(AlignmentRule...)}: all suffixes are placed in a
+ * single trie indexed by reversed suffix, so the alignment of a path is found by reading the path
+ * backwards once, regardless of how many rules were composed.
  */
 public final class AlignmentRules {
 
@@ -35,7 +45,7 @@ public final class AlignmentRules {
     public static AlignmentRule constant(int alignment) {
         Preconditions.checkArgument(alignment > 0, "alignment <= 0");
 
-        return (String path) -> alignment;
+        return new SuffixRule("", alignment);
     }
 
     /**
@@ -50,7 +60,7 @@ public final class AlignmentRules {
         Preconditions.checkArgument(!suffix.isEmpty(), "suffix.isEmpty()");
         Preconditions.checkArgument(alignment > 0, "alignment <= 0");
 
-        return (String path) -> path.endsWith(suffix) ? alignment : AlignmentRule.NO_ALIGNMENT;
+        return new SuffixRule(suffix, alignment);
     }
 
     /**
@@ -63,15 +73,196 @@ public final class AlignmentRules {
      * @return the composition rule
      */
     public static AlignmentRule compose(@Nonnull AlignmentRule... rules) {
-        return (String path) -> {
-            for (AlignmentRule r : rules) {
+        ImmutableList.Builder<AlignmentRule> flattened = ImmutableList.builder();
+        for (AlignmentRule rule : rules) {
+            if (rule instanceof ComposedRule) {
+                flattened.addAll(((ComposedRule) rule).rules);
+            } else {
+                flattened.add(rule);
+            }
+        }
+
+        return new ComposedRule(flattened.build());
+    }
+
+    /**
+     * Rule giving a constant alignment to all paths ending with a suffix. An empty suffix matches
+     * all paths.
+     */
+    private static final class SuffixRule implements AlignmentRule {
+
+        /**
+         * The suffix.
+         */
+        @Nonnull
+        private final String suffix;
+
+        /**
+         * Alignment of paths ending with {@link #suffix}.
+         */
+        private final int alignment;
+
+        /**
+         * Creates a new rule.
+         *
+         * @param suffix the suffix, may be empty
+         * @param alignment the alignment of paths ending with the suffix
+         */
+        SuffixRule(@Nonnull String suffix, int alignment) {
+            this.suffix = suffix;
+            this.alignment = alignment;
+        }
+
+        @Override
+        public int alignment(@Nonnull String path) {
+            return path.endsWith(suffix) ? alignment : NO_ALIGNMENT;
+        }
+    }
+
+    /**
+     * Rule composed of other rules. Consecutive suffix rules are compiled into a
+     * {@link SuffixTrie}; other rules are evaluated as they are.
+     */
+    private static final class ComposedRule implements AlignmentRule {
+
+        /**
+         * The rules being composed, with no nested compositions.
+         */
+        @Nonnull
+        private final ImmutableList<AlignmentRule> rules;
+
+        /**
+         * The rules to evaluate, in order. Each is either a {@link SuffixTrie} or one of
+         * {@link #rules} that is not a suffix rule.
+         */
+        @Nonnull
+        private final AlignmentRule[] compiled;
+
+        /**
+         * Creates a new rule.
+         *
+         * @param rules the rules being composed, with no nested compositions
+         */
+        ComposedRule(@Nonnull ImmutableList<AlignmentRule> rules) {
+            this.rules = rules;
+
+            List<AlignmentRule> stages = Lists.newArrayList();
+            SuffixTrie trie = null;
+            for (AlignmentRule rule : rules) {
+                if (rule instanceof SuffixRule) {
+                    if (trie == null) {
+                        trie = new SuffixTrie();
+                        stages.add(trie);
+                    }
+
+                    trie.add((SuffixRule) rule);
+                } else {
+                    trie = null;
+                    stages.add(rule);
+                }
+            }
+
+            compiled = stages.toArray(new AlignmentRule[stages.size()]);
+        }
+
+        @Override
+        public int alignment(@Nonnull String path) {
+            for (AlignmentRule r : compiled) {
                 int align = r.alignment(path);
-                if (align != AlignmentRule.NO_ALIGNMENT) {
+                if (align != NO_ALIGNMENT) {
                     return align;
                 }
             }
 
-            return AlignmentRule.NO_ALIGNMENT;
-        };
+            return NO_ALIGNMENT;
+        }
+    }
+
+    /**
+     * Trie of suffix rules indexed by the reversed suffix. Each node records the alignment of the
+     * first rule whose suffix ends at that node, if any. Evaluating a path walks the trie reading
+     * the path backwards and keeps the alignment of the first rule matched.
+     */
+    private static final class SuffixTrie implements AlignmentRule {
+
+        /**
+         * The root node, corresponding to the empty suffix.
+         */
+        @Nonnull
+        private final Node root = new Node();
+
+        /**
+         * Number of rules added so far; used to define the precedence of rules.
+         */
+        private int ruleCount;
+
+        /**
+         * Adds a rule to the trie. Rules added first take precedence over rules added later.
+         *
+         * @param rule the rule to add
+         */
+        void add(@Nonnull SuffixRule rule) {
+            int priority = ruleCount++;
+            if (rule.alignment == NO_ALIGNMENT) {
+                /*
+                 * The rule never defines an alignment, so it never stops the search.
+                 */
+                return;
+            }
+
+            Node node = root;
+            for (int i = rule.suffix.length() - 1; i >= 0; i--) {
+                node = node.children.computeIfAbsent(rule.suffix.charAt(i), c -> new Node());
+            }
+
+            if (node.priority == -1) {
+                node.priority = priority;
+                node.alignment = rule.alignment;
+            }
+        }
+
+        @Override
+        public int alignment(@Nonnull String path) {
+            int bestPriority = root.priority == -1 ? Integer.MAX_VALUE : root.priority;
+            int alignment = root.alignment;
+
+            Node node = root;
+            for (int i = path.length() - 1; i >= 0 && bestPriority != 0; i--) {
+                node = node.children.get(path.charAt(i));
+                if (node == null) {
+                    break;
+                }
+
+                if (node.priority != -1 && node.priority < bestPriority) {
+                    bestPriority = node.priority;
+                    alignment = node.alignment;
+                }
+            }
+
+            return alignment;
+        }
+
+        /**
+         * Node in the trie.
+         */
+        private static final class Node {
+
+            /**
+             * Child nodes, indexed by the previous character in the suffix.
+             */
+            @Nonnull
+            private final Map<Character, Node> children = Maps.newHashMap();
+
+            /**
+             * Precedence of the first rule whose suffix ends at this node, {@code -1} if none.
+             */
+            private int priority = -1;
+
+            /**
+             * Alignment of the first rule whose suffix ends at this node; meaningful only if
+             * {@link #priority} is not {@code -1}.
+             */
+            private int alignment = NO_ALIGNMENT;
+        }
     }
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import javax.annotation.Nonnull;
+
+/**
+ * Read-only {@link FileChannel} over a byte range of a zip file. All reads are made using
+ * positional reads on the zip (see {@link ZFile#directRead(long, ByteBuffer)}) so no data is
+ * copied out of the zip. Closing the channel does not close the zip.
+ */
+class ByteRangeChannel extends FileChannel {
+
+    /**
+     * Size of the buffer used in {@link #transferTo(long, long, WritableByteChannel)}.
+     */
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The zip containing the data.
+     */
+    @Nonnull
+    private final ZFile file;
+
+    /**
+     * Offset in {@link #file} where the range starts.
+     */
+    private final long start;
+
+    /**
+     * Size of the range.
+     */
+    private final long size;
+
+    /**
+     * Current position in the channel, relative to {@link #start}.
+     */
+    private long position;
+
+    /**
+     * Creates a new channel.
+     *
+     * @param file the zip containing the data
+     * @param start offset in {@code file} where the range starts
+     * @param size size of the range
+     */
+    ByteRangeChannel(@Nonnull ZFile file, long start, long size) {
+        Preconditions.checkArgument(start >= 0, "start < 0");
+        Preconditions.checkArgument(size >= 0, "size < 0");
+
+        this.file = file;
+        this.start = start;
+        this.size = size;
+        position = 0;
+    }
+
+    @Override
+    public int read(@Nonnull ByteBuffer dst) throws IOException {
+        int r = read(dst, position);
+        if (r > 0) {
+            position += r;
+        }
+
+        return r;
+    }
+
+    @Override
+    public long read(@Nonnull ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int r = read(dsts[i]);
+            if (r == -1) {
+                return total == 0 ? -1 : total;
+            }
+
+            total += r;
+            if (dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+
+        return total;
+    }
+
+    @Override
+    public int read(@Nonnull ByteBuffer dst, long position) throws IOException {
+        Preconditions.checkArgument(position >= 0, "position < 0");
+        ensureOpen();
+
+        if (position >= size) {
+            return -1;
+        }
+
+        int limit = dst.limit();
+        long available = size - position;
+        if (dst.remaining() > available) {
+            dst.limit(dst.position() + (int) available);
+        }
+
+        try {
+            /*
+             * The zip may have been closed since this channel was created. Reopening it in
+             * read-only mode is a no-op if it is open. ZFile#openNested opens the zip before the
+             * nested zip is read, so reads made in parallel while the nested zip is being opened
+             * never reopen it.
+             */
+            file.openReadOnly();
+            return file.directRead(start + position, dst);
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    @Override
+    public int write(@Nonnull ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(@Nonnull ByteBuffer[] srcs, int offset, int length) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(@Nonnull ByteBuffer src, long position) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Nonnull
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+        Preconditions.checkArgument(newPosition >= 0, "newPosition < 0");
+        ensureOpen();
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Nonnull
+    @Override
+    public FileChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force(boolean metaData) {
+        /*
+         * Nothing is ever written.
+         */
+    }
+
+    @Override
+    public long transferTo(long position, long count, @Nonnull WritableByteChannel target)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, TRANSFER_BUFFER_SIZE));
+        long transferred = 0;
+        while (transferred < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+            int r = read(buffer, position + transferred);
+            if (r <= 0) {
+                break;
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+
+            transferred += r;
+        }
+
+        return transferred;
+    }
+
+    @Override
+    public long transferFrom(@Nonnull ReadableByteChannel src, long position, long count) {
+        throw new NonWritableChannelException();
+    }
+
+    @Nonnull
+    @Override
+    public MappedByteBuffer map(@Nonnull MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException("Byte ranges of a zip cannot be mapped.");
+    }
+
+    @Nonnull
+    @Override
+    public FileLock lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Byte ranges of a zip cannot be locked.");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Byte ranges of a zip cannot be locked.");
+    }
+
+    @Override
+    protected void implCloseChannel() {
+        /*
+         * The zip is owned by whoever created this channel and is not closed.
+         */
+    }
+
+    /**
+     * Ensures the channel has not been closed.
+     *
+     * @throws IOException the channel has been closed
+     */
+    private void ensureOpen() throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
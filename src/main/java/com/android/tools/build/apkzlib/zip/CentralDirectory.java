@@ -20,6 +20,7 @@ import com.android.tools.build.apkzlib.utils.CachedSupplier;
 import com.android.tools.build.apkzlib.zip.utils.MsDosDateTimeUtils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Verify;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -29,10 +30,13 @@ import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Stream;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * Representation of the central directory of a zip archive.
@@ -159,10 +163,27 @@ class CentralDirectory {
     private static final ZipField.F4 F_OFFSET = new ZipField.F4(F_EXTERNAL_ATTRIBUTES.endOffset(),
             "Offset", new ZipFieldInvariantNonNegative());
 
+    /**
+     * Size of the smallest possible directory entry: one with no name, extra field or comment.
+     */
+    static final int MIN_ENTRY_SIZE = F_OFFSET.endOffset();
+
     /**
      * Maximum supported version to extract.
      */
-    private static final int MAX_VERSION_TO_EXTRACT = 20;
+    private static final long MAX_VERSION_TO_EXTRACT = Zip64Eocd.VERSION_WITH_ZIP64;
+
+    /**
+     * Maximum number of bytes of the central directory read from the file at once. Must be
+     * larger than the largest possible directory entry.
+     */
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Minimum number of directory entries that are decoded in parallel. Decoding fewer entries
+     * in parallel costs more than decoding them sequentially.
+     */
+    private static final int MIN_ENTRIES_TO_DECODE_IN_PARALLEL = 256;
 
     /**
      * Bit that can be set on the internal attributes stating that the file is an ASCII file. We
@@ -172,11 +193,19 @@ class CentralDirectory {
     private static final int ASCII_BIT = 1;
 
     /**
-     * Contains all entries in the directory mapped from their names.
+     * Contains all entries in the directory mapped from their names. Empty if the entries are
+     * kept in {@link #table}.
      */
     @Nonnull
     private final Map<String, StoredEntry> entries;
 
+    /**
+     * Compact table with all entries in the directory, {@code null} if the entries are kept in
+     * {@link #entries}. Only used for read-only zips.
+     */
+    @Nullable
+    private final EntryTable table;
+
     /**
      * The file where this directory belongs to.
      */
@@ -201,7 +230,19 @@ class CentralDirectory {
      * @param file the file
      */
     CentralDirectory(@Nonnull ZFile file) {
+        this(file, null);
+    }
+
+    /**
+     * Creates a new, empty, central directory, for a given zip file.
+     *
+     * @param file the file
+     * @param table the table where entries are kept, {@code null} to keep entries in
+     * {@link #entries}
+     */
+    private CentralDirectory(@Nonnull ZFile file, @Nullable EntryTable table) {
         entries = Maps.newHashMap();
+        this.table = table;
         this.file = file;
         bytesSupplier = new CachedSupplier<>(this::computeByteRepresentation);
         verifyLog = file.getVerifyLog();
@@ -209,43 +250,260 @@ class CentralDirectory {
 
     /**
      * Reads the central directory data from a zip file, parses it, and creates the in-memory
-     * structure representing the directory.
+     * structure representing the directory. The central directory is read in chunks of at most
+     * {@link #READ_BUFFER_SIZE} bytes, so it never needs to be fully loaded in memory.
      *
-     * @param bytes the data of the central directory; the directory is read from the buffer's
-     * current position; when this method terminates, the buffer's position is the first byte
-     * after the directory
+     * <p>The entries of read-only zips are kept in an {@link EntryTable}, which needs much less
+     * memory per entry than keeping a {@link StoredEntry} for each one.
+     *
+     * @param file the zip file this central directory belongs to
+     * @param offset the offset in the zip file where the central directory starts
+     * @param size the number of bytes of the central directory
      * @param count the number of entries expected in the central directory (usually read from the
      * {@link Eocd}).
-     * @param file the zip file this central directory belongs to
      * @return the central directory
      * @throws IOException failed to read data from the zip, or the central directory is corrupted
      * or has unsupported features
      */
-    static CentralDirectory makeFromData(@Nonnull ByteBuffer bytes, int count, @Nonnull ZFile file)
+    static CentralDirectory makeFromFile(
+            @Nonnull ZFile file,
+            long offset,
+            long size,
+            int count)
             throws IOException {
-        Preconditions.checkNotNull(bytes, "bytes == null");
+        Preconditions.checkArgument(offset >= 0, "offset < 0");
+        Preconditions.checkArgument(size >= 0, "size < 0");
         Preconditions.checkArgument(count >= 0, "count < 0");
 
-        CentralDirectory directory = new CentralDirectory(file);
+        /*
+         * The count comes from the file and may be corrupt, so the table's initial capacity is
+         * limited to the number of entries that fit in the directory.
+         */
+        EntryTable table = null;
+        if (file.isReadOnly()) {
+            table = new EntryTable(file, Ints.checkedCast(Math.min(count, size / MIN_ENTRY_SIZE)));
+        }
+
+        CentralDirectory directory = new CentralDirectory(file, table);
 
+        ByteBuffer bytes = ByteBuffer.allocate(Ints.checkedCast(Math.min(size, READ_BUFFER_SIZE)));
+        bytes.limit(0);
+        long end = offset + size;
+        long position = offset;
+
+        /*
+         * Entries are read in two passes. The first pass only uses the length fields of each
+         * entry to find where the entries in the buffer are. The second pass decodes the entries
+         * found, in parallel if there are enough of them. The buffer is refilled only after all
+         * entries found have been decoded, as refilling moves the data in the buffer.
+         */
+        List<EntryRecord> found = Lists.newArrayList();
         for (int i = 0; i < count; i++) {
+            long directoryOffset = position - offset - bytes.remaining();
+            int entrySize;
             try {
-                directory.readEntry(bytes);
+                if (bytes.remaining() < F_OFFSET.endOffset()
+                        || bytes.remaining() < entrySize(bytes)) {
+                    directory.decodeEntries(found);
+                    found.clear();
+                    position = fill(file, bytes, position, end, F_OFFSET.endOffset());
+                    position = fill(file, bytes, position, end, entrySize(bytes));
+                }
+
+                entrySize = entrySize(bytes);
             } catch (IOException e) {
-                throw new IOException(
-                        "Failed to read directory entry index "
-                                + i
-                                + " (total "
-                                + "directory bytes read: "
-                                + bytes.position()
-                                + ").",
-                        e);
+                throw entryFailure(i, directoryOffset, e);
             }
+
+            ByteBuffer entryBytes = bytes.slice();
+            entryBytes.limit(entrySize);
+            bytes.position(bytes.position() + entrySize);
+            found.add(new EntryRecord(i, directoryOffset, entryBytes));
+        }
+
+        directory.decodeEntries(found);
+        if (directory.table != null) {
+            directory.table.trimToSize();
         }
 
         return directory;
     }
 
+    /**
+     * Creates the exception reported when a directory entry cannot be read.
+     *
+     * @param index the index of the entry in the central directory
+     * @param directoryOffset the offset of the entry relative to the start of the central
+     * directory
+     * @param cause why the entry could not be read
+     * @return the exception
+     */
+    @Nonnull
+    private static IOException entryFailure(int index, long directoryOffset, IOException cause) {
+        return new IOException(
+                "Failed to read directory entry index "
+                        + index
+                        + " (total "
+                        + "directory bytes read: "
+                        + directoryOffset
+                        + ").",
+                cause);
+    }
+
+    /**
+     * Decodes directory entries and adds them to {@link #entries}, or to {@link #table} if there
+     * is one. Entries are decoded in
+     * parallel if there are at least {@link #MIN_ENTRIES_TO_DECODE_IN_PARALLEL}, but they are
+     * added, and their verify log messages logged, in the order they appear in the central
+     * directory so the result does not depend on how decoding was scheduled.
+     *
+     * @param records the entries to decode, in central directory order
+     * @throws IOException failed to decode an entry; entries before it have been added
+     */
+    private void decodeEntries(@Nonnull List<EntryRecord> records) throws IOException {
+        /*
+         * The verify log factory is supplied by the user and may not be thread-safe, so logs are
+         * created here rather than where entries are decoded.
+         */
+        for (EntryRecord record : records) {
+            record.entryLog = file.makeVerifyLog();
+        }
+
+        Stream<EntryRecord> stream = records.stream();
+        if (records.size() >= MIN_ENTRIES_TO_DECODE_IN_PARALLEL) {
+            stream = stream.parallel();
+        }
+
+        stream.forEach(this::decodeEntry);
+
+        for (EntryRecord record : records) {
+            for (String message : record.log.getLogs()) {
+                verifyLog.log(message);
+            }
+
+            if (record.failure != null) {
+                throw entryFailure(record.index, record.directoryOffset, record.failure);
+            }
+
+            CentralDirectoryHeader cdh = Verify.verifyNotNull(record.header);
+            String fileName = cdh.getName();
+            if (table != null ? table.contains(fileName) : entries.containsKey(fileName)) {
+                verifyLog.log("File file contains duplicate file '" + fileName + "'.");
+            }
+
+            if (table != null) {
+                table.add(
+                        cdh,
+                        Verify.verifyNotNull(record.localExtra),
+                        Verify.verifyNotNull(record.dataDescriptorType),
+                        Verify.verifyNotNull(record.entryLog));
+            } else {
+                entries.put(fileName, Verify.verifyNotNull(record.entry));
+            }
+        }
+    }
+
+    /**
+     * Decodes a single directory entry, saving the result, or the failure, in the record. This
+     * method may be invoked concurrently for different records.
+     *
+     * <p>If the entries are kept in {@link #table}, the entry's local header and data descriptor
+     * are read and saved in the record instead of creating a {@link StoredEntry}.
+     *
+     * @param record the record with the entry's data
+     */
+    private void decodeEntry(@Nonnull EntryRecord record) {
+        if (verifyLog != VerifyLogs.devNull()) {
+            record.log = VerifyLogs.unlimited();
+        }
+
+        try {
+            CentralDirectoryHeader cdh = readHeader(record.bytes, record.log);
+            VerifyLog entryLog = Verify.verifyNotNull(record.entryLog);
+            try {
+                if (table == null) {
+                    record.entry = new StoredEntry(cdh, file, null, entryLog);
+                } else {
+                    record.localExtra = StoredEntry.readLocalHeader(cdh, file, entryLog);
+                    if (StoredEntry.typeOf(cdh) == StoredEntryType.DIRECTORY) {
+                        StoredEntry.verifyDirectoryHeader(cdh, entryLog);
+                    }
+
+                    record.dataDescriptorType =
+                            StoredEntry.readDataDescriptorType(
+                                    cdh, file, record.localExtra, entryLog);
+                }
+            } catch (IOException e) {
+                throw new IOException("Failed to read stored entry '" + cdh.getName() + "'.", e);
+            }
+
+            record.header = cdh;
+        } catch (IOException e) {
+            record.failure = e;
+        }
+    }
+
+    /**
+     * Makes sure a buffer with central directory data has, at least, a number of bytes remaining,
+     * reading more data from the zip file if needed.
+     *
+     * @param file the zip file
+     * @param bytes the buffer; data already in the buffer and not yet read is kept
+     * @param position the offset in the zip file of the first byte not yet read into the buffer
+     * @param end the offset in the zip file where the central directory ends
+     * @param needed the number of bytes needed in the buffer
+     * @return the offset in the zip file of the first byte not yet read into the buffer
+     * @throws IOException failed to read the data or the central directory does not have enough
+     * data
+     */
+    private static long fill(
+            @Nonnull ZFile file,
+            @Nonnull ByteBuffer bytes,
+            long position,
+            long end,
+            int needed)
+            throws IOException {
+        if (bytes.remaining() >= needed) {
+            return position;
+        }
+
+        bytes.compact();
+        int toRead = Ints.checkedCast(Math.min(bytes.remaining(), end - position));
+        ByteBuffer dest = bytes.duplicate();
+        dest.limit(dest.position() + toRead);
+        file.directFullyRead(position, dest);
+        bytes.position(bytes.position() + toRead);
+        bytes.flip();
+
+        if (bytes.remaining() < needed) {
+            throw new IOException(
+                    "Directory entry needs "
+                            + needed
+                            + " bytes but only "
+                            + bytes.remaining()
+                            + " remain in the central directory.");
+        }
+
+        return position + toRead;
+    }
+
+    /**
+     * Obtains the size of the directory entry at the buffer's position. The buffer must contain,
+     * at least, the entry's fixed size fields.
+     *
+     * @param bytes the buffer; its position is not changed
+     * @return the number of bytes of the entry
+     * @throws IOException failed to read the entry's fields
+     */
+    private static int entrySize(@Nonnull ByteBuffer bytes) throws IOException {
+        ByteBuffer lengths = bytes.duplicate();
+        lengths.position(bytes.position() + F_FILE_NAME_LENGTH.offset());
+        return F_OFFSET.endOffset()
+                + Ints.checkedCast(F_FILE_NAME_LENGTH.read(lengths))
+                + Ints.checkedCast(F_EXTRA_FIELD_LENGTH.read(lengths))
+                + Ints.checkedCast(F_COMMENT_LENGTH.read(lengths));
+    }
+
     /**
      * Creates a new central directory from the entries. This is used to build a new central
      * directory from entries in the zip file.
@@ -270,20 +528,24 @@ class CentralDirectory {
     }
 
     /**
-     * Reads the next entry from the central directory and adds it to {@link #entries}.
+     * Reads the header of the next entry from the central directory.
      *
      * @param bytes the central directory's data, positioned starting at the beginning of the next
      * entry to read; when finished, the buffer's position will be at the first byte after the
      * entry
+     * @param log the log where problems found in the entry are logged
+     * @return the header read
      * @throws IOException failed to read the directory entry, either because of an I/O error,
      * because it is corrupt or contains unsupported features
      */
-    private void readEntry(@Nonnull ByteBuffer bytes) throws IOException {
+    @Nonnull
+    private CentralDirectoryHeader readHeader(@Nonnull ByteBuffer bytes, @Nonnull VerifyLog log)
+            throws IOException {
         F_SIGNATURE.verify(bytes);
         long madeBy = F_MADE_BY.read(bytes);
 
         long versionNeededToExtract = F_VERSION_EXTRACT.read(bytes);
-        verifyLog.verify(
+        log.verify(
                 versionNeededToExtract <= MAX_VERSION_TO_EXTRACT,
                 "Ignored unknown version needed to extract in zip directory entry: %s.",
                 versionNeededToExtract);
@@ -293,7 +555,7 @@ class CentralDirectory {
 
         long methodCode = F_METHOD.read(bytes);
         CompressionMethod method = CompressionMethod.fromCode(methodCode);
-        verifyLog.verify(method != null, "Unknown method in zip directory entry: %s.", methodCode);
+        log.verify(method != null, "Unknown method in zip directory entry: %s.", methodCode);
 
         long lastModTime;
         long lastModDate;
@@ -314,9 +576,9 @@ class CentralDirectory {
         int extraFieldLength = Ints.checkedCast(F_EXTRA_FIELD_LENGTH.read(bytes));
         int fileCommentLength = Ints.checkedCast(F_COMMENT_LENGTH.read(bytes));
 
-        F_DISK_NUMBER_START.verify(bytes, verifyLog);
+        F_DISK_NUMBER_START.verify(bytes, log);
         long internalAttributes = F_INTERNAL_ATTRIBUTES.read(bytes);
-        verifyLog.verify(
+        log.verify(
                 (internalAttributes & ~ASCII_BIT) == 0,
                 "Ignored invalid internal attributes: %s.",
                 internalAttributes);
@@ -343,13 +605,51 @@ class CentralDirectory {
 
         byte[] encodedFileName = new byte[fileNameLength];
         bytes.get(encodedFileName);
-        String fileName = EncodeUtils.decode(encodedFileName, flags);
+        String fileName = EncodeUtils.decode(encodedFileName);
 
         byte[] extraField = new byte[extraFieldLength];
         bytes.get(extraField);
 
-        byte[] fileCommentField = new byte[fileCommentLength];
-        bytes.get(fileCommentField);
+        byte[] fileCommentField = CentralDirectoryHeader.NO_COMMENT;
+        if (fileCommentLength > 0) {
+            fileCommentField = new byte[fileCommentLength];
+            bytes.get(fileCommentField);
+        }
+
+        /*
+         * Values that do not fit in their fields are in the Zip64 extended information field, in
+         * a fixed order, but only those that do not fit are there.
+         */
+        ExtraField extra = ExtraField.fromRawData(extraField);
+        boolean zip64Uncompressed = uncompressedSize == ZipField.F4.ZIP64_MARKER;
+        boolean zip64Compressed = compressedSize == ZipField.F4.ZIP64_MARKER;
+        boolean zip64Offset = entryOffset == ZipField.F4.ZIP64_MARKER;
+        if (zip64Uncompressed || zip64Compressed || zip64Offset) {
+            long[] zip64Values;
+            try {
+                zip64Values =
+                        extra.getZip64Values(
+                                (zip64Uncompressed ? 1 : 0)
+                                        + (zip64Compressed ? 1 : 0)
+                                        + (zip64Offset ? 1 : 0));
+            } catch (IOException e) {
+                throw new IOException(
+                        "Failed to read Zip64 information of entry '" + fileName + "'.", e);
+            }
+
+            int next = 0;
+            if (zip64Uncompressed) {
+                uncompressedSize = zip64Values[next++];
+            }
+
+            if (zip64Compressed) {
+                compressedSize = zip64Values[next++];
+            }
+
+            if (zip64Offset) {
+                entryOffset = zip64Values[next];
+            }
+        }
 
         /*
          * Tricky: to create a CentralDirectoryHeader we need the future that will hold the result
@@ -372,34 +672,33 @@ class CentralDirectory {
         centralDirectoryHeader.setInternalAttributes(internalAttributes);
         centralDirectoryHeader.setExternalAttributes(externalAttributes);
         centralDirectoryHeader.setOffset(entryOffset);
-        centralDirectoryHeader.setExtraFieldNoNotify(new ExtraField(extraField));
+        centralDirectoryHeader.setExtraFieldNoNotify(extra);
         centralDirectoryHeader.setComment(fileCommentField);
-
-        StoredEntry entry;
-
-        try {
-            entry = new StoredEntry(centralDirectoryHeader, file, null);
-        } catch (IOException e) {
-            throw new IOException("Failed to read stored entry '" + fileName + "'.", e);
-        }
-
-        if (entries.containsKey(fileName)) {
-            verifyLog.log("File file contains duplicate file '" + fileName + "'.");
-        }
-
-        entries.put(fileName, entry);
+        return centralDirectoryHeader;
     }
 
     /**
-     * Obtains all the entries in the central directory.
+     * Obtains all the entries in the central directory. Can only be used if the entries are not
+     * kept in an {@link EntryTable}.
      *
      * @return all entries on a non-modifiable map
      */
     @Nonnull
     Map<String, StoredEntry> getEntries() {
+        Preconditions.checkState(table == null, "Entries are kept in a table");
         return ImmutableMap.copyOf(entries);
     }
 
+    /**
+     * Obtains the table with the entries of the central directory.
+     *
+     * @return the table or {@code null} if the entries are not kept in a table
+     */
+    @Nullable
+    EntryTable getEntryTable() {
+        return table;
+    }
+
     /**
      * Obtains the byte representation of the central directory.
      *
@@ -418,28 +717,47 @@ class CentralDirectory {
      */
     private byte[] computeByteRepresentation() {
 
-        List<StoredEntry> sorted = Lists.newArrayList(entries.values());
+        List<StoredEntry> sorted =
+                Lists.newArrayList(table != null ? table.entries() : entries.values());
         sorted.sort(StoredEntry.COMPARE_BY_NAME);
 
-        CentralDirectoryHeader[] cdhs = new CentralDirectoryHeader[entries.size()];
+        CentralDirectoryHeader[] cdhs = new CentralDirectoryHeader[sorted.size()];
         CentralDirectoryHeaderCompressInfo[] compressInfos =
-                new CentralDirectoryHeaderCompressInfo[entries.size()];
-        byte[][] encodedFileNames = new byte[entries.size()][];
-        byte[][] extraFields = new byte[entries.size()][];
-        byte[][] comments = new byte[entries.size()][];
+                new CentralDirectoryHeaderCompressInfo[sorted.size()];
+        byte[][] encodedFileNames = new byte[sorted.size()][];
+        byte[][] extraFields = new byte[sorted.size()][];
+        byte[][] comments = new byte[sorted.size()][];
 
         try {
             /*
              * First collect all the data and compute the total size of the central directory.
              */
             int idx = 0;
-            int total = 0;
+            long total = 0;
             for (StoredEntry entry : sorted) {
                 cdhs[idx] = entry.getCentralDirectoryHeader();
                 compressInfos[idx] = cdhs[idx].getCompressionInfoWithWait();
                 encodedFileNames[idx] = cdhs[idx].getEncodedFileName();
-                extraFields[idx] = new byte[cdhs[idx].getExtraField().size()];
-                cdhs[idx].getExtraField().write(ByteBuffer.wrap(extraFields[idx]));
+
+                ExtraField extraField = cdhs[idx].getExtraField();
+                long[] zip64Values =
+                        zip64Values(
+                                cdhs[idx].getUncompressedSize(),
+                                compressInfos[idx].getCompressedSize(),
+                                cdhs[idx].getOffset());
+
+                /*
+                 * A Zip64 segment read from the zip may have values that no longer apply, for
+                 * example if the entry has moved, so it is always replaced or removed.
+                 */
+                if (zip64Values.length > 0) {
+                    extraField = extraField.withZip64Values(zip64Values);
+                } else {
+                    extraField = extraField.withoutZip64Values();
+                }
+
+                extraFields[idx] = new byte[extraField.size()];
+                extraField.write(ByteBuffer.wrap(extraFields[idx]));
                 comments[idx] = cdhs[idx].getComment();
 
                 total += F_OFFSET.endOffset() + encodedFileNames[idx].length
@@ -447,9 +765,14 @@ class CentralDirectory {
                 idx++;
             }
 
-            ByteBuffer out = ByteBuffer.allocate(total);
+            if (total > Integer.MAX_VALUE) {
+                throw new IOException("Central directory has " + total + " bytes, more than the "
+                        + "maximum of " + Integer.MAX_VALUE + ".");
+            }
+
+            ByteBuffer out = ByteBuffer.allocate(Ints.checkedCast(total));
 
-            for (idx = 0; idx < entries.size(); idx++) {
+            for (idx = 0; idx < sorted.size(); idx++) {
                 F_SIGNATURE.write(out);
                 F_MADE_BY.write(out, cdhs[idx].getMadeBy());
                 F_VERSION_EXTRACT.write(out, compressInfos[idx].getVersionExtract());
@@ -465,16 +788,22 @@ class CentralDirectory {
                 }
 
                 F_CRC32.write(out, cdhs[idx].getCrc32());
-                F_COMPRESSED_SIZE.write(out, compressInfos[idx].getCompressedSize());
-                F_UNCOMPRESSED_SIZE.write(out, cdhs[idx].getUncompressedSize());
+                F_COMPRESSED_SIZE.write(
+                        out,
+                        Math.min(
+                                compressInfos[idx].getCompressedSize(),
+                                ZipField.F4.ZIP64_MARKER));
+                F_UNCOMPRESSED_SIZE.write(
+                        out,
+                        Math.min(cdhs[idx].getUncompressedSize(), ZipField.F4.ZIP64_MARKER));
 
                 F_FILE_NAME_LENGTH.write(out, cdhs[idx].getEncodedFileName().length);
-                F_EXTRA_FIELD_LENGTH.write(out, cdhs[idx].getExtraField().size());
+                F_EXTRA_FIELD_LENGTH.write(out, extraFields[idx].length);
                 F_COMMENT_LENGTH.write(out, cdhs[idx].getComment().length);
                 F_DISK_NUMBER_START.write(out);
                 F_INTERNAL_ATTRIBUTES.write(out, cdhs[idx].getInternalAttributes());
                 F_EXTERNAL_ATTRIBUTES.write(out, cdhs[idx].getExternalAttributes());
-                F_OFFSET.write(out, cdhs[idx].getOffset());
+                F_OFFSET.write(out, Math.min(cdhs[idx].getOffset(), ZipField.F4.ZIP64_MARKER));
 
                 out.put(encodedFileNames[idx]);
                 out.put(extraFields[idx]);
@@ -486,4 +815,105 @@ class CentralDirectory {
             throw new UncheckedIOException(e);
         }
     }
+
+    /**
+     * Obtains the values of a directory entry that do not fit in their fields and have to be
+     * stored in the Zip64 extended information field.
+     *
+     * @param uncompressedSize the uncompressed size of the entry
+     * @param compressedSize the compressed size of the entry
+     * @param offset the offset of the entry's local header
+     * @return the values that do not fit, in the order they are stored in the Zip64 extended
+     * information field; empty if all values fit
+     */
+    @Nonnull
+    private static long[] zip64Values(long uncompressedSize, long compressedSize, long offset) {
+        return Arrays.stream(new long[] { uncompressedSize, compressedSize, offset })
+                .filter(v -> v >= ZipField.F4.ZIP64_MARKER)
+                .toArray();
+    }
+
+    /**
+     * A directory entry found in the central directory, but not yet decoded, together with the
+     * result of decoding it.
+     */
+    private static final class EntryRecord {
+
+        /**
+         * Index of the entry in the central directory.
+         */
+        private final int index;
+
+        /**
+         * Offset of the entry relative to the start of the central directory.
+         */
+        private final long directoryOffset;
+
+        /**
+         * The entry's data, exactly the size of the entry.
+         */
+        @Nonnull
+        private final ByteBuffer bytes;
+
+        /**
+         * Log for the problems found when decoding the entry.
+         */
+        @Nonnull
+        private VerifyLog log;
+
+        /**
+         * Verify log for the decoded entry, {@code null} if not yet created.
+         */
+        @Nullable
+        private VerifyLog entryLog;
+
+        /**
+         * The decoded header, {@code null} if not yet decoded or if decoding failed.
+         */
+        @Nullable
+        private CentralDirectoryHeader header;
+
+        /**
+         * The decoded entry, {@code null} if not yet decoded, if decoding failed or if the entry
+         * is kept in an {@link EntryTable}.
+         */
+        @Nullable
+        private StoredEntry entry;
+
+        /**
+         * The extra field in the entry's local header, {@code null} if not yet decoded, if
+         * decoding failed or if the entry is not kept in an {@link EntryTable}.
+         */
+        @Nullable
+        private ExtraField localExtra;
+
+        /**
+         * The type of the entry's data descriptor, {@code null} if not yet decoded, if decoding
+         * failed or if the entry is not kept in an {@link EntryTable}.
+         */
+        @Nullable
+        private DataDescriptorType dataDescriptorType;
+
+        /**
+         * Why decoding the entry failed, {@code null} if not yet decoded or if decoding
+         * succeeded.
+         */
+        @Nullable
+        private IOException failure;
+
+        /**
+         * Creates a new record.
+         *
+         * @param index index of the entry in the central directory
+         * @param directoryOffset offset of the entry relative to the start of the central
+         * directory
+         * @param bytes the entry's data
+         */
+        EntryRecord(int index, long directoryOffset, @Nonnull ByteBuffer bytes) {
+            this.index = index;
+            this.directoryOffset = directoryOffset;
+            this.bytes = bytes;
+            log = VerifyLogs.devNull();
+        }
+    }
 }
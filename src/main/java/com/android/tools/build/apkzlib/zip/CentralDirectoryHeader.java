@@ -41,6 +41,12 @@ public class CentralDirectoryHeader implements Cloneable {
      */
     private static final int DEFAULT_VERSION_MADE_BY = 0x0018;
 
+    /**
+     * Empty file comment. Comments are never modified, so this array is shared by all headers
+     * with no comment.
+     */
+    static final byte[] NO_COMMENT = new byte[0];
+
     /**
      * Name of the file.
      */
@@ -153,8 +159,8 @@ public class CentralDirectoryHeader implements Cloneable {
         gpBit = flags;
         lastModTime = MsDosDateTimeUtils.packCurrentTime();
         lastModDate = MsDosDateTimeUtils.packCurrentDate();
-        extraField = new ExtraField();
-        comment = new byte[0];
+        extraField = ExtraField.EMPTY;
+        comment = NO_COMMENT;
         internalAttributes = 0;
         externalAttributes = 0;
         offset = -1;
@@ -35,4 +35,20 @@ public interface Compressor {
      */
     @Nonnull
     ListenableFuture<CompressionResult> compress(@Nonnull CloseableByteSource source);
+
+    /**
+     * Compresses the source of an entry with a known name. Compressors may use the name to decide
+     * how to compress the entry. By default, the name is ignored and this is the same as
+     * {@link #compress(CloseableByteSource)}.
+     *
+     * @param name the name of the entry in the zip
+     * @param source the source to compress
+     * @return a future that will eventually contain the compression result
+     */
+    @Nonnull
+    default ListenableFuture<CompressionResult> compress(
+            @Nonnull String name,
+            @Nonnull CloseableByteSource source) {
+        return compress(source);
+    }
 }
@@ -40,7 +40,19 @@ public enum DataDescriptorType {
     /**
      * The entry has a data descriptor that contains a signature.
      */
-    DATA_DESCRIPTOR_WITH_SIGNATURE(16);
+    DATA_DESCRIPTOR_WITH_SIGNATURE(16),
+
+    /**
+     * The entry has Zip64 extended information in the local header and a data descriptor with
+     * 8-byte sizes that does not contain a signature.
+     */
+    ZIP64_DATA_DESCRIPTOR_WITHOUT_SIGNATURE(20),
+
+    /**
+     * The entry has Zip64 extended information in the local header and a data descriptor with
+     * 8-byte sizes that contains a signature.
+     */
+    ZIP64_DATA_DESCRIPTOR_WITH_SIGNATURE(24);
 
     /**
      * The number of bytes the data descriptor spans.
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
 import javax.annotation.Nonnull;
 
@@ -29,6 +30,18 @@ import javax.annotation.Nonnull;
  */
 public class EncodeUtils {
 
+    /**
+     * Strict UTF-8 decoder for each thread. Decoders are not thread-safe and creating one for
+     * every name is expensive.
+     */
+    private static final ThreadLocal<CharsetDecoder> UTF8_DECODER =
+            ThreadLocal.withInitial(
+                    () ->
+                            Charsets.UTF_8
+                                    .newDecoder()
+                                    .onMalformedInput(CodingErrorAction.REPORT)
+                                    .onUnmappableCharacter(CodingErrorAction.REPORT));
+
     /**
      * Utility class: no constructor.
      */
@@ -39,16 +52,16 @@ public class EncodeUtils {
     }
 
     /**
-     * Decodes a file name.
+     * Decodes a file name. Names are decoded as UTF-8 whatever the zip entry flags say: ASCII
+     * names decode the same way in both charsets and names that are not ASCII cannot be decoded
+     * as ASCII.
      *
      * @param bytes the raw data buffer to read from
      * @param length the number of bytes in the raw data buffer containing the string to decode
-     * @param flags the zip entry flags
      * @return the decode file name
      */
     @Nonnull
-    public static String decode(@Nonnull ByteBuffer bytes, int length, @Nonnull GPFlags flags)
-            throws IOException {
+    public static String decode(@Nonnull ByteBuffer bytes, int length) throws IOException {
         if (bytes.remaining() < length) {
             throw new IOException("Only " + bytes.remaining() + " bytes exist in the buffer, but "
                     + "length is " + length + ".");
@@ -56,46 +69,63 @@ public class EncodeUtils {
 
         byte[] stringBytes = new byte[length];
         bytes.get(stringBytes);
-        return decode(stringBytes, flags);
+        return decode(stringBytes);
     }
 
     /**
      * Decodes a file name.
      *
-     * @param data the raw data
-     * @param flags the zip entry flags
+     * @param bytes the raw data buffer to read from
+     * @param length the number of bytes in the raw data buffer containing the string to decode
+     * @param flags the zip entry flags, not used
      * @return the decode file name
+     * @deprecated names do not depend on the flags; use {@link #decode(ByteBuffer, int)}
      */
+    @Deprecated
     @Nonnull
-    public static String decode(@Nonnull byte[] data, @Nonnull GPFlags flags) {
-        return decode(data, flagsCharset(flags));
+    public static String decode(@Nonnull ByteBuffer bytes, int length, @Nonnull GPFlags flags)
+            throws IOException {
+        return decode(bytes, length);
     }
 
     /**
-     * Decodes a file name.
+     * Decodes a file name. Names are decoded as UTF-8 whatever the zip entry flags say: ASCII
+     * names decode the same way in both charsets and names that are not ASCII cannot be decoded
+     * as ASCII. Names that are not valid UTF-8 are decoded with replacement characters.
      *
      * @param data the raw data
-     * @param charset the charset to use
      * @return the decode file name
      */
     @Nonnull
-    private static String decode(@Nonnull byte[] data, @Nonnull Charset charset) {
+    public static String decode(@Nonnull byte[] data) {
+        /*
+         * Most names are ASCII, so they are copied directly without going through a decoder.
+         */
+        if (isAscii(data)) {
+            return new String(data, Charsets.ISO_8859_1);
+        }
+
         try {
-            return charset.newDecoder()
-                    .onMalformedInput(CodingErrorAction.REPORT)
-                    .decode(ByteBuffer.wrap(data))
-                    .toString();
+            return UTF8_DECODER.get().decode(ByteBuffer.wrap(data)).toString();
         } catch (CharacterCodingException e) {
-            // If we're trying to decode ASCII, try UTF-8. Otherwise, revert to the default
-            // behavior (usually replacing invalid characters).
-            if (charset.equals(Charsets.US_ASCII)) {
-                return decode(data, Charsets.UTF_8);
-            } else {
-                return charset.decode(ByteBuffer.wrap(data)).toString();
-            }
+            return new String(data, Charsets.UTF_8);
         }
     }
 
+    /**
+     * Decodes a file name.
+     *
+     * @param data the raw data
+     * @param flags the zip entry flags, not used
+     * @return the decode file name
+     * @deprecated names do not depend on the flags; use {@link #decode(byte[])}
+     */
+    @Deprecated
+    @Nonnull
+    public static String decode(@Nonnull byte[] data, @Nonnull GPFlags flags) {
+        return decode(data);
+    }
+
     /**
      * Encodes a file name.
      *
@@ -105,15 +135,11 @@ public class EncodeUtils {
      */
     @Nonnull
     public static byte[] encode(@Nonnull String name, @Nonnull GPFlags flags) {
-        Charset charset = flagsCharset(flags);
-        ByteBuffer bytes = charset.encode(name);
-        byte[] result = new byte[bytes.remaining()];
-        bytes.get(result);
-        return result;
+        return name.getBytes(flagsCharset(flags));
     }
 
     /**
-     * Obtains the charset to encode and decode zip entries, given a set of flags.
+     * Obtains the charset to encode zip entry names, given a set of flags.
      *
      * @param flags the flags
      * @return the charset to use
@@ -134,6 +160,28 @@ public class EncodeUtils {
      * @return can it be encoded using ASCII?
      */
     public static boolean canAsciiEncode(String text) {
-        return Charsets.US_ASCII.newEncoder().canEncode(text);
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if some data is ASCII-encoded text.
+     *
+     * @param data the data to check
+     * @return are all bytes ASCII characters?
+     */
+    private static boolean isAscii(@Nonnull byte[] data) {
+        for (byte b : data) {
+            if (b < 0) {
+                return false;
+            }
+        }
+
+        return true;
     }
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import javax.annotation.Nonnull;
+
+/**
+ * Factory for orderings of entries in a zip. Orderings define the physical order of entries
+ * when a zip is sorted (see {@link ZFile#sortZipContents()} and
+ * {@link ZFileOptions#setEntryOrder(Comparator)}).
+ */
+public final class EntryOrderings {
+
+    /**
+     * Prefix of comment lines in a profile file.
+     */
+    private static final String PROFILE_COMMENT = "#";
+
+    private EntryOrderings() {}
+
+    /**
+     * An ordering that sorts entries alphabetically by name.
+     *
+     * @return the ordering
+     */
+    @Nonnull
+    public static Comparator<StoredEntry> byName() {
+        return StoredEntry.COMPARE_BY_NAME;
+    }
+
+    /**
+     * An ordering that places entries in the order of an access profile. Each element of the
+     * profile is either an entry name or a pattern in which {@code *} matches any sequence of
+     * characters, such as {@code classes*.dex} or {@code assets/startup/*}. Entries are placed in
+     * the order of the first profile element they match. Entries matched by the same element and
+     * entries not matched by any element, which are placed last, are sorted by name.
+     *
+     * @param profile the profile
+     * @return the ordering
+     */
+    @Nonnull
+    public static Comparator<StoredEntry> fromProfile(@Nonnull List<String> profile) {
+        /*
+         * Exact names are looked up directly. Only patterns need to be tried one by one.
+         */
+        Map<String, Integer> exactRanks = Maps.newHashMap();
+        List<Pattern> patterns = Lists.newArrayList();
+        List<Integer> patternRanks = Lists.newArrayList();
+        for (int i = 0; i < profile.size(); i++) {
+            String element = profile.get(i);
+            Preconditions.checkArgument(!element.isEmpty(), "Empty profile element");
+
+            if (element.contains("*")) {
+                patterns.add(compileWildcard(element));
+                patternRanks.add(i);
+            } else {
+                exactRanks.putIfAbsent(element, i);
+            }
+        }
+
+        return new ProfileOrdering(exactRanks, patterns, patternRanks, profile.size());
+    }
+
+    /**
+     * Same as {@link #fromProfile(List)}, but reads the profile from a UTF-8 text file with one
+     * profile element per line. Blank lines and lines starting with {@code #} are ignored.
+     *
+     * @param profileFile the profile file
+     * @return the ordering
+     * @throws IOException failed to read the profile file
+     */
+    @Nonnull
+    public static Comparator<StoredEntry> fromProfileFile(@Nonnull Path profileFile)
+            throws IOException {
+        ImmutableList.Builder<String> profile = ImmutableList.builder();
+        for (String line : Files.readAllLines(profileFile, Charsets.UTF_8)) {
+            String element = line.trim();
+            if (!element.isEmpty() && !element.startsWith(PROFILE_COMMENT)) {
+                profile.add(element);
+            }
+        }
+
+        return fromProfile(profile.build());
+    }
+
+    /**
+     * Obtains an ordering equivalent to {@code order} for sorting the given entries. If
+     * {@code order} was created from a profile, the rank of each entry is computed only once,
+     * instead of on every comparison. Otherwise, {@code order} itself is returned.
+     *
+     * @param order the ordering
+     * @param entries the entries that will be sorted; the returned ordering may only be used to
+     * compare these entries
+     * @return the ordering to sort with
+     */
+    @Nonnull
+    static Comparator<StoredEntry> forSorting(
+            @Nonnull Comparator<StoredEntry> order,
+            @Nonnull Collection<StoredEntry> entries) {
+        if (!(order instanceof ProfileOrdering)) {
+            return order;
+        }
+
+        ProfileOrdering profileOrder = (ProfileOrdering) order;
+        Map<StoredEntry, Integer> ranks = new IdentityHashMap<>(entries.size());
+        for (StoredEntry entry : entries) {
+            ranks.put(entry, profileOrder.rank(entry));
+        }
+
+        Comparator<StoredEntry> byRank = Comparator.comparingInt(ranks::get);
+        return byRank.thenComparing(StoredEntry.COMPARE_BY_NAME);
+    }
+
+    /**
+     * Compiles a profile pattern in which {@code *} matches any sequence of characters.
+     *
+     * @param wildcard the pattern
+     * @return the compiled pattern
+     */
+    @Nonnull
+    private static Pattern compileWildcard(@Nonnull String wildcard) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        int star;
+        while ((star = wildcard.indexOf('*', start)) != -1) {
+            if (star > start) {
+                regex.append(Pattern.quote(wildcard.substring(start, star)));
+            }
+
+            regex.append(".*");
+            start = star + 1;
+        }
+
+        if (start < wildcard.length()) {
+            regex.append(Pattern.quote(wildcard.substring(start)));
+        }
+
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    /**
+     * Ordering created from a profile. See {@link #fromProfile(List)}.
+     */
+    private static final class ProfileOrdering implements Comparator<StoredEntry> {
+
+        /**
+         * Ranks of the profile elements that are exact names.
+         */
+        @Nonnull
+        private final Map<String, Integer> exactRanks;
+
+        /**
+         * Profile elements that are patterns, in profile order.
+         */
+        @Nonnull
+        private final List<Pattern> patterns;
+
+        /**
+         * Ranks of the elements in {@link #patterns}.
+         */
+        @Nonnull
+        private final List<Integer> patternRanks;
+
+        /**
+         * Rank of entries not matched by any profile element.
+         */
+        private final int unmatched;
+
+        /**
+         * Creates a new ordering.
+         *
+         * @param exactRanks ranks of the profile elements that are exact names
+         * @param patterns profile elements that are patterns, in profile order
+         * @param patternRanks ranks of the elements in {@code patterns}
+         * @param unmatched rank of entries not matched by any profile element
+         */
+        ProfileOrdering(
+                @Nonnull Map<String, Integer> exactRanks,
+                @Nonnull List<Pattern> patterns,
+                @Nonnull List<Integer> patternRanks,
+                int unmatched) {
+            this.exactRanks = exactRanks;
+            this.patterns = patterns;
+            this.patternRanks = patternRanks;
+            this.unmatched = unmatched;
+        }
+
+        /**
+         * Computes the rank of an entry: the index of the first profile element it matches, or
+         * the profile size if it matches none.
+         *
+         * @param entry the entry
+         * @return the rank
+         */
+        int rank(@Nonnull StoredEntry entry) {
+            String name = entry.getCentralDirectoryHeader().getName();
+            int rank = exactRanks.getOrDefault(name, unmatched);
+
+            /*
+             * Patterns are kept in profile order, so the first match wins.
+             */
+            for (int i = 0; i < patterns.size(); i++) {
+                if (patternRanks.get(i) >= rank) {
+                    break;
+                }
+
+                if (patterns.get(i).matcher(name).matches()) {
+                    return patternRanks.get(i);
+                }
+            }
+
+            return rank;
+        }
+
+        @Override
+        public int compare(StoredEntry e1, StoredEntry e2) {
+            int r = Integer.compare(rank(e1), rank(e2));
+            if (r != 0) {
+                return r;
+            }
+
+            return StoredEntry.COMPARE_BY_NAME.compare(e1, e2);
+        }
+    }
+}
@@ -0,0 +1,753 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Futures;
+import java.io.IOException;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Compact table with the entries of a read-only zip. Instead of keeping a {@link StoredEntry},
+ * a {@link CentralDirectoryHeader} and their supporting objects for each entry, the table keeps
+ * the entries' data in primitive arrays, one element per entry, and all entry names in a single
+ * byte array. This reduces the memory needed for each entry to about a hundred bytes plus the
+ * name, which matters for archives with a very large number of entries.
+ *
+ * <p>Entries are added from the data read from the central directory and the local headers, which
+ * are read and verified when the entry is added. {@link StoredEntry} objects are only created when
+ * an entry is requested, without reading the zip, and are kept while they are in use so the same
+ * entry is returned for the same name. Entries in the table are never changed.
+ *
+ * <p>If the central directory contains several entries with the same name, only the last one is
+ * visible, as happens with entries not kept in a table.
+ */
+class EntryTable {
+
+    /**
+     * Mask for a 16-bit value in a packed column.
+     */
+    private static final int MASK_16 = 0xffff;
+
+    /**
+     * Value stored in {@link #flagsAndMethods} for entries with an unknown compression method.
+     */
+    private static final int UNKNOWN_METHOD = 0xff;
+
+    /**
+     * The zip the entries belong to.
+     */
+    @Nonnull
+    private final ZFile file;
+
+    /**
+     * Number of entries in the table, including entries replaced by a later entry with the same
+     * name.
+     */
+    private int count;
+
+    /**
+     * Offset of each entry's local header in the zip.
+     */
+    @Nonnull
+    private long[] offsets;
+
+    /**
+     * Number of bytes each entry uses in the zip, including the local header and data
+     * descriptor.
+     */
+    @Nonnull
+    private long[] inFileSizes;
+
+    /**
+     * Compressed size of each entry.
+     */
+    @Nonnull
+    private long[] compressedSizes;
+
+    /**
+     * Uncompressed size of each entry.
+     */
+    @Nonnull
+    private long[] uncompressedSizes;
+
+    /**
+     * CRC32 of each entry.
+     */
+    @Nonnull
+    private int[] crc32s;
+
+    /**
+     * Version made by, in the upper 16 bits, and version needed to extract, in the lower 16 bits,
+     * of each entry.
+     */
+    @Nonnull
+    private int[] versions;
+
+    /**
+     * General purpose bits, shifted 8 bits left, and ordinal of the compression method, or
+     * {@link #UNKNOWN_METHOD}, in the lower 8 bits, of each entry.
+     */
+    @Nonnull
+    private int[] flagsAndMethods;
+
+    /**
+     * Last modification time, in the upper 16 bits, and date, in the lower 16 bits, of each
+     * entry.
+     */
+    @Nonnull
+    private int[] timestamps;
+
+    /**
+     * Internal attributes, in the upper 32 bits, and external attributes, in the lower 32 bits,
+     * of each entry.
+     */
+    @Nonnull
+    private long[] attributes;
+
+    /**
+     * Central directory extra field of each entry, {@code null} if no entry has an extra field.
+     * Elements are {@code null} for entries with no extra field.
+     */
+    @Nullable
+    private ExtraField[] extraFields;
+
+    /**
+     * Local header extra field of each entry, {@code null} if no entry has a local extra field.
+     * Elements are {@code null} for entries with no local extra field.
+     */
+    @Nullable
+    private ExtraField[] localExtras;
+
+    /**
+     * Ordinal of the data descriptor type of each entry.
+     */
+    @Nonnull
+    private byte[] dataDescriptorTypes;
+
+    /**
+     * Messages logged when reading each entry, {@code null} if no messages were logged for any
+     * entry. Elements are {@code null} for entries with no messages.
+     */
+    @Nullable
+    private String[][] messages;
+
+    /**
+     * Comment of each entry, {@code null} if no entry has a comment. Elements are {@code null} for
+     * entries with no comment.
+     */
+    @Nullable
+    private byte[][] comments;
+
+    /**
+     * Encoded names of all entries, one after the other. Only the first {@link #namesSize} bytes
+     * are used.
+     */
+    @Nonnull
+    private byte[] names;
+
+    /**
+     * Number of bytes used in {@link #names}.
+     */
+    private int namesSize;
+
+    /**
+     * Offset in {@link #names} where each entry's name starts. The name of the entry at index
+     * {@code i} ends where the name of entry {@code i + 1} starts, so this array has one more
+     * element than the number of entries.
+     */
+    @Nonnull
+    private int[] nameStarts;
+
+    /**
+     * Hash code of each entry's decoded name.
+     */
+    @Nonnull
+    private int[] nameHashes;
+
+    /**
+     * Open-addressing hash table from names to entries. Each slot contains the index of an
+     * entry plus one, or {@code 0} if the slot is empty. The size is a power of two.
+     */
+    @Nonnull
+    private int[] slots;
+
+    /**
+     * Entries that have been replaced by a later entry with the same name, {@code null} if there
+     * are none.
+     */
+    @Nullable
+    private BitSet replaced;
+
+    /**
+     * Number of entries in {@link #replaced}.
+     */
+    private int replacedCount;
+
+    /**
+     * {@link StoredEntry} objects created for the entries, indexed by entry index. Entries are
+     * only referenced weakly so those no longer in use can be collected and created again if
+     * requested.
+     */
+    @Nonnull
+    private final LoadingCache<Integer, StoredEntry> facades;
+
+    /**
+     * Creates a new, empty, table.
+     *
+     * @param file the zip the entries belong to
+     * @param capacity the number of entries expected to be added to the table; the table grows if
+     * more entries are added
+     */
+    EntryTable(@Nonnull ZFile file, int capacity) {
+        Preconditions.checkArgument(capacity >= 0, "capacity < 0");
+
+        this.file = file;
+        count = 0;
+        offsets = new long[capacity];
+        inFileSizes = new long[capacity];
+        compressedSizes = new long[capacity];
+        uncompressedSizes = new long[capacity];
+        crc32s = new int[capacity];
+        versions = new int[capacity];
+        flagsAndMethods = new int[capacity];
+        timestamps = new int[capacity];
+        attributes = new long[capacity];
+        names = new byte[Ints.saturatedCast(Math.max(16, capacity * 16L))];
+        namesSize = 0;
+        nameStarts = new int[capacity + 1];
+        nameHashes = new int[capacity];
+        slots = new int[slotCount(capacity)];
+        dataDescriptorTypes = new byte[capacity];
+        facades = CacheBuilder.newBuilder().weakValues().build(CacheLoader.from(this::makeEntry));
+    }
+
+    /**
+     * Adds an entry to the table. If there is already an entry with the same name, it is
+     * replaced.
+     *
+     * @param cdh the entry's central directory header, which is not kept
+     * @param localExtra the extra field in the entry's local header
+     * @param dataDescriptorType the type of the entry's data descriptor
+     * @param entryLog the log with the messages logged when reading the entry
+     * @throws IOException failed to obtain the entry's information
+     */
+    void add(
+            @Nonnull CentralDirectoryHeader cdh,
+            @Nonnull ExtraField localExtra,
+            @Nonnull DataDescriptorType dataDescriptorType,
+            @Nonnull VerifyLog entryLog)
+            throws IOException {
+        if (count == offsets.length) {
+            resize(Ints.saturatedCast(Math.max(16, count * 2L)));
+        }
+
+        CentralDirectoryHeaderCompressInfo compressInfo = cdh.getCompressionInfoWithWait();
+        CompressionMethod method = compressInfo.getMethod();
+
+        int index = count;
+        offsets[index] = cdh.getOffset();
+        inFileSizes[index] =
+                StoredEntry.FIXED_LOCAL_FILE_HEADER_SIZE
+                        + cdh.getEncodedFileName().length
+                        + localExtra.size()
+                        + compressInfo.getCompressedSize()
+                        + dataDescriptorType.size;
+        compressedSizes[index] = compressInfo.getCompressedSize();
+        uncompressedSizes[index] = cdh.getUncompressedSize();
+        crc32s[index] = (int) cdh.getCrc32();
+        versions[index] =
+                pack16((int) cdh.getMadeBy(), Ints.checkedCast(compressInfo.getVersionExtract()));
+        flagsAndMethods[index] =
+                ((int) cdh.getGpBit().getValue() << 8)
+                        | (method == null ? UNKNOWN_METHOD : method.ordinal());
+        timestamps[index] = pack16((int) cdh.getLastModTime(), (int) cdh.getLastModDate());
+        attributes[index] =
+                (cdh.getInternalAttributes() << 32) | (cdh.getExternalAttributes() & 0xffffffffL);
+        dataDescriptorTypes[index] = (byte) dataDescriptorType.ordinal();
+
+        if (cdh.getExtraField().size() > 0) {
+            if (extraFields == null) {
+                extraFields = new ExtraField[offsets.length];
+            }
+
+            extraFields[index] = cdh.getExtraField();
+        }
+
+        if (localExtra.size() > 0) {
+            if (localExtras == null) {
+                localExtras = new ExtraField[offsets.length];
+            }
+
+            localExtras[index] = localExtra;
+        }
+
+        List<String> entryMessages = entryLog.getLogs();
+        if (!entryMessages.isEmpty()) {
+            if (messages == null) {
+                messages = new String[offsets.length][];
+            }
+
+            messages[index] = entryMessages.toArray(new String[0]);
+        }
+
+        if (cdh.getComment().length > 0) {
+            if (comments == null) {
+                comments = new byte[offsets.length][];
+            }
+
+            comments[index] = cdh.getComment();
+        }
+
+        byte[] encodedName = cdh.getEncodedFileName();
+        if (namesSize + encodedName.length > names.length) {
+            int needed = namesSize + encodedName.length;
+            names = Arrays.copyOf(names, Math.max(names.length * 2, needed));
+        }
+
+        System.arraycopy(encodedName, 0, names, namesSize, encodedName.length);
+        nameStarts[index] = namesSize;
+        namesSize += encodedName.length;
+        nameStarts[index + 1] = namesSize;
+
+        String name = cdh.getName();
+        nameHashes[index] = name.hashCode();
+        count++;
+
+        int slot = findSlot(name, nameHashes[index]);
+        if (slots[slot] != 0) {
+            if (replaced == null) {
+                replaced = new BitSet(offsets.length);
+            }
+
+            replaced.set(slots[slot] - 1);
+            replacedCount++;
+        }
+
+        slots[slot] = index + 1;
+    }
+
+    /**
+     * Releases the unused space in the table. Invoked after all entries have been added.
+     */
+    void trimToSize() {
+        if (count < offsets.length) {
+            resize(count);
+        }
+
+        names = Arrays.copyOf(names, namesSize);
+    }
+
+    /**
+     * Changes the number of entries the table can hold without growing.
+     *
+     * @param capacity the new capacity, at least the number of entries in the table
+     */
+    private void resize(int capacity) {
+        Preconditions.checkArgument(capacity >= count, "capacity < count");
+
+        offsets = Arrays.copyOf(offsets, capacity);
+        inFileSizes = Arrays.copyOf(inFileSizes, capacity);
+        compressedSizes = Arrays.copyOf(compressedSizes, capacity);
+        uncompressedSizes = Arrays.copyOf(uncompressedSizes, capacity);
+        crc32s = Arrays.copyOf(crc32s, capacity);
+        versions = Arrays.copyOf(versions, capacity);
+        flagsAndMethods = Arrays.copyOf(flagsAndMethods, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        attributes = Arrays.copyOf(attributes, capacity);
+        nameStarts = Arrays.copyOf(nameStarts, capacity + 1);
+        nameHashes = Arrays.copyOf(nameHashes, capacity);
+        dataDescriptorTypes = Arrays.copyOf(dataDescriptorTypes, capacity);
+
+        if (extraFields != null) {
+            extraFields = Arrays.copyOf(extraFields, capacity);
+        }
+
+        if (localExtras != null) {
+            localExtras = Arrays.copyOf(localExtras, capacity);
+        }
+
+        if (messages != null) {
+            messages = Arrays.copyOf(messages, capacity);
+        }
+
+        if (comments != null) {
+            comments = Arrays.copyOf(comments, capacity);
+        }
+
+        if (slotCount(capacity) > slots.length) {
+            /*
+             * Replaced entries are not in the hash table, so all entries placed again have
+             * different names.
+             */
+            slots = new int[slotCount(capacity)];
+            int mask = slots.length - 1;
+            for (int i = 0; i < count; i++) {
+                if (!isReplaced(i)) {
+                    int slot = (nameHashes[i] ^ (nameHashes[i] >>> 16)) & mask;
+                    while (slots[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+
+                    slots[slot] = i + 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether the table contains an entry with a name.
+     *
+     * @param name the name
+     * @return is there an entry with the name?
+     */
+    boolean contains(@Nonnull String name) {
+        return slots[findSlot(name, name.hashCode())] != 0;
+    }
+
+    /**
+     * Obtains the entry with a name.
+     *
+     * @param name the name
+     * @return the entry or {@code null} if there is no entry with the name
+     */
+    @Nullable
+    StoredEntry get(@Nonnull String name) {
+        int slot = slots[findSlot(name, name.hashCode())];
+        if (slot == 0) {
+            return null;
+        }
+
+        return getEntry(slot - 1);
+    }
+
+    /**
+     * Obtains a view of all entries in the table, in the order they appear in the central
+     * directory.
+     *
+     * @return the entries
+     */
+    @Nonnull
+    Collection<StoredEntry> entries() {
+        return new AbstractCollection<StoredEntry>() {
+            @Nonnull
+            @Override
+            public Iterator<StoredEntry> iterator() {
+                return new AbstractIterator<StoredEntry>() {
+                    private int next = 0;
+
+                    @Override
+                    protected StoredEntry computeNext() {
+                        while (next < count && isReplaced(next)) {
+                            next++;
+                        }
+
+                        if (next == count) {
+                            return endOfData();
+                        }
+
+                        return getEntry(next++);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return EntryTable.this.size();
+            }
+        };
+    }
+
+    /**
+     * Obtains the number of entries in the table, not counting replaced entries.
+     *
+     * @return the number of entries
+     */
+    int size() {
+        return count - replacedCount;
+    }
+
+    /**
+     * Obtains the indexes of all entries that have not been replaced, in the order they appear in
+     * the central directory.
+     *
+     * @return the indexes
+     */
+    @Nonnull
+    int[] indexes() {
+        int[] indexes = new int[size()];
+        int next = 0;
+        for (int i = 0; i < count; i++) {
+            if (!isReplaced(i)) {
+                indexes[next++] = i;
+            }
+        }
+
+        return indexes;
+    }
+
+    /**
+     * Obtains the indexes of all entries that have not been replaced, sorted by their offset in
+     * the zip.
+     *
+     * @return the indexes
+     */
+    @Nonnull
+    int[] indexesByOffset() {
+        Integer[] indexes = Arrays.stream(indexes()).boxed().toArray(Integer[]::new);
+        Arrays.sort(indexes, (i, j) -> Long.compare(offsets[i], offsets[j]));
+        return Arrays.stream(indexes).mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Obtains the offset of an entry's local header in the zip.
+     *
+     * @param index the entry's index
+     * @return the offset
+     */
+    long getOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Obtains the number of bytes an entry uses in the zip.
+     *
+     * @param index the entry's index
+     * @return the number of bytes, including the local header and data descriptor
+     */
+    long getInFileSize(int index) {
+        return inFileSizes[index];
+    }
+
+    /**
+     * Obtains the uncompressed size of an entry.
+     *
+     * @param index the entry's index
+     * @return the uncompressed size
+     */
+    long getUncompressedSize(int index) {
+        return uncompressedSizes[index];
+    }
+
+    /**
+     * Obtains the CRC32 of an entry.
+     *
+     * @param index the entry's index
+     * @return the CRC32
+     */
+    long getCrc32(int index) {
+        return crc32s[index] & 0xffffffffL;
+    }
+
+    /**
+     * Obtains the name of an entry.
+     *
+     * @param index the entry's index
+     * @return the name
+     */
+    @Nonnull
+    String getName(int index) {
+        return EncodeUtils.decode(
+                Arrays.copyOfRange(names, nameStarts[index], nameStarts[index + 1]));
+    }
+
+    /**
+     * Obtains the {@link StoredEntry} for an entry, creating it if it is not in use.
+     *
+     * @param index the entry's index
+     * @return the entry
+     */
+    @Nonnull
+    StoredEntry getEntry(int index) {
+        return facades.getUnchecked(index);
+    }
+
+    /**
+     * Creates the {@link StoredEntry} for an entry from the data in the table.
+     *
+     * @param index the entry's index
+     * @return the entry
+     */
+    @Nonnull
+    private StoredEntry makeEntry(int index) {
+        VerifyLog entryLog = file.makeVerifyLog();
+        if (messages != null && messages[index] != null) {
+            for (String message : messages[index]) {
+                entryLog.log(message);
+            }
+        }
+
+        ExtraField localExtra = ExtraField.EMPTY;
+        if (localExtras != null && localExtras[index] != null) {
+            localExtra = localExtras[index];
+        }
+
+        return new StoredEntry(
+                makeHeader(index),
+                file,
+                localExtra,
+                DataDescriptorType.values()[dataDescriptorTypes[index]],
+                entryLog);
+    }
+
+    /**
+     * Creates the central directory header of an entry from the data in the table.
+     *
+     * @param index the entry's index
+     * @return the header
+     */
+    @Nonnull
+    private CentralDirectoryHeader makeHeader(int index) {
+        int methodOrdinal = flagsAndMethods[index] & 0xff;
+        CompressionMethod method =
+                methodOrdinal == UNKNOWN_METHOD ? null : CompressionMethod.values()[methodOrdinal];
+        CentralDirectoryHeaderCompressInfo compressInfo =
+                new CentralDirectoryHeaderCompressInfo(
+                        method, compressedSizes[index], versions[index] & MASK_16);
+
+        GPFlags flags;
+        try {
+            flags = GPFlags.from(flagsAndMethods[index] >>> 8);
+        } catch (IOException e) {
+            throw new RuntimeException("IOException should never occur here because the flags "
+                    + "were verified when the entry was added.", e);
+        }
+
+        byte[] encodedName = Arrays.copyOfRange(names, nameStarts[index], nameStarts[index + 1]);
+        CentralDirectoryHeader cdh =
+                new CentralDirectoryHeader(
+                        EncodeUtils.decode(encodedName),
+                        encodedName,
+                        uncompressedSizes[index],
+                        Futures.immediateFuture(compressInfo),
+                        flags,
+                        file);
+        cdh.setMadeBy(versions[index] >>> 16);
+        cdh.setLastModTime(timestamps[index] >>> 16);
+        cdh.setLastModDate(timestamps[index] & MASK_16);
+        cdh.setCrc32(crc32s[index] & 0xffffffffL);
+        cdh.setInternalAttributes(attributes[index] >>> 32);
+        cdh.setExternalAttributes(attributes[index] & 0xffffffffL);
+        cdh.setOffset(offsets[index]);
+
+        if (extraFields != null && extraFields[index] != null) {
+            cdh.setExtraFieldNoNotify(extraFields[index]);
+        }
+
+        if (comments != null && comments[index] != null) {
+            cdh.setComment(comments[index]);
+        }
+
+        return cdh;
+    }
+
+    /**
+     * Checks whether an entry has been replaced by a later entry with the same name.
+     *
+     * @param index the entry's index
+     * @return has the entry been replaced?
+     */
+    private boolean isReplaced(int index) {
+        return replaced != null && replaced.get(index);
+    }
+
+    /**
+     * Finds the slot in {@link #slots} for a name: the slot with the entry with the name or, if
+     * there is no such entry, the empty slot where it would be placed.
+     *
+     * @param name the name
+     * @param hash the name's hash code
+     * @return the slot
+     */
+    private int findSlot(@Nonnull String name, int hash) {
+        int mask = slots.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (slots[slot] != 0) {
+            int index = slots[slot] - 1;
+            if (nameHashes[index] == hash && nameEquals(index, name)) {
+                break;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * Checks whether an entry has a name. ASCII names, the most common, are compared without
+     * decoding them.
+     *
+     * @param index the entry's index
+     * @param name the name
+     * @return does the entry have the name?
+     */
+    private boolean nameEquals(int index, @Nonnull String name) {
+        int start = nameStarts[index];
+        int length = nameStarts[index + 1] - start;
+        for (int i = 0; i < length; i++) {
+            byte b = names[start + i];
+            if (b < 0) {
+                /*
+                 * ASCII bytes before this one decode to the same characters, so the names are
+                 * equal up to here.
+                 */
+                return getName(index).equals(name);
+            }
+
+            if (i == name.length() || name.charAt(i) != b) {
+                return false;
+            }
+        }
+
+        return length == name.length();
+    }
+
+    /**
+     * Computes the size of {@link #slots} for a number of entries: the smallest power of two that
+     * is, at least, twice the number of entries, so at most half the slots are used.
+     *
+     * @param capacity the number of entries
+     * @return the number of slots
+     */
+    private static int slotCount(int capacity) {
+        return Ints.checkedCast(Long.highestOneBit(Math.max(2, capacity * 2L) - 1) << 1);
+    }
+
+    /**
+     * Packs two 16-bit values in an {@code int}.
+     *
+     * @param upper the value in the upper 16 bits
+     * @param lower the value in the lower 16 bits
+     * @return the packed values
+     */
+    private static int pack16(int upper, int lower) {
+        return (upper << 16) | (lower & MASK_16);
+    }
+}
@@ -28,6 +28,10 @@ import javax.annotation.Nonnull;
 
 /**
  * End Of Central Directory record in a zip file.
+ *
+ * <p>In Zip64 archives, the values that do not fit in the record are stored in a
+ * {@link Zip64Eocd} and the record's fields are set to all ones. This class always holds the
+ * actual values and writes the all-ones markers in place of values that do not fit.
  */
 class Eocd {
     /**
@@ -159,6 +163,20 @@ class Eocd {
         byteSupplier = new CachedSupplier<>(this::computeByteRepresentation);
     }
 
+    /**
+     * Creates a new EOCD with the actual values found in the Zip64 EOCD of a zip file.
+     *
+     * @param eocd the EOCD read from the file
+     * @param zip64Eocd the Zip64 EOCD read from the file
+     */
+    Eocd(@Nonnull Eocd eocd, @Nonnull Zip64Eocd zip64Eocd) {
+        this(
+                zip64Eocd.getTotalRecords(),
+                zip64Eocd.getDirectoryOffset(),
+                zip64Eocd.getDirectorySize(),
+                eocd.comment);
+    }
+
     /**
      * Creates a new EOCD. This is used when generating an EOCD for an Central Directory that has
      * just been generated. The EOCD will be generated without any comment.
@@ -256,10 +274,10 @@ class Eocd {
             F_SIGNATURE.write(out);
             F_NUMBER_OF_DISK.write(out);
             F_DISK_CD_START.write(out);
-            F_RECORDS_DISK.write(out, totalRecords);
-            F_RECORDS_TOTAL.write(out, totalRecords);
-            F_CD_SIZE.write(out, directorySize);
-            F_CD_OFFSET.write(out, directoryOffset);
+            F_RECORDS_DISK.write(out, Math.min(totalRecords, ZipField.F2.ZIP64_MARKER));
+            F_RECORDS_TOTAL.write(out, Math.min(totalRecords, ZipField.F2.ZIP64_MARKER));
+            F_CD_SIZE.write(out, Math.min(directorySize, ZipField.F4.ZIP64_MARKER));
+            F_CD_OFFSET.write(out, Math.min(directoryOffset, ZipField.F4.ZIP64_MARKER));
             F_COMMENT_SIZE.write(out, comment.length);
             out.put(comment);
 
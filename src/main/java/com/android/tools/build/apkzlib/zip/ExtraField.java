@@ -54,6 +54,18 @@ public class ExtraField {
      */
     static final int ALIGNMENT_ZIP_EXTRA_DATA_FIELD_HEADER_ID = 0xd935;
 
+    /**
+     * Header ID for the Zip64 extended information field. This is defined in the zip
+     * specification (section 4.5.3). See {@link Zip64Segment}.
+     */
+    static final int ZIP64_EXTRA_DATA_FIELD_HEADER_ID = 0x0001;
+
+    /**
+     * Extra field with no segments. Since extra fields are immutable, this instance is shared by
+     * all entries with no extra field, which is the case of most entries.
+     */
+    static final ExtraField EMPTY = new ExtraField();
+
     /**
      * The field's raw data, if it is known. Either this variable or {@link #segments} must be
      * non-{@code null}.
@@ -79,6 +91,22 @@ public class ExtraField {
         segments = null;
     }
 
+    /**
+     * Obtains an extra field based on existing raw data. Unlike
+     * {@link #ExtraField(byte[])}, this returns {@link #EMPTY} if there is no data.
+     *
+     * @param rawData the raw data; will not be parsed unless needed
+     * @return the extra field
+     */
+    @Nonnull
+    static ExtraField fromRawData(@Nonnull byte[] rawData) {
+        if (rawData.length == 0) {
+            return EMPTY;
+        }
+
+        return new ExtraField(rawData);
+    }
+
     /**
      * Creates a new extra field with no segments.
      */
@@ -215,6 +243,85 @@ public class ExtraField {
         }
     }
 
+    /**
+     * Obtains the values in the Zip64 extended information segment.
+     *
+     * @param count how many values are needed
+     * @return the first {@code count} values in the segment
+     * @throws IOException failed to parse the extra field, there is no Zip64 segment or it has
+     * less than {@code count} values
+     */
+    @Nonnull
+    long[] getZip64Values(int count) throws IOException {
+        Segment segment = getSingleSegment(ZIP64_EXTRA_DATA_FIELD_HEADER_ID);
+        if (segment == null) {
+            throw new IOException("Zip64 extended information field not found.");
+        }
+
+        return ((Zip64Segment) segment).getValues(count);
+    }
+
+    /**
+     * Creates a new extra field with the same segments as this one, except for the Zip64
+     * extended information segment, which is removed. If this extra field has no Zip64 segment,
+     * or cannot be parsed, this extra field is returned.
+     *
+     * @return the extra field without a Zip64 segment
+     */
+    @Nonnull
+    ExtraField withoutZip64Values() {
+        if (size() == 0) {
+            return this;
+        }
+
+        ImmutableList<Segment> segments;
+        try {
+            segments = getSegments();
+        } catch (IOException e) {
+            return this;
+        }
+
+        List<Segment> newSegments = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.getHeaderId() != ZIP64_EXTRA_DATA_FIELD_HEADER_ID) {
+                newSegments.add(segment);
+            }
+        }
+
+        if (newSegments.size() == segments.size()) {
+            return this;
+        }
+
+        if (newSegments.isEmpty()) {
+            return EMPTY;
+        }
+
+        return new ExtraField(ImmutableList.copyOf(newSegments));
+    }
+
+    /**
+     * Creates a new extra field with the same segments as this one, except that its Zip64
+     * extended information segment contains the provided values. If this extra field has no Zip64
+     * segment, one is added as the first segment.
+     *
+     * @param values the values to place in the Zip64 segment, in the order defined by the
+     * specification
+     * @return the new extra field
+     * @throws IOException failed to parse the extra field
+     */
+    @Nonnull
+    ExtraField withZip64Values(@Nonnull long... values) throws IOException {
+        List<Segment> newSegments = new ArrayList<>();
+        newSegments.add(new Zip64Segment(values));
+        for (Segment segment : getSegments()) {
+            if (segment.getHeaderId() != ZIP64_EXTRA_DATA_FIELD_HEADER_ID) {
+                newSegments.add(segment);
+            }
+        }
+
+        return new ExtraField(ImmutableList.copyOf(newSegments));
+    }
+
     /**
      * Identifies the factory to create the segment with the provided header ID.
      *
@@ -227,6 +334,10 @@ public class ExtraField {
             return AlignmentSegment::new;
         }
 
+        if (headerId == ZIP64_EXTRA_DATA_FIELD_HEADER_ID) {
+            return Zip64Segment::new;
+        }
+
         return RawDataSegment::new;
     }
 
@@ -403,4 +514,92 @@ public class ExtraField {
             return ALIGNMENT_ZIP_EXTRA_DATA_FIELD_HEADER_ID;
         }
     }
+
+    /**
+     * Segment with Zip64 extended information: this segment contains the values of the sizes and
+     * offset of an entry that do not fit in the 4-byte fields of the local header or the central
+     * directory. Each value is stored as an 8-byte value. Which values are present depends on
+     * where the segment is and which fields of the header could not hold their values: the
+     * uncompressed size, the compressed size, the offset of the local header and the disk number,
+     * always in this order.
+     */
+    public static class Zip64Segment implements Segment {
+
+        /**
+         * Segment data, without the header ID and data size.
+         */
+        @Nonnull
+        private final byte[] data;
+
+        /**
+         * Creates a new Zip64 segment.
+         *
+         * @param values the values to place in the segment
+         * @throws IOException failed to write the values
+         */
+        public Zip64Segment(@Nonnull long... values) throws IOException {
+            ByteBuffer dataBuffer = ByteBuffer.allocate(values.length * 8);
+            for (long value : values) {
+                LittleEndianUtils.writeUnsigned8Le(dataBuffer, value);
+            }
+
+            data = dataBuffer.array();
+        }
+
+        /**
+         * Creates a new Zip64 segment from extra data.
+         *
+         * @param headerId the header ID
+         * @param data the segment data
+         */
+        public Zip64Segment(int headerId, @Nonnull byte[] data) {
+            Preconditions.checkArgument(headerId == ZIP64_EXTRA_DATA_FIELD_HEADER_ID);
+
+            this.data = data;
+        }
+
+        /**
+         * Obtains the first values in the segment.
+         *
+         * @param count how many values to obtain
+         * @return the values
+         * @throws IOException the segment has less than {@code count} values
+         */
+        @Nonnull
+        public long[] getValues(int count) throws IOException {
+            if (data.length < count * 8) {
+                throw new IOException(
+                        "Zip64 extended information field has "
+                                + data.length
+                                + " bytes but "
+                                + count
+                                + " values expected.");
+            }
+
+            ByteBuffer dataBuffer = ByteBuffer.wrap(data);
+            long[] values = new long[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = LittleEndianUtils.readUnsigned8Le(dataBuffer);
+            }
+
+            return values;
+        }
+
+        @Override
+        public void write(@Nonnull ByteBuffer out) throws IOException {
+            LittleEndianUtils.writeUnsigned2Le(out, ZIP64_EXTRA_DATA_FIELD_HEADER_ID);
+            LittleEndianUtils.writeUnsigned2Le(out, data.length);
+            out.put(data);
+        }
+
+        @Override
+        public int size() {
+            return 4 + data.length;
+        }
+
+        @Override
+        public int getHeaderId() {
+            return ZIP64_EXTRA_DATA_FIELD_HEADER_ID;
+        }
+    }
 }
@@ -21,6 +21,7 @@ import com.google.common.base.Verify;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
@@ -394,6 +395,9 @@ class FileUseMap {
             case FIRST_FIT:
                 matches = map;
                 break;
+            case APPEND:
+                matches = Collections.emptySortedSet();
+                break;
             default:
                 throw new AssertionError();
         }
@@ -596,6 +600,11 @@ class FileUseMap {
         /**
          * First fit: finds the first free block that can receive the entry.
          */
-        FIRST_FIT
+        FIRST_FIT,
+
+        /**
+         * Append: places the entry after the last used block, ignoring all free blocks before it.
+         */
+        APPEND
     }
 }
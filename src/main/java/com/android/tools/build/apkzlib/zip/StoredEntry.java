@@ -28,6 +28,7 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Comparator;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -199,6 +200,12 @@ public class StoredEntry {
     @Nonnull
     private final VerifyLog verifyLog;
 
+    /**
+     * Alignment defined for this entry's name by the zip's alignment rule, {@code 0} if not yet
+     * computed. See {@link #getRuleAlignment(AlignmentRule)}.
+     */
+    private int ruleAlignment;
+
     /**
      * Creates a new stored entry.
      *
@@ -214,19 +221,33 @@ public class StoredEntry {
             @Nonnull ZFile file,
             @Nullable ProcessedAndRawByteSources source)
             throws IOException {
+        this(header, file, source, file.makeVerifyLog());
+    }
+
+    /**
+     * Creates a new stored entry with a given verify log.
+     *
+     * @param header the header with the entry information; if the header does not contain an
+     * offset it means that this entry is not yet written in the zip file
+     * @param file the zip file containing the entry
+     * @param source the entry's data source; it can be {@code null} only if the source can be
+     * read from the zip file, that is, if {@code header.getOffset()} is non-negative
+     * @param verifyLog the entry's verify log, usually created with {@link ZFile#makeVerifyLog()}
+     * @throws IOException failed to create the entry
+     */
+    StoredEntry(
+            @Nonnull CentralDirectoryHeader header,
+            @Nonnull ZFile file,
+            @Nullable ProcessedAndRawByteSources source,
+            @Nonnull VerifyLog verifyLog)
+            throws IOException {
         cdh = header;
         this.file = file;
         deleted = false;
-        verifyLog = file.makeVerifyLog();
+        this.verifyLog = verifyLog;
 
         if (header.getOffset() >= 0) {
-            /*
-             * This will be overwritten during readLocalHeader. However, IJ complains if we don't
-             * assign a value to localExtra because of the @Nonnull annotation.
-             */
-            localExtra = new ExtraField();
-
-            readLocalHeader();
+            localExtra = readLocalHeader(header, file, verifyLog);
 
             Preconditions.checkArgument(
                     source == null,
@@ -242,7 +263,7 @@ public class StoredEntry {
             /*
              * There is no local extra data for new files.
              */
-            localExtra = new ExtraField();
+            localExtra = ExtraField.EMPTY;
 
             Preconditions.checkNotNull(
                     source,
@@ -250,54 +271,94 @@ public class StoredEntry {
             this.source = source;
         }
 
+        type = typeOf(cdh);
+        if (type == StoredEntryType.DIRECTORY) {
+            verifyLog.verify(
+                    this.source.getProcessedByteSource().isEmpty(),
+                    "Directory source is not empty.");
+            verifyDirectoryHeader(cdh, verifyLog);
+        }
+
+        dataDescriptorType = readDataDescriptorType(header, file, localExtra, verifyLog);
+    }
+
+    /**
+     * Creates a stored entry for an entry in the zip whose local header and data descriptor have
+     * already been read and verified. Nothing is read from the zip. Used by {@link EntryTable},
+     * which reads the entries' local data when the zip is opened and keeps it instead of the
+     * entries.
+     *
+     * @param header the header with the entry information, which must contain an offset
+     * @param file the zip file containing the entry
+     * @param localExtra the extra field in the entry's local header
+     * @param dataDescriptorType the type of the entry's data descriptor
+     * @param verifyLog the entry's verify log
+     */
+    StoredEntry(
+            @Nonnull CentralDirectoryHeader header,
+            @Nonnull ZFile file,
+            @Nonnull ExtraField localExtra,
+            @Nonnull DataDescriptorType dataDescriptorType,
+            @Nonnull VerifyLog verifyLog) {
+        Preconditions.checkArgument(header.getOffset() >= 0, "Entry is not in the zip");
+
+        cdh = header;
+        this.file = file;
+        deleted = false;
+        this.verifyLog = verifyLog;
+        this.localExtra = localExtra;
+        this.dataDescriptorType = dataDescriptorType;
+        source = createSourceFromZip(header.getOffset());
+        type = typeOf(header);
+    }
+
+    /**
+     * Obtains the type of the entry with a header.
+     *
+     * @param header the header
+     * @return the type of entry
+     */
+    @Nonnull
+    static StoredEntryType typeOf(@Nonnull CentralDirectoryHeader header) {
         /*
          * It seems that zip utilities store directories as names ending with "/".
          * This seems to be respected by all zip utilities although I could not find there anywhere
          * in the specification.
          */
-        if (cdh.getName().endsWith(Character.toString(ZFile.SEPARATOR))) {
-            type = StoredEntryType.DIRECTORY;
-            verifyLog.verify(
-                    this.source.getProcessedByteSource().isEmpty(),
-                    "Directory source is not empty.");
-            verifyLog.verify(cdh.getCrc32() == 0, "Directory has CRC32 = %s.", cdh.getCrc32());
-            verifyLog.verify(
-                    cdh.getUncompressedSize() == 0,
-                    "Directory has uncompressed size = %s.",
-                    cdh.getUncompressedSize());
-
-            /*
-             * Some clever (OMG!) tools, like jar will actually try to compress the directory
-             * contents and generate a 2 byte compressed data. Of course, the uncompressed size is
-             * zero and we're just wasting space.
-             */
-            long compressedSize = cdh.getCompressionInfoWithWait().getCompressedSize();
-            verifyLog.verify(
-                    compressedSize == 0 || compressedSize == 2,
-                    "Directory has compressed size = %s.", compressedSize);
+        if (header.getName().endsWith(Character.toString(ZFile.SEPARATOR))) {
+            return StoredEntryType.DIRECTORY;
         } else {
-            type = StoredEntryType.FILE;
+            return StoredEntryType.FILE;
         }
+    }
+
+    /**
+     * Verifies that the header of a directory entry describes no data.
+     *
+     * @param header the header of the directory entry
+     * @param verifyLog the log where problems are logged
+     * @throws IOException failed to get compression information
+     */
+    static void verifyDirectoryHeader(
+            @Nonnull CentralDirectoryHeader header,
+            @Nonnull VerifyLog verifyLog)
+            throws IOException {
+        verifyLog.verify(
+                header.getCrc32() == 0, "Directory has CRC32 = %s.", header.getCrc32());
+        verifyLog.verify(
+                header.getUncompressedSize() == 0,
+                "Directory has uncompressed size = %s.",
+                header.getUncompressedSize());
 
         /*
-         * By default we assume there is no data descriptor unless the CRC is marked as deferred
-         * in the header's GP Bit.
+         * Some clever (OMG!) tools, like jar will actually try to compress the directory
+         * contents and generate a 2 byte compressed data. Of course, the uncompressed size is
+         * zero and we're just wasting space.
          */
-        dataDescriptorType = DataDescriptorType.NO_DATA_DESCRIPTOR;
-        if (header.getGpBit().isDeferredCrc()) {
-            /*
-             * If the deferred CRC bit exists, then we have an extra descriptor field. This extra
-             * field may have a signature.
-             */
-            Verify.verify(header.getOffset() >= 0, "Files that are not on disk cannot have the "
-                    + "deferred CRC bit set.");
-
-            try {
-                readDataDescriptorRecord();
-            } catch (IOException e) {
-                throw new IOException("Failed to read data descriptor record.", e);
-            }
-        }
+        long compressedSize = header.getCompressionInfoWithWait().getCompressedSize();
+        verifyLog.verify(
+                compressedSize == 0 || compressedSize == 2,
+                "Directory has compressed size = %s.", compressedSize);
     }
 
     /**
@@ -420,16 +481,22 @@ public class StoredEntry {
     }
 
     /**
-     * Reads the file's local header and verifies that it matches the Central Directory
-     * Header provided in the constructor. This method should only be called if the entry already
-     * exists on disk; new entries do not have local headers.
-     * <p>
-     * This method will define the {@link #localExtra} field that is only defined in the
-     * local descriptor.
+     * Reads an entry's local header and verifies that it matches the Central Directory
+     * Header. This method should only be called if the entry already exists on disk; new entries
+     * do not have local headers.
      *
+     * @param cdh the entry's Central Directory Header
+     * @param file the zip file containing the entry
+     * @param verifyLog the log where differences to the header are logged
+     * @return the local extra field, which is only defined in the local header
      * @throws IOException failed to read the local header
      */
-    private void readLocalHeader() throws IOException {
+    @Nonnull
+    static ExtraField readLocalHeader(
+            @Nonnull CentralDirectoryHeader cdh,
+            @Nonnull ZFile file,
+            @Nonnull VerifyLog verifyLog)
+            throws IOException {
         byte[] localHeader = new byte[FIXED_LOCAL_FILE_HEADER_SIZE];
         file.directFullyRead(cdh.getOffset(), localHeader);
 
@@ -453,15 +520,20 @@ public class StoredEntry {
          * If CRC-32, compressed size and uncompressed size are deferred, their values in Local
          * File Header must be ignored and their actual values must be read from the Data
          * Descriptor following the contents of this entry. See readDataDescriptorRecord().
+         *
+         * Sizes are verified after reading the local extra field because they may be in the
+         * Zip64 extended information field.
          */
+        long compressedSize = 0;
+        long uncompressedSize = 0;
         if (cdh.getGpBit().isDeferredCrc()) {
             F_CRC32.skip(bytes);
             F_COMPRESSED_SIZE.skip(bytes);
             F_UNCOMPRESSED_SIZE.skip(bytes);
         } else {
             F_CRC32.verify(bytes, cdh.getCrc32(), verifyLog);
-            F_COMPRESSED_SIZE.verify(bytes, compressInfo.getCompressedSize(), verifyLog);
-            F_UNCOMPRESSED_SIZE.verify(bytes, cdh.getUncompressedSize(), verifyLog);
+            compressedSize = F_COMPRESSED_SIZE.read(bytes);
+            uncompressedSize = F_UNCOMPRESSED_SIZE.read(bytes);
         }
 
         F_FILE_NAME_LENGTH.verify(bytes, cdh.getEncodedFileName().length);
@@ -470,38 +542,168 @@ public class StoredEntry {
         byte[] fileNameData = new byte[cdh.getEncodedFileName().length];
         file.directFullyRead(fileNameStart, fileNameData);
 
-        String fileName = EncodeUtils.decode(fileNameData, cdh.getGpBit());
-        if (!fileName.equals(cdh.getName())) {
-            verifyLog.log(
-                    String.format(
-                            "Central directory reports file as being named '%s' but local header"
-                                    + "reports file being named '%s'.",
-                    cdh.getName(),
-                    fileName));
+        /*
+         * The name only needs to be decoded if its bytes differ, as different bytes may still
+         * decode to the same name.
+         */
+        if (!Arrays.equals(fileNameData, cdh.getEncodedFileName())) {
+            String fileName = EncodeUtils.decode(fileNameData);
+            if (!fileName.equals(cdh.getName())) {
+                verifyLog.log(
+                        String.format(
+                                "Central directory reports file as being named '%s' but local "
+                                        + "header reports file being named '%s'.",
+                                cdh.getName(),
+                                fileName));
+            }
         }
 
         long localExtraStart = fileNameStart + cdh.getEncodedFileName().length;
         byte[] localExtraRaw = new byte[Ints.checkedCast(extraLength)];
         file.directFullyRead(localExtraStart, localExtraRaw);
-        localExtra = new ExtraField(localExtraRaw);
+        ExtraField localExtra = ExtraField.fromRawData(localExtraRaw);
+
+        if (!cdh.getGpBit().isDeferredCrc()) {
+            verifyLocalSizes(cdh, localExtra, compressedSize, uncompressedSize, verifyLog);
+        }
+
+        return localExtra;
+    }
+
+    /**
+     * Verifies that the sizes in the local header match the ones in the Central Directory
+     * Header. If the sizes in the local header do not fit in their fields, the local extra field
+     * must already be read, as the sizes are taken from its Zip64 extended information field.
+     *
+     * @param cdh the entry's Central Directory Header
+     * @param localExtra the local extra field
+     * @param compressedSize the compressed size in the local header
+     * @param uncompressedSize the uncompressed size in the local header
+     * @param verifyLog the log where differences to the header are logged
+     * @throws IOException failed to get compression information
+     */
+    private static void verifyLocalSizes(
+            @Nonnull CentralDirectoryHeader cdh,
+            @Nonnull ExtraField localExtra,
+            long compressedSize,
+            long uncompressedSize,
+            @Nonnull VerifyLog verifyLog)
+            throws IOException {
+        CentralDirectoryHeaderCompressInfo compressInfo = cdh.getCompressionInfoWithWait();
+        if (compressedSize == ZipField.F4.ZIP64_MARKER
+                || uncompressedSize == ZipField.F4.ZIP64_MARKER) {
+            /*
+             * The Zip64 extended information field in the local header always has both sizes.
+             */
+            try {
+                long[] zip64Values = localExtra.getZip64Values(2);
+                uncompressedSize = zip64Values[0];
+                compressedSize = zip64Values[1];
+            } catch (IOException e) {
+                verifyLog.log("Failed to read Zip64 information in local header: "
+                        + e.getMessage());
+                return;
+            }
+        }
+
+        verifyLog.verify(
+                compressedSize == compressInfo.getCompressedSize(),
+                "Incorrect compressed size in local header: value is %s but %s expected.",
+                compressedSize,
+                compressInfo.getCompressedSize());
+        verifyLog.verify(
+                uncompressedSize == cdh.getUncompressedSize(),
+                "Incorrect uncompressed size in local header: value is %s but %s expected.",
+                uncompressedSize,
+                cdh.getUncompressedSize());
+    }
+
+    /**
+     * Obtains the type of an entry's data descriptor, reading the data descriptor if there is
+     * one.
+     *
+     * @param cdh the entry's Central Directory Header
+     * @param file the zip file containing the entry
+     * @param localExtra the entry's local extra field
+     * @param verifyLog the log where differences to the header are logged
+     * @return the type of data descriptor
+     * @throws IOException failed to read the data descriptor record
+     */
+    @Nonnull
+    static DataDescriptorType readDataDescriptorType(
+            @Nonnull CentralDirectoryHeader cdh,
+            @Nonnull ZFile file,
+            @Nonnull ExtraField localExtra,
+            @Nonnull VerifyLog verifyLog)
+            throws IOException {
+        /*
+         * By default we assume there is no data descriptor unless the CRC is marked as deferred
+         * in the header's GP Bit.
+         */
+        if (!cdh.getGpBit().isDeferredCrc()) {
+            return DataDescriptorType.NO_DATA_DESCRIPTOR;
+        }
+
+        /*
+         * If the deferred CRC bit exists, then we have an extra descriptor field. This extra
+         * field may have a signature.
+         */
+        Verify.verify(cdh.getOffset() >= 0, "Files that are not on disk cannot have the "
+                + "deferred CRC bit set.");
+
+        try {
+            return readDataDescriptorRecord(cdh, file, localExtra, verifyLog);
+        } catch (IOException e) {
+            throw new IOException("Failed to read data descriptor record.", e);
+        }
     }
 
     /**
      * Reads the data descriptor record. This method can only be invoked once it is established
      * that a data descriptor does exist. It will read the data descriptor and check that the data
      * described there matches the data provided in the Central Directory.
-     * <p>
-     * This method will set the {@link #dataDescriptorType} field to the appropriate type of
-     * data descriptor record.
      *
+     * @param cdh the entry's Central Directory Header
+     * @param file the zip file containing the entry
+     * @param localExtra the entry's local extra field
+     * @param verifyLog the log where differences to the header are logged
+     * @return the type of data descriptor record
      * @throws IOException failed to read the data descriptor record
      */
-    private void readDataDescriptorRecord() throws IOException {
+    @Nonnull
+    private static DataDescriptorType readDataDescriptorRecord(
+            @Nonnull CentralDirectoryHeader cdh,
+            @Nonnull ZFile file,
+            @Nonnull ExtraField localExtra,
+            @Nonnull VerifyLog verifyLog)
+            throws IOException {
         CentralDirectoryHeaderCompressInfo compressInfo = cdh.getCompressionInfoWithWait();
 
         long ddStart = cdh.getOffset() + FIXED_LOCAL_FILE_HEADER_SIZE
                 + cdh.getName().length() + localExtra.size() + compressInfo.getCompressedSize();
-        byte[] ddData = new byte[DataDescriptorType.DATA_DESCRIPTOR_WITH_SIGNATURE.size];
+        /*
+         * If the local header has Zip64 extended information, the sizes in the data descriptor
+         * have 8 bytes each.
+         */
+        boolean zip64;
+        try {
+            zip64 = localExtra.getSingleSegment(ExtraField.ZIP64_EXTRA_DATA_FIELD_HEADER_ID)
+                    != null;
+        } catch (IOException e) {
+            zip64 = false;
+        }
+
+        DataDescriptorType withSignature;
+        DataDescriptorType withoutSignature;
+        if (zip64) {
+            withSignature = DataDescriptorType.ZIP64_DATA_DESCRIPTOR_WITH_SIGNATURE;
+            withoutSignature = DataDescriptorType.ZIP64_DATA_DESCRIPTOR_WITHOUT_SIGNATURE;
+        } else {
+            withSignature = DataDescriptorType.DATA_DESCRIPTOR_WITH_SIGNATURE;
+            withoutSignature = DataDescriptorType.DATA_DESCRIPTOR_WITHOUT_SIGNATURE;
+        }
+
+        byte[] ddData = new byte[withSignature.size];
         file.directFullyRead(ddStart, ddData);
 
         ByteBuffer ddBytes = ByteBuffer.wrap(ddData);
@@ -509,33 +711,44 @@ public class StoredEntry {
         ZipField.F4 signatureField = new ZipField.F4(0, "Data descriptor signature");
         int cpos = ddBytes.position();
         long sig = signatureField.read(ddBytes);
+        DataDescriptorType dataDescriptorType;
         if (sig == DATA_DESC_SIGNATURE) {
-            dataDescriptorType = DataDescriptorType.DATA_DESCRIPTOR_WITH_SIGNATURE;
+            dataDescriptorType = withSignature;
         } else {
-            dataDescriptorType = DataDescriptorType.DATA_DESCRIPTOR_WITHOUT_SIGNATURE;
+            dataDescriptorType = withoutSignature;
             ddBytes.position(cpos);
         }
 
         ZipField.F4 crc32Field = new ZipField.F4(0, "CRC32");
-        ZipField.F4 compressedField = new ZipField.F4(crc32Field.endOffset(), "Compressed size");
-        ZipField.F4 uncompressedField = new ZipField.F4(compressedField.endOffset(),
-                "Uncompressed size");
-
         crc32Field.verify(ddBytes, cdh.getCrc32(), verifyLog);
-        compressedField.verify(ddBytes, compressInfo.getCompressedSize(), verifyLog);
-        uncompressedField.verify(ddBytes, cdh.getUncompressedSize(), verifyLog);
+
+        if (zip64) {
+            ZipField.F8 compressedField = new ZipField.F8(crc32Field.endOffset(),
+                    "Compressed size");
+            ZipField.F8 uncompressedField = new ZipField.F8(compressedField.endOffset(),
+                    "Uncompressed size");
+            compressedField.verify(ddBytes, compressInfo.getCompressedSize(), verifyLog);
+            uncompressedField.verify(ddBytes, cdh.getUncompressedSize(), verifyLog);
+        } else {
+            ZipField.F4 compressedField = new ZipField.F4(crc32Field.endOffset(),
+                    "Compressed size");
+            ZipField.F4 uncompressedField = new ZipField.F4(compressedField.endOffset(),
+                    "Uncompressed size");
+            compressedField.verify(ddBytes, compressInfo.getCompressedSize(), verifyLog);
+            uncompressedField.verify(ddBytes, cdh.getUncompressedSize(), verifyLog);
+        }
+
+        return dataDescriptorType;
     }
 
     /**
      * Creates a new source that reads data from the zip.
      *
      * @param zipOffset the offset into the zip file where the data is, must be non-negative
-     * @throws IOException failed to close the old source
      * @return the created source
      */
     @Nonnull
-    private ProcessedAndRawByteSources createSourceFromZip(final long zipOffset)
-            throws IOException {
+    private ProcessedAndRawByteSources createSourceFromZip(final long zipOffset) {
         Preconditions.checkArgument(zipOffset >= 0, "zipOffset < 0");
 
         final CentralDirectoryHeaderCompressInfo compressInfo;
@@ -707,6 +920,16 @@ public class StoredEntry {
 
         CentralDirectoryHeaderCompressInfo compressInfo = cdh.getCompressionInfoWithWait();
 
+        /*
+         * Entries whose data is written by ZFile are always loaded in memory, so they are never
+         * large enough to need Zip64 extended information in the local header.
+         */
+        if (compressInfo.getCompressedSize() >= ZipField.F4.ZIP64_MARKER
+                || cdh.getUncompressedSize() >= ZipField.F4.ZIP64_MARKER) {
+            throw new IOException("Cannot write local header of entry '" + cdh.getName()
+                    + "' with " + cdh.getUncompressedSize() + " bytes.");
+        }
+
         F_LOCAL_SIGNATURE.write(out);
         F_VERSION_EXTRACT.write(out, compressInfo.getVersionExtract());
         F_GP_BIT.write(out, cdh.getGpBit().getValue());
@@ -815,4 +1038,20 @@ public class StoredEntry {
     public VerifyLog getVerifyLog() {
         return verifyLog;
     }
+
+    /**
+     * Obtains the alignment an alignment rule defines for this entry's name. The alignment is
+     * computed only the first time this method is invoked, so the rule must always be the zip's
+     * alignment rule. This method does not consider whether the entry is compressed.
+     *
+     * @param rule the zip's alignment rule
+     * @return the alignment
+     */
+    int getRuleAlignment(@Nonnull AlignmentRule rule) {
+        if (ruleAlignment == 0) {
+            ruleAlignment = rule.alignment(cdh.getName());
+        }
+
+        return ruleAlignment;
+    }
 }
@@ -26,25 +26,33 @@ import javax.annotation.Nonnull;
  */
 final class VerifyLogs {
 
+    /**
+     * Log that ignores all messages. It has no state so it is shared by all entries that are not
+     * verified.
+     */
+    @Nonnull
+    private static final VerifyLog DEV_NULL =
+            new VerifyLog() {
+                @Override
+                public void log(@Nonnull String message) {}
+
+                @Nonnull
+                @Override
+                public ImmutableList<String> getLogs() {
+                    return ImmutableList.of();
+                }
+            };
+
     private VerifyLogs() {}
 
     /**
-     * Creates a {@link VerifyLog} that ignores all messages logged.
+     * Obtains a {@link VerifyLog} that ignores all messages logged.
      *
      * @return the log
      */
     @Nonnull
     static VerifyLog devNull() {
-        return new VerifyLog() {
-            @Override
-            public void log(@Nonnull String message) {}
-
-            @Nonnull
-            @Override
-            public ImmutableList<String> getLogs() {
-                return ImmutableList.of();
-            }
-        };
+        return DEV_NULL;
     }
 
     /**
@@ -19,17 +19,21 @@ package com.android.tools.build.apkzlib.zip;
 import com.android.tools.build.apkzlib.utils.CachedFileContents;
 import com.android.tools.build.apkzlib.utils.IOExceptionFunction;
 import com.android.tools.build.apkzlib.utils.IOExceptionRunnable;
-import com.android.tools.build.apkzlib.zip.compress.Zip64NotSupportedException;
 import com.android.tools.build.apkzlib.zip.utils.ByteTracker;
 import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
-import com.android.tools.build.apkzlib.zip.utils.LittleEndianUtils;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Verify;
 import com.google.common.base.VerifyException;
+import com.google.common.collect.HashMultiset;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
 import com.google.common.collect.Sets;
+import com.google.common.collect.TreeRangeSet;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.common.io.Closer;
@@ -37,9 +41,11 @@ import com.google.common.io.Files;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.JdkFutureAdapters;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.EOFException;
@@ -47,11 +53,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -59,7 +73,11 @@ import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
@@ -157,6 +175,10 @@ import javax.annotation.Nullable;
  * alignment that forces an empty space before that can be occupied by {@code b}. Sorting can be
  * used to minimize the changes between two zips.
  *
+ * <p>A different order can be set with {@link ZFileOptions#setEntryOrder(Comparator)}. For
+ * example, {@link EntryOrderings#fromProfile(List)} places entries in the order of an access
+ * profile, so that entries read together at startup are close together in the file.
+ *
  * <p>Sorting in {@code ZFile} can be done manually or automatically. Manual sorting is done by
  * invoking {@link #sortZipContents()}. Automatic sorting is done by setting the
  * {@link ZFileOptions#getAutoSortFiles()} option when creating the {@code ZFile}. Automatic
@@ -167,6 +189,23 @@ import javax.annotation.Nullable;
  * drawback of automatic sorting is that sorting will happen every time {@link #update()} is
  * called and the file is dirty having a possible penalty in performance.
  *
+ * <p>When creating large archives that are written once, keeping all added files in memory until
+ * {@link #update()} may be too expensive. Setting
+ * {@link ZFileOptions#setWriteEntriesEagerly(boolean)} makes {@code ZFile} write each entry to its
+ * final location on disk as soon as its compression finishes and it is placed in the zip. The
+ * entry's data is then discarded from memory and only its central directory record is kept.
+ * Alignment rules and extensions work as usual. Until {@link #update()} or {@link #close()} is
+ * invoked, the file on disk is not a valid zip file as the central directory and EOCD are only
+ * written on update. Eager writes are ineffective if the zip is sorted, either manually or with
+ * automatic sorting, because sorting reads all entries back into memory.
+ *
+ * <p>With {@link ZFileOptions#setWriteEntriesInBackground(boolean)}, eager writes are done by a
+ * background thread owned by the {@code ZFile} so that writing to disk overlaps with compression
+ * and with adding more files. Entries whose write has finished have their in-memory data released
+ * the next time files are added or the zip is updated. {@link #update()} waits for all background
+ * writes before writing the central directory and the EOCD. The background thread is stopped when
+ * the file is closed.
+ *
  * <p>To allow whole-apk signing, the {@code ZFile} allows the central directory location to be
  * offset by a fixed amount. This amount can be set using the {@link #setExtraDirectoryOffset(long)}
  * method. Setting a non-zero value will add extra (unused) space in the zip file before the
@@ -180,7 +219,9 @@ import javax.annotation.Nullable;
  * {@link ZFile#removeZFileExtension(ZFileExtension)}.
  *
  * <p>This class is <strong>not</strong> thread-safe. Neither are any of the classes associated with
- * it in this package, except when otherwise noticed.
+ * it in this package, except when otherwise noticed. The only exception in this class is
+ * {@link #addConcurrently(String, InputStream, boolean)} that may be invoked by multiple threads
+ * at the same time to read, checksum and compress files in parallel.
  */
 public class ZFile implements Closeable {
 
@@ -195,11 +236,6 @@ public class ZFile implements Closeable {
      */
     private static final int MIN_EOCD_SIZE = 22;
 
-    /**
-     * Number of bytes of the Zip64 EOCD locator record.
-     */
-    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
-
     /**
      * Maximum size for the EOCD.
      */
@@ -211,9 +247,26 @@ public class ZFile implements Closeable {
     private static final int LAST_BYTES_TO_READ = MIN_EOCD_SIZE + MAX_EOCD_COMMENT_SIZE;
 
     /**
-     * Signature of the Zip64 EOCD locator record.
+     * How many bytes to read from the end of the file in each attempt to find the EOCD. Most zips
+     * have no comment, so the first attempt reads just enough for an EOCD with no comment preceded
+     * by a Zip64 EOCD locator. The second covers short comments. Only if both fail is the whole
+     * area where the EOCD may be located read.
+     */
+    private static final int[] EOCD_SEARCH_STAGES =
+            new int[] { MIN_EOCD_SIZE + Zip64Eocd.LOCATOR_SIZE, 4096, LAST_BYTES_TO_READ };
+
+    /**
+     * Maximum number of files read ahead by
+     * {@link #addAllRecursively(File, Function, Executor)}.
+     */
+    private static final int READ_AHEAD_FILES = 64;
+
+    /**
+     * Maximum number of bytes read ahead by
+     * {@link #addAllRecursively(File, Function, Executor)}. At least one file is always read
+     * ahead, regardless of its size.
      */
-    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final long READ_AHEAD_BYTES = 64 * 1024 * 1024;
 
     /**
      * Signature of the EOCD record.
@@ -225,6 +278,12 @@ public class ZFile implements Closeable {
      */
     private static final int IO_BUFFER_SIZE = 1024 * 1024;
 
+    /**
+     * Buffer with zeros used to fill free areas of the zip. The buffer is never written to and is
+     * shared by all zips: writers use duplicates of it.
+     */
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+
     /**
      * When extensions request re-runs, we do maximum number of cycles until we decide to stop and
      * flag a infinite recursion problem.
@@ -247,17 +306,35 @@ public class ZFile implements Closeable {
     private static final int MAX_LOCAL_EXTRA_FIELD_CONTENTS_SIZE = (1 << 15) - 1;
 
     /**
-     * File zip file.
+     * Path to the zip file. The path may belong to any file system whose provider supports
+     * {@link FileChannel}s, such as an in-memory file system.
      */
     @Nonnull
-    private final File file;
+    private final Path path;
+
+    /**
+     * The channel used to access the zip file. This will be {@code null} if and only if
+     * {@link #state} is {@link ZipFileState#CLOSED}. All reads and writes on the channel are
+     * positional, so the channel's position is never relied on.
+     */
+    @Nullable
+    private FileChannel channel;
 
     /**
-     * The random access file used to access the zip file. This will be {@code null} if and only
-     * if {@link #state} is {@link ZipFileState#CLOSED}.
+     * If this zip is nested inside another zip, creates the channels used to read it (see
+     * {@link #openNested(StoredEntry, ZFileOptions)}). {@code null} if the zip is stored at
+     * {@link #path}.
      */
     @Nullable
-    private RandomAccessFile raf;
+    private final Supplier<FileChannel> nestedChannelFactory;
+
+    /**
+     * Areas of the file on disk that are known to contain only zeros because they were filled by
+     * {@link #writeZeros(long, long)} and have not been written to since. Free areas that are
+     * known to be zero need not be filled again.
+     */
+    @Nonnull
+    private final RangeSet<Long> knownZeroAreas;
 
     /**
      * The map containing the in-memory contents of the zip file. It keeps track of which parts of
@@ -276,6 +353,14 @@ public class ZFile implements Closeable {
     @Nullable
     private FileUseMapEntry<Eocd> eocdEntry;
 
+    /**
+     * The Zip64 EOCD entry, with the Zip64 EOCD record and locator that precede the EOCD. Will be
+     * {@code null} if the zip does not need Zip64 records or if {@link #eocdEntry} is
+     * {@code null}.
+     */
+    @Nullable
+    private FileUseMapEntry<Zip64Eocd> zip64EocdEntry;
+
     /**
      * The Central Directory entry. Will be {@code null} if there is no Central Directory (because
      * the zip is new) or because the one that exists on disk is no longer valid (because the zip
@@ -293,8 +378,9 @@ public class ZFile implements Closeable {
 
     /**
      * Entries added to the zip file, but that are not yet compressed. When compression is done,
-     * these entries are eventually moved to {@link #entries}. uncompressedEntries is a list
-     * because entries need to be kept in the order by which they were added. It allows adding
+     * these entries are eventually moved to {@link #entries}. uncompressedEntries is a linked set
+     * because entries need to be kept in the order by which they were added, but may be removed
+     * from the middle when {@link #processEntriesInCompletionOrder} is set. It allows adding
      * multiple files with the same name and getting the right notifications on which files replaced
      * which.
      *
@@ -306,7 +392,77 @@ public class ZFile implements Closeable {
      * {@link #processAllReadyEntries()}.
      */
     @Nonnull
-    private final List<StoredEntry> uncompressedEntries;
+    private final Set<StoredEntry> uncompressedEntries;
+
+    /**
+     * The most recently added entry in {@link #uncompressedEntries} with each name. Since entries
+     * with the same name are always moved to {@link #entries} in the order they were added, the
+     * entry in this map is the last one with its name to be moved.
+     */
+    @Nonnull
+    private final Map<String, StoredEntry> uncompressedEntriesByName;
+
+    /**
+     * Number of entries in {@link #uncompressedEntries} with each name. Only names added more than
+     * once need to be checked for ordering by {@link #findNextReadyEntry()}.
+     */
+    @Nonnull
+    private final Multiset<String> uncompressedNameCounts;
+
+    /**
+     * Total uncompressed size of all entries in {@link #uncompressedEntries}.
+     */
+    private long uncompressedBytes;
+
+    /**
+     * Maximum value of {@link #uncompressedBytes} before {@link #add(String, InputStream, boolean)}
+     * blocks waiting for compression.
+     */
+    private final long maxCompressingBytes;
+
+    /**
+     * Maximum number of entries in {@link #uncompressedEntries} before
+     * {@link #add(String, InputStream, boolean)} blocks waiting for compression.
+     */
+    private final int maxCompressingEntries;
+
+    /**
+     * Should entries be moved from {@link #uncompressedEntries} to {@link #entries} in the order
+     * their compression finishes instead of the order they were added?
+     */
+    private final boolean processEntriesInCompletionOrder;
+
+    /**
+     * Should files that are equal to the entries they would replace be skipped? See
+     * {@link ZFileOptions#setSkipUnchangedFiles(boolean)}.
+     */
+    private final boolean skipUnchangedFiles;
+
+    /**
+     * Are new entries always placed after the last entry? See
+     * {@link ZFileOptions#setAppendOnly(boolean)}.
+     */
+    private final boolean appendOnly;
+
+    /**
+     * Fraction of the zip that may be dead space in append-only mode before the zip is compacted.
+     */
+    private final double maxDeadSpaceRatio;
+
+    /**
+     * Lock held by {@link #addConcurrently(String, InputStream, boolean)} when changing the
+     * state of the file.
+     */
+    @Nonnull
+    private final Object concurrentAddLock;
+
+    /**
+     * Monitor notified whenever the compression of an entry in {@link #uncompressedEntries}
+     * completes. Used to wait for any entry, instead of only the first one, when
+     * {@link #processEntriesInCompletionOrder} is set.
+     */
+    @Nonnull
+    private final Object compressionDone;
 
     /**
      * Current state of the zip file.
@@ -389,6 +545,13 @@ public class ZFile implements Closeable {
      */
     private boolean autoSortFiles;
 
+    /**
+     * Order of entries when sorting, as configured. Entries that it considers equal are sorted by
+     * name.
+     */
+    @Nonnull
+    private final Comparator<StoredEntry> entryOrder;
+
     /**
      * Verify log factory to use.
      */
@@ -401,6 +564,31 @@ public class ZFile implements Closeable {
     @Nonnull
     private final VerifyLog verifyLog;
 
+    /**
+     * Should entries be written to disk as soon as they are added?
+     */
+    private final boolean writeEntriesEagerly;
+
+    /**
+     * Should eager writes be done in a background thread?
+     */
+    private final boolean writeEntriesInBackground;
+
+    /**
+     * Executor that performs background writes. Created when the first background write is
+     * started and shut down when the file is closed. {@code null} if there is no executor.
+     */
+    @Nullable
+    private ExecutorService backgroundWriter;
+
+    /**
+     * Background writes that have been started, but whose entries have not yet been updated to
+     * read their data from the zip file. Writes are kept in the order they were started, which is
+     * also the order in which they finish.
+     */
+    @Nonnull
+    private final Map<StoredEntry, BackgroundWrite> backgroundWrites;
+
     /**
      * This field contains the comment in the zip's EOCD if there is no in-memory EOCD structure.
      * This may happen, for example, if the zip has been changed and the Central Directory and
@@ -419,6 +607,14 @@ public class ZFile implements Closeable {
      */
     private boolean readOnly;
 
+    /**
+     * Compact table with the entries read from the zip, used instead of {@link #entries} in
+     * read-only mode. {@code null} if the zip is not in read-only mode or has no central
+     * directory.
+     */
+    @Nullable
+    private EntryTable entryTable;
+
 
     /**
      * Creates a new zip file. If the zip file does not exist, then no file is created at this
@@ -461,7 +657,72 @@ public class ZFile implements Closeable {
      */
     public ZFile(@Nonnull File file, @Nonnull ZFileOptions options, boolean readOnly)
             throws IOException {
-        this.file = file;
+        this(file.toPath(), options, readOnly);
+    }
+
+    /**
+     * Creates a new zip file. If the zip file does not exist, then no file is created at this
+     * point and {@code ZFile} will contain an empty structure. However, an (empty) zip file will
+     * be created if either {@link #update()} or {@link #close()} are used. If a zip file exists,
+     * it will be parsed and read.
+     *
+     * <p>The path may be in any file system whose provider can open a {@link FileChannel} on it.
+     * This allows, for example, building short-lived archives in an in-memory file system instead
+     * of on disk.
+     *
+     * @param path the zip file
+     * @param options configuration options
+     * @throws IOException some file exists but could not be read
+     */
+    public ZFile(@Nonnull Path path, @Nonnull ZFileOptions options) throws IOException {
+        this(path, options, false);
+    }
+
+    /**
+     * Creates a new zip file. If the zip file does not exist, then no file is created at this
+     * point and {@code ZFile} will contain an empty structure. However, an (empty) zip file will
+     * be created if either {@link #update()} or {@link #close()} are used. If a zip file exists,
+     * it will be parsed and read.
+     *
+     * <p>The path may be in any file system whose provider can open a {@link FileChannel} on it.
+     *
+     * <p>In read-only mode, entries are kept in a compact table and {@link StoredEntry} objects
+     * are only created for the entries that are used, which greatly reduces memory use for zips
+     * with many entries.
+     *
+     * @param path the zip file
+     * @param options configuration options
+     * @param readOnly should the file be open in read-only mode? If {@code true} then the file must
+     * exist and no methods can be invoked that could potentially change the file
+     * @throws IOException some file exists but could not be read
+     */
+    public ZFile(@Nonnull Path path, @Nonnull ZFileOptions options, boolean readOnly)
+            throws IOException {
+        this(path, null, options, readOnly);
+    }
+
+    /**
+     * Creates a new zip file, possibly nested in another zip.
+     *
+     * @param path the zip file
+     * @param nestedChannelFactory if not {@code null}, the zip is read from the channels created
+     * by this factory instead of from {@code path}; the zip must then be open in read-only mode
+     * @param options configuration options
+     * @param readOnly should the file be open in read-only mode?
+     * @throws IOException some file exists but could not be read
+     */
+    private ZFile(
+            @Nonnull Path path,
+            @Nullable Supplier<FileChannel> nestedChannelFactory,
+            @Nonnull ZFileOptions options,
+            boolean readOnly)
+            throws IOException {
+        Preconditions.checkArgument(
+                nestedChannelFactory == null || readOnly, "Nested zips must be read-only");
+
+        this.path = path;
+        this.nestedChannelFactory = nestedChannelFactory;
+        knownZeroAreas = TreeRangeSet.create();
         map = new FileUseMap(
                 0,
                 options.getCoverEmptySpaceUsingExtraField()
@@ -478,16 +739,26 @@ public class ZFile implements Closeable {
         compressor = options.getCompressor();
         coverEmptySpaceUsingExtraField = options.getCoverEmptySpaceUsingExtraField();
         autoSortFiles = options.getAutoSortFiles();
+        entryOrder = options.getEntryOrder();
         verifyLogFactory = options.getVerifyLogFactory();
         verifyLog = verifyLogFactory.get();
+        writeEntriesInBackground = options.getWriteEntriesInBackground();
+        writeEntriesEagerly = options.getWriteEntriesEagerly() || writeEntriesInBackground;
+        backgroundWrites = new LinkedHashMap<>();
+        maxCompressingBytes = options.getMaxCompressingBytes();
+        maxCompressingEntries = options.getMaxCompressingEntries();
+        processEntriesInCompletionOrder = options.getProcessEntriesInCompletionOrder();
+        skipUnchangedFiles = options.getSkipUnchangedFiles();
+        appendOnly = options.getAppendOnly();
+        maxDeadSpaceRatio = options.getMaxDeadSpaceRatio();
 
         /*
          * These two values will be overwritten by openReadOnly() below if the file exists.
          */
         state = ZipFileState.CLOSED;
-        raf = null;
+        channel = null;
 
-        if (file.exists()) {
+        if (nestedChannelFactory != null || java.nio.file.Files.exists(path)) {
             openReadOnly();
         } else if (readOnly) {
             throw new IOException("File does not exist but read-only mode requested");
@@ -496,17 +767,16 @@ public class ZFile implements Closeable {
         }
 
         entries = Maps.newHashMap();
-        uncompressedEntries = Lists.newArrayList();
+        uncompressedEntries = Sets.newLinkedHashSet();
+        uncompressedEntriesByName = Maps.newHashMap();
+        uncompressedNameCounts = HashMultiset.create();
+        concurrentAddLock = new Object();
+        compressionDone = new Object();
         extraDirectoryOffset = 0;
 
         try {
             if (state != ZipFileState.CLOSED) {
-                long rafSize = raf.length();
-                if (rafSize > Integer.MAX_VALUE) {
-                    throw new IOException("File exceeds size limit of " + Integer.MAX_VALUE + ".");
-                }
-
-                map.extend(Ints.checkedCast(rafSize));
+                map.extend(channel.size());
                 readData();
             }
 
@@ -519,13 +789,11 @@ public class ZFile implements Closeable {
             if (state != ZipFileState.CLOSED) {
                 notify(ZFileExtension::open);
             }
-        } catch (Zip64NotSupportedException e) {
-            throw e;
         } catch (IOException e) {
-            throw new IOException("Failed to read zip file '" + file.getAbsolutePath() + "'.", e);
+            throw new IOException("Failed to read zip file '" + path.toAbsolutePath() + "'.", e);
         } catch (IllegalStateException | IllegalArgumentException | VerifyException e) {
             throw new RuntimeException(
-                    "Internal error when trying to read zip file '" + file.getAbsolutePath() + "'.",
+                    "Internal error when trying to read zip file '" + path.toAbsolutePath() + "'.",
                     e);
         }
     }
@@ -534,27 +802,60 @@ public class ZFile implements Closeable {
      * Obtains all entries in the file. Entries themselves may be or not written in disk. However,
      * all of them can be open for reading.
      *
+     * <p>The returned set is a copy that is not affected by later changes to the zip. Use
+     * {@link #entriesView()} to iterate over the entries without copying them.
+     *
      * @return all entries in the zip
      */
     @Nonnull
     public Set<StoredEntry> entries() {
-        Map<String, StoredEntry> entries = Maps.newHashMap();
+        return Sets.newHashSet(entriesView());
+    }
 
-        for (FileUseMapEntry<StoredEntry> mapEntry : this.entries.values()) {
-            StoredEntry entry = mapEntry.getStore();
-            assert entry != null;
-            entries.put(entry.getCentralDirectoryHeader().getName(), entry);
+    /**
+     * Obtains a read-only view of all entries in the file. The view reflects changes made to the
+     * zip, but it must not be iterated while the zip is being changed, <i>e.g.</i>, the zip must
+     * not be changed from within a loop over the view. Use {@link #entries()} for that.
+     *
+     * @return all entries in the zip
+     */
+    @Nonnull
+    public Collection<StoredEntry> entriesView() {
+        if (entryTable != null) {
+            return entryTable.entries();
         }
 
-        /*
-         * mUncompressed may override mEntriesReady as we may not have yet processed all
-         * entries.
-         */
-        for (StoredEntry uncompressed : uncompressedEntries) {
-            entries.put(uncompressed.getCentralDirectoryHeader().getName(), uncompressed);
-        }
+        return new AbstractCollection<StoredEntry>() {
+            @Nonnull
+            @Override
+            public Iterator<StoredEntry> iterator() {
+                /*
+                 * Entries not yet compressed override the entries with the same name.
+                 */
+                Iterator<StoredEntry> ready =
+                        Iterators.transform(
+                                Iterators.filter(
+                                        entries.entrySet().iterator(),
+                                        e -> !uncompressedEntriesByName.containsKey(e.getKey())),
+                                e -> e.getValue().getStore());
+                return Iterators.unmodifiableIterator(
+                        Iterators.concat(
+                                ready,
+                                uncompressedEntriesByName.values().iterator()));
+            }
+
+            @Override
+            public int size() {
+                int size = entries.size();
+                for (String name : uncompressedEntriesByName.keySet()) {
+                    if (!entries.containsKey(name)) {
+                        size++;
+                    }
+                }
 
-        return Sets.newHashSet(entries.values());
+                return size;
+            }
+        };
     }
 
     /**
@@ -566,13 +867,15 @@ public class ZFile implements Closeable {
     @Nullable
     public StoredEntry get(@Nonnull String path) {
         /*
-         * The latest entries are the last ones in uncompressed and they may eventually override
-         * files in entries.
+         * Entries not yet compressed may eventually override files in entries.
          */
-        for (StoredEntry stillUncompressed : Lists.reverse(uncompressedEntries)) {
-            if (stillUncompressed.getCentralDirectoryHeader().getName().equals(path)) {
-                return stillUncompressed;
-            }
+        StoredEntry stillUncompressed = uncompressedEntriesByName.get(path);
+        if (stillUncompressed != null) {
+            return stillUncompressed;
+        }
+
+        if (entryTable != null) {
+            return entryTable.get(path);
         }
 
         FileUseMapEntry<StoredEntry> found = entries.get(path);
@@ -591,7 +894,7 @@ public class ZFile implements Closeable {
      */
     private void readData() throws IOException {
         Preconditions.checkState(state != ZipFileState.CLOSED, "state == ZipFileState.CLOSED");
-        Preconditions.checkState(raf != null, "raf == null");
+        Preconditions.checkState(channel != null, "channel == null");
 
         readEocd();
         readCentralDirectory();
@@ -602,7 +905,11 @@ public class ZFile implements Closeable {
         long entryEndOffset;
         long directoryStartOffset;
 
-        if (directoryEntry != null) {
+        if (directoryEntry != null && directoryEntry.getStore().getEntryTable() != null) {
+            entryTable = directoryEntry.getStore().getEntryTable();
+            entryEndOffset = checkEntryTableLayout(entryTable);
+            directoryStartOffset = directoryEntry.getStart();
+        } else if (directoryEntry != null) {
             CentralDirectory directory = directoryEntry.getStore();
             assert directory != null;
 
@@ -684,9 +991,7 @@ public class ZFile implements Closeable {
              * No directory means an empty zip file. Use the start of the EOCD to compute
              * an existing offset.
              */
-            Verify.verifyNotNull(eocdEntry);
-            assert eocdEntry != null;
-            directoryStartOffset = eocdEntry.getStart();
+            directoryStartOffset = getDirectoryLimit();
             entryEndOffset = 0;
         }
 
@@ -700,113 +1005,270 @@ public class ZFile implements Closeable {
     }
 
     /**
-     * Finds the EOCD marker and reads it. It will populate the {@link #eocdEntry} variable.
+     * Verifies that the entries in an {@link EntryTable} do not overlap each other nor the
+     * central directory and EOCD. This is the same verification {@link #readData()} does for
+     * entries kept in {@link #entries}, without adding the entries to the {@link #map}.
      *
-     * @throws IOException failed to read the EOCD
+     * @param table the table
+     * @return the offset where the last entry ends
+     * @throws IOException some entries overlap
      */
-    private void readEocd() throws IOException {
-        Preconditions.checkState(state != ZipFileState.CLOSED, "state == ZipFileState.CLOSED");
-        Preconditions.checkState(raf != null, "raf == null");
+    private long checkEntryTableLayout(@Nonnull EntryTable table) throws IOException {
+        long entryEndOffset = 0;
+        int lastEnding = -1;
+        for (int index : table.indexesByOffset()) {
+            long start = table.getOffset(index);
+            long end = start + table.getInFileSize(index);
+
+            Verify.verify(start >= 0, "start < 0");
+            Verify.verify(end < map.size(), "end >= map.size()");
+
+            String overlappingEntryDescription = null;
+            if (lastEnding != -1 && entryEndOffset > start) {
+                overlappingEntryDescription = describeTableEntry(table, lastEnding);
+            } else {
+                FileUseMapEntry<?> found = map.at(start);
+                Verify.verifyNotNull(found);
+                if (!found.isFree() || found.getEnd() < end) {
+                    if (found.isFree()) {
+                        found = map.after(found);
+                        Verify.verify(found != null && !found.isFree());
+                    }
 
-        /*
-         * Read the last part of the zip into memory. If we don't find the EOCD signature by then,
-         * the file is corrupt.
-         */
-        int lastToRead = LAST_BYTES_TO_READ;
-        if (lastToRead > raf.length()) {
-            lastToRead = Ints.checkedCast(raf.length());
+                    overlappingEntryDescription =
+                            "Central Directory / EOCD: "
+                                    + found.getStart()
+                                    + " - "
+                                    + found.getEnd();
+                }
+            }
+
+            if (overlappingEntryDescription != null) {
+                throw new IOException(
+                        "Cannot read entry "
+                                + describeTableEntry(table, index)
+                                + " because it overlaps with "
+                                + overlappingEntryDescription);
+            }
+
+            if (end > entryEndOffset) {
+                entryEndOffset = end;
+                lastEnding = index;
+            }
         }
 
-        byte[] last = new byte[lastToRead];
-        directFullyRead(raf.length() - lastToRead, last);
+        return entryEndOffset;
+    }
+
+    /**
+     * Obtains a description of an entry in an {@link EntryTable} for error messages.
+     *
+     * @param table the table
+     * @param index the entry's index in the table
+     * @return the description
+     */
+    @Nonnull
+    private static String describeTableEntry(@Nonnull EntryTable table, int index) {
+        return String.format(
+                "'%s' (offset: %d, size: %d)",
+                table.getName(index),
+                table.getOffset(index),
+                table.getInFileSize(index));
+    }
 
+    /**
+     * Finds the EOCD marker and reads it. It will populate the {@link #eocdEntry} variable.
+     *
+     * @throws IOException failed to read the EOCD
+     */
+    private void readEocd() throws IOException {
+        Preconditions.checkState(state != ZipFileState.CLOSED, "state == ZipFileState.CLOSED");
+        Preconditions.checkState(channel != null, "channel == null");
 
         /*
-         * Start endIdx at the first possible location where the signature can be located and then
-         * move backwards. Because the EOCD must have at least MIN_EOCD size, the first byte of the
-         * signature (and first byte of the EOCD) must be located at last.length - MIN_EOCD_SIZE.
+         * Read the last part of the zip into memory, reading more at each stage if the EOCD is not
+         * found. If we don't find the EOCD signature after the last stage, the file is corrupt.
+         *
+         * In each stage, endIdx starts at the first possible location where the signature can be
+         * located that was not searched in a previous stage and then moves backwards. Because the
+         * EOCD must have at least MIN_EOCD size, the first byte of the signature (and first byte
+         * of the EOCD) must be located at most at last.length - MIN_EOCD_SIZE.
          *
          * Because the EOCD signature may exist in the file comment, when we find a signature we
          * will try to read the Eocd. If we fail, we continue searching for the signature. However,
          * we will keep the last exception in case we don't find any signature.
          */
+        long fileSize = channel.size();
+        byte[] last = new byte[0];
+        long lastStart = fileSize;
+        long searchedFrom = fileSize - MIN_EOCD_SIZE + 1;
+
         Eocd eocd = null;
         int foundEocdSignature = -1;
         IOException errorFindingSignature = null;
-        int eocdStart = -1;
-
-        for (int endIdx = last.length - MIN_EOCD_SIZE; endIdx >= 0 && foundEocdSignature == -1;
-                endIdx--) {
-            /*
-             * Remember: little endian...
-             */
-            if (last[endIdx] == EOCD_SIGNATURE[3]
-                    && last[endIdx + 1] == EOCD_SIGNATURE[2]
-                    && last[endIdx + 2] == EOCD_SIGNATURE[1]
-                    && last[endIdx + 3] == EOCD_SIGNATURE[0]) {
-
+        long eocdStart = -1;
+
+        for (int stage = 0;
+                stage < EOCD_SEARCH_STAGES.length
+                        && foundEocdSignature == -1
+                        && last.length < fileSize;
+                stage++) {
+            int lastToRead = Ints.checkedCast(Math.min(EOCD_SEARCH_STAGES[stage], fileSize));
+            last = new byte[lastToRead];
+            lastStart = fileSize - lastToRead;
+            directFullyRead(lastStart, last);
+
+            int firstIdx = Ints.checkedCast(
+                    Math.min(last.length - MIN_EOCD_SIZE, searchedFrom - 1 - lastStart));
+            for (int endIdx = firstIdx; endIdx >= 0 && foundEocdSignature == -1; endIdx--) {
                 /*
-                 * We found a signature. Try to read the EOCD record.
+                 * Remember: little endian...
                  */
-
-                foundEocdSignature = endIdx;
-                ByteBuffer eocdBytes =
-                        ByteBuffer.wrap(last, foundEocdSignature, last.length - foundEocdSignature);
-
-                try {
-                    eocd = new Eocd(eocdBytes);
-                    eocdStart = Ints.checkedCast(raf.length() - lastToRead + foundEocdSignature);
+                if (last[endIdx] == EOCD_SIGNATURE[3]
+                        && last[endIdx + 1] == EOCD_SIGNATURE[2]
+                        && last[endIdx + 2] == EOCD_SIGNATURE[1]
+                        && last[endIdx + 3] == EOCD_SIGNATURE[0]) {
 
                     /*
-                     * Make sure the EOCD takes the whole file up to the end. Log an error if it
-                     * doesn't.
+                     * We found a signature. Try to read the EOCD record.
                      */
-                    if (eocdStart + eocd.getEocdSize() != raf.length()) {
-                        verifyLog.log("EOCD starts at "
-                                        + eocdStart
-                                        + " and has "
-                                        + eocd.getEocdSize()
-                                        + " bytes, but file ends at "
-                                        + raf.length()
-                                        + ".");
-                    }
-                } catch (IOException e) {
-                    if (errorFindingSignature != null) {
-                        e.addSuppressed(errorFindingSignature);
-                    }
 
-                    errorFindingSignature = e;
-                    foundEocdSignature = -1;
-                    eocd = null;
+                    foundEocdSignature = endIdx;
+                    ByteBuffer eocdBytes =
+                            ByteBuffer.wrap(
+                                    last, foundEocdSignature, last.length - foundEocdSignature);
+
+                    try {
+                        eocd = new Eocd(eocdBytes);
+                        eocdStart = lastStart + foundEocdSignature;
+
+                        /*
+                         * Make sure the EOCD takes the whole file up to the end. Log an error if
+                         * it doesn't.
+                         */
+                        if (eocdStart + eocd.getEocdSize() != fileSize) {
+                            verifyLog.log("EOCD starts at "
+                                            + eocdStart
+                                            + " and has "
+                                            + eocd.getEocdSize()
+                                            + " bytes, but file ends at "
+                                            + fileSize
+                                            + ".");
+                        }
+                    } catch (IOException e) {
+                        if (errorFindingSignature != null) {
+                            e.addSuppressed(errorFindingSignature);
+                        }
+
+                        errorFindingSignature = e;
+                        foundEocdSignature = -1;
+                        eocd = null;
+                    }
                 }
             }
+
+            searchedFrom = lastStart;
         }
 
         if (foundEocdSignature == -1) {
             throw new IOException("EOCD signature not found in the last "
-                    + lastToRead + " bytes of the file.", errorFindingSignature);
+                    + last.length + " bytes of the file.", errorFindingSignature);
         }
 
         Verify.verify(eocdStart >= 0);
 
         /*
-         * Look for the Zip64 central directory locator. If we find it, then this file is a Zip64
-         * file and we do not support it.
+         * Look for the Zip64 EOCD locator. If we find it, then this file is a Zip64 file and the
+         * actual central directory information is in the Zip64 EOCD record. The locator is
+         * usually already in the data we have read.
          */
-        int zip64LocatorStart = eocdStart - ZIP64_EOCD_LOCATOR_SIZE;
+        long zip64LocatorStart = eocdStart - Zip64Eocd.LOCATOR_SIZE;
         if (zip64LocatorStart >= 0) {
-            byte[] possibleZip64Locator = new byte[4];
-            directFullyRead(zip64LocatorStart, possibleZip64Locator);
-            if (LittleEndianUtils.readUnsigned4Le(ByteBuffer.wrap(possibleZip64Locator)) ==
-                    ZIP64_EOCD_LOCATOR_SIGNATURE) {
-                throw new Zip64NotSupportedException(
-                        "Zip64 EOCD locator found but Zip64 format is not supported.");
+            ByteBuffer locatorBytes;
+            if (zip64LocatorStart >= lastStart) {
+                locatorBytes =
+                        ByteBuffer.wrap(
+                                last,
+                                Ints.checkedCast(zip64LocatorStart - lastStart),
+                                Zip64Eocd.LOCATOR_SIZE)
+                                .slice();
+            } else {
+                byte[] possibleZip64Locator = new byte[Zip64Eocd.LOCATOR_SIZE];
+                directFullyRead(zip64LocatorStart, possibleZip64Locator);
+                locatorBytes = ByteBuffer.wrap(possibleZip64Locator);
+            }
+
+            if (Zip64Eocd.isLocator(locatorBytes)) {
+                Zip64Eocd zip64Eocd = readZip64Eocd(locatorBytes, zip64LocatorStart);
+                eocd = new Eocd(eocd, zip64Eocd);
             }
         }
 
         eocdEntry = map.add(eocdStart, eocdStart + eocd.getEocdSize(), eocd);
     }
 
+    /**
+     * Reads the Zip64 EOCD record and populates the {@link #zip64EocdEntry} variable.
+     *
+     * @param locatorBytes the data of the Zip64 EOCD locator
+     * @param locatorStart the offset of the Zip64 EOCD locator in the file
+     * @return the Zip64 EOCD
+     * @throws IOException failed to read the Zip64 EOCD record or the locator
+     */
+    @Nonnull
+    private Zip64Eocd readZip64Eocd(@Nonnull ByteBuffer locatorBytes, long locatorStart)
+            throws IOException {
+        long recordStart = Zip64Eocd.readLocator(locatorBytes);
+        if (recordStart > locatorStart - Zip64Eocd.FIXED_RECORD_SIZE) {
+            throw new IOException("Zip64 EOCD locator states the Zip64 EOCD record starts at "
+                    + recordStart + " but the locator starts at " + locatorStart + ".");
+        }
+
+        byte[] fixedRecord = new byte[Zip64Eocd.FIXED_RECORD_SIZE];
+        directFullyRead(recordStart, fixedRecord);
+        long recordSize = Zip64Eocd.readRecordSize(ByteBuffer.wrap(fixedRecord));
+        if (recordSize < Zip64Eocd.FIXED_RECORD_SIZE
+                || recordStart + recordSize > locatorStart) {
+            throw new IOException("Zip64 EOCD record at " + recordStart + " has " + recordSize
+                    + " bytes but the locator starts at " + locatorStart + ".");
+        }
+
+        /*
+         * Make sure the record is immediately before the locator. Log an error if it isn't.
+         */
+        if (recordStart + recordSize != locatorStart) {
+            verifyLog.log("Zip64 EOCD record starts at "
+                    + recordStart
+                    + " and has "
+                    + recordSize
+                    + " bytes, but the locator starts at "
+                    + locatorStart
+                    + ".");
+        }
+
+        byte[] record = new byte[Ints.checkedCast(recordSize)];
+        directFullyRead(recordStart, record);
+        Zip64Eocd zip64Eocd = new Zip64Eocd(ByteBuffer.wrap(record), recordStart);
+        zip64EocdEntry = map.add(recordStart, locatorStart + Zip64Eocd.LOCATOR_SIZE, zip64Eocd);
+        return zip64Eocd;
+    }
+
+    /**
+     * Obtains the offset in the file up to which the central directory may extend. This is the
+     * start of the Zip64 EOCD record, if there is one, or the start of the EOCD.
+     *
+     * @return the offset
+     */
+    private long getDirectoryLimit() {
+        Preconditions.checkNotNull(eocdEntry, "eocdEntry == null");
+
+        if (zip64EocdEntry != null) {
+            return zip64EocdEntry.getStart();
+        }
+
+        return eocdEntry.getStart();
+    }
+
     /**
      * Reads the zip's central directory and populates the {@link #directoryEntry} variable. This
      * method can only be called after the EOCD has been read. If the central directory is empty
@@ -819,24 +1281,21 @@ public class ZFile implements Closeable {
         Preconditions.checkNotNull(eocdEntry, "eocdEntry == null");
         Preconditions.checkNotNull(eocdEntry.getStore(), "eocdEntry.getStore() == null");
         Preconditions.checkState(state != ZipFileState.CLOSED, "state == ZipFileState.CLOSED");
-        Preconditions.checkState(raf != null, "raf == null");
+        Preconditions.checkState(channel != null, "channel == null");
         Preconditions.checkState(directoryEntry == null, "directoryEntry != null");
 
         Eocd eocd = eocdEntry.getStore();
 
         long dirSize = eocd.getDirectorySize();
-        if (dirSize > Integer.MAX_VALUE) {
-            throw new IOException("Cannot read central directory with size " + dirSize + ".");
-        }
-
+        long directoryLimit = getDirectoryLimit();
         long centralDirectoryEnd = eocd.getDirectoryOffset() + dirSize;
-        if (centralDirectoryEnd != eocdEntry.getStart()) {
+        if (centralDirectoryEnd != directoryLimit) {
             String msg = "Central directory is stored in ["
                     + eocd.getDirectoryOffset()
                     + " - "
                     + (centralDirectoryEnd - 1)
                     + "] and EOCD starts at "
-                    + eocdEntry.getStart()
+                    + directoryLimit
                     + ".";
 
             /*
@@ -844,21 +1303,19 @@ public class ZFile implements Closeable {
              * logging an error. If the central directory ends after the start of the EOCD (and
              * therefore, they overlap), throw an exception.
              */
-            if (centralDirectoryEnd > eocdEntry.getSize()) {
+            if (centralDirectoryEnd > directoryLimit) {
                 throw new IOException(msg);
             } else {
                 verifyLog.log(msg);
             }
         }
 
-        byte[] directoryData = new byte[Ints.checkedCast(dirSize)];
-        directFullyRead(eocd.getDirectoryOffset(), directoryData);
-
         CentralDirectory directory =
-                CentralDirectory.makeFromData(
-                        ByteBuffer.wrap(directoryData),
-                        eocd.getTotalRecords(),
-                        this);
+                CentralDirectory.makeFromFile(
+                        this,
+                        eocd.getDirectoryOffset(),
+                        dirSize,
+                        eocd.getTotalRecords());
         if (eocd.getDirectorySize() > 0) {
             directoryEntry = map.add(
                     eocd.getDirectoryOffset(),
@@ -882,10 +1339,10 @@ public class ZFile implements Closeable {
     @Nonnull
     public InputStream directOpen(final long start, final long end) throws IOException {
         Preconditions.checkState(state != ZipFileState.CLOSED, "state == ZipFileState.CLOSED");
-        Preconditions.checkState(raf != null, "raf == null");
+        Preconditions.checkState(channel != null, "channel == null");
         Preconditions.checkArgument(start >= 0, "start < 0");
         Preconditions.checkArgument(end >= start, "end < start");
-        Preconditions.checkArgument(end <= raf.length(), "end > raf.length()");
+        Preconditions.checkArgument(end <= channel.size(), "end > channel.size()");
 
         return new InputStream() {
             private long mCurr = start;
@@ -955,6 +1412,7 @@ public class ZFile implements Closeable {
 
         dirty = true;
 
+        waitForBackgroundWrite(entry);
         map.remove(mapEntry);
         entries.remove(path);
 
@@ -963,6 +1421,15 @@ public class ZFile implements Closeable {
         }
     }
 
+    /**
+     * Checks whether the file is in read-only mode.
+     *
+     * @return is the file in read-only mode?
+     */
+    boolean isReadOnly() {
+        return readOnly;
+    }
+
     /**
      * Checks that the file is not in read-only mode.
      *
@@ -995,6 +1462,7 @@ public class ZFile implements Closeable {
          * Process all background stuff that may be leftover by the extensions.
          */
         processAllReadyEntriesWithWait();
+        completeBackgroundWrites(true);
 
 
         if (!dirty) {
@@ -1011,6 +1479,7 @@ public class ZFile implements Closeable {
         if (autoSortFiles) {
             sortZipContents();
         } else {
+            compactIfNecessary();
             packIfNecessary();
         }
 
@@ -1135,14 +1604,22 @@ public class ZFile implements Closeable {
             toWriteToStore.put(freeArea, null);
         }
 
+        /*
+         * In append-only mode, dead space in the part of the zip already on disk keeps its old
+         * contents so that the file is not changed before the first entry that is written.
+         */
+        Verify.verifyNotNull(channel);
+        long keepDeadSpaceUntil = appendOnly ? channel.size() : 0;
+
         /*
          * Write everything to file.
          */
         for (FileUseMapEntry<?> fileUseMapEntry : toWriteToStore.keySet()) {
             StoredEntry entry = toWriteToStore.get(fileUseMapEntry);
             if (entry == null) {
-                int size = Ints.checkedCast(fileUseMapEntry.getSize());
-                directWrite(fileUseMapEntry.getStart(), new byte[size]);
+                long end = fileUseMapEntry.getEnd();
+                long start = Math.max(fileUseMapEntry.getStart(), keepDeadSpaceUntil);
+                writeZeros(Math.min(start, end), end);
             } else {
                 writeEntry(entry, fileUseMapEntry.getStart());
             }
@@ -1170,8 +1647,9 @@ public class ZFile implements Closeable {
         appendCentralDirectory();
         appendEocd();
 
-        Verify.verifyNotNull(raf);
-        raf.setLength(map.size());
+        Verify.verifyNotNull(channel);
+        channel.truncate(map.size());
+        knownZeroAreas.remove(Range.atLeast(map.size()));
 
         dirty = false;
 
@@ -1210,8 +1688,7 @@ public class ZFile implements Closeable {
                 continue;
             }
 
-            int localExtraSize =
-                    storedEntry.getLocalExtra().size() + Ints.checkedCast(before.getSize());
+            long localExtraSize = storedEntry.getLocalExtra().size() + before.getSize();
             if (localExtraSize > MAX_LOCAL_EXTRA_FIELD_CONTENTS_SIZE) {
                 /*
                  * This entry is too far from the previous one. Remove it and re-add it to the
@@ -1223,21 +1700,72 @@ public class ZFile implements Closeable {
     }
 
     /**
-     * Removes a stored entry from the zip and adds it back again. This will force the entry to be
-     * loaded into memory and repositioned in the zip file. It will also mark the archive as
-     * being dirty.
+     * In append-only mode, compacts the zip if the dead space in the zip exceeds the configured
+     * ratio of the zip's size. Compacting moves all entries after the first free area down so
+     * that no free areas are left, except those required by alignment. Entries before the first
+     * free area are not moved.
      *
-     * @param entry the entry
-     * @param positionHint hint to where the file should be positioned when re-adding
-     * @throws IOException failed to load the entry into memory
+     * @throws IOException failed to load an entry into memory
      */
-    private void reAdd(@Nonnull StoredEntry entry, @Nonnull PositionHint positionHint)
-            throws IOException {
-        String name = entry.getCentralDirectoryHeader().getName();
-        FileUseMapEntry<StoredEntry> mapEntry = entries.get(name);
-        Preconditions.checkNotNull(mapEntry);
-        Preconditions.checkState(mapEntry.getStore() == entry);
-
+    private void compactIfNecessary() throws IOException {
+        if (!appendOnly) {
+            return;
+        }
+
+        List<FileUseMapEntry<?>> freeAreas = map.getFreeAreas();
+        long deadSpace = 0;
+        for (FileUseMapEntry<?> freeArea : freeAreas) {
+            deadSpace += freeArea.getSize();
+        }
+
+        if (freeAreas.isEmpty() || deadSpace <= maxDeadSpaceRatio * map.size()) {
+            return;
+        }
+
+        long firstFree = freeAreas.get(0).getStart();
+        SortedSet<FileUseMapEntry<StoredEntry>> toMove =
+                new TreeSet<>(FileUseMapEntry.COMPARE_BY_START);
+        for (FileUseMapEntry<StoredEntry> mapEntry : entries.values()) {
+            if (mapEntry.getStart() > firstFree) {
+                toMove.add(mapEntry);
+            }
+        }
+
+        for (FileUseMapEntry<StoredEntry> mapEntry : toMove) {
+            StoredEntry entry = mapEntry.getStore();
+            Preconditions.checkNotNull(entry);
+            waitForBackgroundWrite(entry);
+            entry.loadSourceIntoMemory();
+
+            map.remove(mapEntry);
+        }
+
+        for (FileUseMapEntry<StoredEntry> mapEntry : toMove) {
+            StoredEntry entry = mapEntry.getStore();
+            String name = entry.getCentralDirectoryHeader().getName();
+            entries.put(name, positionInFile(entry, PositionHint.LOWEST_OFFSET));
+        }
+
+        dirty = true;
+    }
+
+    /**
+     * Removes a stored entry from the zip and adds it back again. This will force the entry to be
+     * loaded into memory and repositioned in the zip file. It will also mark the archive as
+     * being dirty.
+     *
+     * @param entry the entry
+     * @param positionHint hint to where the file should be positioned when re-adding
+     * @throws IOException failed to load the entry into memory
+     */
+    private void reAdd(@Nonnull StoredEntry entry, @Nonnull PositionHint positionHint)
+            throws IOException {
+        String name = entry.getCentralDirectoryHeader().getName();
+        FileUseMapEntry<StoredEntry> mapEntry = entries.get(name);
+        Preconditions.checkNotNull(mapEntry);
+        Preconditions.checkState(mapEntry.getStore() == entry);
+
+        waitForBackgroundWrite(entry);
         entry.loadSourceIntoMemory();
 
         map.remove(mapEntry);
@@ -1276,7 +1804,7 @@ public class ZFile implements Closeable {
      */
     @Override
     public void close() throws IOException {
-        // We need to make sure to release raf, otherwise we end up locking the file on
+        // We need to make sure to release the channel, otherwise we end up locking the file on
         // Windows. Use try-with-resources to handle exception suppressing.
         try (Closeable ignored = this::innerClose) {
             if (!readOnly) {
@@ -1302,6 +1830,11 @@ public class ZFile implements Closeable {
             directoryEntry = null;
         }
 
+        if (zip64EocdEntry != null) {
+            map.remove(zip64EocdEntry);
+            zip64EocdEntry = null;
+        }
+
         if (eocdEntry != null) {
             map.remove(eocdEntry);
 
@@ -1325,7 +1858,7 @@ public class ZFile implements Closeable {
         Preconditions.checkArgument(entry.getDataDescriptorType()
                 == DataDescriptorType. NO_DATA_DESCRIPTOR, "Cannot write entries with a data "
                 + "descriptor.");
-        Preconditions.checkNotNull(raf, "raf == null");
+        Preconditions.checkNotNull(channel, "channel == null");
         Preconditions.checkState(state == ZipFileState.OPEN_RW, "state != ZipFileState.OPEN_RW");
 
         /*
@@ -1370,7 +1903,7 @@ public class ZFile implements Closeable {
      */
     private void computeCentralDirectory() throws IOException {
         Preconditions.checkState(state == ZipFileState.OPEN_RW, "state != ZipFileState.OPEN_RW");
-        Preconditions.checkNotNull(raf, "raf == null");
+        Preconditions.checkNotNull(channel, "channel == null");
         Preconditions.checkState(directoryEntry == null, "directoryEntry == null");
 
         Set<StoredEntry> newStored = Sets.newHashSet();
@@ -1404,7 +1937,7 @@ public class ZFile implements Closeable {
      */
     private void appendCentralDirectory() throws IOException {
         Preconditions.checkState(state == ZipFileState.OPEN_RW, "state != ZipFileState.OPEN_RW");
-        Preconditions.checkNotNull(raf, "raf == null");
+        Preconditions.checkNotNull(channel, "channel == null");
 
         if (entries.isEmpty()) {
             Preconditions.checkState(directoryEntry == null, "directoryEntry != null");
@@ -1438,7 +1971,7 @@ public class ZFile implements Closeable {
      */
     @Nonnull
     public byte[] getCentralDirectoryBytes() throws IOException {
-        if (entries.isEmpty()) {
+        if (entries.isEmpty() && entryTable == null) {
             Preconditions.checkState(directoryEntry == null, "directoryEntry != null");
             return new byte[0];
         }
@@ -1451,15 +1984,16 @@ public class ZFile implements Closeable {
     }
 
     /**
-     * Computes the EOCD. This creates a new {@link #eocdEntry}. The
-     * central directory must already be written. If {@link #directoryEntry} is {@code null}, then
-     * the zip file must not have any entries.
+     * Computes the EOCD. This creates a new {@link #eocdEntry} and, if the EOCD cannot hold the
+     * central directory information, a new {@link #zip64EocdEntry}. The central directory must
+     * already be written. If {@link #directoryEntry} is {@code null}, then the zip file must not
+     * have any entries.
      *
      * @throws IOException failed to write the EOCD
      */
     private void computeEocd() throws IOException {
         Preconditions.checkState(state == ZipFileState.OPEN_RW, "state != ZipFileState.OPEN_RW");
-        Preconditions.checkNotNull(raf, "raf == null");
+        Preconditions.checkNotNull(channel, "channel == null");
         if (directoryEntry == null) {
             Preconditions.checkState(entries.isEmpty(),
                     "directoryEntry == null && !entries.isEmpty()");
@@ -1482,6 +2016,18 @@ public class ZFile implements Closeable {
             dirStart = extraDirectoryOffset;
         }
 
+        /*
+         * If the EOCD cannot hold the directory information, add the Zip64 EOCD record and
+         * locator before it.
+         */
+        if (Zip64Eocd.isNeeded(entries.size(), dirStart, dirSize)) {
+            long zip64EocdOffset = map.size();
+            Zip64Eocd zip64Eocd = new Zip64Eocd(entries.size(), dirStart, dirSize, zip64EocdOffset);
+            map.extend(zip64EocdOffset + zip64Eocd.getSize());
+            zip64EocdEntry =
+                    map.add(zip64EocdOffset, zip64EocdOffset + zip64Eocd.getSize(), zip64Eocd);
+        }
+
         Verify.verify(eocdComment != null);
         Eocd eocd = new Eocd(entries.size(), dirStart, dirSize, eocdComment);
         eocdComment = null;
@@ -1495,20 +2041,26 @@ public class ZFile implements Closeable {
     }
 
     /**
-     * Writes the EOCD to the end of the zip file. This creates a new {@link #eocdEntry}. The
-     * central directory must already be written. If {@link #directoryEntry} is {@code null}, then
-     * the zip file must not have any entries.
+     * Writes the EOCD, preceded by the Zip64 EOCD if there is one, to the end of the zip file.
+     * The EOCD must already be computed. The central directory must already be written. If
+     * {@link #directoryEntry} is {@code null}, then the zip file must not have any entries.
      *
      * @throws IOException failed to write the EOCD
      */
     private void appendEocd() throws IOException {
         Preconditions.checkState(state == ZipFileState.OPEN_RW, "state != ZipFileState.OPEN_RW");
-        Preconditions.checkNotNull(raf, "raf == null");
+        Preconditions.checkNotNull(channel, "channel == null");
         Preconditions.checkNotNull(eocdEntry, "eocdEntry == null");
 
         Eocd eocd = eocdEntry.getStore();
         Preconditions.checkNotNull(eocd, "eocd == null");
 
+        if (zip64EocdEntry != null) {
+            Zip64Eocd zip64Eocd = zip64EocdEntry.getStore();
+            Preconditions.checkNotNull(zip64Eocd, "zip64Eocd == null");
+            directWrite(zip64EocdEntry.getStart(), zip64Eocd.toBytes());
+        }
+
         byte[] eocdBytes = eocd.toBytes();
         long eocdOffset = eocdEntry.getStart();
 
@@ -1541,13 +2093,23 @@ public class ZFile implements Closeable {
             return;
         }
 
-        Verify.verifyNotNull(raf, "raf == null");
+        Verify.verifyNotNull(channel, "channel == null");
+
+        try {
+            completeBackgroundWrites(true);
+        } finally {
+            if (backgroundWriter != null) {
+                backgroundWriter.shutdown();
+                backgroundWriter = null;
+            }
+
+            channel.close();
+            channel = null;
+            state = ZipFileState.CLOSED;
+        }
 
-        raf.close();
-        raf = null;
-        state = ZipFileState.CLOSED;
         if (closedControl == null) {
-            closedControl = new CachedFileContents<>(file);
+            closedControl = new CachedFileContents<>(path);
         }
 
         closedControl.closed(null);
@@ -1565,13 +2127,18 @@ public class ZFile implements Closeable {
             return;
         }
 
+        if (nestedChannelFactory != null) {
+            channel = nestedChannelFactory.get();
+        } else {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+
         state = ZipFileState.OPEN_RO;
-        raf = new RandomAccessFile(file, "r");
     }
 
     /**
      * Opens (or reopens) the zip file as read-write. This method will ensure that
-     * {@link #raf} is not null and open for writing.
+     * {@link #channel} is not null and open for writing.
      *
      * @throws IOException failed to open the file, failed to close it or the file was closed and
      * has been modified outside the control of this object
@@ -1587,8 +2154,7 @@ public class ZFile implements Closeable {
         boolean wasClosed;
         if (state == ZipFileState.OPEN_RO) {
             /*
-             * ReadAccessFile does not have a way to reopen as RW so we have to close it and
-             * open it again.
+             * A channel cannot be reopened as RW so we have to close it and open it again.
              */
             innerClose();
             wasClosed = false;
@@ -1597,14 +2163,19 @@ public class ZFile implements Closeable {
         }
 
         Verify.verify(state == ZipFileState.CLOSED, "state != ZpiFileState.CLOSED");
-        Verify.verify(raf == null, "raf != null");
+        Verify.verify(channel == null, "channel != null");
 
         if (closedControl != null && !closedControl.isValid()) {
-            throw new IOException("File '" + file.getAbsolutePath() + "' has been modified "
+            throw new IOException("File '" + path.toAbsolutePath() + "' has been modified "
                     + "by an external application.");
         }
 
-        raf = new RandomAccessFile(file, "rw");
+        channel =
+                FileChannel.open(
+                        path,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE);
         state = ZipFileState.OPEN_RW;
 
         /*
@@ -1640,7 +2211,8 @@ public class ZFile implements Closeable {
      * {@link StoredEntry} object.
      *
      * @param name the name of the entry
-     * @param stream the input stream with the entry's data
+     * @param source the entry's data
+     * @param crc32 the CRC32 of the entry's data
      * @param mayCompress can the entry be compressed?
      * @return the created entry
      * @throws IOException failed to create the entry
@@ -1648,12 +2220,10 @@ public class ZFile implements Closeable {
     @Nonnull
     private StoredEntry makeStoredEntry(
             @Nonnull String name,
-            @Nonnull InputStream stream,
+            @Nonnull CloseableByteSource source,
+            long crc32,
             boolean mayCompress)
             throws IOException {
-        CloseableByteSource source = tracker.fromStream(stream);
-        long crc32 = source.hash(Hashing.crc32()).padToLong();
-
         boolean encodeWithUtf8 = !EncodeUtils.canAsciiEncode(name);
 
         SettableFuture<CentralDirectoryHeaderCompressInfo> compressInfo =
@@ -1701,7 +2271,8 @@ public class ZFile implements Closeable {
             @Nonnull CentralDirectoryHeader newFileData)
             throws IOException {
         if (mayCompress) {
-            ListenableFuture<CompressionResult> result = compressor.compress(source);
+            ListenableFuture<CompressionResult> result =
+                    compressor.compress(newFileData.getName(), source);
             Futures.addCallback(
                     result,
                     new FutureCallback<CompressionResult>() {
@@ -1741,7 +2312,8 @@ public class ZFile implements Closeable {
      * when the {@link #update()} method is invoked.
      *
      * <p>Adding a file with the same name as an existing file will replace that file in the
-     * archive.
+     * archive. If {@link ZFileOptions#setSkipUnchangedFiles(boolean)} is set and the existing file
+     * has the same size and CRC32, the file is not added and the archive is not changed.
      *
      * @param name the file name (<em>i.e.</em>, path); paths should be defined using slashes
      * and the name should not end in slash
@@ -1759,8 +2331,82 @@ public class ZFile implements Closeable {
          * Clean pending background work, if needed.
          */
         processAllReadyEntries();
+        waitForCompressionCapacity();
+
+        CloseableByteSource source = tracker.fromStream(stream);
+        long crc32 = source.hash(Hashing.crc32()).padToLong();
+        if (skipUnchangedFiles && isUnchanged(name, source, crc32, mayCompress)) {
+            source.close();
+            return;
+        }
+
+        add(makeStoredEntry(name, source, crc32, mayCompress));
+    }
+
+    /**
+     * Adds a file to the archive. This method behaves like
+     * {@link #add(String, InputStream, boolean)} but may be invoked by multiple threads at the same
+     * time. The stream is read, its data is checksummed and submitted for compression by the
+     * calling thread without holding any lock, so multiple threads may do this in parallel. Only
+     * placing the entry in the zip and notifying extensions is done while holding a lock, one
+     * thread at a time.
+     *
+     * <p>No other methods of this {@code ZFile} may be invoked while threads are adding files
+     * using this method. Extensions are notified of the additions in the thread that adds the
+     * file, or in the thread that adds a later file if compression is not yet complete.
+     *
+     * <p>Files added concurrently are placed in the zip in the order their additions are
+     * completed. This depends on thread scheduling so, if the zip should not depend on it, use
+     * sorting (see {@link #sortZipContents()} and {@link ZFileOptions#getAutoSortFiles()}).
+     * Limits set by {@link ZFileOptions#setMaxCompressingEntries(int)} and
+     * {@link ZFileOptions#setMaxCompressingBytes(long)} are checked before reading the stream, so
+     * they may be exceeded by at most one file per adding thread.
+     *
+     * @param name the file name (<em>i.e.</em>, path); paths should be defined using slashes
+     * and the name should not end in slash
+     * @param stream the source for the file's data
+     * @param mayCompress can the file be compressed? This flag will be ignored if the alignment
+     * rules force the file to be aligned, in which case the file will not be compressed.
+     * @throws IOException failed to read the source data or failed to add a file whose
+     * compression completed
+     * @throws IllegalStateException if the file is in read-only mode
+     */
+    public void addConcurrently(
+            @Nonnull String name,
+            @Nonnull InputStream stream,
+            boolean mayCompress)
+            throws IOException {
+        synchronized (concurrentAddLock) {
+            checkNotInReadOnlyMode();
+            processAllReadyEntries();
+            waitForCompressionCapacity();
+        }
+
+        CloseableByteSource source = tracker.fromStream(stream);
+        long crc32 = source.hash(Hashing.crc32()).padToLong();
 
-        add(makeStoredEntry(name, stream, mayCompress));
+        if (skipUnchangedFiles) {
+            CompressionMethod sameEntryMethod;
+            synchronized (concurrentAddLock) {
+                sameEntryMethod = findSameEntryMethod(name, source.size(), crc32);
+            }
+
+            /*
+             * Deciding whether the entry would be kept may need to compress the file, which is
+             * done outside the lock.
+             */
+            if (sameEntryMethod != null
+                    && wouldKeepMethod(name, sameEntryMethod, source, mayCompress)) {
+                source.close();
+                return;
+            }
+        }
+
+        StoredEntry newEntry = makeStoredEntry(name, source, crc32, mayCompress);
+
+        synchronized (concurrentAddLock) {
+            add(newEntry);
+        }
     }
 
     /**
@@ -1778,18 +2424,36 @@ public class ZFile implements Closeable {
      * completed now)
      */
     private void add(@Nonnull final StoredEntry newEntry) throws IOException {
+        String name = newEntry.getCentralDirectoryHeader().getName();
         uncompressedEntries.add(newEntry);
+        uncompressedEntriesByName.put(name, newEntry);
+        uncompressedNameCounts.add(name);
+        if (processEntriesInCompletionOrder) {
+            JdkFutureAdapters.listenInPoolThread(
+                            newEntry.getCentralDirectoryHeader().getCompressionInfo())
+                    .addListener(
+                            () -> {
+                                synchronized (compressionDone) {
+                                    compressionDone.notifyAll();
+                                }
+                            },
+                            MoreExecutors.directExecutor());
+        }
+        uncompressedBytes += newEntry.getCentralDirectoryHeader().getUncompressedSize();
         processAllReadyEntries();
     }
 
     /**
      * Moves all ready entries from {@link #uncompressedEntries} to {@link #entries}. It will
-     * stop as soon as entry whose future has not been completed is found.
+     * stop as soon as entry whose future has not been completed is found, unless
+     * {@link #processEntriesInCompletionOrder} is set. See {@link #findNextReadyEntry()}.
      *
      * @throws IOException the exception reported in the future computation, if any, or failed
      * to add a file to the archive
      */
     private void processAllReadyEntries() throws IOException {
+        completeBackgroundWrites(false);
+
         /*
          * Many things can happen during addToEntries(). Because addToEntries() fires
          * notifications to extensions, other files can be added, removed, etc. Ee are *not*
@@ -1800,18 +2464,14 @@ public class ZFile implements Closeable {
          * because of the extension mechanism. This means that stuff *can* be removed from
          * uncompressedEntries and moved to entries during addToEntries().
          */
-        while (!uncompressedEntries.isEmpty()) {
-            StoredEntry next = uncompressedEntries.get(0);
+        StoredEntry next;
+        while ((next = findNextReadyEntry()) != null) {
+            uncompressedEntries.remove(next);
             CentralDirectoryHeader cdh = next.getCentralDirectoryHeader();
+            uncompressedEntriesByName.remove(cdh.getName(), next);
+            uncompressedNameCounts.remove(cdh.getName());
             Future<CentralDirectoryHeaderCompressInfo> compressionInfo = cdh.getCompressionInfo();
-            if (!compressionInfo.isDone()) {
-                /*
-                 * First entry in queue is not yet complete. We can't do anything else.
-                 */
-                return;
-            }
-
-            uncompressedEntries.remove(0);
+            uncompressedBytes -= cdh.getUncompressedSize();
 
             try {
                 compressionInfo.get();
@@ -1826,6 +2486,65 @@ public class ZFile implements Closeable {
         }
     }
 
+    /**
+     * Finds the next entry in {@link #uncompressedEntries} that can be moved to {@link #entries}.
+     * If {@link #processEntriesInCompletionOrder} is not set, this is the first entry if its
+     * compression is complete. Otherwise, it is the first entry whose compression is complete and
+     * that does not have the same name as an earlier entry whose compression is not complete. The
+     * latter guarantees that files with the same name replace each other in the order they were
+     * added.
+     *
+     * @return the entry in {@link #uncompressedEntries} or {@code null} if no entry can be moved
+     */
+    @Nullable
+    private StoredEntry findNextReadyEntry() {
+        Set<String> pendingNames = null;
+        for (StoredEntry entry : uncompressedEntries) {
+            CentralDirectoryHeader cdh = entry.getCentralDirectoryHeader();
+            String name = cdh.getName();
+            if (cdh.getCompressionInfo().isDone()
+                    && (pendingNames == null || !pendingNames.contains(name))) {
+                return entry;
+            }
+
+            if (!processEntriesInCompletionOrder) {
+                /*
+                 * First entry in queue is not yet complete. We can't do anything else.
+                 */
+                return null;
+            }
+
+            /*
+             * Only names shared with later entries can hold those entries back, which is rare.
+             */
+            if (uncompressedNameCounts.count(name) > 1) {
+                if (pendingNames == null) {
+                    pendingNames = new HashSet<>();
+                }
+
+                pendingNames.add(name);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Waits until {@link #uncompressedEntries} is below the limits set by
+     * {@link #maxCompressingBytes} and {@link #maxCompressingEntries}.
+     *
+     * @throws IOException the exception reported in the future computation, if any, or failed
+     * to add a file to the archive
+     */
+    private void waitForCompressionCapacity() throws IOException {
+        while (!uncompressedEntries.isEmpty()
+                && (uncompressedEntries.size() >= maxCompressingEntries
+                        || uncompressedBytes >= maxCompressingBytes)) {
+            waitForReadyEntry();
+            processAllReadyEntries();
+        }
+    }
+
     /**
      * Waits until {@link #uncompressedEntries} is empty.
      *
@@ -1836,17 +2555,39 @@ public class ZFile implements Closeable {
         processAllReadyEntries();
         while (!uncompressedEntries.isEmpty()) {
             /*
-             * Wait for the first future to complete and then try again. Keep looping until we're
-             * done.
+             * Wait for an entry to be ready and then try again. Keep looping until we're done.
              */
-            StoredEntry first = uncompressedEntries.get(0);
-            CentralDirectoryHeader cdh = first.getCentralDirectoryHeader();
-            cdh.getCompressionInfoWithWait();
-
+            waitForReadyEntry();
             processAllReadyEntries();
         }
     }
 
+    /**
+     * Waits until an entry in {@link #uncompressedEntries}, which must not be empty, can be moved
+     * to {@link #entries}. If {@link #processEntriesInCompletionOrder} is not set, this waits for
+     * the first entry to be compressed. Otherwise, it waits until any entry is ready, as defined
+     * by {@link #findNextReadyEntry()}.
+     *
+     * @throws IOException failed to compress the first entry or interrupted while waiting
+     */
+    private void waitForReadyEntry() throws IOException {
+        if (!processEntriesInCompletionOrder) {
+            StoredEntry first = uncompressedEntries.iterator().next();
+            first.getCentralDirectoryHeader().getCompressionInfoWithWait();
+            return;
+        }
+
+        synchronized (compressionDone) {
+            while (findNextReadyEntry() == null) {
+                try {
+                    compressionDone.wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while waiting for compression.", e);
+                }
+            }
+        }
+    }
+
     /**
      * Adds a new file to {@link #entries}. This is actually added to the zip and its space
      * allocated in the {@link #map}.
@@ -1882,6 +2623,219 @@ public class ZFile implements Closeable {
         dirty = true;
 
         notify(ext -> ext.added(newEntry, replaceStore));
+
+        if (writeEntriesEagerly) {
+            writeEntryEagerly(newEntry);
+        }
+    }
+
+    /**
+     * Writes an entry that has just been added to the zip to its location in the file. This is
+     * used when {@link #writeEntriesEagerly} is set. Nothing is done if the entry has already been
+     * written or if it has been removed or replaced while notifying extensions of the addition.
+     *
+     * @param entry the entry to write
+     * @throws IOException failed to write the entry
+     */
+    private void writeEntryEagerly(@Nonnull StoredEntry entry) throws IOException {
+        CentralDirectoryHeader cdh = entry.getCentralDirectoryHeader();
+        if (cdh.getOffset() != -1) {
+            return;
+        }
+
+        FileUseMapEntry<StoredEntry> mapEntry = entries.get(cdh.getName());
+        if (mapEntry == null || mapEntry.getStore() != entry) {
+            return;
+        }
+
+        reopenRw();
+        if (writeEntriesInBackground) {
+            startBackgroundWrite(entry, mapEntry.getStart());
+        } else {
+            writeEntry(entry, mapEntry.getStart());
+        }
+    }
+
+    /**
+     * Starts writing an entry's data in the zip file in the background. The entry's offset and
+     * source are only updated when the write is completed by
+     * {@link #completeBackgroundWrites(boolean)}. Until then, the entry keeps its data in memory.
+     *
+     * @param entry the entry to write
+     * @param offset the offset at which the entry should be written
+     * @throws IOException failed to start writing the entry
+     */
+    private void startBackgroundWrite(@Nonnull StoredEntry entry, long offset)
+            throws IOException {
+        Preconditions.checkNotNull(channel, "channel == null");
+        Preconditions.checkState(state == ZipFileState.OPEN_RW, "state != ZipFileState.OPEN_RW");
+        Preconditions.checkState(!backgroundWrites.containsKey(entry), "Entry already written");
+
+        if (backgroundWriter == null) {
+            backgroundWriter = Executors.newSingleThreadExecutor(r -> {
+                Thread thread =
+                        new Thread(r, "ZFile background writer: " + path.getFileName());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        /*
+         * Only positional writes are made on the channel, so the background thread does not
+         * interfere with the other reads and writes.
+         */
+        FileChannel channel = this.channel;
+        byte[] headerData = entry.toHeaderData();
+        ByteSource rawContents = entry.getSource().getRawByteSource();
+        knownZeroAreas.remove(Range.closedOpen(offset, offset + entry.getInFileSize()));
+        Future<?> future = backgroundWriter.submit(() -> {
+            writeFully(channel, offset, headerData);
+
+            byte[] chunk = new byte[IO_BUFFER_SIZE];
+            int r;
+            long writeOffset = offset + headerData.length;
+            try (InputStream is = rawContents.openStream()) {
+                while ((r = is.read(chunk)) >= 0) {
+                    writeFully(channel, writeOffset, ByteBuffer.wrap(chunk, 0, r));
+                    writeOffset += r;
+                }
+            }
+
+            return null;
+        });
+
+        backgroundWrites.put(entry, new BackgroundWrite(offset, headerData, future));
+    }
+
+    /**
+     * Fills an area of the zip file with zeros. Parts of the area known to be zero are not
+     * written. In the default file system, parts of the area beyond the end of the file are not
+     * written either: they are filled with zeros when the file grows and are left as holes in file
+     * systems that support sparse files. Other parts are written in chunks from {@link #ZEROS}.
+     *
+     * @param start the start of the area
+     * @param end the end of the area (exclusive)
+     * @throws IOException failed to write the zeros
+     */
+    private void writeZeros(long start, long end) throws IOException {
+        Preconditions.checkArgument(start <= end, "start > end");
+        if (start == end) {
+            return;
+        }
+
+        reopenRw();
+        assert channel != null;
+
+        RangeSet<Long> toWrite = TreeRangeSet.create();
+        toWrite.add(Range.closedOpen(start, end));
+        toWrite.removeAll(knownZeroAreas);
+        if (path.getFileSystem() == FileSystems.getDefault()) {
+            toWrite.remove(Range.atLeast(channel.size()));
+        }
+
+        for (Range<Long> range : toWrite.asRanges()) {
+            long offset = range.lowerEndpoint();
+            long rangeEnd = range.upperEndpoint();
+            while (offset < rangeEnd) {
+                ByteBuffer zeros = ZEROS.duplicate();
+                zeros.limit((int) Math.min(zeros.capacity(), rangeEnd - offset));
+                writeFully(channel, offset, zeros);
+                offset += zeros.limit();
+            }
+        }
+
+        knownZeroAreas.add(Range.closedOpen(start, end));
+    }
+
+    /**
+     * Writes all data to a channel using positional writes.
+     *
+     * @param channel the channel to write to
+     * @param offset the offset at which data should be written
+     * @param data the data to write
+     * @throws IOException failed to write the data
+     */
+    private static void writeFully(
+            @Nonnull FileChannel channel,
+            long offset,
+            @Nonnull byte[] data)
+            throws IOException {
+        writeFully(channel, offset, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Writes all remaining data in a buffer to a channel using positional writes.
+     *
+     * @param channel the channel to write to
+     * @param offset the offset at which data should be written
+     * @param data the data to write
+     * @throws IOException failed to write the data
+     */
+    private static void writeFully(
+            @Nonnull FileChannel channel,
+            long offset,
+            @Nonnull ByteBuffer data)
+            throws IOException {
+        long writeOffset = offset;
+        while (data.hasRemaining()) {
+            writeOffset += channel.write(data, writeOffset);
+        }
+    }
+
+    /**
+     * Completes background writes. For each completed write, if the entry is still in the zip
+     * at the location it was written to and has not changed, the entry's source is replaced with
+     * one that reads from the zip file, releasing the entry's data from memory. Entries that have
+     * been changed while being written keep their data in memory and are written again when the
+     * zip is updated.
+     *
+     * @param wait should we wait for writes that have not finished? If {@code false}, only
+     * writes that have already finished are completed
+     * @throws IOException a background write has failed
+     */
+    private void completeBackgroundWrites(boolean wait) throws IOException {
+        Iterator<Map.Entry<StoredEntry, BackgroundWrite>> it =
+                backgroundWrites.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<StoredEntry, BackgroundWrite> next = it.next();
+            StoredEntry entry = next.getKey();
+            BackgroundWrite write = next.getValue();
+            if (!wait && !write.future.isDone()) {
+                /*
+                 * Writes finish in order, so no following write is done either.
+                 */
+                return;
+            }
+
+            it.remove();
+            write.await(entry);
+
+            CentralDirectoryHeader cdh = entry.getCentralDirectoryHeader();
+            FileUseMapEntry<StoredEntry> mapEntry = entries.get(cdh.getName());
+            if (mapEntry == null
+                    || mapEntry.getStore() != entry
+                    || mapEntry.getStart() != write.offset
+                    || cdh.getOffset() != -1
+                    || !Arrays.equals(write.headerData, entry.toHeaderData())) {
+                continue;
+            }
+
+            entry.replaceSourceFromZip(write.offset);
+        }
+    }
+
+    /**
+     * Waits for the background write of an entry, if there is one. This must be invoked before
+     * the entry's space in the file is released. The entry's source is not changed.
+     *
+     * @param entry the entry
+     * @throws IOException the background write has failed
+     */
+    private void waitForBackgroundWrite(@Nonnull StoredEntry entry) throws IOException {
+        BackgroundWrite write = backgroundWrites.remove(entry);
+        if (write != null) {
+            write.await(entry);
+        }
     }
 
     /**
@@ -1915,7 +2869,11 @@ public class ZFile implements Closeable {
                 algorithm = FileUseMap.PositionAlgorithm.FIRST_FIT;
                 break;
             case ANYWHERE:
-                algorithm = FileUseMap.PositionAlgorithm.BEST_FIT;
+                if (appendOnly) {
+                    algorithm = FileUseMap.PositionAlgorithm.APPEND;
+                } else {
+                    algorithm = FileUseMap.PositionAlgorithm.BEST_FIT;
+                }
                 break;
             default:
                 throw new AssertionError();
@@ -1946,7 +2904,7 @@ public class ZFile implements Closeable {
         if (isCompressed) {
             return AlignmentRule.NO_ALIGNMENT;
         } else {
-            return alignmentRule.alignment(cdh.getName());
+            return entry.getRuleAlignment(alignmentRule);
         }
     }
 
@@ -1969,90 +2927,106 @@ public class ZFile implements Closeable {
             throws IOException {
         checkNotInReadOnlyMode();
 
-        for (StoredEntry fromEntry : src.entries()) {
-            if (ignoreFilter.test(fromEntry.getCentralDirectoryHeader().getName())) {
-                continue;
+        /*
+         * If the entries of the source are kept in a table, entries that are ignored or that are
+         * already in this zip are checked with the data in the table, so only entries that are
+         * merged are created.
+         */
+        EntryTable srcTable = src.entryTable;
+        if (srcTable != null) {
+            for (int index : srcTable.indexes()) {
+                String path = srcTable.getName(index);
+                if (!ignoreFilter.test(path)
+                        && !hasSameData(
+                                path,
+                                srcTable.getUncompressedSize(index),
+                                srcTable.getCrc32(index))) {
+                    mergeEntry(srcTable.getEntry(index));
+                }
             }
 
-            boolean replaceCurrent = true;
-            String path = fromEntry.getCentralDirectoryHeader().getName();
-            FileUseMapEntry<StoredEntry> currentEntry = entries.get(path);
-
-            if (currentEntry != null) {
-                long fromSize = fromEntry.getCentralDirectoryHeader().getUncompressedSize();
-                long fromCrc = fromEntry.getCentralDirectoryHeader().getCrc32();
-
-                StoredEntry currentStore = currentEntry.getStore();
-                assert currentStore != null;
-
-                long currentSize = currentStore.getCentralDirectoryHeader().getUncompressedSize();
-                long currentCrc = currentStore.getCentralDirectoryHeader().getCrc32();
+            return;
+        }
 
-                if (fromSize == currentSize && fromCrc == currentCrc) {
-                    replaceCurrent = false;
-                }
+        for (StoredEntry fromEntry : src.entries()) {
+            CentralDirectoryHeader fromCdr = fromEntry.getCentralDirectoryHeader();
+            if (!ignoreFilter.test(fromCdr.getName())
+                    && !hasSameData(
+                            fromCdr.getName(), fromCdr.getUncompressedSize(), fromCdr.getCrc32())) {
+                mergeEntry(fromEntry);
             }
+        }
+    }
 
-            if (replaceCurrent) {
-                CentralDirectoryHeader fromCdr = fromEntry.getCentralDirectoryHeader();
-                CentralDirectoryHeaderCompressInfo fromCompressInfo =
-                        fromCdr.getCompressionInfoWithWait();
-                CentralDirectoryHeader newFileData;
-                try {
-                    /*
-                     * We make two changes in the central directory from the file to merge:
-                     * we reset the offset to force the entry to be written and we reset the
-                     * deferred CRC bit as we don't need the extra stuff after the file. It takes
-                     * space and is totally useless.
-                     */
-                    newFileData = fromCdr.clone();
-                    newFileData.setOffset(-1);
-                    newFileData.resetDeferredCrc();
-                } catch (CloneNotSupportedException e) {
-                    throw new IOException("Failed to clone CDR.", e);
-                }
-
-                /*
-                 * Read the data (read directly the compressed source if there is one).
-                 */
-                ProcessedAndRawByteSources fromSource = fromEntry.getSource();
-                InputStream fromInput = fromSource.getRawByteSource().openStream();
-                long sourceSize = fromSource.getRawByteSource().size();
-                if (sourceSize > Integer.MAX_VALUE) {
-                    throw new IOException("Cannot read source with " + sourceSize + " bytes.");
-                }
+    /**
+     * Checks whether this zip has an entry with a name, size and CRC32. Used by
+     * {@link #mergeFrom(ZFile, Predicate)} to skip entries that do not need to be merged.
+     *
+     * @param path the entry's name
+     * @param uncompressedSize the entry's uncompressed size
+     * @param crc32 the entry's CRC32
+     * @return is there an entry with the same name, size and CRC32?
+     */
+    private boolean hasSameData(@Nonnull String path, long uncompressedSize, long crc32) {
+        FileUseMapEntry<StoredEntry> currentEntry = entries.get(path);
+        if (currentEntry == null) {
+            return false;
+        }
 
-                byte[] data = new byte[Ints.checkedCast(sourceSize)];
-                int read = 0;
-                while (read < data.length) {
-                    int r = fromInput.read(data, read, data.length - read);
-                    Verify.verify(r >= 0, "There should be at least 'size' bytes in the stream.");
-                    read += r;
-                }
+        StoredEntry currentStore = currentEntry.getStore();
+        assert currentStore != null;
 
-                /*
-                 * Build the new source and wrap it around an inflater source if data came from
-                 * a compressed source.
-                 */
-                CloseableByteSource rawContents = tracker.fromSource(fromSource.getRawByteSource());
-                CloseableByteSource processedContents;
-                if (fromCompressInfo.getMethod() == CompressionMethod.DEFLATE) {
-                    //noinspection IOResourceOpenedButNotSafelyClosed
-                    processedContents = new InflaterByteSource(rawContents);
-                } else {
-                    processedContents = rawContents;
-                }
+        return uncompressedSize == currentStore.getCentralDirectoryHeader().getUncompressedSize()
+                && crc32 == currentStore.getCentralDirectoryHeader().getCrc32();
+    }
 
-                ProcessedAndRawByteSources newSource = new ProcessedAndRawByteSources(
-                        processedContents, rawContents);
+    /**
+     * Adds a copy of an entry from another zip to this zip, replacing any entry with the same
+     * name. Used by {@link #mergeFrom(ZFile, Predicate)}.
+     *
+     * @param fromEntry the entry to copy
+     * @throws IOException failed to add the entry
+     */
+    private void mergeEntry(@Nonnull StoredEntry fromEntry) throws IOException {
+        CentralDirectoryHeader fromCdr = fromEntry.getCentralDirectoryHeader();
+        CentralDirectoryHeaderCompressInfo fromCompressInfo = fromCdr.getCompressionInfoWithWait();
+        CentralDirectoryHeader newFileData;
+        try {
+            /*
+             * We make two changes in the central directory from the file to merge:
+             * we reset the offset to force the entry to be written and we reset the
+             * deferred CRC bit as we don't need the extra stuff after the file. It takes
+             * space and is totally useless.
+             */
+            newFileData = fromCdr.clone();
+            newFileData.setOffset(-1);
+            newFileData.resetDeferredCrc();
+        } catch (CloneNotSupportedException e) {
+            throw new IOException("Failed to clone CDR.", e);
+        }
 
-                /*
-                 * Add will replace any current entry with the same name.
-                 */
-                StoredEntry newEntry = new StoredEntry(newFileData, this, newSource);
-                add(newEntry);
-            }
+        /*
+         * Copy the data (the compressed source if there is one), build the new source
+         * and wrap it around an inflater source if data came from a compressed source.
+         */
+        ProcessedAndRawByteSources fromSource = fromEntry.getSource();
+        CloseableByteSource rawContents = tracker.fromSource(fromSource.getRawByteSource());
+        CloseableByteSource processedContents;
+        if (fromCompressInfo.getMethod() == CompressionMethod.DEFLATE) {
+            //noinspection IOResourceOpenedButNotSafelyClosed
+            processedContents = new InflaterByteSource(rawContents);
+        } else {
+            processedContents = rawContents;
         }
+
+        ProcessedAndRawByteSources newSource = new ProcessedAndRawByteSources(
+                processedContents, rawContents);
+
+        /*
+         * Add will replace any current entry with the same name.
+         */
+        StoredEntry newEntry = new StoredEntry(newFileData, this, newSource);
+        add(newEntry);
     }
 
     /**
@@ -2283,10 +3257,10 @@ public class ZFile implements Closeable {
         Preconditions.checkArgument(start + count <= data.length, "start + count > data.length");
 
         reopenRw();
-        assert raf != null;
+        assert channel != null;
 
-        raf.seek(offset);
-        raf.write(data, start, count);
+        knownZeroAreas.remove(Range.closedOpen(offset, offset + count));
+        writeFully(channel, offset, ByteBuffer.wrap(data, start, count));
     }
 
     /**
@@ -2311,11 +3285,11 @@ public class ZFile implements Closeable {
         /*
          * Only force a reopen if the file is closed.
          */
-        if (raf == null) {
+        if (channel == null) {
             reopenRw();
-            assert raf != null;
+            assert channel != null;
         }
-        return raf.length();
+        return channel.size();
     }
 
     /**
@@ -2359,13 +3333,12 @@ public class ZFile implements Closeable {
         /*
          * Only force a reopen if the file is closed.
          */
-        if (raf == null) {
+        if (channel == null) {
             reopenRw();
-            assert raf != null;
+            assert channel != null;
         }
 
-        raf.seek(offset);
-        return raf.getChannel().read(dest);
+        return channel.read(dest, offset);
     }
 
     /**
@@ -2409,15 +3382,13 @@ public class ZFile implements Closeable {
         /*
          * Only force a reopen if the file is closed.
          */
-        if (raf == null) {
+        if (channel == null) {
             reopenRw();
-            assert raf != null;
+            assert channel != null;
         }
 
-        FileChannel fileChannel = raf.getChannel();
         while (dest.hasRemaining()) {
-            fileChannel.position(offset);
-            int chunkSize = fileChannel.read(dest);
+            int chunkSize = channel.read(dest, offset);
             if (chunkSize == -1) {
                 throw new EOFException(
                         "Failed to read " + dest.remaining() + " more bytes: premature EOF");
@@ -2426,6 +3397,60 @@ public class ZFile implements Closeable {
         }
     }
 
+    /**
+     * Opens a zip stored in an entry of this zip without extracting it. The nested zip is read
+     * using positional reads on this zip so listing or reading its entries has no extraction
+     * cost.
+     *
+     * <p>The returned zip is always read-only. It reads the entry's data as it is on disk when
+     * the nested zip is opened and becomes invalid if the entry is moved, changed or deleted by
+     * updating this zip. Closing the nested zip does not close this zip.
+     *
+     * @param entry an entry of this zip, which must be stored without compression and must have
+     * been written to the zip
+     * @param options configuration options for the nested zip
+     * @return the nested zip
+     * @throws IOException failed to read the nested zip
+     */
+    @Nonnull
+    public ZFile openNested(@Nonnull StoredEntry entry, @Nonnull ZFileOptions options)
+            throws IOException {
+        CentralDirectoryHeader cdh = entry.getCentralDirectoryHeader();
+        boolean belongs;
+        if (entryTable != null) {
+            belongs = entryTable.get(cdh.getName()) == entry;
+        } else {
+            FileUseMapEntry<StoredEntry> mapEntry = entries.get(cdh.getName());
+            belongs = mapEntry != null && mapEntry.getStore() == entry;
+        }
+
+        Preconditions.checkArgument(
+                belongs, "Entry '%s' does not belong to this zip", cdh.getName());
+        Preconditions.checkArgument(
+                cdh.getOffset() >= 0 && !backgroundWrites.containsKey(entry),
+                "Entry '%s' has not been written to the zip", cdh.getName());
+
+        CentralDirectoryHeaderCompressInfo compressInfo = cdh.getCompressionInfoWithWait();
+        if (compressInfo.getMethod() != CompressionMethod.STORE) {
+            throw new IOException("Entry '" + cdh.getName() + "' is compressed; only stored "
+                    + "entries can be open as nested zips.");
+        }
+
+        /*
+         * The nested zip reads its central directory entries in parallel, and each read goes
+         * through this zip. Open it now, so those reads never need to reopen it concurrently.
+         */
+        openReadOnly();
+
+        long start = cdh.getOffset() + entry.getLocalHeaderSize();
+        long size = compressInfo.getCompressedSize();
+        return new ZFile(
+                path.resolve(cdh.getName()),
+                () -> new ByteRangeChannel(this, start, size),
+                options,
+                true);
+    }
+
     /**
      * Adds all files and directories recursively.
      * <p>
@@ -2492,6 +3517,283 @@ public class ZFile implements Closeable {
         }
     }
 
+    /**
+     * Adds all files and directories recursively, reading files in parallel. Files are read and
+     * checksummed by tasks submitted to the given executor, up to a limited number of files and
+     * bytes ahead of the file being added, so the number of threads reading files is bound by the
+     * executor. Files are added to the zip by the calling thread in a deterministic order: a
+     * directory is added before its contents and the contents of a directory are added in
+     * alphabetical order of their names.
+     *
+     * <p>If {@link ZFileOptions#setSkipUnchangedFiles(boolean)} is set, files equal to the entries
+     * they would replace are not added.
+     *
+     * @param file a file or directory; if it is a directory, all files and directories will be
+     * added recursively
+     * @param mayCompress a function that decides whether files may be compressed
+     * @param executor the executor used to read files
+     * @throws IOException failed to some (or all ) of the files
+     * @throws IllegalStateException if the file is in read-only mode
+     */
+    public void addAllRecursively(
+            @Nonnull File file,
+            @Nonnull Function<? super File, Boolean> mayCompress,
+            @Nonnull Executor executor)
+            throws IOException {
+        checkNotInReadOnlyMode();
+
+        List<File> files = new ArrayList<>();
+        if (file.isFile()) {
+            files.add(file);
+        } else {
+            listRecursively(file, files);
+        }
+
+        List<FutureTask<ReadAheadFile>> reads = new ArrayList<>(files.size());
+        long[] readSizes = new long[files.size()];
+        long bytesReadAhead = 0;
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                while (reads.size() < files.size()
+                        && (reads.size() == i
+                                || (reads.size() - i < READ_AHEAD_FILES
+                                        && bytesReadAhead < READ_AHEAD_BYTES))) {
+                    File toRead = files.get(reads.size());
+                    FutureTask<ReadAheadFile> read = null;
+                    if (!toRead.isDirectory()) {
+                        read = new FutureTask<>(() -> readAhead(toRead));
+                        readSizes[reads.size()] = toRead.length();
+                        bytesReadAhead += readSizes[reads.size()];
+                        executor.execute(read);
+                    }
+
+                    reads.add(read);
+                }
+
+                File f = files.get(i);
+                String path;
+                if (f == file) {
+                    path = file.getName();
+                } else {
+                    path = file.toURI().relativize(f.toURI()).getPath();
+                }
+
+                FutureTask<ReadAheadFile> read = reads.get(i);
+                if (read == null) {
+                    add(path, new ByteArrayInputStream(new byte[0]), false);
+                    continue;
+                }
+
+                boolean mayCompressFile = Verify.verifyNotNull(mayCompress.apply(f),
+                        "mayCompress.apply() returned null");
+                reads.set(i, null);
+                bytesReadAhead -= readSizes[i];
+
+                ReadAheadFile readAhead;
+                try {
+                    readAhead = Uninterruptibles.getUninterruptibly(read);
+                } catch (ExecutionException e) {
+                    throw new IOException("Failed to read '" + f.getAbsolutePath() + "'.",
+                            e.getCause());
+                }
+
+                addReadAhead(path, readAhead, mayCompressFile);
+            }
+        } finally {
+            /*
+             * If adding failed, release the memory of the files that were read ahead.
+             */
+            for (FutureTask<ReadAheadFile> read : reads) {
+                if (read != null) {
+                    try {
+                        Uninterruptibles.getUninterruptibly(read).source.close();
+                    } catch (ExecutionException | IOException e) {
+                        /*
+                         * Ignore, the first failure is being reported.
+                         */
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists all files and directories in a directory recursively. A directory is listed before
+     * its contents and the contents of a directory are listed in alphabetical order.
+     *
+     * @param directory the directory
+     * @param files receives the files and directories; {@code directory} itself is not added
+     */
+    private static void listRecursively(@Nonnull File directory, @Nonnull List<File> files) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        Arrays.sort(children, Comparator.comparing(File::getName));
+        for (File child : children) {
+            files.add(child);
+            if (child.isDirectory()) {
+                listRecursively(child, files);
+            }
+        }
+    }
+
+    /**
+     * Reads a file into memory and computes its CRC32. This is invoked from the executor given to
+     * {@link #addAllRecursively(File, Function, Executor)}.
+     *
+     * @param file the file to read
+     * @return the file's data and CRC32
+     * @throws IOException failed to read the file
+     */
+    @Nonnull
+    private ReadAheadFile readAhead(@Nonnull File file) throws IOException {
+        try (InputStream input = java.nio.file.Files.newInputStream(file.toPath())) {
+            CloseableByteSource source = tracker.fromStream(input);
+            return new ReadAheadFile(source, source.hash(Hashing.crc32()).padToLong());
+        }
+    }
+
+    /**
+     * Adds a file that has been read ahead to the zip, unless it is unchanged and
+     * {@link #skipUnchangedFiles} is set.
+     *
+     * @param name the file name
+     * @param readAhead the file's data and CRC32
+     * @param mayCompress can the file be compressed?
+     * @throws IOException failed to add the file; the file's data is released unless the file
+     * was already queued for compression
+     */
+    private void addReadAhead(
+            @Nonnull String name,
+            @Nonnull ReadAheadFile readAhead,
+            boolean mayCompress)
+            throws IOException {
+        StoredEntry newEntry;
+        try {
+            if (skipUnchangedFiles
+                    && isUnchanged(name, readAhead.source, readAhead.crc32, mayCompress)) {
+                readAhead.source.close();
+                return;
+            }
+
+            processAllReadyEntries();
+            waitForCompressionCapacity();
+
+            newEntry = makeStoredEntry(name, readAhead.source, readAhead.crc32, mayCompress);
+        } catch (Throwable t) {
+            try {
+                readAhead.source.close();
+            } catch (IOException e) {
+                t.addSuppressed(e);
+            }
+
+            throw t;
+        }
+
+        /*
+         * From here on, the entry owns the file's data.
+         */
+        add(newEntry);
+    }
+
+    /**
+     * Checks whether adding a file would replace an entry with the same contents.
+     *
+     * @param name the file name
+     * @param source the file's data
+     * @param crc32 the CRC32 of the file
+     * @param mayCompress can the file be compressed?
+     * @return is there an entry with the same name, size, CRC32 and compression that would not
+     * change if the file were added?
+     * @throws IOException failed to obtain the compression information of the existing entry or
+     * to compress the file
+     */
+    private boolean isUnchanged(
+            @Nonnull String name,
+            @Nonnull CloseableByteSource source,
+            long crc32,
+            boolean mayCompress)
+            throws IOException {
+        CompressionMethod method = findSameEntryMethod(name, source.size(), crc32);
+        return method != null && wouldKeepMethod(name, method, source, mayCompress);
+    }
+
+    /**
+     * Obtains the compression method of the entry that adding a file would replace, if that entry
+     * has the same size and CRC32 as the file.
+     *
+     * @param name the file name
+     * @param size the size of the file
+     * @param crc32 the CRC32 of the file
+     * @return the compression method or {@code null} if there is no entry with the same name,
+     * size and CRC32
+     * @throws IOException failed to obtain the compression information of the existing entry
+     */
+    @Nullable
+    private CompressionMethod findSameEntryMethod(@Nonnull String name, long size, long crc32)
+            throws IOException {
+        StoredEntry existing = get(name);
+        if (existing == null || existing.getType() != StoredEntryType.FILE) {
+            return null;
+        }
+
+        CentralDirectoryHeader cdh = existing.getCentralDirectoryHeader();
+        if (cdh.getUncompressedSize() != size || cdh.getCrc32() != crc32) {
+            return null;
+        }
+
+        return cdh.getCompressionInfoWithWait().getMethod();
+    }
+
+    /**
+     * Checks whether a file with the same contents as an existing entry would be compressed the
+     * same way as the entry if it were added.
+     *
+     * @param name the file name
+     * @param method the compression method of the existing entry
+     * @param source the file's data
+     * @param mayCompress can the file be compressed?
+     * @return would the file be compressed with {@code method}?
+     * @throws IOException failed to compress the file
+     */
+    private boolean wouldKeepMethod(
+            @Nonnull String name,
+            @Nonnull CompressionMethod method,
+            @Nonnull CloseableByteSource source,
+            boolean mayCompress)
+            throws IOException {
+        if (!mayCompress) {
+            return method == CompressionMethod.STORE;
+        }
+
+        if (method != CompressionMethod.STORE) {
+            return true;
+        }
+
+        /*
+         * The entry is stored although the file may be compressed. This is usually because the
+         * data does not compress, but the entry may also have been added when it could not be
+         * compressed. Find out by compressing the file: the entry is only kept if the file would
+         * be stored again.
+         */
+        CompressionResult result;
+        try {
+            result = compressor.compress(name, source).get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while compressing '" + name + "'.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress '" + name + "'.", e.getCause());
+        }
+
+        if (result.getSource() != source) {
+            result.getSource().close();
+        }
+
+        return result.getCompressionMethod() == CompressionMethod.STORE;
+    }
+
     /**
      * Obtains the offset at which the central directory exists, or at which it will be written
      * if the zip file were to be flushed immediately.
@@ -2667,11 +3969,12 @@ public class ZFile implements Closeable {
     }
 
     /**
-     * Sorts all files in the zip. This will force all files to be loaded and will wait for all
-     * background tasks to complete. Sorting files is never done implicitly and will operate in
-     * memory only (maybe reading files from the zip disk into memory, if needed). It will leave
-     * the zip in dirty state, requiring a call to {@link #update()} to force the entries to be
-     * written to disk.
+     * Sorts all files in the zip using the order defined in
+     * {@link ZFileOptions#getEntryOrder()}. This will force all files to be loaded and will wait
+     * for all background tasks to complete. Sorting files is never done implicitly and will
+     * operate in memory only (maybe reading files from the zip disk into memory, if needed). It
+     * will leave the zip in dirty state, requiring a call to {@link #update()} to force the
+     * entries to be written to disk.
      *
      * @throws IOException failed to load or move a file in the zip
      * @throws IllegalStateException if file is in read-only mode
@@ -2684,16 +3987,23 @@ public class ZFile implements Closeable {
 
         Verify.verify(uncompressedEntries.isEmpty());
 
-        SortedSet<StoredEntry> sortedEntries = Sets.newTreeSet(StoredEntry.COMPARE_BY_NAME);
+        List<StoredEntry> toSort = Lists.newArrayListWithCapacity(entries.size());
         for (FileUseMapEntry<StoredEntry> fmEntry : entries.values()) {
             StoredEntry entry = fmEntry.getStore();
             Preconditions.checkNotNull(entry);
-            sortedEntries.add(entry);
+            toSort.add(entry);
+            waitForBackgroundWrite(entry);
             entry.loadSourceIntoMemory();
 
             map.remove(fmEntry);
         }
 
+        Comparator<StoredEntry> order =
+                EntryOrderings.forSorting(entryOrder, toSort)
+                        .thenComparing(StoredEntry.COMPARE_BY_NAME);
+        SortedSet<StoredEntry> sortedEntries = Sets.newTreeSet(order);
+        sortedEntries.addAll(toSort);
+
         entries.clear();
         for (StoredEntry entry : sortedEntries) {
             String name = entry.getCentralDirectoryHeader().getName();
@@ -2711,10 +4021,27 @@ public class ZFile implements Closeable {
      *
      * @return the file that may or may not exist (depending on whether something existed there
      * before the zip was created and on whether the zip has been updated or not)
+     * @throws UnsupportedOperationException if the zip is not in the default file system; use
+     * {@link #getPath()} instead
      */
     @Nonnull
     public File getFile() {
-        return file;
+        return path.toFile();
+    }
+
+    /**
+     * Obtains the path to the zip file. Unlike {@link #getFile()}, this works for zips in any file
+     * system.
+     *
+     * <p>For a zip open with {@link #openNested(StoredEntry, ZFileOptions)}, this is the path of
+     * the containing zip resolved against the entry's name and does not exist.
+     *
+     * @return the path that may or may not exist (depending on whether something existed there
+     * before the zip was created and on whether the zip has been updated or not)
+     */
+    @Nonnull
+    public Path getPath() {
+        return path;
     }
 
     /**
@@ -2752,7 +4079,8 @@ public class ZFile implements Closeable {
     /** Hint to where files should be positioned. */
     enum PositionHint {
         /**
-         * File may be positioned anywhere, caller doesn't care.
+         * File may be positioned anywhere, caller doesn't care. In append-only mode, the file is
+         * placed after the last entry.
          */
         ANYWHERE,
 
@@ -2761,4 +4089,85 @@ public class ZFile implements Closeable {
          */
         LOWEST_OFFSET
     }
+
+    /**
+     * Write of an entry's data started in the background.
+     */
+    private static class BackgroundWrite {
+
+        /**
+         * Offset in the file where the entry is being written.
+         */
+        private final long offset;
+
+        /**
+         * Local header written.
+         */
+        @Nonnull
+        private final byte[] headerData;
+
+        /**
+         * Future that completes when the write finishes.
+         */
+        @Nonnull
+        private final Future<?> future;
+
+        /**
+         * Creates a new background write.
+         *
+         * @param offset offset in the file where the entry is being written
+         * @param headerData local header written
+         * @param future future that completes when the write finishes
+         */
+        BackgroundWrite(long offset, @Nonnull byte[] headerData, @Nonnull Future<?> future) {
+            this.offset = offset;
+            this.headerData = headerData;
+            this.future = future;
+        }
+
+        /**
+         * Waits for the write to finish.
+         *
+         * @param entry the entry being written
+         * @throws IOException the write has failed
+         */
+        void await(@Nonnull StoredEntry entry) throws IOException {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                throw new IOException(
+                        "Failed to write entry '" + entry.getCentralDirectoryHeader().getName()
+                                + "'",
+                        e.getCause());
+            }
+        }
+    }
+
+    /**
+     * A file read into memory by {@link #addAllRecursively(File, Function, Executor)}.
+     */
+    private static class ReadAheadFile {
+
+        /**
+         * The file's data.
+         */
+        @Nonnull
+        private final CloseableByteSource source;
+
+        /**
+         * The CRC32 of the file's data.
+         */
+        private final long crc32;
+
+        /**
+         * Creates a new read file.
+         *
+         * @param source the file's data
+         * @param crc32 the CRC32 of the file's data
+         */
+        ReadAheadFile(@Nonnull CloseableByteSource source, long crc32) {
+            this.source = source;
+            this.crc32 = crc32;
+        }
+    }
 }
@@ -18,6 +18,8 @@ package com.android.tools.build.apkzlib.zip;
 
 import com.android.tools.build.apkzlib.zip.compress.DeflateExecutionCompressor;
 import com.android.tools.build.apkzlib.zip.utils.ByteTracker;
+import com.google.common.base.Preconditions;
+import java.util.Comparator;
 import java.util.function.Supplier;
 import java.util.zip.Deflater;
 import javax.annotation.Nonnull;
@@ -60,12 +62,58 @@ public class ZFileOptions {
      */
     private boolean autoSortFiles;
 
+    /**
+     * Order of entries when sorting.
+     */
+    @Nonnull
+    private Comparator<StoredEntry> entryOrder;
+
     /**
      * Factory creating verification logs to use.
      */
     @Nonnull
     private Supplier<VerifyLog> verifyLogFactory;
 
+    /**
+     * Should entries be written to disk as soon as they are added?
+     */
+    private boolean writeEntriesEagerly;
+
+    /**
+     * Should entries be written to disk in a background thread?
+     */
+    private boolean writeEntriesInBackground;
+
+    /**
+     * Maximum number of bytes of files being compressed.
+     */
+    private long maxCompressingBytes;
+
+    /**
+     * Maximum number of files being compressed.
+     */
+    private int maxCompressingEntries;
+
+    /**
+     * Should files be added to the zip in the order their compression finishes?
+     */
+    private boolean processEntriesInCompletionOrder;
+
+    /**
+     * Should files that are equal to the entries they would replace be skipped?
+     */
+    private boolean skipUnchangedFiles;
+
+    /**
+     * Should new entries always be appended after the last entry in the zip?
+     */
+    private boolean appendOnly;
+
+    /**
+     * Fraction of the zip that may be dead space in append-only mode before the zip is compacted.
+     */
+    private double maxDeadSpaceRatio;
+
     /**
      * Creates a new options object. All options are set to their defaults.
      */
@@ -77,7 +125,11 @@ public class ZFileOptions {
                         tracker,
                         Deflater.DEFAULT_COMPRESSION);
         alignmentRule = AlignmentRules.compose();
+        entryOrder = EntryOrderings.byName();
         verifyLogFactory = VerifyLogs::devNull;
+        maxCompressingBytes = Long.MAX_VALUE;
+        maxCompressingEntries = Integer.MAX_VALUE;
+        maxDeadSpaceRatio = 0.5;
     }
 
     /**
@@ -192,7 +244,33 @@ public class ZFileOptions {
     }
 
     /**
-     * Sets the verification log factory.
+     * Obtains the order in which entries are placed in the zip when sorting. See {@link ZFile}
+     * for an explanation on sorting.
+     *
+     * @return the order; alphabetical by default
+     */
+    @Nonnull
+    public Comparator<StoredEntry> getEntryOrder() {
+        return entryOrder;
+    }
+
+    /**
+     * Sets the order in which entries are placed in the zip when sorting. Use, for example,
+     * {@link EntryOrderings#fromProfile(java.util.List)} to place frequently accessed entries
+     * close together. Alignment rules are still respected. Sorting must be done explicitly or
+     * enabled with {@link #setAutoSortFiles(boolean)} for the order to apply.
+     *
+     * @param entryOrder the order; entries that compare as equal are sorted by name
+     */
+    public ZFileOptions setEntryOrder(@Nonnull Comparator<StoredEntry> entryOrder) {
+        this.entryOrder = entryOrder;
+        return this;
+    }
+
+    /**
+     * Sets the verification log factory. The factory is only invoked from threads using the zip,
+     * so it does not need to be thread-safe. Logs it creates may be written from other threads
+     * while the zip is read, but each log is written by a single thread at a time.
      *
      * @param verifyLogFactory verification log factory
      */
@@ -211,4 +289,214 @@ public class ZFileOptions {
     public Supplier<VerifyLog> getVerifyLogFactory() {
         return verifyLogFactory;
     }
+
+    /**
+     * Obtains whether entries are written to disk as soon as they are added. See {@link ZFile}
+     * for an explanation on eager writes.
+     *
+     * @return are entries written eagerly?
+     */
+    public boolean getWriteEntriesEagerly() {
+        return writeEntriesEagerly;
+    }
+
+    /**
+     * Sets whether entries are written to disk as soon as they are added. See {@link ZFile} for
+     * an explanation on eager writes.
+     *
+     * @param writeEntriesEagerly should entries be written eagerly?
+     */
+    public ZFileOptions setWriteEntriesEagerly(boolean writeEntriesEagerly) {
+        this.writeEntriesEagerly = writeEntriesEagerly;
+        return this;
+    }
+
+    /**
+     * Obtains whether entries are written to disk in a background thread. See {@link ZFile} for
+     * an explanation on background writes.
+     *
+     * @return are entries written in a background thread?
+     */
+    public boolean getWriteEntriesInBackground() {
+        return writeEntriesInBackground;
+    }
+
+    /**
+     * Sets whether entries are written to disk in a background thread. Setting this option
+     * implies that entries are written eagerly (see {@link #setWriteEntriesEagerly(boolean)}). See
+     * {@link ZFile} for an explanation on background writes.
+     *
+     * @param writeEntriesInBackground should entries be written in a background thread?
+     */
+    public ZFileOptions setWriteEntriesInBackground(boolean writeEntriesInBackground) {
+        this.writeEntriesInBackground = writeEntriesInBackground;
+        return this;
+    }
+
+    /**
+     * Obtains the maximum number of uncompressed bytes of files that may be waiting for
+     * compression. See {@link #setMaxCompressingBytes(long)}.
+     *
+     * @return the maximum number of bytes, {@link Long#MAX_VALUE} if there is no limit
+     */
+    public long getMaxCompressingBytes() {
+        return maxCompressingBytes;
+    }
+
+    /**
+     * Sets the maximum number of uncompressed bytes of files that may be waiting for compression.
+     * When adding a file to the {@link ZFile} and the limit has been reached, adding blocks until
+     * enough files finish compressing. This bounds the memory used to hold files whose
+     * compression has not finished. By default there is no limit.
+     *
+     * <p>At least one file is always allowed to be waiting for compression, so a single file
+     * larger than the limit can still be added.
+     *
+     * @param maxCompressingBytes the maximum number of bytes, must be positive
+     */
+    public ZFileOptions setMaxCompressingBytes(long maxCompressingBytes) {
+        Preconditions.checkArgument(maxCompressingBytes > 0, "maxCompressingBytes <= 0");
+        this.maxCompressingBytes = maxCompressingBytes;
+        return this;
+    }
+
+    /**
+     * Obtains the maximum number of files that may be waiting for compression. See
+     * {@link #setMaxCompressingEntries(int)}.
+     *
+     * @return the maximum number of files, {@link Integer#MAX_VALUE} if there is no limit
+     */
+    public int getMaxCompressingEntries() {
+        return maxCompressingEntries;
+    }
+
+    /**
+     * Sets the maximum number of files that may be waiting for compression. When adding a file to
+     * the {@link ZFile} and the limit has been reached, adding blocks until enough files finish
+     * compressing. By default there is no limit.
+     *
+     * @param maxCompressingEntries the maximum number of files, must be positive
+     */
+    public ZFileOptions setMaxCompressingEntries(int maxCompressingEntries) {
+        Preconditions.checkArgument(maxCompressingEntries > 0, "maxCompressingEntries <= 0");
+        this.maxCompressingEntries = maxCompressingEntries;
+        return this;
+    }
+
+    /**
+     * Obtains whether files are added to the zip in the order their compression finishes. See
+     * {@link #setProcessEntriesInCompletionOrder(boolean)}.
+     *
+     * @return are files added in the order their compression finishes?
+     */
+    public boolean getProcessEntriesInCompletionOrder() {
+        return processEntriesInCompletionOrder;
+    }
+
+    /**
+     * Sets whether files are added to the zip in the order their compression finishes. By
+     * default, a file whose compression has finished is only added to the zip after all files
+     * added before it have also finished compressing. If this option is set, files are added as
+     * soon as they are compressed, unless a file with the same name added before is still being
+     * compressed. This guarantees that replacing files works as if files were added in order.
+     *
+     * <p>Files are positioned in the zip when they are added, so setting this option means the
+     * layout of the zip depends on the time each file takes to compress. Use automatic sorting
+     * (see {@link #setAutoSortFiles(boolean)}) to get deterministic zip files. Extensions are also
+     * notified of added files in the order compression finishes.
+     *
+     * @param processEntriesInCompletionOrder should files be added in the order their compression
+     * finishes?
+     */
+    public ZFileOptions setProcessEntriesInCompletionOrder(
+            boolean processEntriesInCompletionOrder) {
+        this.processEntriesInCompletionOrder = processEntriesInCompletionOrder;
+        return this;
+    }
+
+    /**
+     * Obtains whether files that are equal to the entries they would replace are skipped.
+     *
+     * @return are unchanged files skipped?
+     */
+    public boolean getSkipUnchangedFiles() {
+        return skipUnchangedFiles;
+    }
+
+    /**
+     * Sets whether files added to the zip are skipped if the zip already has an entry with the
+     * same name, size and CRC32. Skipped files are not written and do not make the zip dirty, so
+     * re-adding files that did not change, as incremental builds do, does not cause the zip to be
+     * rewritten. The data of added files still has to be read to compute its CRC32.
+     *
+     * <p>Modification times are not compared. {@code ZFile} sets the time of added entries to the
+     * time they are added, not to the time the files were modified, so comparing them would never
+     * find a match. A file is also not skipped if the existing entry is compressed differently
+     * from how the file would be added: a file that may not be compressed replaces a compressed
+     * entry. A file that may be compressed and whose entry is stored is compressed to find out:
+     * the entry is replaced unless the compressor stores the file again.
+     *
+     * @param skipUnchangedFiles should unchanged files be skipped?
+     * @return {@code this}
+     */
+    public ZFileOptions setSkipUnchangedFiles(boolean skipUnchangedFiles) {
+        this.skipUnchangedFiles = skipUnchangedFiles;
+        return this;
+    }
+
+    /**
+     * Obtains whether the zip is updated in append-only mode.
+     *
+     * @return is the zip updated in append-only mode?
+     */
+    public boolean getAppendOnly() {
+        return appendOnly;
+    }
+
+    /**
+     * Sets whether the zip is updated in append-only mode. In append-only mode, new and replaced
+     * entries are always placed after the last entry in the zip instead of in the best fitting
+     * free area. The data of removed or replaced entries is left in place as dead space and is not
+     * cleared, so an update only writes the tail of the zip and leaves everything before the first
+     * changed entry byte-identical. This minimizes the bytes written when a few entries of a large
+     * zip change.
+     *
+     * <p>When dead space grows beyond {@link #getMaxDeadSpaceRatio()} of the zip, the zip is
+     * compacted on update, moving all entries after the first dead area down to remove it.
+     * Sorting and {@link #setCoverEmptySpaceUsingExtraField(boolean)} move existing entries and
+     * should not be used with this mode.
+     *
+     * @param appendOnly should the zip be updated in append-only mode?
+     * @return {@code this}
+     */
+    public ZFileOptions setAppendOnly(boolean appendOnly) {
+        this.appendOnly = appendOnly;
+        return this;
+    }
+
+    /**
+     * Obtains the fraction of the zip that may be dead space in append-only mode before the zip is
+     * compacted. See {@link #setAppendOnly(boolean)}.
+     *
+     * @return the fraction, between {@code 0} and {@code 1}; {@code 0.5} by default
+     */
+    public double getMaxDeadSpaceRatio() {
+        return maxDeadSpaceRatio;
+    }
+
+    /**
+     * Sets the fraction of the zip that may be dead space in append-only mode before the zip is
+     * compacted. See {@link #setAppendOnly(boolean)}.
+     *
+     * @param maxDeadSpaceRatio the fraction, between {@code 0} and {@code 1}; {@code 1} never
+     * compacts the zip
+     * @return {@code this}
+     */
+    public ZFileOptions setMaxDeadSpaceRatio(double maxDeadSpaceRatio) {
+        Preconditions.checkArgument(
+                maxDeadSpaceRatio >= 0 && maxDeadSpaceRatio <= 1,
+                "maxDeadSpaceRatio not in [0, 1]");
+        this.maxDeadSpaceRatio = maxDeadSpaceRatio;
+        return this;
+    }
 }
@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip;
+
+import com.android.tools.build.apkzlib.utils.CachedSupplier;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import javax.annotation.Nonnull;
+
+/**
+ * Zip64 End Of Central Directory record and Zip64 End Of Central Directory locator in a zip file.
+ *
+ * <p>If the number of entries in the zip, or the size or offset of the Central Directory do not
+ * fit in the {@link Eocd}, the corresponding EOCD fields are set to all ones and the real values
+ * are stored in the Zip64 EOCD record. The Zip64 EOCD record is located through the locator,
+ * which is placed immediately before the EOCD. This class represents both: the Zip64 EOCD record
+ * followed by its locator.
+ */
+class Zip64Eocd {
+
+    /**
+     * Field in the record: the record signature, fixed at this value by the specification.
+     */
+    private static final ZipField.F4 F_SIGNATURE =
+            new ZipField.F4(0, 0x06064b50, "Zip64 EOCD signature");
+
+    /**
+     * Field in the record: the size of the rest of the record, that is, the size of the record
+     * excluding this field and the signature.
+     */
+    private static final ZipField.F8 F_RECORD_SIZE = new ZipField.F8(F_SIGNATURE.endOffset(),
+            "Zip64 EOCD size", new ZipFieldInvariantNonNegative());
+
+    /**
+     * Field in the record: the version that made the zip.
+     */
+    private static final ZipField.F2 F_MADE_BY = new ZipField.F2(F_RECORD_SIZE.endOffset(),
+            "Made by", new ZipFieldInvariantNonNegative());
+
+    /**
+     * Field in the record: the minimum version needed to extract the zip.
+     */
+    private static final ZipField.F2 F_VERSION_EXTRACT = new ZipField.F2(F_MADE_BY.endOffset(),
+            "Version to extract", new ZipFieldInvariantNonNegative());
+
+    /**
+     * Field in the record: the number of the disk where the record is located. It has to be zero
+     * because we do not support multi-file archives.
+     */
+    private static final ZipField.F4 F_NUMBER_OF_DISK = new ZipField.F4(
+            F_VERSION_EXTRACT.endOffset(), 0, "Number of this disk");
+
+    /**
+     * Field in the record: the number of the disk where the Central Directory starts. Has to be
+     * zero because we do not support multi-file archives.
+     */
+    private static final ZipField.F4 F_DISK_CD_START = new ZipField.F4(
+            F_NUMBER_OF_DISK.endOffset(), 0, "Disk where CD starts");
+
+    /**
+     * Field in the record: the number of entries in the Central Directory on this disk. Because
+     * we do not support multi-file archives, this is the same as {@link #F_RECORDS_TOTAL}.
+     */
+    private static final ZipField.F8 F_RECORDS_DISK = new ZipField.F8(
+            F_DISK_CD_START.endOffset(), "Record on disk count",
+            new ZipFieldInvariantNonNegative());
+
+    /**
+     * Field in the record: the total number of entries in the Central Directory.
+     */
+    private static final ZipField.F8 F_RECORDS_TOTAL = new ZipField.F8(
+            F_RECORDS_DISK.endOffset(), "Total records", new ZipFieldInvariantNonNegative(),
+            new ZipFieldInvariantMaxValue(Integer.MAX_VALUE));
+
+    /**
+     * Field in the record: number of bytes of the Central Directory.
+     */
+    private static final ZipField.F8 F_CD_SIZE = new ZipField.F8(F_RECORDS_TOTAL.endOffset(),
+            "Directory size", new ZipFieldInvariantNonNegative());
+
+    /**
+     * Field in the record: offset, from the archive start, where the Central Directory starts.
+     */
+    private static final ZipField.F8 F_CD_OFFSET = new ZipField.F8(F_CD_SIZE.endOffset(),
+            "Directory offset", new ZipFieldInvariantNonNegative());
+
+    /**
+     * Number of bytes of the record without the extensible data sector that may follow it.
+     */
+    static final int FIXED_RECORD_SIZE = F_CD_OFFSET.endOffset();
+
+    /**
+     * Field in the locator: the locator signature, fixed at this value by the specification.
+     */
+    private static final ZipField.F4 F_LOCATOR_SIGNATURE =
+            new ZipField.F4(0, 0x07064b50, "Zip64 EOCD locator signature");
+
+    /**
+     * Field in the locator: the number of the disk where the record is located. It has to be zero
+     * because we do not support multi-file archives.
+     */
+    private static final ZipField.F4 F_LOCATOR_DISK = new ZipField.F4(
+            F_LOCATOR_SIGNATURE.endOffset(), 0, "Disk with Zip64 EOCD");
+
+    /**
+     * Field in the locator: offset, from the archive start, where the record starts.
+     */
+    private static final ZipField.F8 F_LOCATOR_RECORD_OFFSET = new ZipField.F8(
+            F_LOCATOR_DISK.endOffset(), "Zip64 EOCD offset", new ZipFieldInvariantNonNegative());
+
+    /**
+     * Field in the locator: the total number of disks. It has to be one because we do not support
+     * multi-file archives.
+     */
+    private static final ZipField.F4 F_LOCATOR_TOTAL_DISKS = new ZipField.F4(
+            F_LOCATOR_RECORD_OFFSET.endOffset(), 1, "Total number of disks");
+
+    /**
+     * Number of bytes of the locator.
+     */
+    static final int LOCATOR_SIZE = F_LOCATOR_TOTAL_DISKS.endOffset();
+
+    /**
+     * Minimum version needed to extract zip files that use Zip64 records (section 4.4.3.2 of the
+     * specification).
+     */
+    static final long VERSION_WITH_ZIP64 = 45L;
+
+    /**
+     * Number of entries in the central directory.
+     */
+    private final int totalRecords;
+
+    /**
+     * Offset from the beginning of the archive where the Central Directory is located.
+     */
+    private final long directoryOffset;
+
+    /**
+     * Number of bytes of the Central Directory.
+     */
+    private final long directorySize;
+
+    /**
+     * Offset from the beginning of the archive where the record is located.
+     */
+    private final long recordOffset;
+
+    /**
+     * Contents of the extensible data sector at the end of the record.
+     */
+    @Nonnull
+    private final byte[] extensibleData;
+
+    /**
+     * Supplier of the byte representation of the record and locator.
+     */
+    @Nonnull
+    private final CachedSupplier<byte[]> byteSupplier;
+
+    /**
+     * Creates a new Zip64 EOCD, reading the record from a byte source. The locator must have
+     * been read with {@link #readLocator(ByteBuffer)}.
+     *
+     * @param bytes the byte buffer with the record data; when this method finishes, the byte
+     * buffer's position will have moved to the end of the record
+     * @param recordOffset offset from the beginning of the archive where the record is located
+     * @throws IOException failed to read information or the record is corrupt or invalid
+     */
+    Zip64Eocd(@Nonnull ByteBuffer bytes, long recordOffset) throws IOException {
+        F_SIGNATURE.verify(bytes);
+        long recordSize = F_RECORD_SIZE.read(bytes);
+        F_MADE_BY.skip(bytes);
+        F_VERSION_EXTRACT.skip(bytes);
+        F_NUMBER_OF_DISK.verify(bytes);
+        F_DISK_CD_START.verify(bytes);
+        long totalRecords1 = F_RECORDS_DISK.read(bytes);
+        long totalRecords2 = F_RECORDS_TOTAL.read(bytes);
+        directorySize = F_CD_SIZE.read(bytes);
+        directoryOffset = F_CD_OFFSET.read(bytes);
+
+        if (totalRecords1 != totalRecords2) {
+            throw new IOException("Zip64 EOCD states records split in multiple disks, which is "
+                    + "not supported.");
+        }
+
+        long extensibleSize = recordSize - (FIXED_RECORD_SIZE - F_RECORD_SIZE.endOffset());
+        if (extensibleSize < 0 || extensibleSize > bytes.remaining()) {
+            throw new IOException("Corrupt Zip64 EOCD record: record size is " + recordSize
+                    + " but only " + bytes.remaining() + " bytes follow the fixed fields.");
+        }
+
+        if (totalRecords1 < 0 || totalRecords1 > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt Zip64 EOCD record: " + totalRecords1 + " records is "
+                    + "not supported.");
+        }
+
+        if (totalRecords1 > directorySize / CentralDirectory.MIN_ENTRY_SIZE) {
+            throw new IOException("Corrupt Zip64 EOCD record: " + totalRecords1 + " records do "
+                    + "not fit in a Central Directory with " + directorySize + " bytes.");
+        }
+
+        totalRecords = (int) totalRecords1;
+        this.recordOffset = recordOffset;
+        extensibleData = new byte[Ints.checkedCast(extensibleSize)];
+        bytes.get(extensibleData);
+        byteSupplier = new CachedSupplier<>(this::computeByteRepresentation);
+    }
+
+    /**
+     * Creates a new Zip64 EOCD. This is used when generating the records for a Central Directory
+     * that has just been generated.
+     *
+     * @param totalRecords total number of records in the directory
+     * @param directoryOffset offset, since beginning of archive, where the Central Directory is
+     * located
+     * @param directorySize number of bytes of the Central Directory
+     * @param recordOffset offset, since beginning of archive, where the record will be located
+     */
+    Zip64Eocd(int totalRecords, long directoryOffset, long directorySize, long recordOffset) {
+        Preconditions.checkArgument(totalRecords >= 0, "totalRecords < 0");
+        Preconditions.checkArgument(directoryOffset >= 0, "directoryOffset < 0");
+        Preconditions.checkArgument(directorySize >= 0, "directorySize < 0");
+        Preconditions.checkArgument(recordOffset >= 0, "recordOffset < 0");
+
+        this.totalRecords = totalRecords;
+        this.directoryOffset = directoryOffset;
+        this.directorySize = directorySize;
+        this.recordOffset = recordOffset;
+        extensibleData = new byte[0];
+        byteSupplier = new CachedSupplier<>(this::computeByteRepresentation);
+    }
+
+    /**
+     * Checks whether the given buffer starts with the locator signature.
+     *
+     * @param bytes the buffer; its position is not changed
+     * @return is there a locator at the buffer's position?
+     */
+    static boolean isLocator(@Nonnull ByteBuffer bytes) {
+        try {
+            F_LOCATOR_SIGNATURE.verify(bytes.duplicate());
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the locator.
+     *
+     * @param bytes the byte buffer with the locator data; when this method finishes, the byte
+     * buffer's position will have moved to the end of the locator
+     * @return the offset from the beginning of the archive where the record is located
+     * @throws IOException failed to read the locator or the locator is corrupt or invalid
+     */
+    static long readLocator(@Nonnull ByteBuffer bytes) throws IOException {
+        F_LOCATOR_SIGNATURE.verify(bytes);
+        F_LOCATOR_DISK.verify(bytes);
+        long recordOffset = F_LOCATOR_RECORD_OFFSET.read(bytes);
+        F_LOCATOR_TOTAL_DISKS.verify(bytes);
+        return recordOffset;
+    }
+
+    /**
+     * Obtains the size of a record from the start of its data.
+     *
+     * @param bytes the byte buffer with, at least, the first {@link #FIXED_RECORD_SIZE} bytes of
+     * the record; its position is not changed
+     * @return the size of the record, including the extensible data sector but not the locator
+     * @throws IOException failed to read the record size
+     */
+    static long readRecordSize(@Nonnull ByteBuffer bytes) throws IOException {
+        ByteBuffer start = bytes.duplicate();
+        F_SIGNATURE.verify(start);
+        return F_RECORD_SIZE.endOffset() + F_RECORD_SIZE.read(start);
+    }
+
+    /**
+     * Checks whether a Zip64 EOCD is needed to describe a Central Directory.
+     *
+     * @param totalRecords total number of records in the directory
+     * @param directoryOffset offset, since beginning of archive, where the Central Directory is
+     * located
+     * @param directorySize number of bytes of the Central Directory
+     * @return are the values too large for the EOCD?
+     */
+    static boolean isNeeded(int totalRecords, long directoryOffset, long directorySize) {
+        return totalRecords >= ZipField.F2.ZIP64_MARKER
+                || directoryOffset >= ZipField.F4.ZIP64_MARKER
+                || directorySize >= ZipField.F4.ZIP64_MARKER;
+    }
+
+    /**
+     * Obtains the number of records in the Central Directory.
+     *
+     * @return the number of records
+     */
+    int getTotalRecords() {
+        return totalRecords;
+    }
+
+    /**
+     * Obtains the offset since the beginning of the zip archive where the Central Directory is
+     * located.
+     *
+     * @return the offset where the Central Directory is located
+     */
+    long getDirectoryOffset() {
+        return directoryOffset;
+    }
+
+    /**
+     * Obtains the size of the Central Directory.
+     *
+     * @return the number of bytes that make up the Central Directory
+     */
+    long getDirectorySize() {
+        return directorySize;
+    }
+
+    /**
+     * Obtains the size of the record and locator.
+     *
+     * @return the size, in bytes, of the record and the locator
+     */
+    long getSize() {
+        return (long) FIXED_RECORD_SIZE + extensibleData.length + LOCATOR_SIZE;
+    }
+
+    /**
+     * Generates the record and locator data.
+     *
+     * @return a byte representation of the record followed by the locator that has exactly
+     * {@link #getSize()} bytes
+     * @throws IOException failed to generate the data
+     */
+    @Nonnull
+    byte[] toBytes() throws IOException {
+        return byteSupplier.get();
+    }
+
+    /**
+     * Computes the byte representation of the record and locator.
+     *
+     * @return a byte representation that has exactly {@link #getSize()} bytes
+     * @throws UncheckedIOException failed to generate the data
+     */
+    @Nonnull
+    private byte[] computeByteRepresentation() {
+        ByteBuffer out = ByteBuffer.allocate(Ints.checkedCast(getSize()));
+
+        try {
+            F_SIGNATURE.write(out);
+            F_RECORD_SIZE.write(
+                    out,
+                    FIXED_RECORD_SIZE - F_RECORD_SIZE.endOffset() + extensibleData.length);
+            F_MADE_BY.write(out, VERSION_WITH_ZIP64);
+            F_VERSION_EXTRACT.write(out, VERSION_WITH_ZIP64);
+            F_NUMBER_OF_DISK.write(out);
+            F_DISK_CD_START.write(out);
+            F_RECORDS_DISK.write(out, totalRecords);
+            F_RECORDS_TOTAL.write(out, totalRecords);
+            F_CD_SIZE.write(out, directorySize);
+            F_CD_OFFSET.write(out, directoryOffset);
+            out.put(extensibleData);
+
+            F_LOCATOR_SIGNATURE.write(out);
+            F_LOCATOR_DISK.write(out);
+            F_LOCATOR_RECORD_OFFSET.write(out, recordOffset);
+            F_LOCATOR_TOTAL_DISKS.write(out);
+
+            return out.array();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -34,8 +34,8 @@ import javax.annotation.Nullable;
  * <p>
  * There are two main types of fields: 2-byte fields and 4-byte fields. We represent each one as
  * a subclass of {@code ZipField}, {@code F2} for the 2-byte field and {@code F4} for the 4-byte
- * field. Because Java's {@code int} data type is guaranteed to be 4-byte, all methods use Java's
- * native {@link int} as data type.
+ * field. Zip64 records also have 8-byte fields, represented by {@code F8}. All methods use Java's
+ * native {@code long} as data type.
  * <p>
  * For each field we can either read, write or verify. Verification is used for fields whose value
  * we know. Some fields, <em>e.g.</em> signature fields, have fixed value. Other fields have
@@ -66,7 +66,7 @@ abstract class ZipField {
     protected final int offset;
 
     /**
-     * Size of the field. Only 2 or 4 allowed.
+     * Size of the field. Only 2, 4 or 8 allowed.
      */
     private final int size;
 
@@ -92,7 +92,9 @@ abstract class ZipField {
      */
     ZipField(int offset, int size, @Nonnull String name, ZipFieldInvariant... invariants) {
         Preconditions.checkArgument(offset >= 0, "offset >= 0");
-        Preconditions.checkArgument(size == 2 || size == 4, "size != 2 && size != 4");
+        Preconditions.checkArgument(
+                size == 2 || size == 4 || size == 8,
+                "size != 2 && size != 4 && size != 8");
 
         this.name = name;
         this.offset = offset;
@@ -111,7 +113,9 @@ abstract class ZipField {
      */
     ZipField(int offset, int size, long expected, @Nonnull String name) {
         Preconditions.checkArgument(offset >= 0, "offset >= 0");
-        Preconditions.checkArgument(size == 2 || size == 4, "size != 2 && size != 4");
+        Preconditions.checkArgument(
+                size == 2 || size == 4 || size == 8,
+                "size != 2 && size != 4 && size != 8");
 
         this.name = name;
         this.offset = offset;
@@ -171,8 +175,10 @@ abstract class ZipField {
         long r;
         if (size == 2) {
             r = LittleEndianUtils.readUnsigned2Le(bytes);
-        } else {
+        } else if (size == 4) {
             r =  LittleEndianUtils.readUnsigned4Le(bytes);
+        } else {
+            r = LittleEndianUtils.readUnsigned8Le(bytes);
         }
 
         checkVerifiesInvariants(r);
@@ -268,11 +274,13 @@ abstract class ZipField {
         if (size == 2) {
             Preconditions.checkArgument(value <= 0x0000ffff, "value (%s) > 0x0000ffff", value);
             LittleEndianUtils.writeUnsigned2Le(output, Ints.checkedCast(value));
-        } else {
-            Verify.verify(size == 4);
+        } else if (size == 4) {
             Preconditions.checkArgument(value <= 0x00000000ffffffffL,
                     "value (%s) > 0x00000000ffffffffL", value);
             LittleEndianUtils.writeUnsigned4Le(output, value);
+        } else {
+            Verify.verify(size == 8);
+            LittleEndianUtils.writeUnsigned8Le(output, value);
         }
     }
 
@@ -312,6 +320,12 @@ abstract class ZipField {
      */
     static class F2 extends ZipField {
 
+        /**
+         * Value stored in a 2-byte field whose actual value does not fit in the field and is
+         * stored in a Zip64 record instead.
+         */
+        static final long ZIP64_MARKER = 0xffffL;
+
         /**
          * Creates a new field.
          *
@@ -339,6 +353,13 @@ abstract class ZipField {
      * Concrete implementation of {@link ZipField} that represents a 4-byte field.
      */
     static class F4 extends ZipField {
+
+        /**
+         * Value stored in a 4-byte field whose actual value does not fit in the field and is
+         * stored in a Zip64 record instead.
+         */
+        static final long ZIP64_MARKER = 0xffffffffL;
+
         /**
          * Creates a new field.
          *
@@ -361,4 +382,22 @@ abstract class ZipField {
             super(offset, 4, expected, name);
         }
     }
+
+    /**
+     * Concrete implementation of {@link ZipField} that represents an 8-byte field. These fields
+     * only exist in Zip64 records.
+     */
+    static class F8 extends ZipField {
+
+        /**
+         * Creates a new field.
+         *
+         * @param offset the field's offset in the record
+         * @param name the field's name
+         * @param invariants the invariants that must be verified by the field
+         */
+        F8(int offset, @Nonnull String name, ZipFieldInvariant... invariants) {
+            super(offset, 8, name, invariants);
+        }
+    }
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip.compress;
+
+import com.android.tools.build.apkzlib.zip.CompressionResult;
+import com.android.tools.build.apkzlib.zip.utils.ByteTracker;
+import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+import javax.annotation.Nonnull;
+
+/**
+ * Compressor that uses deflate and adapts the compression level to meet a target throughput.
+ *
+ * <p>Entries are grouped in classes according to their file extension. For each class, the
+ * compressor measures the throughput (uncompressed bytes compressed per second, per thread) and
+ * compression ratio achieved. After enough data of a class has been compressed, the level used for
+ * that class is decreased if the throughput is below the target, or increased if the throughput is
+ * well above the target and the next level is neither known to be too slow nor known to compress
+ * worse. Levels range from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION} and
+ * all classes start with the level used by {@link Deflater#DEFAULT_COMPRESSION}.
+ *
+ * <p>The levels currently used for each class can be obtained with {@link #getLevels()}.
+ *
+ * <p>Because the level depends on measured times, compressing the same files twice may yield
+ * different results. This compressor should therefore not be used when reproducible output is
+ * required, for example for release builds.
+ */
+public class AdaptiveDeflateCompressor extends ExecutorCompressor {
+
+    /**
+     * Level all classes start with. This is the level used by {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    private static final int INITIAL_LEVEL = 6;
+
+    /**
+     * Number of uncompressed bytes of a class that need to be compressed before the level of the
+     * class is reconsidered.
+     */
+    private static final long ADJUSTMENT_WINDOW_BYTES = 1024 * 1024;
+
+    /**
+     * How much higher than the target the throughput has to be to increase the level.
+     */
+    private static final double INCREASE_HEADROOM = 1.5;
+
+    /**
+     * Class of entries whose name is not known.
+     */
+    private static final String UNKNOWN_CLASS = "";
+
+    /**
+     * Deflaters, indexed by compression level.
+     */
+    @Nonnull
+    private final DeflateExecutionCompressor[] deflaters;
+
+    /**
+     * Target throughput, in bytes per second.
+     */
+    private final long targetBytesPerSecond;
+
+    /**
+     * Compression statistics for each class of entries.
+     */
+    @Nonnull
+    private final Map<String, ClassStatistics> statistics;
+
+    /**
+     * Creates a new compressor.
+     *
+     * @param executor the executor used to perform compression activities
+     * @param tracker the byte tracker to keep track of allocated bytes
+     * @param targetBytesPerSecond the target throughput, in uncompressed bytes per second per
+     * compressing thread
+     */
+    public AdaptiveDeflateCompressor(
+            @Nonnull Executor executor,
+            @Nonnull ByteTracker tracker,
+            long targetBytesPerSecond) {
+        super(executor);
+
+        Preconditions.checkArgument(targetBytesPerSecond > 0, "targetBytesPerSecond <= 0");
+
+        deflaters = new DeflateExecutionCompressor[Deflater.BEST_COMPRESSION + 1];
+        for (int level = Deflater.BEST_SPEED; level <= Deflater.BEST_COMPRESSION; level++) {
+            deflaters[level] = new DeflateExecutionCompressor(executor, tracker, level);
+        }
+
+        this.targetBytesPerSecond = targetBytesPerSecond;
+        statistics = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Obtains the compression levels currently used.
+     *
+     * @return the level used for each class of entries, indexed by file extension; entries whose
+     * name is not known are in the class with an empty name
+     */
+    @Nonnull
+    public ImmutableMap<String, Integer> getLevels() {
+        ImmutableMap.Builder<String, Integer> levels = ImmutableMap.builder();
+        statistics.forEach((entryClass, stats) -> levels.put(entryClass, stats.getLevel()));
+        return levels.build();
+    }
+
+    @Nonnull
+    @Override
+    protected CompressionResult immediateCompress(@Nonnull CloseableByteSource source)
+            throws Exception {
+        return compressWithClassLevel(UNKNOWN_CLASS, source);
+    }
+
+    @Nonnull
+    @Override
+    protected CompressionResult immediateCompress(
+            @Nonnull String name,
+            @Nonnull CloseableByteSource source)
+            throws Exception {
+        return compressWithClassLevel(FileNames.extension(name), source);
+    }
+
+    /**
+     * Compresses a source with the level currently used for its class and records the
+     * compression statistics.
+     *
+     * @param entryClass the class of the entry
+     * @param source the source to compress
+     * @return the result of compression
+     * @throws IOException failed to compress
+     */
+    @Nonnull
+    private CompressionResult compressWithClassLevel(
+            @Nonnull String entryClass,
+            @Nonnull CloseableByteSource source)
+            throws IOException {
+        ClassStatistics stats = statistics.computeIfAbsent(entryClass, c -> new ClassStatistics());
+        int level = stats.getLevel();
+
+        byte[] data = source.read();
+        long start = System.nanoTime();
+        CompressionResult result = deflaters[level].immediateCompress(source, data);
+        long elapsed = System.nanoTime() - start;
+
+        stats.record(level, data.length, result.getSize(), elapsed);
+        return result;
+    }
+
+    /**
+     * Compression statistics of a class of entries.
+     */
+    private class ClassStatistics {
+
+        /**
+         * Level currently used.
+         */
+        private int level;
+
+        /**
+         * Uncompressed bytes compressed with the current level since the level was last
+         * reconsidered.
+         */
+        private long windowBytes;
+
+        /**
+         * Compressed bytes produced with the current level since the level was last reconsidered.
+         */
+        private long windowCompressedBytes;
+
+        /**
+         * Time spent compressing with the current level since the level was last reconsidered.
+         */
+        private long windowNanos;
+
+        /**
+         * Last measured compression ratio (compressed size / uncompressed size), indexed by level;
+         * {@code 0} if the ratio has not been measured for a level.
+         */
+        @Nonnull
+        private final double[] ratios;
+
+        /**
+         * Levels whose throughput has been measured to be below the target, indexed by level.
+         */
+        @Nonnull
+        private final boolean[] tooSlow;
+
+        /**
+         * Creates new statistics.
+         */
+        ClassStatistics() {
+            level = INITIAL_LEVEL;
+            ratios = new double[Deflater.BEST_COMPRESSION + 1];
+            tooSlow = new boolean[Deflater.BEST_COMPRESSION + 1];
+        }
+
+        /**
+         * Obtains the level currently used.
+         *
+         * @return the level
+         */
+        synchronized int getLevel() {
+            return level;
+        }
+
+        /**
+         * Records the compression of an entry and, if enough data has been compressed,
+         * reconsiders the level.
+         *
+         * @param usedLevel the level used to compress the entry
+         * @param size the uncompressed size of the entry
+         * @param compressedSize the compressed size of the entry
+         * @param nanos the time spent compressing the entry
+         */
+        synchronized void record(int usedLevel, long size, long compressedSize, long nanos) {
+            if (usedLevel != level) {
+                /*
+                 * The level changed while the entry was being compressed.
+                 */
+                return;
+            }
+
+            windowBytes += size;
+            windowCompressedBytes += compressedSize;
+            windowNanos += nanos;
+            if (windowBytes < ADJUSTMENT_WINDOW_BYTES) {
+                return;
+            }
+
+            double bytesPerSecond = windowBytes * 1e9 / Math.max(1, windowNanos);
+            ratios[level] = windowCompressedBytes / (double) windowBytes;
+
+            tooSlow[level] = bytesPerSecond < targetBytesPerSecond;
+            if (tooSlow[level] && level > Deflater.BEST_SPEED) {
+                level--;
+            } else if (bytesPerSecond > targetBytesPerSecond * INCREASE_HEADROOM
+                    && level < Deflater.BEST_COMPRESSION
+                    && !tooSlow[level + 1]
+                    && (ratios[level + 1] == 0 || ratios[level + 1] < ratios[level])) {
+                level++;
+            }
+
+            windowBytes = 0;
+            windowCompressedBytes = 0;
+            windowNanos = 0;
+        }
+    }
+}
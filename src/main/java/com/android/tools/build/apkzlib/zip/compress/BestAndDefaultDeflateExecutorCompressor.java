@@ -16,20 +16,43 @@
 
 package com.android.tools.build.apkzlib.zip.compress;
 
+import com.android.tools.build.apkzlib.zip.CompressionMethod;
 import com.android.tools.build.apkzlib.zip.CompressionResult;
 import com.android.tools.build.apkzlib.zip.utils.ByteTracker;
 import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
 import com.google.common.base.Preconditions;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.zip.Deflater;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * Compressor that tries both the best and default compression algorithms and picks the default
  * unless the best is at least a given percentage smaller.
+ *
+ * <p>The source is read only once. The best compression is done after the default compression
+ * and is abandoned as soon as its output is large enough that it can no longer be picked, so
+ * entries for which best compression is not worth it are not fully compressed twice.
+ *
+ * <p>Optionally, the compressor may keep a history of whether best compression was worth it for
+ * each file extension (see
+ * {@link #BestAndDefaultDeflateExecutorCompressor(Executor, ByteTracker, double, int)}). If best
+ * compression was never picked for files with an extension after a number of attempts, files
+ * with that extension are only compressed with the default compression. Since the history
+ * depends on the order in which files are compressed, this makes the result depend on the
+ * executor's scheduling if the executor uses more than one thread.
  */
 public class BestAndDefaultDeflateExecutorCompressor extends ExecutorCompressor {
 
+    /**
+     * Size of the buffer receiving output of the best compression.
+     */
+    private static final int DEFLATE_BUFFER_SIZE = 64 * 1024;
+
     /**
      * Deflater using the default compression level.
      */
@@ -37,10 +60,10 @@ public class BestAndDefaultDeflateExecutorCompressor extends ExecutorCompressor
     private final DeflateExecutionCompressor defaultDeflater;
 
     /**
-     * Deflater using the best compression level.
+     * Byte tracker to use to create byte sources.
      */
     @Nonnull
-    private final DeflateExecutionCompressor bestDeflater;
+    private final ByteTracker tracker;
 
     /**
      * Minimum best compression size / default compression size ratio needed to pick the default
@@ -48,6 +71,19 @@ public class BestAndDefaultDeflateExecutorCompressor extends ExecutorCompressor
      */
     private final double minRatio;
 
+    /**
+     * Number of times best compression has to be not worth it for files with an extension before
+     * best compression is no longer tried for that extension; {@code 0} if there is no history.
+     */
+    private final int maxUnprofitableAttempts;
+
+    /**
+     * History of best compression attempts, indexed by file extension. Only used if
+     * {@link #maxUnprofitableAttempts} is positive.
+     */
+    @Nonnull
+    private final Map<String, ExtensionHistory> history;
+
     /**
      * Creates a new compressor.
      *
@@ -60,30 +96,176 @@ public class BestAndDefaultDeflateExecutorCompressor extends ExecutorCompressor
      */
     public BestAndDefaultDeflateExecutorCompressor(@Nonnull Executor executor,
             @Nonnull ByteTracker tracker, double minRatio) {
+        this(executor, tracker, minRatio, 0);
+    }
+
+    /**
+     * Creates a new compressor that keeps a history of best compression attempts per file
+     * extension.
+     *
+     * @param executor the executor used to perform compression activities.
+     * @param tracker the byte tracker to keep track of allocated bytes
+     * @param minRatio the minimum best compression size / default compression size needed to pick
+     * the default compression size; if {@code 0.0} then the default compression is always picked,
+     * if {@code 1.0} then the best compression is always picked unless it produces the exact same
+     * size as the default compression.
+     * @param maxUnprofitableAttempts number of files with an extension for which the best
+     * compression is not picked before the best compression is no longer attempted for files with
+     * that extension; once the best compression is picked for a file with an extension, it is
+     * always attempted for that extension; if {@code 0} no history is kept and the best
+     * compression is always attempted
+     */
+    public BestAndDefaultDeflateExecutorCompressor(@Nonnull Executor executor,
+            @Nonnull ByteTracker tracker, double minRatio, int maxUnprofitableAttempts) {
         super(executor);
 
         Preconditions.checkArgument(minRatio >= 0.0, "minRatio < 0.0");
         Preconditions.checkArgument(minRatio <= 1.0, "minRatio > 1.0");
+        Preconditions.checkArgument(maxUnprofitableAttempts >= 0, "maxUnprofitableAttempts < 0");
 
         defaultDeflater =
                 new DeflateExecutionCompressor(executor, tracker, Deflater.DEFAULT_COMPRESSION);
-        bestDeflater =
-                new DeflateExecutionCompressor(executor, tracker, Deflater.BEST_COMPRESSION);
+        this.tracker = tracker;
         this.minRatio = minRatio;
+        this.maxUnprofitableAttempts = maxUnprofitableAttempts;
+        history = new ConcurrentHashMap<>();
     }
 
     @Nonnull
     @Override
     protected CompressionResult immediateCompress(@Nonnull CloseableByteSource source)
             throws Exception {
-        CompressionResult defaultResult = defaultDeflater.immediateCompress(source);
-        CompressionResult bestResult = bestDeflater.immediateCompress(source);
+        return compressWithBestAttempt(null, source);
+    }
+
+    @Nonnull
+    @Override
+    protected CompressionResult immediateCompress(
+            @Nonnull String name,
+            @Nonnull CloseableByteSource source)
+            throws Exception {
+        return compressWithBestAttempt(name, source);
+    }
 
-        double sizeRatio = bestResult.getSize() / (double) defaultResult.getSize();
-        if (sizeRatio >= minRatio) {
+    /**
+     * Compresses a source, choosing between the default and the best compression.
+     *
+     * @param name the name of the entry, {@code null} if not known
+     * @param source the source to compress
+     * @return the result of compression
+     * @throws IOException failed to compress
+     */
+    @Nonnull
+    private CompressionResult compressWithBestAttempt(
+            @Nullable String name,
+            @Nonnull CloseableByteSource source)
+            throws IOException {
+        byte[] data = source.read();
+        CompressionResult defaultResult = defaultDeflater.immediateCompress(source, data);
+
+        ExtensionHistory extensionHistory = null;
+        if (name != null && maxUnprofitableAttempts > 0) {
+            extensionHistory =
+                    history.computeIfAbsent(
+                            FileNames.extension(name),
+                            e -> new ExtensionHistory());
+            if (!extensionHistory.shouldAttempt(maxUnprofitableAttempts)) {
+                return defaultResult;
+            }
+        }
+
+        /*
+         * The best compression is only picked if its size is below this limit.
+         */
+        double limit = defaultResult.getSize() * minRatio;
+        CompressionResult bestResult = compressBest(data, limit);
+        if (extensionHistory != null) {
+            extensionHistory.record(bestResult != null);
+        }
+
+        if (bestResult == null) {
             return defaultResult;
-        } else {
-            return bestResult;
+        }
+
+        if (defaultResult.getSource() != source) {
+            defaultResult.getSource().close();
+        }
+
+        return bestResult;
+    }
+
+    /**
+     * Compresses data using the best compression, giving up if the compressed size reaches a
+     * limit.
+     *
+     * @param data the data to compress
+     * @param limit the compressed size above which compression is abandoned
+     * @return the result of compression or {@code null} if the compressed data was at least as
+     * large as the limit
+     * @throws IOException failed to compress
+     */
+    @Nullable
+    private CompressionResult compressBest(@Nonnull byte[] data, double limit)
+            throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            byte[] buffer = new byte[DEFLATE_BUFFER_SIZE];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                output.write(buffer, 0, count);
+                if (output.size() >= limit) {
+                    return null;
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+
+        CloseableByteSource result = tracker.fromStream(output);
+        return new CompressionResult(result, CompressionMethod.DEFLATE, result.size());
+    }
+
+    /**
+     * History of best compression attempts for files with an extension.
+     */
+    private static class ExtensionHistory {
+
+        /**
+         * Number of attempts in which best compression was not picked.
+         */
+        private int unprofitableAttempts;
+
+        /**
+         * Has best compression ever been picked?
+         */
+        private boolean profitable;
+
+        /**
+         * Checks whether best compression should be attempted.
+         *
+         * @param maxUnprofitableAttempts maximum number of attempts in which best compression is
+         * not picked
+         * @return should best compression be attempted?
+         */
+        synchronized boolean shouldAttempt(int maxUnprofitableAttempts) {
+            return profitable || unprofitableAttempts < maxUnprofitableAttempts;
+        }
+
+        /**
+         * Records the result of an attempt.
+         *
+         * @param picked was best compression picked?
+         */
+        synchronized void record(boolean picked) {
+            if (picked) {
+                profitable = true;
+            } else {
+                unprofitableAttempts++;
+            }
         }
     }
 }
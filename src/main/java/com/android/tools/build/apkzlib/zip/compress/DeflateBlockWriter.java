@@ -0,0 +1,719 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip.compress;
+
+import com.google.common.base.Preconditions;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import javax.annotation.Nonnull;
+
+/**
+ * Writes a raw deflate stream (RFC 1951) from sequences of LZ77 symbols. Each symbol is either a
+ * literal byte or a (length, distance) back reference. Blocks are written with dynamic Huffman
+ * codes or with the fixed Huffman codes, whichever is smaller.
+ */
+final class DeflateBlockWriter {
+
+    /**
+     * Number of literal/length symbols.
+     */
+    static final int LITERAL_LENGTH_SYMBOLS = 286;
+
+    /**
+     * Number of distance symbols.
+     */
+    static final int DISTANCE_SYMBOLS = 30;
+
+    /**
+     * Symbol that ends a block.
+     */
+    static final int END_OF_BLOCK = 256;
+
+    /**
+     * Minimum length of a back reference.
+     */
+    static final int MIN_MATCH = 3;
+
+    /**
+     * Maximum length of a back reference.
+     */
+    static final int MAX_MATCH = 258;
+
+    /**
+     * Maximum distance of a back reference.
+     */
+    static final int WINDOW_SIZE = 32768;
+
+    /**
+     * Base length of each length symbol, starting at symbol 257.
+     */
+    private static final int[] LENGTH_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99,
+            115, 131, 163, 195, 227, 258
+    };
+
+    /**
+     * Number of extra bits of each length symbol, starting at symbol 257.
+     */
+    private static final int[] LENGTH_EXTRA_BITS = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0
+    };
+
+    /**
+     * Base distance of each distance symbol.
+     */
+    private static final int[] DISTANCE_BASE = {
+            1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025,
+            1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577
+    };
+
+    /**
+     * Number of extra bits of each distance symbol.
+     */
+    private static final int[] DISTANCE_EXTRA_BITS = {
+            0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12,
+            12, 13, 13
+    };
+
+    /**
+     * Order in which the code lengths of the code length alphabet are written.
+     */
+    private static final int[] CODE_LENGTH_ORDER = {
+            16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+    };
+
+    /**
+     * Literal/length symbol of each match length.
+     */
+    private static final int[] LENGTH_SYMBOL = new int[MAX_MATCH + 1];
+
+    /**
+     * Distance symbol of each distance.
+     */
+    private static final byte[] DISTANCE_SYMBOL = new byte[WINDOW_SIZE + 1];
+
+    /**
+     * Code lengths of the fixed literal/length code.
+     */
+    private static final int[] FIXED_LITERAL_LENGTH_LENGTHS = new int[288];
+
+    /**
+     * Code lengths of the fixed distance code.
+     */
+    private static final int[] FIXED_DISTANCE_LENGTHS = new int[32];
+
+    static {
+        for (int code = 0; code < LENGTH_BASE.length; code++) {
+            int end = code + 1 < LENGTH_BASE.length ? LENGTH_BASE[code + 1] : MAX_MATCH + 1;
+            for (int length = LENGTH_BASE[code]; length < end; length++) {
+                LENGTH_SYMBOL[length] = 257 + code;
+            }
+        }
+
+        for (int code = 0; code < DISTANCE_BASE.length; code++) {
+            int end = code + 1 < DISTANCE_BASE.length ? DISTANCE_BASE[code + 1] : WINDOW_SIZE + 1;
+            for (int distance = DISTANCE_BASE[code]; distance < end; distance++) {
+                DISTANCE_SYMBOL[distance] = (byte) code;
+            }
+        }
+
+        Arrays.fill(FIXED_LITERAL_LENGTH_LENGTHS, 0, 144, 8);
+        Arrays.fill(FIXED_LITERAL_LENGTH_LENGTHS, 144, 256, 9);
+        Arrays.fill(FIXED_LITERAL_LENGTH_LENGTHS, 256, 280, 7);
+        Arrays.fill(FIXED_LITERAL_LENGTH_LENGTHS, 280, 288, 8);
+        Arrays.fill(FIXED_DISTANCE_LENGTHS, 5);
+    }
+
+    /**
+     * Output of the writer.
+     */
+    @Nonnull
+    private final ByteArrayOutputStream output;
+
+    /**
+     * Bits that have been written but not yet sent to {@link #output}.
+     */
+    private long bitBuffer;
+
+    /**
+     * Number of valid bits in {@link #bitBuffer}.
+     */
+    private int bitCount;
+
+    /**
+     * Creates a new writer.
+     */
+    DeflateBlockWriter() {
+        output = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Obtains the literal/length symbol of a match length.
+     *
+     * @param length the length, between {@link #MIN_MATCH} and {@link #MAX_MATCH}
+     * @return the symbol
+     */
+    static int lengthSymbol(int length) {
+        return LENGTH_SYMBOL[length];
+    }
+
+    /**
+     * Obtains the number of extra bits written after a length symbol.
+     *
+     * @param symbol the length symbol
+     * @return the number of bits
+     */
+    static int lengthExtraBits(int symbol) {
+        return LENGTH_EXTRA_BITS[symbol - 257];
+    }
+
+    /**
+     * Obtains the distance symbol of a distance.
+     *
+     * @param distance the distance, between {@code 1} and {@link #WINDOW_SIZE}
+     * @return the symbol
+     */
+    static int distanceSymbol(int distance) {
+        return DISTANCE_SYMBOL[distance];
+    }
+
+    /**
+     * Obtains the number of extra bits written after a distance symbol.
+     *
+     * @param symbol the distance symbol
+     * @return the number of bits
+     */
+    static int distanceExtraBits(int symbol) {
+        return DISTANCE_EXTRA_BITS[symbol];
+    }
+
+    /**
+     * Writes a block with the given symbols.
+     *
+     * @param lengths the literal or the match length of each symbol; symbols with a distance of
+     * {@code 0} are literals
+     * @param distances the distance of each symbol, {@code 0} for literals
+     * @param start the index of the first symbol of the block
+     * @param end the index after the last symbol of the block
+     * @param last is this the last block of the stream?
+     */
+    void writeBlock(
+            @Nonnull int[] lengths,
+            @Nonnull int[] distances,
+            int start,
+            int end,
+            boolean last) {
+        BlockCodes codes = new BlockCodes(lengths, distances, start, end);
+        writeBits(last ? 1 : 0, 1);
+
+        int[] literalLengthLengths;
+        int[] distanceLengths;
+        if (codes.dynamicBits() < codes.fixedBits()) {
+            writeBits(2, 2);
+            codes.writeDynamicHeader(this);
+            literalLengthLengths = codes.literalLengthLengths;
+            distanceLengths = codes.distanceLengths;
+        } else {
+            writeBits(1, 2);
+            literalLengthLengths = FIXED_LITERAL_LENGTH_LENGTHS;
+            distanceLengths = FIXED_DISTANCE_LENGTHS;
+        }
+
+        int[] literalLengthCodes = canonicalCodes(literalLengthLengths);
+        int[] distanceCodes = canonicalCodes(distanceLengths);
+        for (int i = start; i < end; i++) {
+            if (distances[i] == 0) {
+                writeBits(literalLengthCodes[lengths[i]], literalLengthLengths[lengths[i]]);
+            } else {
+                int lengthSymbol = LENGTH_SYMBOL[lengths[i]];
+                writeBits(literalLengthCodes[lengthSymbol], literalLengthLengths[lengthSymbol]);
+                writeBits(
+                        lengths[i] - LENGTH_BASE[lengthSymbol - 257],
+                        LENGTH_EXTRA_BITS[lengthSymbol - 257]);
+
+                int distanceSymbol = DISTANCE_SYMBOL[distances[i]];
+                writeBits(distanceCodes[distanceSymbol], distanceLengths[distanceSymbol]);
+                writeBits(
+                        distances[i] - DISTANCE_BASE[distanceSymbol],
+                        DISTANCE_EXTRA_BITS[distanceSymbol]);
+            }
+        }
+
+        writeBits(literalLengthCodes[END_OF_BLOCK], literalLengthLengths[END_OF_BLOCK]);
+    }
+
+    /**
+     * Computes the number of bits needed to write a block with the given symbols, including the
+     * block header.
+     *
+     * @param lengths the literal or the match length of each symbol
+     * @param distances the distance of each symbol, {@code 0} for literals
+     * @param start the index of the first symbol of the block
+     * @param end the index after the last symbol of the block
+     * @return the number of bits
+     */
+    static long blockBits(@Nonnull int[] lengths, @Nonnull int[] distances, int start, int end) {
+        BlockCodes codes = new BlockCodes(lengths, distances, start, end);
+        return 3 + Math.min(codes.dynamicBits(), codes.fixedBits());
+    }
+
+    /**
+     * Finishes the stream and obtains all data written.
+     *
+     * @return the deflate stream
+     */
+    @Nonnull
+    byte[] finish() {
+        while (bitCount > 0) {
+            output.write((int) (bitBuffer & 0xff));
+            bitBuffer >>>= 8;
+            bitCount = Math.max(0, bitCount - 8);
+        }
+
+        return output.toByteArray();
+    }
+
+    /**
+     * Writes bits to the stream, least significant bit first.
+     *
+     * @param value the bits to write
+     * @param count the number of bits to write, at most {@code 32}
+     */
+    private void writeBits(int value, int count) {
+        bitBuffer |= (value & 0xffffffffL) << bitCount;
+        bitCount += count;
+        while (bitCount >= 8) {
+            output.write((int) (bitBuffer & 0xff));
+            bitBuffer >>>= 8;
+            bitCount -= 8;
+        }
+    }
+
+    /**
+     * Computes Huffman code lengths for symbol frequencies, limiting the length of the codes. If
+     * the optimal code exceeds the limit, frequencies are flattened until it does not.
+     *
+     * @param frequencies the frequency of each symbol
+     * @param maxLength the maximum code length
+     * @return the code length of each symbol, {@code 0} for symbols that do not occur
+     */
+    @Nonnull
+    static int[] codeLengths(@Nonnull int[] frequencies, int maxLength) {
+        int[] flattened = frequencies.clone();
+        while (true) {
+            int[] lengths = unlimitedCodeLengths(flattened);
+            boolean fits = true;
+            for (int length : lengths) {
+                fits &= length <= maxLength;
+            }
+
+            if (fits) {
+                return lengths;
+            }
+
+            for (int i = 0; i < flattened.length; i++) {
+                if (flattened[i] > 0) {
+                    flattened[i] = (flattened[i] + 1) / 2;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes optimal Huffman code lengths for symbol frequencies.
+     *
+     * @param frequencies the frequency of each symbol
+     * @return the code length of each symbol, {@code 0} for symbols that do not occur
+     */
+    @Nonnull
+    private static int[] unlimitedCodeLengths(@Nonnull int[] frequencies) {
+        int symbols = frequencies.length;
+        int[] lengths = new int[symbols];
+
+        /*
+         * Nodes 0 to symbols - 1 are the leaves, the others are internal nodes. The queue holds
+         * weight << 16 | node, so ties are broken by node number and the result is deterministic.
+         */
+        int[] parent = new int[2 * symbols];
+        PriorityQueue<Long> queue = new PriorityQueue<>();
+        for (int i = 0; i < symbols; i++) {
+            if (frequencies[i] > 0) {
+                queue.add(((long) frequencies[i] << 16) | i);
+            }
+        }
+
+        if (queue.size() == 1) {
+            lengths[(int) (queue.peek() & 0xffff)] = 1;
+            return lengths;
+        }
+
+        int nextNode = symbols;
+        while (queue.size() > 1) {
+            long first = queue.poll();
+            long second = queue.poll();
+            parent[(int) (first & 0xffff)] = nextNode;
+            parent[(int) (second & 0xffff)] = nextNode;
+            queue.add((((first >>> 16) + (second >>> 16)) << 16) | nextNode);
+            nextNode++;
+        }
+
+        int root = nextNode - 1;
+        for (int i = 0; i < symbols; i++) {
+            if (frequencies[i] > 0) {
+                int length = 0;
+                for (int node = i; node != root; node = parent[node]) {
+                    length++;
+                }
+
+                lengths[i] = length;
+            }
+        }
+
+        return lengths;
+    }
+
+    /**
+     * Computes the canonical Huffman codes for code lengths. Codes are bit-reversed so they can
+     * be written least significant bit first.
+     *
+     * @param lengths the code length of each symbol
+     * @return the code of each symbol
+     */
+    @Nonnull
+    private static int[] canonicalCodes(@Nonnull int[] lengths) {
+        int maxLength = 0;
+        for (int length : lengths) {
+            maxLength = Math.max(maxLength, length);
+        }
+
+        int[] lengthCount = new int[maxLength + 1];
+        for (int length : lengths) {
+            if (length > 0) {
+                lengthCount[length]++;
+            }
+        }
+
+        int[] nextCode = new int[maxLength + 2];
+        int code = 0;
+        for (int length = 1; length <= maxLength; length++) {
+            code = (code + lengthCount[length - 1]) << 1;
+            nextCode[length] = code;
+        }
+
+        int[] codes = new int[lengths.length];
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] > 0) {
+                codes[i] = Integer.reverse(nextCode[lengths[i]]++) >>> (32 - lengths[i]);
+            }
+        }
+
+        return codes;
+    }
+
+    /**
+     * Huffman codes and sizes of a block.
+     */
+    private static class BlockCodes {
+
+        /**
+         * Frequencies of the literal/length symbols.
+         */
+        @Nonnull
+        private final int[] literalLengthFrequencies;
+
+        /**
+         * Frequencies of the distance symbols.
+         */
+        @Nonnull
+        private final int[] distanceFrequencies;
+
+        /**
+         * Number of extra bits written after length and distance symbols.
+         */
+        private long extraBits;
+
+        /**
+         * Code lengths of the dynamic literal/length code.
+         */
+        @Nonnull
+        private final int[] literalLengthLengths;
+
+        /**
+         * Code lengths of the dynamic distance code.
+         */
+        @Nonnull
+        private final int[] distanceLengths;
+
+        /**
+         * Code length symbols of the dynamic header, each followed by its extra bits value.
+         */
+        @Nonnull
+        private final int[] headerSymbols;
+
+        /**
+         * Number of entries used in {@link #headerSymbols}.
+         */
+        private int headerSymbolCount;
+
+        /**
+         * Code lengths of the code length alphabet.
+         */
+        @Nonnull
+        private final int[] headerLengths;
+
+        /**
+         * Number of literal/length code lengths written in the dynamic header.
+         */
+        private final int literalLengthCount;
+
+        /**
+         * Number of distance code lengths written in the dynamic header.
+         */
+        private final int distanceCount;
+
+        /**
+         * Number of code length code lengths written in the dynamic header.
+         */
+        private final int headerLengthCount;
+
+        /**
+         * Computes the codes of a block.
+         *
+         * @param lengths the literal or the match length of each symbol
+         * @param distances the distance of each symbol, {@code 0} for literals
+         * @param start the index of the first symbol of the block
+         * @param end the index after the last symbol of the block
+         */
+        BlockCodes(@Nonnull int[] lengths, @Nonnull int[] distances, int start, int end) {
+            Preconditions.checkArgument(start <= end, "start > end");
+
+            literalLengthFrequencies = new int[LITERAL_LENGTH_SYMBOLS];
+            distanceFrequencies = new int[DISTANCE_SYMBOLS];
+            for (int i = start; i < end; i++) {
+                if (distances[i] == 0) {
+                    literalLengthFrequencies[lengths[i]]++;
+                } else {
+                    int lengthSymbol = LENGTH_SYMBOL[lengths[i]];
+                    int distanceSymbol = DISTANCE_SYMBOL[distances[i]];
+                    literalLengthFrequencies[lengthSymbol]++;
+                    distanceFrequencies[distanceSymbol]++;
+                    extraBits += LENGTH_EXTRA_BITS[lengthSymbol - 257];
+                    extraBits += DISTANCE_EXTRA_BITS[distanceSymbol];
+                }
+            }
+
+            literalLengthFrequencies[END_OF_BLOCK] = 1;
+
+            /*
+             * Inflaters reject incomplete literal/length codes and only accept an incomplete
+             * distance code if it has a single symbol. Make sure both codes have at least two
+             * symbols so they are always complete.
+             */
+            int[] literalLengthCodeFrequencies = withTwoSymbols(literalLengthFrequencies);
+            int[] distanceCodeFrequencies = withTwoSymbols(distanceFrequencies);
+
+            literalLengthLengths = codeLengths(literalLengthCodeFrequencies, 15);
+            distanceLengths = codeLengths(distanceCodeFrequencies, 15);
+
+            literalLengthCount = Math.max(257, lastNonZero(literalLengthLengths) + 1);
+            distanceCount = Math.max(1, lastNonZero(distanceLengths) + 1);
+
+            int[] allLengths = new int[literalLengthCount + distanceCount];
+            System.arraycopy(literalLengthLengths, 0, allLengths, 0, literalLengthCount);
+            System.arraycopy(distanceLengths, 0, allLengths, literalLengthCount, distanceCount);
+
+            headerSymbols = new int[2 * allLengths.length];
+            int[] headerFrequencies = new int[19];
+            int i = 0;
+            while (i < allLengths.length) {
+                int value = allLengths[i];
+                int run = 1;
+                while (i + run < allLengths.length && allLengths[i + run] == value) {
+                    run++;
+                }
+
+                i += run;
+                if (value == 0) {
+                    while (run >= 11) {
+                        int count = Math.min(run, 138);
+                        addHeaderSymbol(headerFrequencies, 18, count - 11);
+                        run -= count;
+                    }
+
+                    if (run >= 3) {
+                        addHeaderSymbol(headerFrequencies, 17, run - 3);
+                        run = 0;
+                    }
+                } else {
+                    addHeaderSymbol(headerFrequencies, value, 0);
+                    run--;
+                    while (run >= 3) {
+                        int count = Math.min(run, 6);
+                        addHeaderSymbol(headerFrequencies, 16, count - 3);
+                        run -= count;
+                    }
+                }
+
+                for (; run > 0; run--) {
+                    addHeaderSymbol(headerFrequencies, value, 0);
+                }
+            }
+
+            headerLengths = codeLengths(withTwoSymbols(headerFrequencies), 7);
+            int count = 19;
+            while (count > 4 && headerLengths[CODE_LENGTH_ORDER[count - 1]] == 0) {
+                count--;
+            }
+
+            headerLengthCount = count;
+        }
+
+        /**
+         * Computes the number of bits of the block's data and header when written with dynamic
+         * codes, excluding the first three bits of the block.
+         *
+         * @return the number of bits
+         */
+        long dynamicBits() {
+            long bits = 5 + 5 + 4 + 3 * headerLengthCount;
+            for (int i = 0; i < headerSymbolCount; i += 2) {
+                int symbol = headerSymbols[i];
+                bits += headerLengths[symbol];
+                bits += symbol == 16 ? 2 : symbol == 17 ? 3 : symbol == 18 ? 7 : 0;
+            }
+
+            return bits + dataBits(literalLengthLengths, distanceLengths);
+        }
+
+        /**
+         * Computes the number of bits of the block's data when written with the fixed codes,
+         * excluding the first three bits of the block.
+         *
+         * @return the number of bits
+         */
+        long fixedBits() {
+            return dataBits(FIXED_LITERAL_LENGTH_LENGTHS, FIXED_DISTANCE_LENGTHS);
+        }
+
+        /**
+         * Writes the header of a block with dynamic codes, after the first three bits of the
+         * block.
+         *
+         * @param writer the writer to write to
+         */
+        void writeDynamicHeader(@Nonnull DeflateBlockWriter writer) {
+            writer.writeBits(literalLengthCount - 257, 5);
+            writer.writeBits(distanceCount - 1, 5);
+            writer.writeBits(headerLengthCount - 4, 4);
+            for (int i = 0; i < headerLengthCount; i++) {
+                writer.writeBits(headerLengths[CODE_LENGTH_ORDER[i]], 3);
+            }
+
+            int[] headerCodes = canonicalCodes(headerLengths);
+            for (int i = 0; i < headerSymbolCount; i += 2) {
+                int symbol = headerSymbols[i];
+                writer.writeBits(headerCodes[symbol], headerLengths[symbol]);
+                if (symbol == 16) {
+                    writer.writeBits(headerSymbols[i + 1], 2);
+                } else if (symbol == 17) {
+                    writer.writeBits(headerSymbols[i + 1], 3);
+                } else if (symbol == 18) {
+                    writer.writeBits(headerSymbols[i + 1], 7);
+                }
+            }
+        }
+
+        /**
+         * Computes the number of bits needed to write the block's symbols, including the end of
+         * block symbol.
+         *
+         * @param literalLengthCodeLengths the code lengths of the literal/length code
+         * @param distanceCodeLengths the code lengths of the distance code
+         * @return the number of bits
+         */
+        private long dataBits(
+                @Nonnull int[] literalLengthCodeLengths,
+                @Nonnull int[] distanceCodeLengths) {
+            long bits = extraBits;
+            for (int i = 0; i < LITERAL_LENGTH_SYMBOLS; i++) {
+                bits += (long) literalLengthFrequencies[i] * literalLengthCodeLengths[i];
+            }
+
+            for (int i = 0; i < DISTANCE_SYMBOLS; i++) {
+                bits += (long) distanceFrequencies[i] * distanceCodeLengths[i];
+            }
+
+            return bits;
+        }
+
+        /**
+         * Adds a symbol to the dynamic header.
+         *
+         * @param frequencies the frequencies of the code length symbols, updated
+         * @param symbol the code length symbol
+         * @param extra the value of the symbol's extra bits
+         */
+        private void addHeaderSymbol(@Nonnull int[] frequencies, int symbol, int extra) {
+            frequencies[symbol]++;
+            headerSymbols[headerSymbolCount++] = symbol;
+            headerSymbols[headerSymbolCount++] = extra;
+        }
+
+        /**
+         * Obtains frequencies with at least two symbols occurring, adding the first symbols that
+         * do not occur if needed.
+         *
+         * @param frequencies the frequencies
+         * @return frequencies with at least two symbols occurring
+         */
+        @Nonnull
+        private static int[] withTwoSymbols(@Nonnull int[] frequencies) {
+            int[] result = frequencies.clone();
+            int used = 0;
+            for (int frequency : result) {
+                if (frequency > 0) {
+                    used++;
+                }
+            }
+
+            for (int i = 0; i < result.length && used < 2; i++) {
+                if (result[i] == 0) {
+                    result[i] = 1;
+                    used++;
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * Obtains the index of the last non-zero value.
+         *
+         * @param values the values
+         * @return the index, {@code -1} if all values are zero
+         */
+        private static int lastNonZero(@Nonnull int[] values) {
+            int last = values.length - 1;
+            while (last >= 0 && values[last] == 0) {
+                last--;
+            }
+
+            return last;
+        }
+    }
+}
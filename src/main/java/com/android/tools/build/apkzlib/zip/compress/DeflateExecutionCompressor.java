@@ -21,6 +21,7 @@ import com.android.tools.build.apkzlib.zip.CompressionResult;
 import com.android.tools.build.apkzlib.zip.utils.ByteTracker;
 import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.concurrent.Executor;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
@@ -64,11 +65,25 @@ public class DeflateExecutionCompressor extends ExecutorCompressor {
     @Override
     protected CompressionResult immediateCompress(@Nonnull CloseableByteSource source)
             throws Exception {
+        return immediateCompress(source, source.read());
+    }
+
+    /**
+     * Immediately compresses a source whose data has already been read.
+     *
+     * @param source the source to compress
+     * @param data the source's data
+     * @return the result of compression
+     * @throws IOException failed to compress
+     */
+    @Nonnull
+    CompressionResult immediateCompress(@Nonnull CloseableByteSource source, @Nonnull byte[] data)
+            throws IOException {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         Deflater deflater = new Deflater(level, true);
 
         try (DeflaterOutputStream dos = new DeflaterOutputStream(output, deflater)) {
-            dos.write(source.read());
+            dos.write(data);
         }
 
         CloseableByteSource result = tracker.fromStream(output);
@@ -21,6 +21,7 @@ import com.android.tools.build.apkzlib.zip.Compressor;
 import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
 import javax.annotation.Nonnull;
 
@@ -48,10 +49,30 @@ public abstract class ExecutorCompressor implements Compressor {
     @Override
     public ListenableFuture<CompressionResult> compress(
             @Nonnull final CloseableByteSource source) {
+        return execute(() -> immediateCompress(source));
+    }
+
+    @Nonnull
+    @Override
+    public ListenableFuture<CompressionResult> compress(
+            @Nonnull final String name,
+            @Nonnull final CloseableByteSource source) {
+        return execute(() -> immediateCompress(name, source));
+    }
+
+    /**
+     * Runs a compression task in the executor.
+     *
+     * @param task the task to run
+     * @return a future that will eventually contain the result of the task
+     */
+    @Nonnull
+    private ListenableFuture<CompressionResult> execute(
+            @Nonnull final Callable<CompressionResult> task) {
         final SettableFuture<CompressionResult> future = SettableFuture.create();
         executor.execute(() -> {
             try {
-                future.set(immediateCompress(source));
+                future.set(task.call());
             } catch (Throwable e) {
                 future.setException(e);
             }
@@ -69,4 +90,21 @@ public abstract class ExecutorCompressor implements Compressor {
     @Nonnull
     protected abstract CompressionResult immediateCompress(@Nonnull CloseableByteSource source)
             throws Exception;
+
+    /**
+     * Immediately compresses the source of an entry with a known name. By default, the name is
+     * ignored and this is the same as {@link #immediateCompress(CloseableByteSource)}.
+     *
+     * @param name the name of the entry in the zip
+     * @param source the source to compress
+     * @return the result of compression
+     * @throws Exception failed to compress
+     */
+    @Nonnull
+    protected CompressionResult immediateCompress(
+            @Nonnull String name,
+            @Nonnull CloseableByteSource source)
+            throws Exception {
+        return immediateCompress(source);
+    }
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip.compress;
+
+import java.util.Locale;
+import javax.annotation.Nonnull;
+
+/**
+ * Utilities to handle names of entries given to compressors.
+ */
+final class FileNames {
+
+    /**
+     * Utility class: no constructor.
+     */
+    private FileNames() {}
+
+    /**
+     * Obtains the extension of a file, in lower case.
+     *
+     * @param name the name of the file in the zip
+     * @return the extension, without the dot, or an empty string if the file has no extension
+     */
+    @Nonnull
+    static String extension(@Nonnull String name) {
+        int lastSeparator = name.lastIndexOf('/');
+        int lastDot = name.lastIndexOf('.');
+        if (lastDot <= lastSeparator) {
+            return "";
+        }
+
+        return name.substring(lastDot + 1).toLowerCase(Locale.US);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip.compress;
+
+import com.android.tools.build.apkzlib.zip.CompressionResult;
+import com.android.tools.build.apkzlib.zip.Compressor;
+import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Compressor that schedules compression of the largest sources first. Files are usually added to
+ * a zip in an order that is unrelated to their size, so a large file added last becomes the last
+ * compression to finish, leaving all but one thread idle. Compressing the largest sources first
+ * reduces the total time when compressing with multiple threads.
+ *
+ * <p>Sources to compress are kept in a queue ordered by size. Every time a source is submitted
+ * for compression, a task is submitted to the executor. When a task runs, it takes the largest
+ * source from the queue, not necessarily the one submitted with the task. All threads of the
+ * executor therefore share the queue and any idle thread will pick up the most expensive pending
+ * work. Sources with the same size are compressed in the order they were submitted.
+ *
+ * <p>The actual compression is done by a delegate compressor that is invoked from the executor's
+ * threads. The delegate should be synchronous, for example a {@link DeflateExecutionCompressor}
+ * using a direct executor, otherwise the delegate's own scheduling will be used.
+ *
+ * <p>This compressor only changes the order in which files finish compressing. {@link
+ * com.android.tools.build.apkzlib.zip.ZFile} adds files to the zip in the order they were added
+ * unless {@link
+ * com.android.tools.build.apkzlib.zip.ZFileOptions#setProcessEntriesInCompletionOrder(boolean)}
+ * is set.
+ */
+public class LargestFirstCompressor implements Compressor {
+
+    /**
+     * Orders tasks with the largest sources first and, for equal sizes, in submission order.
+     */
+    private static final Comparator<Task> LARGEST_FIRST =
+            Comparator.<Task>comparingLong(t -> -t.size).thenComparingLong(t -> t.sequence);
+
+    /**
+     * The compressor doing the actual compression.
+     */
+    @Nonnull
+    private final Compressor delegate;
+
+    /**
+     * The executor running compression.
+     */
+    @Nonnull
+    private final Executor executor;
+
+    /**
+     * Sources waiting to be compressed.
+     */
+    @Nonnull
+    private final PriorityBlockingQueue<Task> pending;
+
+    /**
+     * Sequence number of the next task to be created.
+     */
+    @Nonnull
+    private final AtomicLong nextSequence;
+
+    /**
+     * Creates a new compressor.
+     *
+     * @param delegate the compressor that compresses sources
+     * @param executor the executor that invokes the delegate compressor
+     */
+    public LargestFirstCompressor(@Nonnull Compressor delegate, @Nonnull Executor executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+        pending = new PriorityBlockingQueue<>(11, LARGEST_FIRST);
+        nextSequence = new AtomicLong();
+    }
+
+    @Nonnull
+    @Override
+    public ListenableFuture<CompressionResult> compress(@Nonnull CloseableByteSource source) {
+        return schedule(null, source);
+    }
+
+    @Nonnull
+    @Override
+    public ListenableFuture<CompressionResult> compress(
+            @Nonnull String name,
+            @Nonnull CloseableByteSource source) {
+        return schedule(name, source);
+    }
+
+    /**
+     * Adds a source to the queue of sources to compress and submits a task to the executor.
+     *
+     * @param name the name of the entry, {@code null} if not known
+     * @param source the source to compress
+     * @return a future that will eventually contain the compression result
+     */
+    @Nonnull
+    private ListenableFuture<CompressionResult> schedule(
+            @Nullable String name,
+            @Nonnull CloseableByteSource source) {
+        long size;
+        try {
+            size = source.size();
+        } catch (IOException e) {
+            size = 0;
+        }
+
+        Task task = new Task(name, source, size, nextSequence.getAndIncrement());
+        pending.add(task);
+        executor.execute(this::compressLargest);
+        return task.future;
+    }
+
+    /**
+     * Compresses the largest pending source. There is always at least one pending source because
+     * each invocation of this method matches exactly one source submitted for compression.
+     */
+    private void compressLargest() {
+        Task task = pending.poll();
+        if (task == null) {
+            return;
+        }
+
+        ListenableFuture<CompressionResult> result;
+        try {
+            if (task.name == null) {
+                result = delegate.compress(task.source);
+            } else {
+                result = delegate.compress(task.name, task.source);
+            }
+        } catch (Throwable e) {
+            task.future.setException(e);
+            return;
+        }
+
+        Futures.addCallback(
+                result,
+                new FutureCallback<CompressionResult>() {
+                    @Override
+                    public void onSuccess(CompressionResult compressionResult) {
+                        task.future.set(compressionResult);
+                    }
+
+                    @Override
+                    public void onFailure(@Nonnull Throwable t) {
+                        task.future.setException(t);
+                    }
+                },
+                MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Source waiting to be compressed.
+     */
+    private static class Task {
+
+        /**
+         * The name of the entry, {@code null} if not known.
+         */
+        @Nullable
+        private final String name;
+
+        /**
+         * The source to compress.
+         */
+        @Nonnull
+        private final CloseableByteSource source;
+
+        /**
+         * The size of the source.
+         */
+        private final long size;
+
+        /**
+         * Sequence number of the task, used to break ties between sources of the same size.
+         */
+        private final long sequence;
+
+        /**
+         * Future that receives the compression result.
+         */
+        @Nonnull
+        private final SettableFuture<CompressionResult> future;
+
+        /**
+         * Creates a new task.
+         *
+         * @param name the name of the entry, {@code null} if not known
+         * @param source the source to compress
+         * @param size the size of the source
+         * @param sequence the task's sequence number
+         */
+        Task(
+                @Nullable String name,
+                @Nonnull CloseableByteSource source,
+                long size,
+                long sequence) {
+            this.name = name;
+            this.source = source;
+            this.size = size;
+            this.sequence = sequence;
+            future = SettableFuture.create();
+        }
+    }
+}
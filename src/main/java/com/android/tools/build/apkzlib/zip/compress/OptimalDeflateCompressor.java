@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip.compress;
+
+import com.android.tools.build.apkzlib.zip.CompressionMethod;
+import com.android.tools.build.apkzlib.zip.CompressionResult;
+import com.android.tools.build.apkzlib.zip.InflaterByteSource;
+import com.android.tools.build.apkzlib.zip.utils.ByteTracker;
+import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
+import com.android.tools.build.apkzlib.zip.utils.CloseableDelegateByteSource;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Verify;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Compressor that searches for the smallest deflate encoding of the data. It produces standard
+ * deflate streams that are usually a few percent smaller than those produced with
+ * {@link Deflater#BEST_COMPRESSION}, but compression is orders of magnitude slower. It is meant
+ * for release builds, where download size matters more than build time.
+ *
+ * <p>Each source is compressed in a task submitted to the executor so sources are compressed in
+ * parallel if the executor has multiple threads. The amount of work done for each source is
+ * controlled with the number of iterations (see {@link OptimalDeflater}). The result is compared
+ * with {@link Deflater#BEST_COMPRESSION} and the smallest is used, so the output is never larger
+ * than with {@link Deflater#BEST_COMPRESSION}. Output only depends on the data and the number of
+ * iterations.
+ *
+ * <p>Optionally, compressed data may be kept in a cache directory, indexed by a hash of the
+ * uncompressed data and the number of iterations. Data found in the cache is not compressed
+ * again, so a build that changes only a few files only optimizes those files. Data read from the
+ * cache is decompressed and compared with the uncompressed data before being used. The cache is
+ * never cleaned up by the compressor.
+ */
+public class OptimalDeflateCompressor extends ExecutorCompressor {
+
+    /**
+     * Default number of iterations.
+     */
+    public static final int DEFAULT_ITERATIONS = 15;
+
+    /**
+     * Version of the encoder, part of the cache keys. Must be changed whenever the encoder's
+     * output changes, so that results of previous versions are not used.
+     */
+    private static final int ENCODER_VERSION = 1;
+
+    /**
+     * Byte tracker to use to create byte sources.
+     */
+    @Nonnull
+    private final ByteTracker tracker;
+
+    /**
+     * Number of iterations.
+     */
+    private final int iterations;
+
+    /**
+     * Directory with cached compressed data, {@code null} if there is no cache.
+     */
+    @Nullable
+    private final File cacheDirectory;
+
+    /**
+     * Creates a new compressor with no cache.
+     *
+     * @param executor the executor used to perform compression activities
+     * @param tracker the byte tracker to keep track of allocated bytes
+     * @param iterations the number of parsing iterations for each block of data, at least
+     * {@code 1}; see {@link #DEFAULT_ITERATIONS}
+     */
+    public OptimalDeflateCompressor(
+            @Nonnull Executor executor,
+            @Nonnull ByteTracker tracker,
+            int iterations) {
+        this(executor, tracker, iterations, null);
+    }
+
+    /**
+     * Creates a new compressor.
+     *
+     * @param executor the executor used to perform compression activities
+     * @param tracker the byte tracker to keep track of allocated bytes
+     * @param iterations the number of parsing iterations for each block of data, at least
+     * {@code 1}; see {@link #DEFAULT_ITERATIONS}
+     * @param cacheDirectory directory where compressed data is cached; created if it does not
+     * exist; {@code null} to not cache compressed data
+     */
+    public OptimalDeflateCompressor(
+            @Nonnull Executor executor,
+            @Nonnull ByteTracker tracker,
+            int iterations,
+            @Nullable File cacheDirectory) {
+        super(executor);
+
+        Preconditions.checkArgument(iterations > 0, "iterations <= 0");
+
+        this.tracker = tracker;
+        this.iterations = iterations;
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    @Nonnull
+    @Override
+    protected CompressionResult immediateCompress(@Nonnull CloseableByteSource source)
+            throws Exception {
+        byte[] data = source.read();
+
+        File cacheFile = null;
+        byte[] deflated = null;
+        if (cacheDirectory != null) {
+            String key =
+                    Hashing.sha256().hashBytes(data).toString()
+                            + "-" + iterations
+                            + "-" + ENCODER_VERSION;
+            cacheFile = new File(cacheDirectory, key);
+            deflated = readCached(cacheFile, data);
+        }
+
+        if (deflated == null) {
+            deflated = OptimalDeflater.deflate(data, iterations);
+            Verify.verify(
+                    Arrays.equals(inflate(deflated, data.length), data),
+                    "Optimal deflate produced data that does not inflate to the original");
+
+            byte[] best = deflateBest(data);
+            if (best.length < deflated.length) {
+                deflated = best;
+            }
+
+            if (cacheFile != null) {
+                writeCached(cacheFile, deflated);
+            }
+        }
+
+        if (deflated.length >= data.length) {
+            return new CompressionResult(source, CompressionMethod.STORE, source.size());
+        }
+
+        CloseableByteSource result = tracker.fromStream(new ByteArrayInputStream(deflated));
+        return new CompressionResult(result, CompressionMethod.DEFLATE, result.size());
+    }
+
+    /**
+     * Reads compressed data from the cache.
+     *
+     * @param cacheFile the cache file
+     * @param data the uncompressed data
+     * @return the cached compressed data or {@code null} if the data is not in the cache or the
+     * cached data does not decompress to the uncompressed data
+     */
+    @Nullable
+    private static byte[] readCached(@Nonnull File cacheFile, @Nonnull byte[] data) {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+
+        try {
+            byte[] deflated = Files.toByteArray(cacheFile);
+            if (Arrays.equals(inflate(deflated, data.length), data)) {
+                return deflated;
+            }
+        } catch (IOException e) {
+            /*
+             * Treat an unreadable or corrupt cache file as a cache miss.
+             */
+        }
+
+        return null;
+    }
+
+    /**
+     * Writes compressed data to the cache. Data is first written to a temporary file that is
+     * then renamed, so other compressors sharing the cache never see partially written files.
+     * Failure to write is ignored.
+     *
+     * @param cacheFile the cache file
+     * @param deflated the compressed data
+     */
+    private static void writeCached(@Nonnull File cacheFile, @Nonnull byte[] deflated) {
+        File directory = cacheFile.getParentFile();
+        File temporary = null;
+        try {
+            Files.createParentDirs(cacheFile);
+            temporary = File.createTempFile(cacheFile.getName(), ".tmp", directory);
+            Files.write(deflated, temporary);
+            if (!temporary.renameTo(cacheFile)) {
+                temporary.delete();
+            }
+        } catch (IOException e) {
+            if (temporary != null) {
+                temporary.delete();
+            }
+        }
+    }
+
+    /**
+     * Decompresses data, reading at most one byte more than the expected size.
+     *
+     * @param deflated the compressed data
+     * @param expectedSize the expected size of the decompressed data
+     * @return the decompressed data
+     * @throws IOException failed to decompress
+     */
+    @Nonnull
+    private static byte[] inflate(@Nonnull byte[] deflated, int expectedSize) throws IOException {
+        CloseableByteSource source =
+                new CloseableDelegateByteSource(ByteSource.wrap(deflated), deflated.length);
+        try (InputStream input = new InflaterByteSource(source).openStream()) {
+            return ByteStreams.toByteArray(ByteStreams.limit(input, expectedSize + 1L));
+        }
+    }
+
+    /**
+     * Compresses data with {@link Deflater#BEST_COMPRESSION}.
+     *
+     * @param data the data to compress
+     * @return the compressed data
+     * @throws IOException failed to compress
+     */
+    @Nonnull
+    private static byte[] deflateBest(@Nonnull byte[] data) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try (DeflaterOutputStream dos = new DeflaterOutputStream(output, deflater)) {
+            dos.write(data);
+        } finally {
+            deflater.end();
+        }
+
+        return output.toByteArray();
+    }
+}
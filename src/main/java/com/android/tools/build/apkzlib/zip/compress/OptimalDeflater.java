@@ -0,0 +1,674 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip.compress;
+
+import static com.android.tools.build.apkzlib.zip.compress.DeflateBlockWriter.DISTANCE_SYMBOLS;
+import static com.android.tools.build.apkzlib.zip.compress.DeflateBlockWriter.LITERAL_LENGTH_SYMBOLS;
+import static com.android.tools.build.apkzlib.zip.compress.DeflateBlockWriter.MAX_MATCH;
+import static com.android.tools.build.apkzlib.zip.compress.DeflateBlockWriter.MIN_MATCH;
+import static com.android.tools.build.apkzlib.zip.compress.DeflateBlockWriter.WINDOW_SIZE;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nonnull;
+
+/**
+ * Deflate encoder that searches for the smallest encoding instead of the fastest one.
+ *
+ * <p>Data is split in master blocks of {@link #MASTER_BLOCK_SIZE} bytes that are encoded
+ * independently, although back references may reach data in previous master blocks. For each
+ * master block:
+ *
+ * <ol>
+ *   <li>All matches at every position are found once, using hash chains. For each position, the
+ *   shortest distance for each possible match length is kept.
+ *   <li>The block is parsed with a shortest path search over all positions, where the cost of
+ *   each literal and back reference is its size in bits according to a cost model. The first
+ *   parse uses the sizes of the fixed Huffman codes. Each following iteration uses the symbol
+ *   statistics of the previous parse, which approximates the dynamic Huffman codes that will
+ *   be used to write the data. The parse that yields the smallest output is kept.
+ *   <li>The parse is split in deflate blocks where splitting reduces the output size.
+ * </ol>
+ *
+ * <p>This is orders of magnitude slower than {@link java.util.zip.Deflater} but usually produces
+ * smaller output than {@link java.util.zip.Deflater#BEST_COMPRESSION}. The output only depends
+ * on the data and the number of iterations.
+ */
+final class OptimalDeflater {
+
+    /**
+     * Size of master blocks. This bounds the memory used to keep matches.
+     */
+    private static final int MASTER_BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * Maximum number of positions visited in a hash chain when looking for matches.
+     */
+    private static final int MAX_CHAIN_LENGTH = 4096;
+
+    /**
+     * Number of bits of the hash of three bytes.
+     */
+    private static final int HASH_BITS = 15;
+
+    /**
+     * Number of candidate split points tried when splitting a range of symbols in two blocks.
+     */
+    private static final int SPLIT_CANDIDATES = 8;
+
+    /**
+     * Ranges with fewer symbols than this are not split.
+     */
+    private static final int MIN_SPLIT_SYMBOLS = 2048;
+
+    /**
+     * Maximum depth of the recursive block splitting.
+     */
+    private static final int MAX_SPLIT_DEPTH = 5;
+
+    /**
+     * Utility class, no constructor.
+     */
+    private OptimalDeflater() {}
+
+    /**
+     * Compresses data.
+     *
+     * @param data the data to compress
+     * @param iterations the number of parsing iterations for each master block, at least
+     * {@code 1}; more iterations produce smaller output, up to a point, at the expense of time
+     * @return the raw deflate stream
+     */
+    @Nonnull
+    static byte[] deflate(@Nonnull byte[] data, int iterations) {
+        Preconditions.checkArgument(iterations > 0, "iterations <= 0");
+
+        DeflateBlockWriter writer = new DeflateBlockWriter();
+        if (data.length == 0) {
+            writer.writeBlock(new int[0], new int[0], 0, 0, true);
+            return writer.finish();
+        }
+
+        for (int start = 0; start < data.length; start += MASTER_BLOCK_SIZE) {
+            int end = Math.min(data.length, start + MASTER_BLOCK_SIZE);
+            Parse parse = bestParse(data, start, end, iterations);
+
+            List<Integer> splits = new ArrayList<>();
+            splits.add(0);
+            split(parse, 0, parse.size, 0, splits);
+            splits.add(parse.size);
+
+            for (int i = 0; i + 1 < splits.size(); i++) {
+                boolean last = end == data.length && i + 2 == splits.size();
+                writer.writeBlock(
+                        parse.lengths,
+                        parse.distances,
+                        splits.get(i),
+                        splits.get(i + 1),
+                        last);
+            }
+        }
+
+        return writer.finish();
+    }
+
+    /**
+     * Parses a master block, keeping the parse with the smallest output.
+     *
+     * @param data all data
+     * @param start the start of the master block
+     * @param end the end of the master block
+     * @param iterations the number of parsing iterations
+     * @return the best parse
+     */
+    @Nonnull
+    private static Parse bestParse(@Nonnull byte[] data, int start, int end, int iterations) {
+        Matches matches = new Matches(data, start, end);
+        CostModel model = CostModel.fixed();
+
+        Parse best = null;
+        long bestBits = Long.MAX_VALUE;
+        for (int i = 0; i < iterations; i++) {
+            Parse parse = shortestPath(data, start, end, matches, model);
+            long bits = DeflateBlockWriter.blockBits(
+                    parse.lengths,
+                    parse.distances,
+                    0,
+                    parse.size);
+            if (bits >= bestBits) {
+                /*
+                 * The statistics of the previous parse did not produce a better parse, so
+                 * further iterations are not expected to help.
+                 */
+                break;
+            }
+
+            best = parse;
+            bestBits = bits;
+            model = CostModel.fromParse(parse);
+        }
+
+        return best;
+    }
+
+    /**
+     * Finds the parse of a master block with the smallest cost.
+     *
+     * @param data all data
+     * @param start the start of the master block
+     * @param end the end of the master block
+     * @param matches the matches in the master block
+     * @param model the cost model
+     * @return the parse
+     */
+    @Nonnull
+    private static Parse shortestPath(
+            @Nonnull byte[] data,
+            int start,
+            int end,
+            @Nonnull Matches matches,
+            @Nonnull CostModel model) {
+        int size = end - start;
+        double[] costs = new double[size + 1];
+        Arrays.fill(costs, Double.POSITIVE_INFINITY);
+        costs[0] = 0;
+        int[] stepLength = new int[size + 1];
+        int[] stepDistance = new int[size + 1];
+
+        double longestRunCost = model.lengthCost(MAX_MATCH) + model.distanceCost(1);
+        for (int i = 0; i < size; i++) {
+            double cost = costs[i];
+
+            /*
+             * Long runs of the same byte have a maximum length match at distance 1 at every
+             * position. Skip over them instead of trying every length at every position.
+             */
+            if (i > MAX_MATCH
+                    && matches.sameRun(i) > 2 * MAX_MATCH
+                    && matches.sameRun(i - MAX_MATCH) > MAX_MATCH) {
+                for (int k = 0; k < MAX_MATCH; k++, i++) {
+                    costs[i + MAX_MATCH] = costs[i] + longestRunCost;
+                    stepLength[i + MAX_MATCH] = MAX_MATCH;
+                    stepDistance[i + MAX_MATCH] = 1;
+                }
+
+                i--;
+                continue;
+            }
+
+            double literal = cost + model.literalCost(data[start + i] & 0xff);
+            if (literal < costs[i + 1]) {
+                costs[i + 1] = literal;
+                stepLength[i + 1] = data[start + i] & 0xff;
+                stepDistance[i + 1] = 0;
+            }
+
+            int previousLength = MIN_MATCH - 1;
+            for (int m = matches.first(i); m < matches.last(i); m++) {
+                int length = matches.length(m);
+                int distance = matches.distance(m);
+                double withDistance = cost + model.distanceCost(distance);
+                for (int l = previousLength + 1; l <= length; l++) {
+                    double total = withDistance + model.lengthCost(l);
+                    if (total < costs[i + l]) {
+                        costs[i + l] = total;
+                        stepLength[i + l] = l;
+                        stepDistance[i + l] = distance;
+                    }
+                }
+
+                previousLength = length;
+            }
+        }
+
+        int count = 0;
+        for (int i = size; i > 0; i -= stepDistance[i] == 0 ? 1 : stepLength[i]) {
+            count++;
+        }
+
+        Parse parse = new Parse(count);
+        int symbol = count;
+        for (int i = size; i > 0; i -= stepDistance[i] == 0 ? 1 : stepLength[i]) {
+            symbol--;
+            parse.lengths[symbol] = stepLength[i];
+            parse.distances[symbol] = stepDistance[i];
+        }
+
+        return parse;
+    }
+
+    /**
+     * Finds where to split a range of symbols in deflate blocks. The range is split in two at
+     * the candidate point that reduces the output size the most, and both halves are split
+     * recursively.
+     *
+     * @param parse the parse
+     * @param start the index of the first symbol of the range
+     * @param end the index after the last symbol of the range
+     * @param depth the recursion depth
+     * @param splits receives the split points, in order
+     */
+    private static void split(
+            @Nonnull Parse parse,
+            int start,
+            int end,
+            int depth,
+            @Nonnull List<Integer> splits) {
+        if (depth >= MAX_SPLIT_DEPTH || end - start < 2 * MIN_SPLIT_SYMBOLS) {
+            return;
+        }
+
+        long bestBits = DeflateBlockWriter.blockBits(parse.lengths, parse.distances, start, end);
+        int bestSplit = -1;
+        for (int c = 1; c < SPLIT_CANDIDATES; c++) {
+            int point = start + (int) ((long) (end - start) * c / SPLIT_CANDIDATES);
+            long bits =
+                    DeflateBlockWriter.blockBits(parse.lengths, parse.distances, start, point)
+                            + DeflateBlockWriter.blockBits(
+                                    parse.lengths,
+                                    parse.distances,
+                                    point,
+                                    end);
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestSplit = point;
+            }
+        }
+
+        if (bestSplit == -1) {
+            return;
+        }
+
+        split(parse, start, bestSplit, depth + 1, splits);
+        splits.add(bestSplit);
+        split(parse, bestSplit, end, depth + 1, splits);
+    }
+
+    /**
+     * Sequence of LZ77 symbols.
+     */
+    private static class Parse {
+
+        /**
+         * Number of symbols.
+         */
+        private final int size;
+
+        /**
+         * Literal byte or match length of each symbol.
+         */
+        @Nonnull
+        private final int[] lengths;
+
+        /**
+         * Match distance of each symbol, {@code 0} for literals.
+         */
+        @Nonnull
+        private final int[] distances;
+
+        /**
+         * Creates a new parse.
+         *
+         * @param size the number of symbols
+         */
+        Parse(int size) {
+            this.size = size;
+            lengths = new int[size];
+            distances = new int[size];
+        }
+    }
+
+    /**
+     * Cost, in bits, of each symbol.
+     */
+    private static class CostModel {
+
+        /**
+         * Cost of each literal/length symbol.
+         */
+        @Nonnull
+        private final double[] literalLengthCosts;
+
+        /**
+         * Cost of each match length, including the extra bits.
+         */
+        @Nonnull
+        private final double[] lengthCosts;
+
+        /**
+         * Cost of each distance symbol, including the extra bits.
+         */
+        @Nonnull
+        private final double[] distanceSymbolCosts;
+
+        /**
+         * Creates a new model.
+         *
+         * @param literalLengthCosts the cost of each literal/length symbol
+         * @param distanceCosts the cost of each distance symbol, excluding the extra bits
+         */
+        private CostModel(@Nonnull double[] literalLengthCosts, @Nonnull double[] distanceCosts) {
+            this.literalLengthCosts = literalLengthCosts;
+
+            lengthCosts = new double[MAX_MATCH + 1];
+            for (int length = MIN_MATCH; length <= MAX_MATCH; length++) {
+                int symbol = DeflateBlockWriter.lengthSymbol(length);
+                lengthCosts[length] =
+                        literalLengthCosts[symbol] + DeflateBlockWriter.lengthExtraBits(symbol);
+            }
+
+            distanceSymbolCosts = new double[DISTANCE_SYMBOLS];
+            for (int symbol = 0; symbol < DISTANCE_SYMBOLS; symbol++) {
+                distanceSymbolCosts[symbol] =
+                        distanceCosts[symbol] + DeflateBlockWriter.distanceExtraBits(symbol);
+            }
+        }
+
+        /**
+         * Creates a model with the sizes of the fixed Huffman codes.
+         *
+         * @return the model
+         */
+        @Nonnull
+        static CostModel fixed() {
+            double[] literalLengthCosts = new double[LITERAL_LENGTH_SYMBOLS];
+            Arrays.fill(literalLengthCosts, 0, 144, 8);
+            Arrays.fill(literalLengthCosts, 144, 256, 9);
+            Arrays.fill(literalLengthCosts, 256, 280, 7);
+            Arrays.fill(literalLengthCosts, 280, LITERAL_LENGTH_SYMBOLS, 8);
+
+            double[] distanceCosts = new double[DISTANCE_SYMBOLS];
+            Arrays.fill(distanceCosts, 5);
+            return new CostModel(literalLengthCosts, distanceCosts);
+        }
+
+        /**
+         * Creates a model with the entropy of the symbols of a parse.
+         *
+         * @param parse the parse
+         * @return the model
+         */
+        @Nonnull
+        static CostModel fromParse(@Nonnull Parse parse) {
+            int[] literalLengthCounts = new int[LITERAL_LENGTH_SYMBOLS];
+            int[] distanceCounts = new int[DISTANCE_SYMBOLS];
+            for (int i = 0; i < parse.size; i++) {
+                if (parse.distances[i] == 0) {
+                    literalLengthCounts[parse.lengths[i]]++;
+                } else {
+                    literalLengthCounts[DeflateBlockWriter.lengthSymbol(parse.lengths[i])]++;
+                    distanceCounts[DeflateBlockWriter.distanceSymbol(parse.distances[i])]++;
+                }
+            }
+
+            literalLengthCounts[DeflateBlockWriter.END_OF_BLOCK] = 1;
+            return new CostModel(entropy(literalLengthCounts), entropy(distanceCounts));
+        }
+
+        /**
+         * Computes the number of bits of each symbol in an ideal code. Symbols that do not
+         * occur are given the cost of a symbol that occurs once.
+         *
+         * @param counts the number of occurrences of each symbol
+         * @return the number of bits of each symbol
+         */
+        @Nonnull
+        private static double[] entropy(@Nonnull int[] counts) {
+            long total = 0;
+            for (int count : counts) {
+                total += count;
+            }
+
+            double[] costs = new double[counts.length];
+            double log2Total = Math.log(Math.max(1, total)) / Math.log(2);
+            for (int i = 0; i < counts.length; i++) {
+                double log2Count = Math.log(Math.max(1, counts[i])) / Math.log(2);
+                costs[i] = log2Total - log2Count;
+            }
+
+            return costs;
+        }
+
+        /**
+         * Obtains the cost of a literal.
+         *
+         * @param literal the literal byte
+         * @return the cost
+         */
+        double literalCost(int literal) {
+            return literalLengthCosts[literal];
+        }
+
+        /**
+         * Obtains the cost of a match length.
+         *
+         * @param length the length
+         * @return the cost
+         */
+        double lengthCost(int length) {
+            return lengthCosts[length];
+        }
+
+        /**
+         * Obtains the cost of a match distance.
+         *
+         * @param distance the distance
+         * @return the cost
+         */
+        double distanceCost(int distance) {
+            return distanceSymbolCosts[DeflateBlockWriter.distanceSymbol(distance)];
+        }
+    }
+
+    /**
+     * All matches found in a master block. For each position, matches are kept in order of
+     * increasing length and distance: a match with length {@code l} and distance {@code d}
+     * means that all lengths from the previous match's length plus one up to {@code l} can be
+     * matched with distance {@code d}, and not with any shorter distance.
+     */
+    private static class Matches {
+
+        /**
+         * Index of the first match of each position; the matches of position {@code i} end at
+         * the first match of position {@code i + 1}.
+         */
+        @Nonnull
+        private final int[] firstMatch;
+
+        /**
+         * Length and distance of each match, interleaved.
+         */
+        @Nonnull
+        private int[] matches;
+
+        /**
+         * Number of values used in {@link #matches}.
+         */
+        private int matchValues;
+
+        /**
+         * Number of times the byte at each position repeats, starting at that position.
+         */
+        @Nonnull
+        private final int[] sameRun;
+
+        /**
+         * Finds all matches in a master block.
+         *
+         * @param data all data
+         * @param start the start of the master block
+         * @param end the end of the master block
+         */
+        Matches(@Nonnull byte[] data, int start, int end) {
+            int size = end - start;
+            firstMatch = new int[size + 1];
+            matches = new int[Math.max(16, size)];
+
+            sameRun = new int[size + 1];
+            for (int i = size - 1; i >= 0; i--) {
+                boolean same = i + 1 < size && data[start + i] == data[start + i + 1];
+                sameRun[i] = same ? sameRun[i + 1] + 1 : 1;
+            }
+
+            int[] head = new int[1 << HASH_BITS];
+            Arrays.fill(head, -1);
+            int[] previous = new int[WINDOW_SIZE];
+
+            for (int p = Math.max(0, start - WINDOW_SIZE); p < end; p++) {
+                if (p >= start) {
+                    firstMatch[p - start] = matchValues;
+                    if (p + MIN_MATCH <= end) {
+                        findMatches(data, p, end, head, previous);
+                    }
+                }
+
+                if (p + MIN_MATCH <= data.length) {
+                    int hash = hash(data, p);
+                    previous[p % WINDOW_SIZE] = head[hash];
+                    head[hash] = p;
+                }
+            }
+
+            firstMatch[size] = matchValues;
+        }
+
+        /**
+         * Finds the matches at a position and records them.
+         *
+         * @param data all data
+         * @param position the position
+         * @param end the end of the master block
+         * @param head the most recent position with each hash
+         * @param previous the previous position with the same hash as each position in the
+         * window
+         */
+        private void findMatches(
+                @Nonnull byte[] data,
+                int position,
+                int end,
+                @Nonnull int[] head,
+                @Nonnull int[] previous) {
+            int maxLength = Math.min(MAX_MATCH, end - position);
+            int bestLength = MIN_MATCH - 1;
+            int chain = 0;
+            for (int candidate = head[hash(data, position)];
+                    candidate >= 0
+                            && position - candidate <= WINDOW_SIZE
+                            && chain < MAX_CHAIN_LENGTH;
+                    candidate = previous[candidate % WINDOW_SIZE], chain++) {
+                if (data[candidate + bestLength] != data[position + bestLength]) {
+                    continue;
+                }
+
+                int length = 0;
+                while (length < maxLength && data[candidate + length] == data[position + length]) {
+                    length++;
+                }
+
+                if (length > bestLength) {
+                    addMatch(length, position - candidate);
+                    bestLength = length;
+                    if (length == maxLength) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Records a match.
+         *
+         * @param length the match length
+         * @param distance the match distance
+         */
+        private void addMatch(int length, int distance) {
+            if (matchValues + 2 > matches.length) {
+                matches = Arrays.copyOf(matches, matches.length * 2);
+            }
+
+            matches[matchValues++] = length;
+            matches[matchValues++] = distance;
+        }
+
+        /**
+         * Computes the hash of the three bytes at a position.
+         *
+         * @param data all data
+         * @param position the position
+         * @return the hash
+         */
+        private static int hash(@Nonnull byte[] data, int position) {
+            int value = (data[position] & 0xff)
+                    | (data[position + 1] & 0xff) << 8
+                    | (data[position + 2] & 0xff) << 16;
+            return (value * 0x9e3779b1) >>> (32 - HASH_BITS);
+        }
+
+        /**
+         * Obtains the index of the first match of a position.
+         *
+         * @param position the position, relative to the master block
+         * @return the index
+         */
+        int first(int position) {
+            return firstMatch[position] / 2;
+        }
+
+        /**
+         * Obtains the index after the last match of a position.
+         *
+         * @param position the position, relative to the master block
+         * @return the index
+         */
+        int last(int position) {
+            return firstMatch[position + 1] / 2;
+        }
+
+        /**
+         * Obtains the length of a match.
+         *
+         * @param match the index of the match
+         * @return the length
+         */
+        int length(int match) {
+            return matches[2 * match];
+        }
+
+        /**
+         * Obtains the distance of a match.
+         *
+         * @param match the index of the match
+         * @return the distance
+         */
+        int distance(int match) {
+            return matches[2 * match + 1];
+        }
+
+        /**
+         * Obtains how many times the byte at a position repeats, starting at that position and
+         * up to the end of the master block.
+         *
+         * @param position the position, relative to the master block
+         * @return the number of bytes
+         */
+        int sameRun(int position) {
+            return sameRun[position];
+        }
+    }
+}
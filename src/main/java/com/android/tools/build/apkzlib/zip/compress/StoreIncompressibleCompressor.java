@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip.compress;
+
+import com.android.tools.build.apkzlib.zip.CompressionMethod;
+import com.android.tools.build.apkzlib.zip.CompressionResult;
+import com.android.tools.build.apkzlib.zip.Compressor;
+import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Compressor that stores data that is unlikely to be compressible without trying to compress it.
+ * Files such as images, audio, video and archives are already compressed and deflating them
+ * usually yields data larger than the original, which is then discarded. This compressor detects
+ * such data up front and only invokes a delegate compressor for data that is likely to be
+ * compressible.
+ *
+ * <p>Data is considered incompressible if it starts with the signature of a compressed format
+ * (PNG, JPEG, GIF, WebP, Ogg, MP3, MP4, gzip, bzip2, xz, 7z, zstd or WOFF2), or if the entropy of
+ * its first bytes is close to 8 bits per byte. When the name of the entry is known, the entropy
+ * threshold is lower for files whose extension belongs to a compressed format. Small files are
+ * always given to the delegate compressor.
+ *
+ * <p>Detection is a heuristic. To check how well it works, a sample of the data detected as
+ * incompressible may still be given to the delegate compressor (see
+ * {@link #StoreIncompressibleCompressor(Compressor, int)}). Sampled data is compressed by the
+ * delegate compressor and the number of times it was found to be compressible is reported by
+ * {@link #getMisdetectedCount()}. The sample is chosen from the data itself so the output does not
+ * change from one run to another.
+ */
+public class StoreIncompressibleCompressor implements Compressor {
+
+    /**
+     * Number of bytes at the beginning of the data used for detection.
+     */
+    private static final int PREFIX_SIZE = 4096;
+
+    /**
+     * Data smaller than this is always given to the delegate compressor.
+     */
+    private static final int MINIMUM_SIZE = 512;
+
+    /**
+     * Entropy, in bits per byte, above which data is considered incompressible.
+     */
+    private static final double ENTROPY_THRESHOLD = 7.9;
+
+    /**
+     * Entropy, in bits per byte, above which data in files with extensions in
+     * {@link #COMPRESSED_EXTENSIONS} is considered incompressible.
+     */
+    private static final double COMPRESSED_EXTENSION_ENTROPY_THRESHOLD = 7.5;
+
+    /**
+     * Extensions of files in formats that are usually compressed.
+     */
+    private static final ImmutableSet<String> COMPRESSED_EXTENSIONS =
+            ImmutableSet.of(
+                    "png", "jpg", "jpeg", "gif", "webp", "ogg", "oga", "opus", "mp3", "m4a",
+                    "aac", "mp4", "m4v", "3gp", "webm", "mkv", "zip", "jar", "apk", "gz", "tgz",
+                    "bz2", "xz", "7z", "zst", "woff", "woff2");
+
+    /**
+     * Signatures of compressed formats. A {@code -1} in a signature matches any byte.
+     */
+    private static final int[][] SIGNATURES = {
+            // PNG
+            { 0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a },
+            // JPEG
+            { 0xff, 0xd8, 0xff },
+            // GIF
+            { 'G', 'I', 'F', '8' },
+            // WebP
+            { 'R', 'I', 'F', 'F', -1, -1, -1, -1, 'W', 'E', 'B', 'P' },
+            // Ogg
+            { 'O', 'g', 'g', 'S' },
+            // MP3 with ID3 tag
+            { 'I', 'D', '3' },
+            // MP4 and other ISO base media files
+            { -1, -1, -1, -1, 'f', 't', 'y', 'p' },
+            // gzip
+            { 0x1f, 0x8b },
+            // bzip2
+            { 'B', 'Z', 'h' },
+            // xz
+            { 0xfd, '7', 'z', 'X', 'Z', 0x00 },
+            // 7z
+            { '7', 'z', 0xbc, 0xaf, 0x27, 0x1c },
+            // zstd
+            { 0x28, 0xb5, 0x2f, 0xfd },
+            // WOFF2
+            { 'w', 'O', 'F', '2' },
+    };
+
+    /**
+     * The compressor used for data that is likely to be compressible.
+     */
+    @Nonnull
+    private final Compressor delegate;
+
+    /**
+     * One in how many sources detected as incompressible are given to the delegate compressor;
+     * {@code 0} if none are.
+     */
+    private final int verifyOneIn;
+
+    /**
+     * Number of sampled sources detected as incompressible that the delegate compressor has
+     * compressed.
+     */
+    @Nonnull
+    private final AtomicLong misdetectedCount;
+
+    /**
+     * Creates a new compressor.
+     *
+     * @param delegate the compressor used for data that is likely to be compressible
+     */
+    public StoreIncompressibleCompressor(@Nonnull Compressor delegate) {
+        this(delegate, 0);
+    }
+
+    /**
+     * Creates a new compressor that verifies a sample of the data detected as incompressible.
+     *
+     * @param delegate the compressor used for data that is likely to be compressible
+     * @param verifyOneIn one in how many sources detected as incompressible is still given to the
+     * delegate compressor; {@code 0} to never give them to the delegate compressor
+     */
+    public StoreIncompressibleCompressor(@Nonnull Compressor delegate, int verifyOneIn) {
+        Preconditions.checkArgument(verifyOneIn >= 0, "verifyOneIn < 0");
+
+        this.delegate = delegate;
+        this.verifyOneIn = verifyOneIn;
+        misdetectedCount = new AtomicLong();
+    }
+
+    @Nonnull
+    @Override
+    public ListenableFuture<CompressionResult> compress(@Nonnull CloseableByteSource source) {
+        return compress(null, source, () -> delegate.compress(source));
+    }
+
+    @Nonnull
+    @Override
+    public ListenableFuture<CompressionResult> compress(
+            @Nonnull String name,
+            @Nonnull CloseableByteSource source) {
+        return compress(name, source, () -> delegate.compress(name, source));
+    }
+
+    /**
+     * Obtains the number of sampled sources detected as incompressible that the delegate
+     * compressor did compress.
+     *
+     * @return the number of sources
+     */
+    public long getMisdetectedCount() {
+        return misdetectedCount.get();
+    }
+
+    /**
+     * Compresses a source, storing it if it is detected as incompressible.
+     *
+     * @param name the name of the entry, {@code null} if not known
+     * @param source the source to compress
+     * @param delegateCompression compresses the source using the delegate compressor
+     * @return a future that will eventually contain the compression result
+     */
+    @Nonnull
+    private ListenableFuture<CompressionResult> compress(
+            @Nullable String name,
+            @Nonnull CloseableByteSource source,
+            @Nonnull Supplier<ListenableFuture<CompressionResult>> delegateCompression) {
+        long size;
+        byte[] prefix;
+        try {
+            size = source.size();
+            if (size < MINIMUM_SIZE) {
+                return delegateCompression.get();
+            }
+
+            prefix = source.slice(0, PREFIX_SIZE).read();
+        } catch (IOException e) {
+            return delegateCompression.get();
+        }
+
+        if (!isLikelyIncompressible(name, prefix)) {
+            return delegateCompression.get();
+        }
+
+        if (verifyOneIn > 0 && Math.floorMod(Arrays.hashCode(prefix), verifyOneIn) == 0) {
+            ListenableFuture<CompressionResult> result = delegateCompression.get();
+            result.addListener(
+                    () -> {
+                        try {
+                            if (Futures.getUnchecked(result).getCompressionMethod()
+                                    != CompressionMethod.STORE) {
+                                misdetectedCount.incrementAndGet();
+                            }
+                        } catch (RuntimeException e) {
+                            // Compression failed, the failure is reported through the future.
+                        }
+                    },
+                    MoreExecutors.directExecutor());
+            return result;
+        }
+
+        return Futures.immediateFuture(
+                new CompressionResult(source, CompressionMethod.STORE, size));
+    }
+
+    /**
+     * Checks whether data is likely to be incompressible.
+     *
+     * @param name the name of the entry, {@code null} if not known
+     * @param prefix the first bytes of the data
+     * @return is the data likely to be incompressible?
+     */
+    static boolean isLikelyIncompressible(@Nullable String name, @Nonnull byte[] prefix) {
+        if (hasCompressedSignature(prefix)) {
+            return true;
+        }
+
+        double threshold = ENTROPY_THRESHOLD;
+        if (name != null && COMPRESSED_EXTENSIONS.contains(FileNames.extension(name))) {
+            threshold = COMPRESSED_EXTENSION_ENTROPY_THRESHOLD;
+        }
+
+        return entropy(prefix) >= threshold;
+    }
+
+    /**
+     * Checks whether data starts with the signature of a compressed format.
+     *
+     * @param data the data
+     * @return does the data start with one of {@link #SIGNATURES}?
+     */
+    private static boolean hasCompressedSignature(@Nonnull byte[] data) {
+        for (int[] signature : SIGNATURES) {
+            if (signature.length > data.length) {
+                continue;
+            }
+
+            boolean matches = true;
+            for (int i = 0; i < signature.length && matches; i++) {
+                matches = signature[i] == -1 || signature[i] == (data[i] & 0xff);
+            }
+
+            if (matches) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Computes the Shannon entropy of data, considering each byte a symbol.
+     *
+     * @param data the data
+     * @return the entropy in bits per byte, between {@code 0} and {@code 8}
+     */
+    static double entropy(@Nonnull byte[] data) {
+        if (data.length == 0) {
+            return 0;
+        }
+
+        int[] counts = new int[256];
+        for (byte b : data) {
+            counts[b & 0xff]++;
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = count / (double) data.length;
+                entropy -= p * Math.log(p);
+            }
+        }
+
+        return entropy / Math.log(2);
+    }
+}
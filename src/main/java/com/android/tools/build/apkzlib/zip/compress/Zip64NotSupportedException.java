@@ -18,7 +18,12 @@ package com.android.tools.build.apkzlib.zip.compress;
 
 import java.io.IOException;
 
-/** Exception raised by ZFile when encountering unsupported Zip64 format jar files. */
+/**
+ * Exception raised by ZFile when encountering unsupported Zip64 format jar files.
+ *
+ * @deprecated ZFile reads and writes Zip64 files and no longer raises this exception
+ */
+@Deprecated
 public class Zip64NotSupportedException extends IOException {
 
     public Zip64NotSupportedException(String message) {
@@ -24,9 +24,10 @@ import java.nio.ByteBuffer;
 import javax.annotation.Nonnull;
 
 /**
- * Utilities to read and write 16 and 32 bit integers with support for little-endian
+ * Utilities to read and write 16, 32 and 64 bit integers with support for little-endian
  * encoding, as used in zip files. Zip files actually use unsigned data types. We use Java's native
- * (signed) data types but will use long (64 bit) to ensure we can fit the whole range.
+ * (signed) data types but will use long (64 bit) to ensure we can fit the whole range. 64-bit
+ * values are limited to {@link Long#MAX_VALUE}, which is more than any file can have.
  */
 public class LittleEndianUtils {
     /**
@@ -35,6 +36,33 @@ public class LittleEndianUtils {
     private LittleEndianUtils() {
     }
 
+    /**
+     * Reads 8 bytes in little-endian format and converts them into a 64-bit value.
+     *
+     * @param bytes from where should the bytes be read; the first 8 bytes of the source will be
+     * read
+     * @return the 64-bit value
+     * @throws IOException failed to read the value or the value is larger than
+     * {@link Long#MAX_VALUE}
+     */
+    public static long readUnsigned8Le(@Nonnull ByteBuffer bytes) throws IOException {
+        Preconditions.checkNotNull(bytes, "bytes == null");
+
+        if (bytes.remaining() < 8) {
+            throw new EOFException("Not enough data: 8 bytes expected, " + bytes.remaining()
+                    + " available.");
+        }
+
+        long low = readUnsigned4Le(bytes);
+        long high = readUnsigned4Le(bytes);
+        if (high > Integer.MAX_VALUE) {
+            throw new IOException("64-bit value 0x" + Long.toHexString(high) + "_"
+                    + Long.toHexString(low) + " is too large.");
+        }
+
+        return (high << 32) | low;
+    }
+
     /**
      * Reads 4 bytes in little-endian format and converts them into a 32-bit value.
      *
@@ -88,6 +116,22 @@ public class LittleEndianUtils {
         return r;
     }
 
+    /**
+     * Writes 8 bytes in little-endian format, converting them from a 64-bit value.
+     *
+     * @param output the output stream where the bytes will be written
+     * @param value the 64-bit value to convert
+     * @throws IOException failed to write the value data
+     */
+    public static void writeUnsigned8Le(@Nonnull ByteBuffer output, long value)
+            throws IOException {
+        Preconditions.checkNotNull(output, "output == null");
+        Preconditions.checkArgument(value >= 0, "value (%s) < 0", value);
+
+        writeUnsigned4Le(output, value & 0xffffffffL);
+        writeUnsigned4Le(output, value >>> 32);
+    }
+
     /**
      * Writes 4 bytes in little-endian format, converting them from a 32-bit value.
      *
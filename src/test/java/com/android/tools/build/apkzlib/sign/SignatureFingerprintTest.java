@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.sign;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.apksig.ApkVerifier;
+import com.android.tools.build.apkzlib.utils.ApkZFileTestUtils;
+import com.android.tools.build.apkzlib.utils.ApkZLibPair;
+import com.android.tools.build.apkzlib.zip.ZFile;
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Bytes;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nonnull;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that {@link SigningExtension} only skips verification of APKs whose signature it knows to
+ * be as requested.
+ *
+ * <p>Most tests change the data of an entry on disk while keeping the file's size and timestamp,
+ * which makes the APK's signature invalid without changing its signature fingerprint. If the APK
+ * is verified when opened, it is signed again. If verification is skipped, it is left as is.
+ */
+public class SignatureFingerprintTest {
+
+    /**
+     * Minimum SDK version the APK is signed for.
+     */
+    private static final int MIN_SDK_VERSION = 13;
+
+    /**
+     * Data of the entry that is changed on disk. It is stored so it can be found in the APK.
+     */
+    private static final byte[] DATA = "Some data that will be changed".getBytes(Charsets.US_ASCII);
+
+    /**
+     * Folder used for tests.
+     */
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /**
+     * The APK.
+     */
+    private Path mApk;
+
+    /**
+     * Key and certificate the APK is signed with.
+     */
+    private ApkZLibPair<PrivateKey, X509Certificate> mSignData;
+
+    @Before
+    public final void before() throws Exception {
+        mApk = new File(mTemporaryFolder.getRoot(), "a.apk").toPath();
+        mSignData = SignatureTestUtils.generateSignaturePre18();
+
+        try (ZFile zf = new ZFile(mApk.toFile())) {
+            new SigningExtension(MIN_SDK_VERSION, mSignData.v2, mSignData.v1, true, true)
+                    .register(zf);
+            ApkZFileTestUtils.addAndroidManifest(zf);
+            zf.add("data", new ByteArrayInputStream(DATA), false);
+        }
+
+        assertTrue(SigningExtension.isSignatureFingerprintKnown(mApk));
+        assertSignedBy(mSignData.v2);
+    }
+
+    /**
+     * Opens the APK with a signing extension and closes it.
+     *
+     * @param minSdkVersion minimum SDK version to sign for
+     * @param signData key and certificate to sign with
+     * @throws Exception failed to open or close the APK
+     */
+    private void openAndClose(
+            int minSdkVersion,
+            @Nonnull ApkZLibPair<PrivateKey, X509Certificate> signData) throws Exception {
+        try (ZFile zf = new ZFile(mApk.toFile())) {
+            new SigningExtension(minSdkVersion, signData.v2, signData.v1, true, true)
+                    .register(zf);
+        }
+    }
+
+    /**
+     * Changes the data of the entry on disk, invalidating the APK's signature.
+     *
+     * @param keepTimestamp should the file's timestamp be restored after the change?
+     * @return the new contents of the APK
+     * @throws Exception failed to change the APK
+     */
+    @Nonnull
+    private byte[] changeEntryOnDisk(boolean keepTimestamp) throws Exception {
+        FileTime modified = Files.getLastModifiedTime(mApk);
+        byte[] contents = Files.readAllBytes(mApk);
+        int dataStart = Bytes.indexOf(contents, DATA);
+        assertTrue(dataStart >= 0);
+        contents[dataStart] ^= 1;
+        Files.write(mApk, contents);
+
+        if (keepTimestamp) {
+            Files.setLastModifiedTime(mApk, modified);
+        } else {
+            Files.setLastModifiedTime(mApk, FileTime.fromMillis(modified.toMillis() + 60_000));
+        }
+
+        return contents;
+    }
+
+    /**
+     * Verifies the APK and checks it is signed with exactly the given certificate.
+     *
+     * @param certificate the certificate
+     * @throws Exception failed to verify the APK
+     */
+    private void assertSignedBy(@Nonnull X509Certificate certificate) throws Exception {
+        ApkVerifier.Result result =
+                new ApkVerifier.Builder(mApk.toFile())
+                        .setMinCheckedPlatformVersion(MIN_SDK_VERSION)
+                        .build()
+                        .verify();
+        assertTrue(result.isVerified());
+        assertTrue(result.isVerifiedUsingV1Scheme());
+        assertTrue(result.isVerifiedUsingV2Scheme());
+
+        List<X509Certificate> signers = result.getSignerCertificates();
+        assertEquals(1, signers.size());
+        assertArrayEquals(certificate.getEncoded(), signers.get(0).getEncoded());
+    }
+
+    @Test
+    public void sameConfigurationSkipsVerification() throws Exception {
+        byte[] changed = changeEntryOnDisk(true);
+
+        openAndClose(MIN_SDK_VERSION, mSignData);
+
+        assertArrayEquals(changed, Files.readAllBytes(mApk));
+        assertTrue(SigningExtension.isSignatureFingerprintKnown(mApk));
+    }
+
+    @Test
+    public void changedConfigurationForcesVerification() throws Exception {
+        byte[] changed = changeEntryOnDisk(true);
+
+        openAndClose(MIN_SDK_VERSION + 1, mSignData);
+
+        assertFalse(Arrays.equals(changed, Files.readAllBytes(mApk)));
+        assertSignedBy(mSignData.v2);
+        assertTrue(SigningExtension.isSignatureFingerprintKnown(mApk));
+    }
+
+    @Test
+    public void changedCertificateForcesResigning() throws Exception {
+        ApkZLibPair<PrivateKey, X509Certificate> otherSignData =
+                SignatureTestUtils.generateSignaturePre18();
+
+        openAndClose(MIN_SDK_VERSION, otherSignData);
+
+        assertSignedBy(otherSignData.v2);
+        assertTrue(SigningExtension.isSignatureFingerprintKnown(mApk));
+    }
+
+    @Test
+    public void entryChangedOnDiskForcesVerification() throws Exception {
+        byte[] changed = changeEntryOnDisk(false);
+
+        openAndClose(MIN_SDK_VERSION, mSignData);
+
+        assertFalse(Arrays.equals(changed, Files.readAllBytes(mApk)));
+        assertSignedBy(mSignData.v2);
+        assertTrue(SigningExtension.isSignatureFingerprintKnown(mApk));
+    }
+
+    @Test
+    public void entryChangedInZipClearsFingerprint() throws Exception {
+        try (ZFile zf = new ZFile(mApk.toFile())) {
+            new SigningExtension(MIN_SDK_VERSION, mSignData.v2, mSignData.v1, true, true)
+                    .register(zf);
+            assertTrue(SigningExtension.isSignatureFingerprintKnown(mApk));
+
+            zf.add("more", new ByteArrayInputStream(new byte[] { 1, 2, 3 }), false);
+            assertFalse(SigningExtension.isSignatureFingerprintKnown(mApk));
+        }
+
+        assertSignedBy(mSignData.v2);
+        assertTrue(SigningExtension.isSignatureFingerprintKnown(mApk));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.sign;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.android.apksig.util.DataSink;
+import com.android.tools.build.apkzlib.zip.ZFile;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import javax.annotation.Nonnull;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link ZFileDataSource}.
+ */
+public class ZFileDataSourceTest {
+
+    /**
+     * Folder used for tests.
+     */
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /**
+     * Creates a zip with a stored entry larger than the chunks used by
+     * {@link ZFileDataSource#feed(long, long, DataSink)}.
+     *
+     * @return the zip file
+     * @throws Exception failed to create the zip
+     */
+    @Nonnull
+    private File makeZip() throws Exception {
+        File out = new File(mTemporaryFolder.getRoot(), "a.zip");
+        byte[] data = new byte[200_000];
+        new Random(42).nextBytes(data);
+
+        try (ZFile zf = new ZFile(out)) {
+            zf.add("data", new ByteArrayInputStream(data), false);
+        }
+
+        return out;
+    }
+
+    @Test
+    public void copyToDestinationLargerThanSize() throws Exception {
+        File out = makeZip();
+        byte[] expected = Arrays.copyOfRange(Files.readAllBytes(out.toPath()), 10, 20);
+
+        try (ZFile zf = new ZFile(out)) {
+            ZFileDataSource source = new ZFileDataSource(zf, 5, 100);
+            ByteBuffer dest = ByteBuffer.allocate(64);
+            dest.position(3);
+
+            source.copyTo(5, 10, dest);
+
+            assertEquals(13, dest.position());
+            assertEquals(64, dest.limit());
+            byte[] read = new byte[10];
+            dest.flip();
+            dest.position(3);
+            dest.get(read);
+            assertArrayEquals(expected, read);
+        }
+    }
+
+    @Test
+    public void feedRoundTrip() throws Exception {
+        File out = makeZip();
+        byte[] contents = Files.readAllBytes(out.toPath());
+
+        try (ZFile zf = new ZFile(out)) {
+            ZFileDataSource source = new ZFileDataSource(zf);
+            assertEquals(contents.length, source.size());
+
+            ByteArrayOutputStream fed = new ByteArrayOutputStream();
+            DataSink sink =
+                    new DataSink() {
+                        @Override
+                        public void consume(byte[] buf, int offset, int length) {
+                            fed.write(buf, offset, length);
+                        }
+
+                        @Override
+                        public void consume(ByteBuffer buf) {
+                            byte[] chunk = new byte[buf.remaining()];
+                            buf.get(chunk);
+                            fed.write(chunk, 0, chunk.length);
+                        }
+                    };
+
+            source.feed(0, contents.length, sink);
+            assertArrayEquals(contents, fed.toByteArray());
+
+            fed.reset();
+            source.slice(7, contents.length - 7).feed(0, contents.length - 7, sink);
+            assertArrayEquals(
+                    Arrays.copyOfRange(contents, 7, contents.length), fed.toByteArray());
+        }
+    }
+}
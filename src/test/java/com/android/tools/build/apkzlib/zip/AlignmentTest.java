@@ -853,4 +853,25 @@ public class AlignmentTest {
             assertEquals(xptoStart + xptoStartOffset + xptoData.length, dummyStart);
         }
     }
+
+    @Test
+    public void composedRulesUseFirstMatchingRule() {
+        AlignmentRule rule =
+                AlignmentRules.compose(
+                        AlignmentRules.constantForSuffix(".so", 4096),
+                        AlignmentRules.compose(
+                                AlignmentRules.constantForSuffix(".u", 1),
+                                AlignmentRules.constantForSuffix("lib.so", 8)),
+                        path -> path.startsWith("res/") ? 16 : AlignmentRule.NO_ALIGNMENT,
+                        AlignmentRules.constantForSuffix("a.u", 32),
+                        AlignmentRules.constant(4));
+
+        assertEquals(4096, rule.alignment("lib/x86/lib.so"));
+        assertEquals(16, rule.alignment("res/a.u"));
+        assertEquals(32, rule.alignment("data.u"));
+        assertEquals(4, rule.alignment("b.u"));
+        assertEquals(4, rule.alignment("classes.dex"));
+        assertEquals(4, rule.alignment(""));
+        assertEquals(AlignmentRule.NO_ALIGNMENT, AlignmentRules.compose().alignment("a"));
+    }
 }
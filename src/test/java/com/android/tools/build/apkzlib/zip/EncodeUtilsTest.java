@@ -69,4 +69,18 @@ public class EncodeUtilsTest {
         String text = EncodeUtils.decode(greatWallChinese, flags);
         assertEquals("\u9577\u57ce", text);
     }
+
+    @Test
+    public void cannotEncodeAsciiWithFirstNonAsciiCharacter() {
+        assertTrue(EncodeUtils.canAsciiEncode("\u007f"));
+        assertFalse(EncodeUtils.canAsciiEncode("foo\u0080"));
+    }
+
+    @Test
+    public void invalidUtf8DecodedWithReplacement() {
+        byte[] invalid = new byte[] { 0x66, (byte) 0xff, 0x6f };
+
+        assertEquals("f\ufffdo", EncodeUtils.decode(invalid, GPFlags.make(false)));
+        assertEquals("f\ufffdo", EncodeUtils.decode(invalid, GPFlags.make(true)));
+    }
 }
@@ -17,12 +17,22 @@
 package com.android.tools.build.apkzlib.zip;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.google.common.primitives.Ints;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import javax.annotation.Nonnull;
 import org.junit.Rule;
 import org.junit.Test;
@@ -237,4 +247,189 @@ public class ZFileReadOnlyTest {
             zf.directRead(0, new byte[2]);
         }
     }
+
+    @Test
+    public void entriesAreKeptInTableInRoMode() throws Exception {
+        File zip = new File(temporaryFolder.getRoot(), "foo.zip");
+        try (ZFile zf = new ZFile(zip)) {
+            zf.add("bar", new ByteArrayInputStream(new byte[] { 0, 1, 2, 3, 4, 5 }));
+            zf.add("dir/", new ByteArrayInputStream(new byte[0]));
+            zf.add("dir/\u00e1gua", new ByteArrayInputStream(new byte[] { 6, 7 }), false);
+
+            StoredEntry bar = zf.get("bar");
+            assertNotNull(bar);
+            bar.getCentralDirectoryHeader().setComment(new byte[] { 'c' });
+            bar.getCentralDirectoryHeader()
+                    .setExtraField(
+                            new ExtraField(
+                                    ImmutableList.of(
+                                            new ExtraField.AlignmentSegment(4, 8))));
+        }
+
+        byte[] directoryBytes;
+        try (ZFile zf = new ZFile(zip)) {
+            directoryBytes = zf.getCentralDirectoryBytes();
+        }
+
+        try (ZFile zf = new ZFile(zip, new ZFileOptions(), true)) {
+            assertEquals(3, zf.entries().size());
+            assertArrayEquals(directoryBytes, zf.getCentralDirectoryBytes());
+            assertNull(zf.get("baz"));
+
+            StoredEntry bar = zf.get("bar");
+            assertNotNull(bar);
+            assertSame(bar, zf.get("bar"));
+            assertTrue(zf.entriesView().contains(bar));
+            assertArrayEquals(new byte[] { 0, 1, 2, 3, 4, 5 }, bar.read());
+            assertArrayEquals(new byte[] { 'c' }, bar.getCentralDirectoryHeader().getComment());
+            assertEquals(8, bar.getCentralDirectoryHeader().getExtraField().size());
+
+            StoredEntry dir = zf.get("dir/");
+            assertNotNull(dir);
+            assertEquals(StoredEntryType.DIRECTORY, dir.getType());
+
+            StoredEntry agua = zf.get("dir/\u00e1gua");
+            assertNotNull(agua);
+            assertTrue(agua.getCentralDirectoryHeader().getGpBit().isUtf8FileName());
+            assertArrayEquals(new byte[] { 6, 7 }, agua.read());
+        }
+    }
+
+    @Test
+    public void entryTableGrowsPastInitialCapacity() throws Exception {
+        File zip = new File(temporaryFolder.getRoot(), "foo.zip");
+        try (ZFile zf = new ZFile(zip)) {
+            for (int i = 0; i < 100; i++) {
+                zf.add("f" + i, new ByteArrayInputStream(new byte[] { (byte) i }), false);
+            }
+        }
+
+        try (ZFile zf = new ZFile(zip)) {
+            EntryTable table = new EntryTable(zf, 0);
+            for (StoredEntry entry : zf.entries()) {
+                table.add(
+                        entry.getCentralDirectoryHeader(),
+                        entry.getLocalExtra(),
+                        entry.getDataDescriptorType(),
+                        VerifyLogs.devNull());
+            }
+
+            table.trimToSize();
+            assertEquals(100, table.size());
+            for (int i = 0; i < 100; i++) {
+                StoredEntry entry = table.get("f" + i);
+                assertNotNull(entry);
+                assertArrayEquals(new byte[] { (byte) i }, entry.read());
+            }
+
+            assertNull(table.get("f100"));
+        }
+    }
+
+    @Test
+    public void corruptLocalHeaderDetectedWhenOpeningInRoMode() throws Exception {
+        File zip = makeTestZip();
+
+        long barOffset;
+        try (ZFile zf = new ZFile(zip)) {
+            StoredEntry bar = zf.get("bar");
+            assertNotNull(bar);
+            barOffset = bar.getCentralDirectoryHeader().getOffset();
+        }
+
+        byte[] zipBytes = Files.toByteArray(zip);
+        zipBytes[Ints.checkedCast(barOffset)] ^= 1;
+        Files.write(zipBytes, zip);
+
+        try {
+            new ZFile(zip, new ZFileOptions(), true).close();
+            fail();
+        } catch (IOException e) {
+            assertTrue(Throwables.getStackTraceAsString(e).contains("'bar'"));
+        }
+    }
+
+    @Test
+    public void canMergeFromRoZip() throws Exception {
+        File src = new File(temporaryFolder.getRoot(), "src.zip");
+        try (ZFile zf = new ZFile(src)) {
+            zf.add("same", new ByteArrayInputStream(new byte[] { 0, 1 }));
+            zf.add("changed", new ByteArrayInputStream(new byte[] { 2, 3 }));
+            zf.add("new", new ByteArrayInputStream(new byte[] { 4, 5 }), false);
+            zf.add("ignored", new ByteArrayInputStream(new byte[] { 6, 7 }));
+        }
+
+        File dest = new File(temporaryFolder.getRoot(), "dest.zip");
+        try (ZFile zf = new ZFile(dest)) {
+            zf.add("same", new ByteArrayInputStream(new byte[] { 0, 1 }));
+            zf.add("changed", new ByteArrayInputStream(new byte[] { 3, 2 }));
+        }
+
+        try (ZFile srcZf = new ZFile(src, new ZFileOptions(), true);
+                ZFile destZf = new ZFile(dest)) {
+            destZf.mergeFrom(srcZf, "ignored"::equals);
+        }
+
+        try (ZFile zf = new ZFile(dest, new ZFileOptions(), true)) {
+            assertEquals(3, zf.entries().size());
+            assertNull(zf.get("ignored"));
+
+            StoredEntry same = zf.get("same");
+            assertNotNull(same);
+            assertArrayEquals(new byte[] { 0, 1 }, same.read());
+
+            StoredEntry changed = zf.get("changed");
+            assertNotNull(changed);
+            assertArrayEquals(new byte[] { 2, 3 }, changed.read());
+
+            StoredEntry added = zf.get("new");
+            assertNotNull(added);
+            assertArrayEquals(new byte[] { 4, 5 }, added.read());
+        }
+    }
+
+    @Test
+    public void overlappingEntriesDetectedInRoMode() throws Exception {
+        File zip = new File(temporaryFolder.getRoot(), "foo.zip");
+        try (ZFile zf = new ZFile(zip)) {
+            zf.add("a", new ByteArrayInputStream(new byte[] { 0, 1, 2 }), false);
+            zf.add("b", new ByteArrayInputStream(new byte[] { 3, 4, 5 }), false);
+        }
+
+        /*
+         * Make the central directory entry of "b" point to the local header of "a".
+         */
+        long bOffset;
+        long directoryOffset;
+        try (ZFile zf = new ZFile(zip)) {
+            StoredEntry b = zf.get("b");
+            assertNotNull(b);
+            bOffset = b.getCentralDirectoryHeader().getOffset();
+            directoryOffset = zf.getCentralDirectoryOffset();
+        }
+
+        byte[] zipBytes = Files.toByteArray(zip);
+        ByteBuffer directory = ByteBuffer.wrap(zipBytes).order(ByteOrder.LITTLE_ENDIAN);
+        int entryOffset = Ints.checkedCast(directoryOffset);
+        for (int i = 0; i < 2; i++) {
+            /*
+             * The offset is the last field before the name.
+             */
+            int offsetField = entryOffset + ZFileTestConstants.CENTRAL_DIRECTORY_ENTRY_SIZE - 4;
+            if (directory.getInt(offsetField) == bOffset) {
+                directory.putInt(offsetField, 0);
+            }
+
+            entryOffset += ZFileTestConstants.CENTRAL_DIRECTORY_ENTRY_SIZE + 1;
+        }
+
+        Files.write(zipBytes, zip);
+
+        try {
+            new ZFile(zip, new ZFileOptions(), true).close();
+            fail();
+        } catch (IOException e) {
+            assertTrue(Throwables.getRootCause(e).getMessage().contains("overlaps"));
+        }
+    }
 }
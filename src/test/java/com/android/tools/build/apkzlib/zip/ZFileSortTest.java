@@ -19,10 +19,17 @@ package com.android.tools.build.apkzlib.zip;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import javax.annotation.Nullable;
 import org.junit.After;
 import org.junit.Before;
@@ -215,4 +222,63 @@ public class ZFileSortTest {
         assertTrue(mMaryOffset > mBethOffset);
         assertTrue(mPeterOffset > mMaryOffset);
     }
+
+    @Test
+    public void sortFilesWithProfile() throws Exception {
+        ZFileOptions options = new ZFileOptions();
+        options.setAutoSortFiles(true);
+        options.setEntryOrder(EntryOrderings.fromProfile(ImmutableList.of("Peter.html", "*.xml")));
+        setupZFile(options);
+
+        mZFile.update();
+
+        readEntries();
+        assertTrue(mPeterOffset >= 0);
+        assertTrue(mMaryOffset > mPeterOffset);
+        assertTrue(mAndrewOffset > mMaryOffset);
+        assertTrue(mBethOffset > mAndrewOffset);
+    }
+
+    @Test
+    public void sortFilesWithProfileFile() throws Exception {
+        File profile = mTemporaryFolder.newFile("profile.txt");
+        Files.write("# Startup\n\n*.png\nAndrew.txt\n", profile, Charsets.UTF_8);
+
+        mZFile.close();
+
+        ZFileOptions options = new ZFileOptions();
+        options.setEntryOrder(EntryOrderings.fromProfileFile(profile.toPath()));
+        mZFile = new ZFile(mFile, options);
+
+        mZFile.sortZipContents();
+        mZFile.update();
+
+        readEntries();
+        assertTrue(mBethOffset >= 0);
+        assertTrue(mAndrewOffset > mBethOffset);
+        assertTrue(mMaryOffset > mAndrewOffset);
+        assertTrue(mPeterOffset > mMaryOffset);
+    }
+
+    @Test
+    public void sortingWithPrecomputedProfileRanksKeepsOrder() throws Exception {
+        readEntries();
+
+        Comparator<StoredEntry> profileOrder =
+                EntryOrderings.fromProfile(ImmutableList.of("*.png", "Peter.html", "*.xml"));
+        List<StoredEntry> toSort =
+                ImmutableList.of(mMaryEntry, mAndrewEntry, mBethEntry, mPeterEntry);
+
+        List<StoredEntry> expected = new ArrayList<>(toSort);
+        expected.sort(profileOrder);
+        assertEquals(ImmutableList.of(mBethEntry, mPeterEntry, mMaryEntry, mAndrewEntry), expected);
+
+        List<StoredEntry> actual = new ArrayList<>(toSort);
+        actual.sort(EntryOrderings.forSorting(profileOrder, toSort));
+        assertEquals(expected, actual);
+
+        assertSame(
+                StoredEntry.COMPARE_BY_NAME,
+                EntryOrderings.forSorting(StoredEntry.COMPARE_BY_NAME, toSort));
+    }
 }
@@ -28,16 +28,24 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.android.tools.build.apkzlib.utils.IOExceptionRunnable;
 import com.android.tools.build.apkzlib.zip.compress.DeflateExecutionCompressor;
 import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
 import com.android.tools.build.apkzlib.zip.utils.RandomAccessFileUtils;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closer;
 import com.google.common.io.Files;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -46,16 +54,28 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -1057,6 +1077,110 @@ public class ZFileTest {
         }
     }
 
+    @Test
+    public void largeFreedAreasAreClearedOnWrite() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        byte[] aData = new byte[3 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(aData);
+        try (ZFile zf = new ZFile(zipFile)) {
+            zf.add("a", new ByteArrayInputStream(aData), false);
+            zf.add("b", new ByteArrayInputStream(new byte[] { 1, 2 }), false);
+        }
+
+        try (ZFile zf = new ZFile(zipFile)) {
+            StoredEntry a = zf.get("a");
+            assertNotNull(a);
+            a.delete();
+            zf.update();
+
+            StoredEntry b = zf.get("b");
+            assertNotNull(b);
+            long bOffset = b.getCentralDirectoryHeader().getOffset();
+            assertTrue(bOffset > aData.length);
+
+            byte[] cleared = new byte[Ints.checkedCast(bOffset)];
+            zf.directFullyRead(0, cleared);
+            assertArrayEquals(new byte[cleared.length], cleared);
+
+            /*
+             * Writing to the zip again must not be affected by the areas already cleared.
+             */
+            zf.add("c", new ByteArrayInputStream(new byte[] { 3 }), false);
+        }
+
+        try (ZFile zf = new ZFile(zipFile)) {
+            StoredEntry b = zf.get("b");
+            assertNotNull(b);
+            assertArrayEquals(new byte[] { 1, 2 }, b.read());
+            StoredEntry c = zf.get("c");
+            assertNotNull(c);
+            assertArrayEquals(new byte[] { 3 }, c.read());
+        }
+    }
+
+    @Test
+    public void appendOnlyModeKeepsPrefixUnchanged() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        try (ZFile zf = new ZFile(zipFile)) {
+            zf.add("a", new ByteArrayInputStream(new byte[] { 1, 2, 3 }), false);
+            zf.add("b", new ByteArrayInputStream(new byte[] { 4, 5, 6 }), false);
+            zf.add("c", new ByteArrayInputStream(new byte[] { 7, 8, 9 }), false);
+        }
+
+        byte[] before = Files.toByteArray(zipFile);
+        long aOffset;
+        long cOffset;
+        long directoryOffset;
+        ZFileOptions options = new ZFileOptions().setAppendOnly(true);
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            aOffset = zf.get("a").getCentralDirectoryHeader().getOffset();
+            cOffset = zf.get("c").getCentralDirectoryHeader().getOffset();
+            directoryOffset = zf.getCentralDirectoryOffset();
+
+            zf.add("b", new ByteArrayInputStream(new byte[] { 10 }), false);
+        }
+
+        byte[] after = Files.toByteArray(zipFile);
+        assertArrayEquals(
+                Arrays.copyOf(before, (int) directoryOffset),
+                Arrays.copyOf(after, (int) directoryOffset));
+
+        try (ZFile zf = new ZFile(zipFile)) {
+            assertEquals(aOffset, zf.get("a").getCentralDirectoryHeader().getOffset());
+            assertEquals(cOffset, zf.get("c").getCentralDirectoryHeader().getOffset());
+            StoredEntry b = zf.get("b");
+            assertNotNull(b);
+            assertTrue(b.getCentralDirectoryHeader().getOffset() >= directoryOffset);
+            assertArrayEquals(new byte[] { 10 }, b.read());
+        }
+    }
+
+    @Test
+    public void appendOnlyModeCompactsDeadSpace() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        try (ZFile zf = new ZFile(zipFile)) {
+            zf.add("a", new ByteArrayInputStream(new byte[1000]), false);
+            zf.add("b", new ByteArrayInputStream(new byte[] { 1 }), false);
+            zf.add("c", new ByteArrayInputStream(new byte[] { 2 }), false);
+        }
+
+        ZFileOptions options = new ZFileOptions().setAppendOnly(true).setMaxDeadSpaceRatio(0.25);
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.get("a").delete();
+        }
+
+        try (ZFile zf = new ZFile(zipFile)) {
+            StoredEntry b = zf.get("b");
+            assertNotNull(b);
+            assertEquals(0, b.getCentralDirectoryHeader().getOffset());
+            assertArrayEquals(new byte[] { 1 }, b.read());
+            StoredEntry c = zf.get("c");
+            assertNotNull(c);
+            assertArrayEquals(new byte[] { 2 }, c.read());
+            assertTrue(zf.getCentralDirectoryOffset() < 1000);
+        }
+    }
+
     @Test
     public void deferredCompression() throws Exception {
         File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
@@ -1719,6 +1843,30 @@ public class ZFileTest {
         }
     }
 
+    @Test
+    public void eocdFoundWithCommentsOfAnySize() throws Exception {
+        /*
+         * Comment sizes around the limits of each stage of the EOCD search.
+         */
+        int[] commentSizes = new int[] { 0, 1, 19, 20, 21, 100, 4073, 4074, 4075, 10000, 65535 };
+        for (int commentSize : commentSizes) {
+            File zipFile = new File(mTemporaryFolder.getRoot(), "a" + commentSize + ".zip");
+            byte[] comment = new byte[commentSize];
+            Arrays.fill(comment, (byte) 'c');
+            try (ZFile zf = new ZFile(zipFile)) {
+                zf.add("foo", new ByteArrayInputStream(new byte[] { 1 }));
+                zf.setEocdComment(comment);
+            }
+
+            try (ZFile zf = new ZFile(zipFile)) {
+                assertArrayEquals(comment, zf.getEocdComment());
+                StoredEntry foo = zf.get("foo");
+                assertNotNull(foo);
+                assertArrayEquals(new byte[] { 1 }, foo.read());
+            }
+        }
+    }
+
     @Test
     public void eocdCommentsWithTheEocdMarkerAreAllowed() throws Exception {
         File zipFileWithComments = new File(mTemporaryFolder.getRoot(), "a.zip");
@@ -1818,4 +1966,967 @@ public class ZFileTest {
             assertTrue(Throwables.getStackTraceAsString(e).contains("EOF"));
         }
     }
+
+    @Test
+    public void eagerWritesWriteEntriesBeforeUpdate() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        ZFileOptions options = new ZFileOptions().setWriteEntriesEagerly(true);
+        byte[] fooData = Strings.repeat("foo", 1000).getBytes(Charsets.US_ASCII);
+        byte[] barData = Strings.repeat("bar", 1000).getBytes(Charsets.US_ASCII);
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.add("foo", new ByteArrayInputStream(fooData));
+            zf.add("bar", new ByteArrayInputStream(barData), false);
+
+            StoredEntry foo = zf.get("foo");
+            assertNotNull(foo);
+            assertNotEquals(-1, foo.getCentralDirectoryHeader().getOffset());
+            assertArrayEquals(fooData, foo.read());
+
+            StoredEntry bar = zf.get("bar");
+            assertNotNull(bar);
+            assertNotEquals(-1, bar.getCentralDirectoryHeader().getOffset());
+            assertArrayEquals(barData, bar.read());
+
+            zf.add("foo", new ByteArrayInputStream(barData));
+        }
+
+        try (ZipFile zf = new ZipFile(zipFile)) {
+            for (String name : new String[] { "foo", "bar" }) {
+                try (InputStream is = zf.getInputStream(zf.getEntry(name))) {
+                    assertArrayEquals(barData, ByteStreams.toByteArray(is));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void backgroundWritesProduceValidZip() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        ZFileOptions options = new ZFileOptions().setWriteEntriesInBackground(true);
+        Random random = new Random(42);
+        byte[][] data = new byte[20][];
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            for (int i = 0; i < data.length; i++) {
+                data[i] = new byte[random.nextInt(100_000)];
+                random.nextBytes(data[i]);
+                zf.add("file" + i, new ByteArrayInputStream(data[i]), i % 2 == 0);
+            }
+
+            /*
+             * Replace and remove some files while they may still be being written.
+             */
+            data[3] = Strings.repeat("replaced", 100).getBytes(Charsets.US_ASCII);
+            zf.add("file3", new ByteArrayInputStream(data[3]));
+            StoredEntry removed = zf.get("file5");
+            assertNotNull(removed);
+            removed.delete();
+
+            zf.update();
+            for (int i = 0; i < data.length; i++) {
+                StoredEntry entry = zf.get("file" + i);
+                if (i == 5) {
+                    assertNull(entry);
+                } else {
+                    assertNotNull(entry);
+                    assertNotEquals(-1, entry.getCentralDirectoryHeader().getOffset());
+                }
+            }
+        }
+
+        try (ZipFile zf = new ZipFile(zipFile)) {
+            for (int i = 0; i < data.length; i++) {
+                ZipEntry entry = zf.getEntry("file" + i);
+                if (i == 5) {
+                    assertNull(entry);
+                    continue;
+                }
+
+                try (InputStream is = zf.getInputStream(entry)) {
+                    assertArrayEquals(data[i], ByteStreams.toByteArray(is));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void addBlocksWhenTooManyFilesAreCompressing() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        AtomicInteger compressing = new AtomicInteger();
+        AtomicInteger maxCompressing = new AtomicInteger();
+
+        ZFileOptions options = new ZFileOptions().setMaxCompressingEntries(2);
+        options.setCompressor(new DeflateExecutionCompressor(executor, options.getTracker(),
+                Deflater.DEFAULT_COMPRESSION) {
+            @Nonnull
+            @Override
+            public ListenableFuture<CompressionResult> compress(
+                    @Nonnull String name,
+                    @Nonnull CloseableByteSource source) {
+                maxCompressing.accumulateAndGet(compressing.incrementAndGet(), Math::max);
+                ListenableFuture<CompressionResult> result = super.compress(name, source);
+                result.addListener(compressing::decrementAndGet, MoreExecutors.directExecutor());
+                return result;
+            }
+
+            @Nonnull
+            @Override
+            protected CompressionResult immediateCompress(@Nonnull CloseableByteSource source)
+                    throws Exception {
+                Thread.sleep(20);
+                return super.immediateCompress(source);
+            }
+        });
+
+        try (ZFile zip = new ZFile(zipFile, options)) {
+            for (int i = 0; i < 10; i++) {
+                zip.add("file" + i, new ByteArrayInputStream(new byte[1000]));
+            }
+        }
+
+        executor.shutdownNow();
+
+        assertTrue(maxCompressing.get() <= 2);
+        try (ZipFile zf = new ZipFile(zipFile)) {
+            assertEquals(10, zf.size());
+        }
+    }
+
+    @Test
+    public void processEntriesInCompletionOrder() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        List<SettableFuture<CompressionResult>> compressions = new ArrayList<>();
+        List<CloseableByteSource> sources = new ArrayList<>();
+        ZFileOptions options = new ZFileOptions().setProcessEntriesInCompletionOrder(true);
+        options.setCompressor(source -> {
+            SettableFuture<CompressionResult> future = SettableFuture.create();
+            compressions.add(future);
+            sources.add(source);
+            return future;
+        });
+
+        List<String> added = new ArrayList<>();
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.addZFileExtension(new ZFileExtension() {
+                @Nullable
+                @Override
+                public IOExceptionRunnable added(
+                        @Nonnull StoredEntry entry,
+                        @Nullable StoredEntry replaced) {
+                    added.add(entry.getCentralDirectoryHeader().getName());
+                    return null;
+                }
+            });
+
+            zf.add("a", new ByteArrayInputStream(new byte[] { 1 }));
+            zf.add("b", new ByteArrayInputStream(new byte[] { 2 }));
+            zf.add("a", new ByteArrayInputStream(new byte[] { 3 }));
+
+            compressions.get(1).set(stored(sources.get(1)));
+            compressions.get(2).set(stored(sources.get(2)));
+            zf.add("c", new ByteArrayInputStream(new byte[] { 4 }), false);
+            assertEquals(ImmutableList.of("b", "c"), added);
+
+            compressions.get(0).set(stored(sources.get(0)));
+            zf.update();
+            assertEquals(ImmutableList.of("b", "c", "a", "a"), added);
+
+            StoredEntry a = zf.get("a");
+            assertNotNull(a);
+            assertArrayEquals(new byte[] { 3 }, a.read());
+        }
+    }
+
+    @Test
+    public void processEntriesInCompletionOrderRemovesFromMiddleOfQueue() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        List<SettableFuture<CompressionResult>> compressions = new ArrayList<>();
+        List<CloseableByteSource> sources = new ArrayList<>();
+        ZFileOptions options = new ZFileOptions().setProcessEntriesInCompletionOrder(true);
+        options.setCompressor(source -> {
+            SettableFuture<CompressionResult> future = SettableFuture.create();
+            compressions.add(future);
+            sources.add(source);
+            return future;
+        });
+
+        List<String> added = new ArrayList<>();
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.addZFileExtension(new ZFileExtension() {
+                @Nullable
+                @Override
+                public IOExceptionRunnable added(
+                        @Nonnull StoredEntry entry,
+                        @Nullable StoredEntry replaced) {
+                    added.add(entry.getCentralDirectoryHeader().getName());
+                    return null;
+                }
+            });
+
+            zf.add("a", new ByteArrayInputStream(new byte[] { 1 }));
+            zf.add("b", new ByteArrayInputStream(new byte[] { 2 }));
+            zf.add("c", new ByteArrayInputStream(new byte[] { 3 }));
+            zf.add("d", new ByteArrayInputStream(new byte[] { 4 }));
+            zf.add("b", new ByteArrayInputStream(new byte[] { 5 }));
+
+            compressions.get(3).set(stored(sources.get(3)));
+            compressions.get(4).set(stored(sources.get(4)));
+            zf.add("e", new ByteArrayInputStream(new byte[] { 6 }), false);
+            assertEquals(ImmutableList.of("d", "e"), added);
+
+            compressions.get(2).set(stored(sources.get(2)));
+            compressions.get(1).set(stored(sources.get(1)));
+            zf.add("f", new ByteArrayInputStream(new byte[] { 7 }), false);
+            assertEquals(ImmutableList.of("d", "e", "b", "c", "b", "f"), added);
+
+            compressions.get(0).set(stored(sources.get(0)));
+            zf.update();
+            assertEquals(ImmutableList.of("d", "e", "b", "c", "b", "f", "a"), added);
+
+            StoredEntry b = zf.get("b");
+            assertNotNull(b);
+            assertArrayEquals(new byte[] { 5 }, b.read());
+        }
+    }
+
+    @Test
+    public void waitForCapacityInCompletionOrderWaitsForAnyEntry() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        List<SettableFuture<CompressionResult>> compressions = new ArrayList<>();
+        List<CloseableByteSource> sources = new ArrayList<>();
+        ZFileOptions options =
+                new ZFileOptions()
+                        .setProcessEntriesInCompletionOrder(true)
+                        .setMaxCompressingEntries(2);
+        options.setCompressor(source -> {
+            SettableFuture<CompressionResult> future = SettableFuture.create();
+            compressions.add(future);
+            sources.add(source);
+            return future;
+        });
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.add("a", new ByteArrayInputStream(new byte[] { 1 }));
+            zf.add("b", new ByteArrayInputStream(new byte[] { 2 }));
+
+            /*
+             * Adding "c" blocks until there is capacity. Only "b" completes, so waiting for the
+             * first entry would never return.
+             */
+            Future<?> completeB = executor.submit(() -> {
+                Thread.sleep(100);
+                compressions.get(1).set(stored(sources.get(1)));
+                return null;
+            });
+            zf.add("c", new ByteArrayInputStream(new byte[] { 3 }), false);
+            completeB.get();
+
+            assertFalse(compressions.get(0).isDone());
+            assertNotNull(zf.get("c"));
+
+            compressions.get(0).set(stored(sources.get(0)));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        try (ZFile zf = new ZFile(zipFile)) {
+            assertEquals(3, zf.entries().size());
+        }
+    }
+
+    @Test
+    public void addConcurrentlyFromMultipleThreads() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        int threads = 8;
+        int filesPerThread = 50;
+
+        ExecutorService compressorExecutor = Executors.newFixedThreadPool(2);
+        ExecutorService producers = Executors.newFixedThreadPool(threads);
+        ZFileOptions options = new ZFileOptions().setMaxCompressingEntries(10);
+        options.setCompressor(
+                new DeflateExecutionCompressor(
+                        compressorExecutor,
+                        options.getTracker(),
+                        Deflater.DEFAULT_COMPRESSION));
+
+        AtomicInteger notified = new AtomicInteger();
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.addZFileExtension(new ZFileExtension() {
+                @Nullable
+                @Override
+                public IOExceptionRunnable added(
+                        @Nonnull StoredEntry entry,
+                        @Nullable StoredEntry replaced) {
+                    notified.incrementAndGet();
+                    return null;
+                }
+            });
+
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                results.add(producers.submit(() -> {
+                    for (int f = 0; f < filesPerThread; f++) {
+                        String name = "t" + thread + "/f" + f;
+                        zf.addConcurrently(
+                                name,
+                                new ByteArrayInputStream(Strings.repeat(name, 100).getBytes()),
+                                true);
+                    }
+
+                    return null;
+                }));
+            }
+
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            producers.shutdown();
+            compressorExecutor.shutdown();
+        }
+
+        assertEquals(threads * filesPerThread, notified.get());
+        try (ZFile zf = new ZFile(zipFile)) {
+            assertEquals(threads * filesPerThread, zf.entries().size());
+            for (int t = 0; t < threads; t++) {
+                for (int f = 0; f < filesPerThread; f++) {
+                    String name = "t" + t + "/f" + f;
+                    StoredEntry entry = zf.get(name);
+                    assertNotNull(entry);
+                    assertArrayEquals(Strings.repeat(name, 100).getBytes(), entry.read());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void addAllRecursivelyInParallelAddsInPathOrder() throws Exception {
+        File dir = mTemporaryFolder.newFolder("src");
+        File sub = new File(dir, "b");
+        assertTrue(sub.mkdir());
+        Files.write(new byte[] { 1 }, new File(dir, "c"));
+        Files.write(new byte[] { 2 }, new File(sub, "z"));
+        Files.write(new byte[] { 3 }, new File(sub, "y"));
+        Files.write(new byte[] { 4 }, new File(dir, "a"));
+
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        List<String> added = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (ZFile zf = new ZFile(zipFile)) {
+            zf.addZFileExtension(new ZFileExtension() {
+                @Nullable
+                @Override
+                public IOExceptionRunnable added(
+                        @Nonnull StoredEntry entry,
+                        @Nullable StoredEntry replaced) {
+                    added.add(entry.getCentralDirectoryHeader().getName());
+                    return null;
+                }
+            });
+
+            zf.addAllRecursively(dir, f -> true, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(ImmutableList.of("a", "b/", "b/y", "b/z", "c"), added);
+        try (ZFile zf = new ZFile(zipFile)) {
+            StoredEntry y = zf.get("b/y");
+            assertNotNull(y);
+            assertArrayEquals(new byte[] { 3 }, y.read());
+        }
+    }
+
+    @Test
+    public void addAllRecursivelyReleasesFileWhenAddFails() throws Exception {
+        File dir = mTemporaryFolder.newFolder("src");
+        Files.write(new byte[] { 1 }, new File(dir, "a"));
+        Files.write(new byte[1000], new File(dir, "b"));
+
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        SettableFuture<CompressionResult> compressionOfA = SettableFuture.create();
+        ZFileOptions options = new ZFileOptions();
+        options.setCompressor(source -> compressionOfA);
+
+        /*
+         * Compression of "a" fails when "b" is about to be added, so adding "b" fails before "b"
+         * is queued for compression.
+         */
+        ZFile zf = new ZFile(zipFile, options);
+        try {
+            zf.addAllRecursively(
+                    dir,
+                    f -> {
+                        if (f.getName().equals("b")) {
+                            compressionOfA.setException(new IOException("Failed to compress"));
+                        }
+
+                        return true;
+                    },
+                    MoreExecutors.directExecutor());
+            fail();
+        } catch (IOException e) {
+            assertTrue(Throwables.getStackTraceAsString(e).contains("Failed to compress"));
+        }
+
+        assertTrue(options.getTracker().getBytesUsed() < 1000);
+        zf.close();
+    }
+
+    @Test
+    public void addAllRecursivelySkipsUnchangedFiles() throws Exception {
+        File dir = mTemporaryFolder.newFolder("src");
+        Files.write(Strings.repeat("a", 1000).getBytes(), new File(dir, "a"));
+        Files.write(Strings.repeat("b", 1000).getBytes(), new File(dir, "b"));
+
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        ZFileOptions options = new ZFileOptions().setSkipUnchangedFiles(true);
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.addAllRecursively(dir, f -> true, MoreExecutors.directExecutor());
+        }
+
+        Files.write(Strings.repeat("c", 1000).getBytes(), new File(dir, "b"));
+
+        List<String> added = new ArrayList<>();
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.addZFileExtension(new ZFileExtension() {
+                @Nullable
+                @Override
+                public IOExceptionRunnable added(
+                        @Nonnull StoredEntry entry,
+                        @Nullable StoredEntry replaced) {
+                    added.add(entry.getCentralDirectoryHeader().getName());
+                    return null;
+                }
+            });
+
+            zf.addAllRecursively(dir, f -> true, MoreExecutors.directExecutor());
+            assertEquals(ImmutableList.of("b"), added);
+
+            StoredEntry b = zf.get("b");
+            assertNotNull(b);
+            assertArrayEquals(Strings.repeat("c", 1000).getBytes(), b.read());
+        }
+
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.addAllRecursively(dir, f -> true, MoreExecutors.directExecutor());
+            assertFalse(zf.hasPendingChangesWithWait());
+            assertEquals(2, zf.entries().size());
+        }
+    }
+
+    @Test
+    public void addAllRecursivelyReplacesEntriesWhenMayCompressChanges() throws Exception {
+        File dir = mTemporaryFolder.newFolder("src");
+        File lib = new File(dir, "lib.so");
+        Files.write(Strings.repeat("lib", 1000).getBytes(), lib);
+
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        ZFileOptions options = new ZFileOptions().setSkipUnchangedFiles(true);
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.addAllRecursively(dir, f -> false, MoreExecutors.directExecutor());
+        }
+
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.addAllRecursively(dir, f -> true, MoreExecutors.directExecutor());
+            assertTrue(zf.hasPendingChangesWithWait());
+        }
+
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            StoredEntry entry = zf.get("lib.so");
+            assertNotNull(entry);
+            assertEquals(
+                    CompressionMethod.DEFLATE,
+                    entry.getCentralDirectoryHeader().getCompressionInfoWithWait().getMethod());
+
+            zf.addAllRecursively(dir, f -> false, MoreExecutors.directExecutor());
+            assertTrue(zf.hasPendingChangesWithWait());
+
+            entry = zf.get("lib.so");
+            assertNotNull(entry);
+            assertEquals(
+                    CompressionMethod.STORE,
+                    entry.getCentralDirectoryHeader().getCompressionInfoWithWait().getMethod());
+        }
+    }
+
+    @Test
+    public void addReplacesStoredEntryThatMayNowBeCompressed() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        byte[] data = Strings.repeat("data", 1000).getBytes();
+        ZFileOptions options = new ZFileOptions().setSkipUnchangedFiles(true);
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.add("a", new ByteArrayInputStream(data), false);
+        }
+
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.add("a", new ByteArrayInputStream(data), false);
+            assertFalse(zf.hasPendingChangesWithWait());
+
+            zf.add("a", new ByteArrayInputStream(data));
+            assertTrue(zf.hasPendingChangesWithWait());
+
+            StoredEntry a = zf.get("a");
+            assertNotNull(a);
+            assertEquals(
+                    CompressionMethod.DEFLATE,
+                    a.getCentralDirectoryHeader().getCompressionInfoWithWait().getMethod());
+            assertArrayEquals(data, a.read());
+        }
+    }
+
+    @Test
+    public void addSkipsStoredIncompressibleFilesThatMayBeCompressed() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+        ZFileOptions options = new ZFileOptions().setSkipUnchangedFiles(true);
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.add("a", new ByteArrayInputStream(data));
+        }
+
+        byte[] before = Files.toByteArray(zipFile);
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            StoredEntry a = zf.get("a");
+            assertNotNull(a);
+            assertEquals(
+                    CompressionMethod.STORE,
+                    a.getCentralDirectoryHeader().getCompressionInfoWithWait().getMethod());
+
+            zf.add("a", new ByteArrayInputStream(data));
+            assertFalse(zf.hasPendingChangesWithWait());
+        }
+
+        assertArrayEquals(before, Files.toByteArray(zipFile));
+    }
+
+    @Test
+    public void addSkipsUnchangedFiles() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        byte[] data = Strings.repeat("data", 1000).getBytes();
+        ZFileOptions options = new ZFileOptions().setSkipUnchangedFiles(true);
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.add("a", new ByteArrayInputStream(data));
+        }
+
+        byte[] before = Files.toByteArray(zipFile);
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.add("a", new ByteArrayInputStream(data));
+            assertFalse(zf.hasPendingChangesWithWait());
+        }
+
+        assertArrayEquals(before, Files.toByteArray(zipFile));
+
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            /*
+             * The file must be stored but the existing entry is compressed, so it is replaced.
+             */
+            zf.add("a", new ByteArrayInputStream(data), false);
+            assertTrue(zf.hasPendingChangesWithWait());
+
+            StoredEntry a = zf.get("a");
+            assertNotNull(a);
+            assertEquals(
+                    CompressionMethod.STORE,
+                    a.getCentralDirectoryHeader().getCompressionInfoWithWait().getMethod());
+        }
+    }
+
+    @Test
+    public void getAndEntriesViewSeePendingEntries() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        List<SettableFuture<CompressionResult>> compressions = new ArrayList<>();
+        List<CloseableByteSource> sources = new ArrayList<>();
+        ZFileOptions options = new ZFileOptions();
+        options.setCompressor(source -> {
+            SettableFuture<CompressionResult> future = SettableFuture.create();
+            compressions.add(future);
+            sources.add(source);
+            return future;
+        });
+
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            zf.add("a", new ByteArrayInputStream(new byte[] { 1 }), false);
+            zf.add("b", new ByteArrayInputStream(new byte[] { 2 }));
+            zf.add("a", new ByteArrayInputStream(new byte[] { 3 }));
+            zf.add("a", new ByteArrayInputStream(new byte[] { 4 }));
+
+            StoredEntry a = zf.get("a");
+            assertNotNull(a);
+            assertArrayEquals(new byte[] { 4 }, a.read());
+            assertEquals(2, zf.entriesView().size());
+            assertEquals(zf.entries(), Sets.newHashSet(zf.entriesView()));
+
+            compressions.get(0).set(stored(sources.get(0)));
+            compressions.get(1).set(stored(sources.get(1)));
+            zf.add("c", new ByteArrayInputStream(new byte[] { 5 }), false);
+
+            /*
+             * The first two "a" entries were processed but the last one is still pending.
+             */
+            a = zf.get("a");
+            assertNotNull(a);
+            assertArrayEquals(new byte[] { 4 }, a.read());
+            assertEquals(3, zf.entriesView().size());
+
+            compressions.get(2).set(stored(sources.get(2)));
+            zf.update();
+
+            a = zf.get("a");
+            assertNotNull(a);
+            assertArrayEquals(new byte[] { 4 }, a.read());
+            assertEquals(3, zf.entriesView().size());
+            assertEquals(zf.entries(), Sets.newHashSet(zf.entriesView()));
+        }
+    }
+
+    @Test
+    public void entriesWithNoExtraFieldsOrCommentShareEmptyData() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        try (ZFile zf = new ZFile(zipFile)) {
+            zf.add("a", new ByteArrayInputStream(new byte[] { 1 }));
+            zf.add("b", new ByteArrayInputStream(new byte[] { 2 }));
+        }
+
+        try (ZFile zf = new ZFile(zipFile)) {
+            StoredEntry a = zf.get("a");
+            StoredEntry b = zf.get("b");
+            assertNotNull(a);
+            assertNotNull(b);
+
+            assertSame(a.getLocalExtra(), b.getLocalExtra());
+            assertSame(
+                    a.getCentralDirectoryHeader().getExtraField(),
+                    b.getCentralDirectoryHeader().getExtraField());
+            assertSame(
+                    a.getCentralDirectoryHeader().getComment(),
+                    b.getCentralDirectoryHeader().getComment());
+        }
+    }
+
+    @Test
+    public void readZip64WithManyEntries() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        int count = 70000;
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile))) {
+            for (int i = 0; i < count; i++) {
+                zos.putNextEntry(new ZipEntry("f" + i));
+                zos.write(("contents " + i).getBytes(Charsets.US_ASCII));
+                zos.closeEntry();
+            }
+        }
+
+        try (ZFile zf = new ZFile(zipFile)) {
+            assertEquals(count, zf.entries().size());
+
+            StoredEntry last = zf.get("f" + (count - 1));
+            assertNotNull(last);
+            assertArrayEquals(
+                    ("contents " + (count - 1)).getBytes(Charsets.US_ASCII),
+                    last.read());
+        }
+    }
+
+    @Test
+    public void centralDirectoryLogsAreInDirectoryOrder() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        int count = 1000;
+        try (ZFile zf = new ZFile(zipFile)) {
+            for (int i = 0; i < count; i++) {
+                zf.add("f" + i, new ByteArrayInputStream(new byte[0]), false);
+            }
+        }
+
+        /*
+         * Give each entry in the central directory a different, unknown, version to extract so
+         * each entry logs a different message.
+         */
+        byte[] allZipBytes = Files.toByteArray(zipFile);
+        ByteBuffer zipBytes = ByteBuffer.wrap(allZipBytes).order(ByteOrder.LITTLE_ENDIAN);
+        int eocdOffset = allZipBytes.length - ZFileTestConstants.EOCD_SIZE;
+        assertEquals(count, zipBytes.getShort(eocdOffset + 10));
+        int entryOffset = zipBytes.getInt(eocdOffset + 16);
+        for (int i = 0; i < count; i++) {
+            zipBytes.putShort(
+                    entryOffset + CentralDirectory.F_VERSION_EXTRACT.offset(),
+                    (short) (0x7000 + i));
+            entryOffset +=
+                    ZFileTestConstants.CENTRAL_DIRECTORY_ENTRY_SIZE
+                            + zipBytes.getShort(entryOffset + 28)
+                            + zipBytes.getShort(entryOffset + 30)
+                            + zipBytes.getShort(entryOffset + 32);
+        }
+
+        Files.write(allZipBytes, zipFile);
+
+        ZFileOptions options = new ZFileOptions();
+        options.setVerifyLogFactory(VerifyLogs::unlimited);
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            assertEquals(count, zf.entries().size());
+
+            List<String> logs = zf.getVerifyLog().getLogs();
+            assertEquals(count, logs.size());
+            for (int i = 0; i < count; i++) {
+                assertTrue(logs.get(i).endsWith(": " + (0x7000 + i) + "."));
+                assertNotNull(zf.get("f" + i));
+            }
+        }
+    }
+
+    @Test
+    public void verifyLogFactoryOnlyInvokedFromCallerThread() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        int count = 1000;
+        try (ZFile zf = new ZFile(zipFile)) {
+            for (int i = 0; i < count; i++) {
+                zf.add("f" + i, new ByteArrayInputStream(new byte[0]), false);
+            }
+        }
+
+        Thread caller = Thread.currentThread();
+        AtomicInteger otherThreadLogs = new AtomicInteger();
+        ZFileOptions options = new ZFileOptions();
+        options.setVerifyLogFactory(
+                () -> {
+                    if (Thread.currentThread() != caller) {
+                        otherThreadLogs.incrementAndGet();
+                    }
+
+                    return VerifyLogs.unlimited();
+                });
+        try (ZFile zf = new ZFile(zipFile, options)) {
+            assertEquals(count, zf.entries().size());
+        }
+
+        assertEquals(0, otherThreadLogs.get());
+    }
+
+    @Test
+    public void staleZip64InformationRemovedFromCentralDirectory() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        try (ZFile zf = new ZFile(zipFile)) {
+            zf.add("a", new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+
+            /*
+             * Simulate an entry read with Zip64 information it no longer needs.
+             */
+            StoredEntry a = zf.get("a");
+            assertNotNull(a);
+            a.getCentralDirectoryHeader()
+                    .setExtraField(
+                            new ExtraField(
+                                    ImmutableList.of(
+                                            new ExtraField.Zip64Segment(1L << 33),
+                                            new ExtraField.AlignmentSegment(4, 8))));
+        }
+
+        try (ZFile zf = new ZFile(zipFile)) {
+            StoredEntry a = zf.get("a");
+            assertNotNull(a);
+
+            ExtraField extra = a.getCentralDirectoryHeader().getExtraField();
+            assertNull(extra.getSingleSegment(ExtraField.ZIP64_EXTRA_DATA_FIELD_HEADER_ID));
+            assertNotNull(
+                    extra.getSingleSegment(ExtraField.ALIGNMENT_ZIP_EXTRA_DATA_FIELD_HEADER_ID));
+            assertArrayEquals(new byte[] { 1, 2, 3 }, a.read());
+        }
+    }
+
+    @Test
+    public void corruptZip64RecordCountRejected() throws Exception {
+        byte[] tooMany = new Zip64Eocd(1000, 0, 1000, 1000).toBytes();
+        try {
+            new Zip64Eocd(ByteBuffer.wrap(tooMany), 1000);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("1000 records"));
+        }
+
+        byte[] huge = new Zip64Eocd(1, 0, 1000, 1000).toBytes();
+        ByteBuffer hugeBytes = ByteBuffer.wrap(huge).order(ByteOrder.LITTLE_ENDIAN);
+        hugeBytes.putLong(24, 1L << 40);
+        hugeBytes.putLong(32, 1L << 40);
+        try {
+            new Zip64Eocd(hugeBytes, 1000);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void writeZip64WithManyEntries() throws Exception {
+        File zipFile = new File(mTemporaryFolder.getRoot(), "a.zip");
+        int count = 70000;
+        try (ZFile zf = new ZFile(zipFile)) {
+            for (int i = 0; i < count; i++) {
+                zf.add("f" + i, new ByteArrayInputStream(new byte[] { (byte) i }), false);
+            }
+        }
+
+        try (ZipFile jzf = new ZipFile(zipFile)) {
+            assertEquals(count, jzf.size());
+
+            ZipEntry last = jzf.getEntry("f" + (count - 1));
+            assertNotNull(last);
+            try (InputStream is = jzf.getInputStream(last)) {
+                assertArrayEquals(new byte[] { (byte) (count - 1) }, ByteStreams.toByteArray(is));
+            }
+        }
+
+        try (ZFile zf = new ZFile(zipFile)) {
+            assertEquals(count, zf.entries().size());
+
+            /*
+             * The EOCD only has the marker value for the number of entries.
+             */
+            ByteBuffer eocd = ByteBuffer.wrap(zf.getEocdBytes()).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals((short) 0xffff, eocd.getShort(10));
+
+            zf.add("another", new ByteArrayInputStream(new byte[] { 1 }));
+        }
+
+        try (ZFile zf = new ZFile(zipFile)) {
+            assertEquals(count + 1, zf.entries().size());
+            StoredEntry another = zf.get("another");
+            assertNotNull(another);
+            assertArrayEquals(new byte[] { 1 }, another.read());
+        }
+    }
+
+    @Test
+    public void zipInNonDefaultFileSystem() throws Exception {
+        File outer = new File(mTemporaryFolder.getRoot(), "outer.zip");
+        URI outerUri = URI.create("jar:" + outer.toURI());
+        try (FileSystem fs =
+                FileSystems.newFileSystem(outerUri, ImmutableMap.of("create", "true"))) {
+            Path inner = fs.getPath("/inner.zip");
+            try (ZFile zf = new ZFile(inner, new ZFileOptions())) {
+                zf.add("a", new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+            }
+
+            try (ZFile zf = new ZFile(inner, new ZFileOptions())) {
+                assertSame(inner, zf.getPath());
+                StoredEntry a = zf.get("a");
+                assertNotNull(a);
+                assertArrayEquals(new byte[] { 1, 2, 3 }, a.read());
+
+                zf.add("b", new ByteArrayInputStream(new byte[] { 4 }), false);
+            }
+
+            try (ZFile zf = new ZFile(inner, new ZFileOptions(), true)) {
+                assertEquals(2, zf.entries().size());
+            }
+        }
+
+        try (ZipFile outerZip = new ZipFile(outer)) {
+            ZipEntry innerEntry = outerZip.getEntry("inner.zip");
+            assertNotNull(innerEntry);
+            try (ZipInputStream zis = new ZipInputStream(outerZip.getInputStream(innerEntry))) {
+                assertEquals("a", zis.getNextEntry().getName());
+                assertArrayEquals(new byte[] { 1, 2, 3 }, ByteStreams.toByteArray(zis));
+                assertEquals("b", zis.getNextEntry().getName());
+                assertNull(zis.getNextEntry());
+            }
+        }
+    }
+
+    @Test
+    public void openNestedZipWithManyEntriesAfterOuterIsClosed() throws Exception {
+        File innerFile = new File(mTemporaryFolder.getRoot(), "inner.zip");
+        int count = 1000;
+        try (ZFile inner = new ZFile(innerFile)) {
+            for (int i = 0; i < count; i++) {
+                inner.add("f" + i, new ByteArrayInputStream(new byte[] { (byte) i }), false);
+            }
+        }
+
+        File outerFile = new File(mTemporaryFolder.getRoot(), "outer.zip");
+        try (ZFile outer = new ZFile(outerFile)) {
+            outer.add("inner.zip", new FileInputStream(innerFile), false);
+        }
+
+        ZFile outer = new ZFile(outerFile, new ZFileOptions(), true);
+        StoredEntry innerEntry = outer.get("inner.zip");
+        assertNotNull(innerEntry);
+        outer.close();
+
+        /*
+         * The nested zip's entries are decoded in parallel, which must not race to reopen the
+         * outer zip.
+         */
+        try (ZFile nested = outer.openNested(innerEntry, new ZFileOptions())) {
+            assertEquals(count, nested.entries().size());
+            StoredEntry last = nested.get("f" + (count - 1));
+            assertNotNull(last);
+            assertArrayEquals(new byte[] { (byte) (count - 1) }, last.read());
+        } finally {
+            outer.close();
+        }
+    }
+
+    @Test
+    public void openStoredNestedZip() throws Exception {
+        File innerFile = new File(mTemporaryFolder.getRoot(), "inner.zip");
+        try (ZFile inner = new ZFile(innerFile)) {
+            inner.add("a", new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+            inner.add("b", new ByteArrayInputStream(new byte[1000]));
+        }
+
+        File outerFile = new File(mTemporaryFolder.getRoot(), "outer.zip");
+        try (ZFile outer = new ZFile(outerFile)) {
+            outer.add("before", new ByteArrayInputStream(new byte[] { 5 }));
+            outer.add("lib/inner.zip", new FileInputStream(innerFile), false);
+            outer.add("compressed.zip", new ByteArrayInputStream(new byte[1000]));
+        }
+
+        try (ZFile outer = new ZFile(outerFile, new ZFileOptions(), true)) {
+            StoredEntry innerEntry = outer.get("lib/inner.zip");
+            assertNotNull(innerEntry);
+
+            try (ZFile nested = outer.openNested(innerEntry, new ZFileOptions())) {
+                assertEquals(outerFile.toPath().resolve("lib/inner.zip"), nested.getPath());
+                assertEquals(2, nested.entries().size());
+
+                StoredEntry a = nested.get("a");
+                assertNotNull(a);
+                assertArrayEquals(new byte[] { 1, 2, 3 }, a.read());
+
+                StoredEntry b = nested.get("b");
+                assertNotNull(b);
+                assertArrayEquals(new byte[1000], b.read());
+
+                try {
+                    nested.add("c", new ByteArrayInputStream(new byte[0]));
+                    fail();
+                } catch (IllegalStateException e) {
+                    // Expected.
+                }
+            }
+
+            StoredEntry compressed = outer.get("compressed.zip");
+            assertNotNull(compressed);
+            try {
+                outer.openNested(compressed, new ZFileOptions());
+                fail();
+            } catch (IOException e) {
+                // Expected.
+            }
+
+            /*
+             * The outer zip is still usable after closing the nested one.
+             */
+            StoredEntry before = outer.get("before");
+            assertNotNull(before);
+            assertArrayEquals(new byte[] { 5 }, before.read());
+        }
+    }
+
+    @Nonnull
+    private static CompressionResult stored(@Nonnull CloseableByteSource source) throws Exception {
+        return new CompressionResult(source, CompressionMethod.STORE, source.size());
+    }
 }
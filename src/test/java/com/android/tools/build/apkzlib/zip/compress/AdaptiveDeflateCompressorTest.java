@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip.compress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.android.tools.build.apkzlib.zip.CompressionMethod;
+import com.android.tools.build.apkzlib.zip.CompressionResult;
+import com.android.tools.build.apkzlib.zip.utils.ByteTracker;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.junit.Test;
+
+public class AdaptiveDeflateCompressorTest {
+
+    private static byte[] compressibleData() {
+        Random random = new Random(42);
+        byte[] data = new byte[512 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(4));
+        }
+
+        return data;
+    }
+
+    private static void compressMany(AdaptiveDeflateCompressor compressor, String name)
+            throws Exception {
+        ByteTracker tracker = new ByteTracker();
+        byte[] data = compressibleData();
+        for (int i = 0; i < 16; i++) {
+            CompressionResult result =
+                    compressor.compress(
+                            name,
+                            tracker.fromStream(new ByteArrayInputStream(data))).get();
+            assertEquals(CompressionMethod.DEFLATE, result.getCompressionMethod());
+            try (InputStream is = new InflaterInputStream(
+                    result.getSource().openStream(), new Inflater(true))) {
+                assertArrayEquals(data, ByteStreams.toByteArray(is));
+            }
+        }
+    }
+
+    @Test
+    public void levelDecreasesWhenTooSlow() throws Exception {
+        AdaptiveDeflateCompressor compressor =
+                new AdaptiveDeflateCompressor(
+                        MoreExecutors.directExecutor(), new ByteTracker(), Long.MAX_VALUE);
+        compressMany(compressor, "assets/file.txt");
+        assertEquals(ImmutableMap.of("txt", Deflater.BEST_SPEED), compressor.getLevels());
+    }
+
+    @Test
+    public void levelIncreasesWhenFastEnough() throws Exception {
+        AdaptiveDeflateCompressor compressor =
+                new AdaptiveDeflateCompressor(MoreExecutors.directExecutor(), new ByteTracker(), 1);
+        compressMany(compressor, "assets/file.txt");
+        assertEquals(
+                ImmutableMap.of("txt", Deflater.BEST_COMPRESSION),
+                compressor.getLevels());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip.compress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tools.build.apkzlib.zip.CompressionMethod;
+import com.android.tools.build.apkzlib.zip.CompressionResult;
+import com.android.tools.build.apkzlib.zip.utils.ByteTracker;
+import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nonnull;
+import org.junit.Test;
+
+public class LargestFirstCompressorTest {
+
+    @Test
+    public void compressesLargestSourcesFirst() throws Exception {
+        ByteTracker tracker = new ByteTracker();
+        List<Runnable> scheduled = new ArrayList<>();
+        List<Long> compressedSizes = new ArrayList<>();
+        LargestFirstCompressor compressor = new LargestFirstCompressor(
+                source -> {
+                    CompressionResult result = stored(source);
+                    compressedSizes.add(result.getSize());
+                    return Futures.immediateFuture(result);
+                },
+                scheduled::add);
+
+        List<CloseableByteSource> sources = new ArrayList<>();
+        List<ListenableFuture<CompressionResult>> results = new ArrayList<>();
+        for (int size : new int[] { 10, 1000, 100, 1000 }) {
+            CloseableByteSource source =
+                    tracker.fromStream(new ByteArrayInputStream(new byte[size]));
+            sources.add(source);
+            results.add(compressor.compress(source));
+        }
+
+        assertEquals(4, scheduled.size());
+        for (ListenableFuture<CompressionResult> result : results) {
+            assertFalse(result.isDone());
+        }
+
+        scheduled.forEach(Runnable::run);
+
+        assertEquals(ImmutableList.of(1000L, 1000L, 100L, 10L), compressedSizes);
+        for (int i = 0; i < sources.size(); i++) {
+            assertTrue(results.get(i).isDone());
+            assertEquals(sources.get(i), results.get(i).get().getSource());
+        }
+    }
+
+    @Nonnull
+    private static CompressionResult stored(@Nonnull CloseableByteSource source) {
+        try {
+            return new CompressionResult(source, CompressionMethod.STORE, source.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
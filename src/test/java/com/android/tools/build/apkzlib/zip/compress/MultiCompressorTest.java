@@ -152,4 +152,44 @@ public class MultiCompressorTest {
 
         assertTrue(resultFileSize == defaultFileSize);
     }
+
+    @Test
+    public void bestNotAttemptedForExtensionsWhereItWasNeverWorthIt() throws Exception {
+        byte[] data = getCompressibleData();
+        byte[] incompressible = new byte[] { 1, 2, 3 };
+
+        File defaultFile = new File(mTemporaryFolder.getRoot(), "default.zip");
+        File resultFile = new File(mTemporaryFolder.getRoot(), "result.zip");
+
+        ZFileOptions resultOptions = new ZFileOptions();
+        resultOptions.setCompressor(
+                new BestAndDefaultDeflateExecutorCompressor(
+                        MoreExecutors.directExecutor(), resultOptions.getTracker(), 1.0, 1));
+
+        try (
+                ZFile defaultZFile = new ZFile(defaultFile);
+                ZFile resultZFile = new ZFile(resultFile, resultOptions)) {
+            defaultZFile.add("a.html", new ByteArrayInputStream(incompressible));
+            resultZFile.add("a.html", new ByteArrayInputStream(incompressible));
+            defaultZFile.add("wikipedia.html", new ByteArrayInputStream(data));
+            resultZFile.add("wikipedia.html", new ByteArrayInputStream(data));
+        }
+
+        assertEquals(defaultFile.length(), resultFile.length());
+
+        /*
+         * Without history, the best compression is used.
+         */
+        File bestFile = new File(mTemporaryFolder.getRoot(), "best.zip");
+        ZFileOptions bestOptions = new ZFileOptions();
+        bestOptions.setCompressor(
+                new BestAndDefaultDeflateExecutorCompressor(
+                        MoreExecutors.directExecutor(), bestOptions.getTracker(), 1.0));
+        try (ZFile bestZFile = new ZFile(bestFile, bestOptions)) {
+            bestZFile.add("a.html", new ByteArrayInputStream(incompressible));
+            bestZFile.add("wikipedia.html", new ByteArrayInputStream(data));
+        }
+
+        assertTrue(bestFile.length() < defaultFile.length());
+    }
 }
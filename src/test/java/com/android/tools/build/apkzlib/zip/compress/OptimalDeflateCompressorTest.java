@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip.compress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tools.build.apkzlib.zip.CompressionMethod;
+import com.android.tools.build.apkzlib.zip.CompressionResult;
+import com.android.tools.build.apkzlib.zip.InflaterByteSource;
+import com.android.tools.build.apkzlib.zip.utils.ByteTracker;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OptimalDeflateCompressorTest {
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private static byte[] text(int size) {
+        String[] words = { "apk", "zip", "entry", "deflate", "the", "of", "signature", "dex " };
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < size) {
+            text.append(words[random.nextInt(words.length)]);
+            text.append(random.nextInt(10) == 0 ? '\n' : ' ');
+        }
+
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] deflateBest(byte[] data) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (DeflaterOutputStream dos =
+                new DeflaterOutputStream(output, new Deflater(Deflater.BEST_COMPRESSION, true))) {
+            dos.write(data);
+        }
+
+        return output.toByteArray();
+    }
+
+    private static CompressionResult compress(OptimalDeflateCompressor compressor, byte[] data)
+            throws Exception {
+        ByteTracker tracker = new ByteTracker();
+        CompressionResult result =
+                compressor.compress(tracker.fromStream(new ByteArrayInputStream(data))).get();
+        if (result.getCompressionMethod() == CompressionMethod.DEFLATE) {
+            assertArrayEquals(data, new InflaterByteSource(result.getSource()).read());
+        } else {
+            assertArrayEquals(data, result.getSource().read());
+        }
+
+        return result;
+    }
+
+    @Test
+    public void deflatedDataInflatesToOriginal() throws Exception {
+        Random random = new Random(7);
+        byte[] randomData = new byte[10000];
+        random.nextBytes(randomData);
+
+        byte[] mixed = new byte[3 * 1024 * 1024];
+        System.arraycopy(text(1024 * 1024), 0, mixed, 0, 1024 * 1024);
+        System.arraycopy(randomData, 0, mixed, 1536 * 1024, randomData.length);
+
+        byte[][] inputs = {
+                new byte[0],
+                new byte[] { 1 },
+                "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa".getBytes(StandardCharsets.US_ASCII),
+                text(100),
+                text(200000),
+                randomData,
+                mixed
+        };
+
+        for (byte[] input : inputs) {
+            byte[] deflated = OptimalDeflater.deflate(input, 3);
+            byte[] inflated =
+                    new InflaterByteSource(
+                                    new ByteTracker().fromStream(
+                                            new ByteArrayInputStream(deflated)))
+                            .read();
+            assertArrayEquals(input, inflated);
+        }
+    }
+
+    @Test
+    public void smallerThanBestCompression() throws Exception {
+        byte[] data = text(200000);
+        byte[] optimal = OptimalDeflater.deflate(data, OptimalDeflateCompressor.DEFAULT_ITERATIONS);
+        assertTrue(optimal.length < deflateBest(data).length);
+    }
+
+    @Test
+    public void incompressibleDataIsStored() throws Exception {
+        byte[] data = new byte[5000];
+        new Random(3).nextBytes(data);
+
+        OptimalDeflateCompressor compressor =
+                new OptimalDeflateCompressor(MoreExecutors.directExecutor(), new ByteTracker(), 1);
+        CompressionResult result = compress(compressor, data);
+        assertEquals(CompressionMethod.STORE, result.getCompressionMethod());
+    }
+
+    @Test
+    public void cachedDataIsReused() throws Exception {
+        File cache = new File(mTemporaryFolder.getRoot(), "cache");
+        byte[] data = text(50000);
+
+        OptimalDeflateCompressor compressor =
+                new OptimalDeflateCompressor(
+                        MoreExecutors.directExecutor(),
+                        new ByteTracker(),
+                        5,
+                        cache);
+        CompressionResult first = compress(compressor, data);
+        assertEquals(CompressionMethod.DEFLATE, first.getCompressionMethod());
+
+        File[] cached = cache.listFiles();
+        assertEquals(1, cached.length);
+        assertArrayEquals(first.getSource().read(), Files.toByteArray(cached[0]));
+
+        /*
+         * Replace the cached data with a valid, but different, encoding of the data. It is used
+         * instead of compressing again.
+         */
+        byte[] best = deflateBest(data);
+        Files.write(best, cached[0]);
+        assertArrayEquals(best, compress(compressor, data).getSource().read());
+
+        /*
+         * Corrupt cached data is ignored.
+         */
+        Files.write(new byte[] { 1, 2, 3 }, cached[0]);
+        assertArrayEquals(first.getSource().read(), compress(compressor, data).getSource().read());
+    }
+}
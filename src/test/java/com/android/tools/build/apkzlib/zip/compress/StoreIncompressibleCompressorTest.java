@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.build.apkzlib.zip.compress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tools.build.apkzlib.zip.CompressionMethod;
+import com.android.tools.build.apkzlib.zip.CompressionResult;
+import com.android.tools.build.apkzlib.zip.utils.ByteTracker;
+import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
+import com.google.common.base.Strings;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import org.junit.Test;
+
+public class StoreIncompressibleCompressorTest {
+
+    private final ByteTracker tracker = new ByteTracker();
+
+    private final AtomicInteger delegateCalls = new AtomicInteger();
+
+    private final DeflateExecutionCompressor deflater =
+            new DeflateExecutionCompressor(
+                    r -> {
+                        delegateCalls.incrementAndGet();
+                        r.run();
+                    },
+                    tracker,
+                    Deflater.DEFAULT_COMPRESSION);
+
+    private CompressionResult compress(
+            StoreIncompressibleCompressor compressor,
+            String name,
+            byte[] data)
+            throws Exception {
+        CloseableByteSource source = tracker.fromStream(new ByteArrayInputStream(data));
+        return compressor.compress(name, source).get();
+    }
+
+    private static byte[] randomData(int size) {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void randomDataIsStoredWithoutCompressing() throws Exception {
+        StoreIncompressibleCompressor compressor = new StoreIncompressibleCompressor(deflater);
+        CompressionResult result = compress(compressor, "res/raw/data.bin", randomData(10000));
+        assertEquals(CompressionMethod.STORE, result.getCompressionMethod());
+        assertEquals(0, delegateCalls.get());
+    }
+
+    @Test
+    public void compressedSignatureIsStoredWithoutCompressing() throws Exception {
+        byte[] png = new byte[10000];
+        byte[] signature = new byte[] { (byte) 0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a };
+        System.arraycopy(signature, 0, png, 0, signature.length);
+
+        StoreIncompressibleCompressor compressor = new StoreIncompressibleCompressor(deflater);
+        CompressionResult result = compress(compressor, "res/drawable/icon.png", png);
+        assertEquals(CompressionMethod.STORE, result.getCompressionMethod());
+        assertEquals(0, delegateCalls.get());
+    }
+
+    @Test
+    public void textIsCompressed() throws Exception {
+        byte[] text = Strings.repeat("Lorem ipsum dolor sit amet. ", 1000)
+                .getBytes(StandardCharsets.US_ASCII);
+
+        StoreIncompressibleCompressor compressor = new StoreIncompressibleCompressor(deflater);
+        CompressionResult result = compress(compressor, "assets/lorem.txt", text);
+        assertEquals(CompressionMethod.DEFLATE, result.getCompressionMethod());
+        assertEquals(1, delegateCalls.get());
+    }
+
+    @Test
+    public void smallFilesAreGivenToTheDelegate() throws Exception {
+        StoreIncompressibleCompressor compressor = new StoreIncompressibleCompressor(deflater);
+        CompressionResult result = compress(compressor, "small", randomData(100));
+        assertEquals(CompressionMethod.STORE, result.getCompressionMethod());
+        assertEquals(1, delegateCalls.get());
+    }
+
+    @Test
+    public void verificationSamplesIncompressibleData() throws Exception {
+        StoreIncompressibleCompressor compressor = new StoreIncompressibleCompressor(deflater, 1);
+        CompressionResult result = compress(compressor, "data.bin", randomData(10000));
+        assertEquals(CompressionMethod.STORE, result.getCompressionMethod());
+        assertEquals(1, delegateCalls.get());
+        assertEquals(0, compressor.getMisdetectedCount());
+    }
+
+    @Test
+    public void entropy() {
+        assertEquals(0.0, StoreIncompressibleCompressor.entropy(new byte[100]), 0.0);
+        assertEquals(1.0, StoreIncompressibleCompressor.entropy(new byte[] { 0, 1, 0, 1 }), 1e-9);
+        assertTrue(StoreIncompressibleCompressor.entropy(randomData(4096)) > 7.9);
+    }
+}